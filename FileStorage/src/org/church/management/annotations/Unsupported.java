@@ -1,16 +1,16 @@
-package org.church.management.annotations;
-
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-
-/**
- * 
- * @author Trae
- *
- * This annotation is for 
- * not supported features.
- */
-@Retention(RetentionPolicy.RUNTIME)
-public @interface Unsupported 
-{
-}
+package org.church.management.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This annotation is for 
+ * not supported features.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Unsupported 
+{
+}
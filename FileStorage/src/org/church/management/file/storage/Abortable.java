@@ -0,0 +1,17 @@
+package org.church.management.file.storage;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This interface is for the write streams that commit the file when they are closed.
+ * A caller that has failed in the middle of writing aborts the stream instead of closing it,
+ * so the part of the file written so far is thrown away instead of being kept as the whole file.
+ */
+public interface Abortable
+{
+	/**
+	 * Ends the stream without committing the file, the failures of the abort are only logged.
+	 */
+	public void abort();
+}
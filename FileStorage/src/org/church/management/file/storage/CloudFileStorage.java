@@ -1,10 +1,10 @@
-package org.church.management.file.storage;
-
-public interface CloudFileStorage extends FileStorage
-{
-	public boolean isConnected();
-	
-	public void disconnect();
-	
-	public void reconnect() throws Exception;
-}
+package org.church.management.file.storage;
+
+public interface CloudFileStorage extends FileStorage
+{
+	public boolean isConnected();
+	
+	public void disconnect();
+	
+	public void reconnect() throws Exception;
+}
@@ -0,0 +1,174 @@
+package org.church.management.file.storage;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.church.management.file.storage.batch.BatchResult;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class passes every operation on to another file storage.
+ * A storage that adds a feature on top of an existing storage extends
+ * this class and only overrides the operations it changes.
+ */
+public abstract class DelegatingFileStorage implements FileStorage
+{
+	protected FileStorage storage;
+
+	public DelegatingFileStorage(FileStorage storage)
+	{
+		this.storage = storage;
+	}
+
+	public FileStorage getFileStorage()
+	{
+		return storage;
+	}
+
+	public String createDirectory(String directory) throws Exception
+	{
+		return storage.createDirectory(directory);
+	}
+
+	public void deleteDirectory(String directory) throws Exception
+	{
+		storage.deleteDirectory(directory);
+	}
+
+	public String renameDirectory(String oldDirectory, String newDirectory) throws Exception
+	{
+		return storage.renameDirectory(oldDirectory, newDirectory);
+	}
+
+	public String upload(String folder, File file) throws Exception
+	{
+		return storage.upload(folder, file);
+	}
+
+	public String copy(String folder, String renameFile, File file) throws Exception
+	{
+		return storage.copy(folder, renameFile, file);
+	}
+
+	public void deleteFile(String filePath) throws Exception
+	{
+		storage.deleteFile(filePath);
+	}
+
+	public File retrieve(String filePath) throws Exception
+	{
+		return storage.retrieve(filePath);
+	}
+
+	public byte[] retrieveRange(String filePath, long offset, int length) throws Exception
+	{
+		return storage.retrieveRange(filePath, offset, length);
+	}
+
+	public StorageEntry stat(String filePath) throws Exception
+	{
+		return storage.stat(filePath);
+	}
+
+	public String update(String filePath, File file) throws Exception
+	{
+		return storage.update(filePath, file);
+	}
+
+	public String renameFile(String filepath, String newFileName) throws Exception
+	{
+		return storage.renameFile(filepath, newFileName);
+	}
+
+	public InputStream openRead(String filePath) throws Exception
+	{
+		return storage.openRead(filePath);
+	}
+
+	public OutputStream openWrite(String filePath) throws Exception
+	{
+		return storage.openWrite(filePath);
+	}
+
+	public long transferTo(String filePath, WritableByteChannel target) throws Exception
+	{
+		return storage.transferTo(filePath, target);
+	}
+
+	public List<BatchResult> uploadAll(String folder, Collection<File> files) throws Exception
+	{
+		return storage.uploadAll(folder, files);
+	}
+
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception
+	{
+		return storage.deleteAll(filePaths);
+	}
+
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception
+	{
+		return storage.renameAll(renameFiles);
+	}
+
+	public List<BatchResult> createDirectories(Collection<String> directories) throws Exception
+	{
+		return storage.createDirectories(directories);
+	}
+
+	public List<String> getAvailableFileExtensions() throws Exception
+	{
+		return storage.getAvailableFileExtensions();
+	}
+
+	public long getMemoryUsage() throws Exception
+	{
+		return storage.getMemoryUsage();
+	}
+
+	public long getMemoryLimitation() throws Exception
+	{
+		return storage.getMemoryLimitation();
+	}
+
+	public List<File> getAllFiles() throws Exception
+	{
+		return storage.getAllFiles();
+	}
+
+	public List<File> getAllFilesForDirectory(String directory) throws Exception
+	{
+		return storage.getAllFilesForDirectory(directory);
+	}
+
+	public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception
+	{
+		return storage.listEntries(directory, recursive, continuationToken);
+	}
+
+	public boolean isCloudStorage()
+	{
+		return storage.isCloudStorage();
+	}
+
+	public File zipUpAllFiles(String archiveName) throws Exception
+	{
+		return storage.zipUpAllFiles(archiveName);
+	}
+
+	public File zipUpDirectory(String fullPath, String archiveName) throws Exception
+	{
+		return storage.zipUpDirectory(fullPath, archiveName);
+	}
+
+	public void zipDirectoryTo(String directory, OutputStream output) throws Exception
+	{
+		storage.zipDirectoryTo(directory, output);
+	}
+}
@@ -1,37 +1,80 @@
-package org.church.management.file.storage;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.List;
-
-/**
- * 
- * @author Trae
- * 
- * This interface is used for storing files on a server, ftp, or drive.
- *
- */
-public interface FileStorage 
-{
-	
-	public String createDirectory(String directory) throws Exception;
-	public void deleteDirectory(String directory) throws Exception;
-	public String renameDirectory(String oldDirectly, String newDirectory) throws Exception;
-	
-	public String upload(String folder, File file) throws Exception;
-	public String copy(String folder, String renameFile, File file) throws Exception;
-	public void deleteFile(String filePath) throws Exception;
-	public File retrieve(String filePath) throws Exception;
-	public String update(String filePath, File file) throws Exception;
-	public String renameFile(String filepath, String newFileName) throws Exception;
-	
-	public List<String> getAvailableFileExtensions() throws Exception;
-	public long getMemoryUsage() throws Exception;
-	public long getMemoryLimitation() throws Exception;
-	
-	public List<File> getAllFiles() throws Exception;
-	public List<File> getAllFilesForDirectory(String directory) throws Exception;
-	public boolean isCloudStorage();
-	public File zipUpAllFiles(String archiveName) throws Exception;
-	public File zipUpDirectory(String fullPath, String archiveName) throws Exception;
+package org.church.management.file.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.church.management.file.storage.batch.BatchResult;
+
+/**
+ * 
+ * @author Trae
+ * 
+ * This interface is used for storing files on a server, ftp, or drive.
+ *
+ */
+public interface FileStorage 
+{
+	
+	public String createDirectory(String directory) throws Exception;
+	public void deleteDirectory(String directory) throws Exception;
+	public String renameDirectory(String oldDirectly, String newDirectory) throws Exception;
+	
+	public String upload(String folder, File file) throws Exception;
+	public String copy(String folder, String renameFile, File file) throws Exception;
+	public void deleteFile(String filePath) throws Exception;
+	public File retrieve(String filePath) throws Exception;
+	public byte[] retrieveRange(String filePath, long offset, int length) throws Exception;
+	public StorageEntry stat(String filePath) throws Exception;
+	public String update(String filePath, File file) throws Exception;
+	public String renameFile(String filepath, String newFileName) throws Exception;
+	
+	/*
+	 * The streams hold the underlying file or connection until they are closed,
+	 * so the caller must always close them.
+	 */
+	public InputStream openRead(String filePath) throws Exception;
+	public OutputStream openWrite(String filePath) throws Exception;
+	
+	/*
+	 * Writes the whole file to the channel and returns the number of bytes,
+	 * the local storages let the file system send the bytes without copying them onto the heap.
+	 */
+	public long transferTo(String filePath, WritableByteChannel target) throws Exception;
+	
+	/*
+	 * The batch operations return one result per item in the order of the items,
+	 * a failed item does not stop the rest of the batch.
+	 */
+	public List<BatchResult> uploadAll(String folder, Collection<File> files) throws Exception;
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception;
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception;
+	public List<BatchResult> createDirectories(Collection<String> directories) throws Exception;
+	
+	public List<String> getAvailableFileExtensions() throws Exception;
+	public long getMemoryUsage() throws Exception;
+	public long getMemoryLimitation() throws Exception;
+	
+	public List<File> getAllFiles() throws Exception;
+	public List<File> getAllFilesForDirectory(String directory) throws Exception;
+	
+	/*
+	 * Lists the directory lazily, the continuation token of an earlier listing 
+	 * continues after its last entry and null starts from the beginning.
+	 */
+	public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception;
+	public boolean isCloudStorage();
+	public File zipUpAllFiles(String archiveName) throws Exception;
+	public File zipUpDirectory(String fullPath, String archiveName) throws Exception;
+	
+	/*
+	 * Writes the directory as a zip to the stream while it is read, null or an empty path zips the whole storage.
+	 * Nothing is staged in the temp folder, the stream is finished but not closed.
+	 */
+	public void zipDirectoryTo(String directory, OutputStream output) throws Exception;
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package org.church.management.file.storage;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This interface is for the storages that keep their files on the local file system,
+ * so the files can be read through the file channels without copying them onto the heap.
+ */
+public interface LocalFileStorage extends FileStorage
+{
+	/*
+	 * The channel is read only and holds the file until it is closed.
+	 */
+	public FileChannel openChannel(String filePath) throws Exception;
+	
+	/*
+	 * The buffer is read only and stays valid after the file is closed,
+	 * files larger than 2GB have to be read through the channel.
+	 */
+	public MappedByteBuffer map(String filePath) throws Exception;
+}
@@ -0,0 +1,83 @@
+package org.church.management.file.storage;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class describes a file or directory in a storage 
+ * without downloading or opening it.
+ */
+public class StorageEntry 
+{
+	private String path;
+	private String name;
+	private boolean directory;
+	private long size;
+	private long lastModified;
+	private boolean exists = true;
+	
+	public StorageEntry(String path, String name, boolean directory, long size, long lastModified)
+	{
+		this.path = path;
+		this.name = name;
+		this.directory = directory;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+	
+	/**
+	 * @return the entry for a path that does not exist in the storage.
+	 */
+	public static StorageEntry missing(String path, String name)
+	{
+		StorageEntry entry = new StorageEntry(path, name, false, 0, 0);
+		entry.exists = false;
+		return entry;
+	}
+	
+	/**
+	 * @return the path that can be passed back to the storage.
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public boolean exists()
+	{
+		return exists;
+	}
+	
+	public boolean isDirectory()
+	{
+		return exists && directory;
+	}
+	
+	public boolean isFile()
+	{
+		return exists && directory == false;
+	}
+	
+	public long getSize()
+	{
+		return size;
+	}
+	
+	/**
+	 * @return the time in milliseconds, 0 when the storage does not know it.
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+	
+	public String toString()
+	{
+		return path;
+	}
+}
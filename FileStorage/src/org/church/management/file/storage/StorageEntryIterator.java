@@ -0,0 +1,209 @@
+package org.church.management.file.storage;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.church.management.file.storage.exception.StorageListingException;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class lists a storage directory one directory at a time.
+ * A directory is only read when the iteration reaches it, so the first entries
+ * come back right away and only the directories on the current path are held in memory.
+ * 
+ * The entries of each directory are returned sorted by name and a directory comes
+ * before its contents. The continuation token is the position of the last entry,
+ * a new iterator started with the token carries on after that entry.
+ */
+public abstract class StorageEntryIterator implements Iterator<StorageEntry>
+{
+	private static final Comparator<StorageEntry> NAME_ORDER = new Comparator<StorageEntry>()
+	{
+		public int compare(StorageEntry first, StorageEntry second)
+		{
+			return first.getName().compareTo(second.getName());
+		}
+	};
+	
+	private boolean recursive;
+	private LinkedList<Frame> stack = new LinkedList<Frame>();
+	private StorageEntry next = null;
+	private String nextToken = null;
+	private String continuationToken = null;
+	
+	public StorageEntryIterator(String directory, boolean recursive, String continuationToken)
+	{
+		this.recursive = recursive;
+		this.continuationToken = continuationToken;
+		
+		String[] resume = null;
+		
+		if(continuationToken != null && continuationToken.length() > 0)
+		{
+			resume = continuationToken.split("/");
+		}
+		
+		stack.add(new Frame(directory, "", resume));
+	}
+	
+	/**
+	 * @return the entries directly inside the directory, in any order.
+	 */
+	protected abstract List<StorageEntry> listDirectory(String directory) throws Exception;
+	
+	/**
+	 * @return the token to continue the listing after the last returned entry.
+	 */
+	public String getContinuationToken()
+	{
+		return continuationToken;
+	}
+
+	public boolean hasNext() 
+	{
+		if(next == null)
+		{
+			advance();
+		}
+		
+		return next != null;
+	}
+
+	public StorageEntry next() 
+	{
+		if(hasNext() == false)
+		{
+			throw new NoSuchElementException();
+		}
+		
+		StorageEntry entry = next;
+		continuationToken = nextToken;
+		next = null;
+		nextToken = null;
+		
+		return entry;
+	}
+	
+	/**
+	 * Reads up to the page size of entries.
+	 */
+	public List<StorageEntry> nextPage(int pageSize)
+	{
+		List<StorageEntry> page = new LinkedList<StorageEntry>();
+		
+		while(page.size() < pageSize && hasNext())
+		{
+			page.add(next());
+		}
+		
+		return page;
+	}
+
+	public void remove() 
+	{
+		throw new UnsupportedOperationException("The storage listing is read only.");
+	}
+	
+	private void advance()
+	{
+		while(stack.isEmpty() == false)
+		{
+			Frame frame = stack.getLast();
+			
+			if(frame.children == null)
+			{
+				load(frame);
+			}
+			
+			if(frame.children.isEmpty())
+			{
+				stack.removeLast();
+				continue;
+			}
+			
+			StorageEntry child = frame.children.removeFirst();
+			String relativePath = child.getName();
+			
+			if(frame.relativePath.length() > 0)
+			{
+				relativePath = frame.relativePath+"/"+child.getName();
+			}
+			
+			String[] resume = null;
+			boolean skip = false;
+			
+			//the entry leads to the continuation token, so it was already returned.
+			if(frame.resume != null && frame.resume.length > 0 && child.getName().equals(frame.resume[0]))
+			{
+				skip = true;
+				
+				if(frame.resume.length > 1)
+				{
+					resume = new String[frame.resume.length - 1];
+					System.arraycopy(frame.resume, 1, resume, 0, resume.length);
+				}
+			}
+			
+			if(recursive && child.isDirectory())
+			{
+				stack.add(new Frame(child.getPath(), relativePath, resume));
+			}
+			
+			if(skip == false)
+			{
+				next = child;
+				nextToken = relativePath;
+				return;
+			}
+		}
+	}
+	
+	private void load(Frame frame)
+	{
+		List<StorageEntry> children = null;
+		
+		try
+		{
+			children = listDirectory(frame.directory);
+		}
+		catch(Exception e)
+		{
+			throw new StorageListingException("Could not list the directory: "+frame.directory+".", e);
+		}
+		
+		Collections.sort(children, NAME_ORDER);
+		frame.children = new LinkedList<StorageEntry>();
+		
+		for(StorageEntry child: children)
+		{
+			//entries before the continuation token were returned by an earlier page.
+			if(frame.resume != null && frame.resume.length > 0 && child.getName().compareTo(frame.resume[0]) < 0)
+			{
+				continue;
+			}
+			
+			frame.children.add(child);
+		}
+	}
+	
+	private static class Frame
+	{
+		private String directory;
+		private String relativePath;
+		private String[] resume;
+		private LinkedList<StorageEntry> children = null;
+		
+		public Frame(String directory, String relativePath, String[] resume)
+		{
+			this.directory = directory;
+			this.relativePath = relativePath;
+			this.resume = resume;
+		}
+	}
+}
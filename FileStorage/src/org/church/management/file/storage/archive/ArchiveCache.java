@@ -0,0 +1,514 @@
+package org.church.management.file.storage.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps finished zips on the disk, so the zip of a directory that has not changed
+ * is sent again without compressing anything. Every zip is kept under a key, like the path of
+ * the directory, with a fingerprint of the files it was made of, only the latest zip of a key is kept.
+ *
+ * The zips are kept within a disk budget and the zips used least recently are deleted first,
+ * a zip that is being read is only deleted once it is released.
+ *
+ * Next to every zip a manifest lists its entries and where their data starts, so a new zip
+ * of a directory where only some files changed copies the unchanged entries from the old zip.
+ */
+public class ArchiveCache
+{
+	private static final Logger logger = Logger.getLogger(ArchiveCache.class);
+	private static final String ENCODING = "UTF-8";
+	private static final String ARCHIVE_SUFFIX = ".zip";
+	private static final String MANIFEST_SUFFIX = ".entries";
+	private static final String PARTIAL_SUFFIX = ".part";
+
+	private File folder;
+	private long budget;
+	private long usage = 0;
+	private long counter = 0;
+
+	//in the order of use, the least recently used first.
+	private LinkedHashMap<String, Archive> archives = new LinkedHashMap<String, Archive>(16, 0.75f, true);
+
+	/**
+	 * @param budget the bytes the zips may take on the disk.
+	 */
+	public ArchiveCache(File folder, long budget) throws IOException
+	{
+		this.folder = folder;
+		this.budget = budget;
+
+		FileUtils.forceMkdir(folder);
+		load();
+	}
+
+	/**
+	 * @return the zip of the key with the fingerprint, null when it is not kept. The zip must be released.
+	 */
+	public synchronized Archive open(String key, String fingerprint)
+	{
+		Archive archive = archives.get(key);
+
+		if(archive == null || archive.fingerprint.equals(fingerprint) == false)
+		{
+			return null;
+		}
+
+		archive.pins++;
+
+		//the order of use survives a restart.
+		archive.manifest.setLastModified(System.currentTimeMillis());
+		return archive;
+	}
+
+	/**
+	 * @return the latest zip of the key whatever its fingerprint, null when there is none. The zip must be released.
+	 */
+	public synchronized Archive openLatest(String key)
+	{
+		Archive archive = archives.get(key);
+
+		if(archive != null)
+		{
+			archive.pins++;
+		}
+
+		return archive;
+	}
+
+	/**
+	 * Starts a new zip of the key, it replaces the kept zip of the key once it is committed.
+	 */
+	public Builder create(String key, String fingerprint) throws IOException
+	{
+		String name = null;
+
+		synchronized(this)
+		{
+			counter++;
+			name = hash(key)+"-"+System.currentTimeMillis()+"-"+counter;
+		}
+
+		return new Builder(key, fingerprint, name);
+	}
+
+	/**
+	 * @return the bytes the kept zips take on the disk.
+	 */
+	public synchronized long getUsage()
+	{
+		return usage;
+	}
+
+	/**
+	 * Deletes every zip that is not being read.
+	 */
+	public synchronized void clear()
+	{
+		Iterator<Archive> iterator = archives.values().iterator();
+
+		while(iterator.hasNext())
+		{
+			Archive archive = iterator.next();
+			iterator.remove();
+			retire(archive);
+		}
+	}
+
+	private synchronized void add(Archive archive)
+	{
+		Archive previous = archives.remove(archive.key);
+
+		if(previous != null)
+		{
+			retire(previous);
+		}
+
+		if(archive.size > budget)
+		{
+			delete(archive);
+			return;
+		}
+
+		archives.put(archive.key, archive);
+		usage += archive.size;
+		evict();
+	}
+
+	private synchronized void release(Archive archive)
+	{
+		archive.pins--;
+
+		if(archive.pins > 0)
+		{
+			return;
+		}
+
+		if(archive.retired)
+		{
+			delete(archive);
+		}
+
+		else
+		{
+			//the zip may have been kept over the budget while it was read.
+			evict();
+		}
+	}
+
+	private void evict()
+	{
+		Iterator<Archive> iterator = archives.values().iterator();
+
+		while(usage > budget && iterator.hasNext())
+		{
+			Archive archive = iterator.next();
+
+			if(archive.pins > 0)
+			{
+				continue;
+			}
+
+			iterator.remove();
+			retire(archive);
+		}
+	}
+
+	/**
+	 * Takes a zip out of the budget, it is deleted once nobody reads it.
+	 */
+	private void retire(Archive archive)
+	{
+		usage -= archive.size;
+		archive.retired = true;
+
+		if(archive.pins == 0)
+		{
+			delete(archive);
+		}
+	}
+
+	private void delete(Archive archive)
+	{
+		//the manifest goes first, a zip without one is cleaned up on the next start.
+		if(archive.manifest.delete() == false && archive.manifest.exists())
+		{
+			logger.error("ArchiveCache.delete()- Could not delete the manifest: "+archive.manifest.getPath()+".");
+		}
+
+		if(archive.file.delete() == false && archive.file.exists())
+		{
+			logger.error("ArchiveCache.delete()- Could not delete the archive: "+archive.file.getPath()+".");
+		}
+	}
+
+	/**
+	 * Picks up the zips kept before a restart, the zips cut short by a crash are deleted.
+	 */
+	private void load() throws IOException
+	{
+		File[] files = folder.listFiles();
+
+		if(files == null)
+		{
+			throw new IOException("Could not list the archive cache: "+folder.getPath()+".");
+		}
+
+		List<Archive> loaded = new ArrayList<Archive>();
+
+		for(File file: files)
+		{
+			String name = file.getName();
+
+			if(name.endsWith(PARTIAL_SUFFIX))
+			{
+				file.delete();
+			}
+
+			else if(name.endsWith(ARCHIVE_SUFFIX) && new File(folder, name.substring(0, name.length() - ARCHIVE_SUFFIX.length())+MANIFEST_SUFFIX).exists() == false)
+			{
+				file.delete();
+			}
+
+			else if(name.endsWith(MANIFEST_SUFFIX))
+			{
+				File archiveFile = new File(folder, name.substring(0, name.length() - MANIFEST_SUFFIX.length())+ARCHIVE_SUFFIX);
+
+				try
+				{
+					if(archiveFile.exists() == false)
+					{
+						throw new IOException("The archive of the manifest is missing.");
+					}
+
+					String[] header = readHeader(file);
+					loaded.add(new Archive(header[1], header[0], archiveFile, file, archiveFile.length()));
+				}
+				catch(IOException e)
+				{
+					logger.error("ArchiveCache.load()- Deleting the damaged archive: "+archiveFile.getPath()+".", e);
+					file.delete();
+					archiveFile.delete();
+				}
+			}
+		}
+
+		Collections.sort(loaded, new Comparator<Archive>()
+		{
+			public int compare(Archive first, Archive second)
+			{
+				long difference = first.manifest.lastModified() - second.manifest.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+
+		for(Archive archive: loaded)
+		{
+			add(archive);
+		}
+	}
+
+	private static String[] readHeader(File manifest) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), ENCODING));
+
+		try
+		{
+			String fingerprint = reader.readLine();
+			String key = reader.readLine();
+
+			if(fingerprint == null || key == null)
+			{
+				throw new IOException("The manifest is cut short: "+manifest.getPath()+".");
+			}
+
+			return new String[] {fingerprint, key};
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	private static String hash(String key) throws IOException
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(key.getBytes(ENCODING));
+			StringBuilder hex = new StringBuilder();
+
+			for(byte value: hash)
+			{
+				hex.append(Character.forDigit((value >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(value & 0xF, 16));
+			}
+
+			return hex.toString();
+		}
+		catch(java.security.NoSuchAlgorithmException e)
+		{
+			throw new IOException("SHA-1 is not available.", e);
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class is a kept zip, it stays on the disk until it is released.
+	 */
+	public class Archive
+	{
+		private String key;
+		private String fingerprint;
+		private File file;
+		private File manifest;
+		private long size;
+		private int pins = 0;
+		private boolean retired = false;
+
+		private Archive(String key, String fingerprint, File file, File manifest, long size)
+		{
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.file = file;
+			this.manifest = manifest;
+			this.size = size;
+		}
+
+		public File getFile()
+		{
+			return file;
+		}
+
+		public String getFingerprint()
+		{
+			return fingerprint;
+		}
+
+		/**
+		 * @return the entries of the zip by their name.
+		 */
+		public Map<String, ArchivedEntry> getEntries() throws IOException
+		{
+			Map<String, ArchivedEntry> entries = new HashMap<String, ArchivedEntry>();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), ENCODING));
+
+			try
+			{
+				reader.readLine();
+				reader.readLine();
+				String line = reader.readLine();
+
+				while(line != null)
+				{
+					String[] fields = line.split("\t", 7);
+
+					if(fields.length < 7)
+					{
+						throw new IOException("The manifest is damaged: "+manifest.getPath()+".");
+					}
+
+					ArchivedEntry entry = new ArchivedEntry(fields[6], Long.parseLong(fields[1]), Long.parseLong(fields[0]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+					entries.put(entry.getName(), entry);
+					line = reader.readLine();
+				}
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IOException("The manifest is damaged: "+manifest.getPath()+".", e);
+			}
+			finally
+			{
+				reader.close();
+			}
+
+			return entries;
+		}
+
+		public void release()
+		{
+			ArchiveCache.this.release(this);
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class writes a new zip into the cache, the zip is only kept once it is committed.
+	 */
+	public class Builder
+	{
+		private String key;
+		private String fingerprint;
+		private File partial;
+		private File file;
+		private File manifest;
+		private OutputStream output;
+		private boolean done = false;
+
+		private Builder(String key, String fingerprint, String name) throws IOException
+		{
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.partial = new File(folder, name+ARCHIVE_SUFFIX+PARTIAL_SUFFIX);
+			this.file = new File(folder, name+ARCHIVE_SUFFIX);
+			this.manifest = new File(folder, name+MANIFEST_SUFFIX);
+			this.output = new BufferedOutputStream(new FileOutputStream(partial), 64 * 1024);
+		}
+
+		/**
+		 * @return the stream the zip is written to.
+		 */
+		public OutputStream getOutput()
+		{
+			return output;
+		}
+
+		/**
+		 * Keeps the zip written to the stream.
+		 *
+		 * @param entries the entries of the zip, as the writer returned them.
+		 */
+		public void commit(List<ArchivedEntry> entries) throws IOException
+		{
+			output.close();
+			File partialManifest = new File(manifest.getPath()+PARTIAL_SUFFIX);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partialManifest), ENCODING));
+
+			try
+			{
+				writer.write(fingerprint+"\n"+key+"\n");
+
+				for(ArchivedEntry entry: entries)
+				{
+					writer.write(entry.getSize()+"\t"+entry.getLastModified()+"\t"+entry.getCrc()+"\t"+entry.getCompressedSize()+"\t"+entry.getMethod()+"\t"+entry.getDataOffset()+"\t"+entry.getName()+"\n");
+				}
+			}
+			finally
+			{
+				writer.close();
+			}
+
+			if(partial.renameTo(file) == false || partialManifest.renameTo(manifest) == false)
+			{
+				partialManifest.delete();
+				throw new IOException("Could not keep the archive: "+file.getPath()+".");
+			}
+
+			done = true;
+			add(new Archive(key, fingerprint, file, manifest, file.length()));
+		}
+
+		/**
+		 * Throws the zip away, it does nothing once the zip is committed.
+		 */
+		public void abort()
+		{
+			if(done)
+			{
+				return;
+			}
+
+			done = true;
+
+			try
+			{
+				output.close();
+			}
+			catch(IOException e)
+			{
+				logger.error("ArchiveCache.abort()- Could not close the archive: "+partial.getPath()+".", e);
+			}
+
+			partial.delete();
+			file.delete();
+		}
+	}
+}
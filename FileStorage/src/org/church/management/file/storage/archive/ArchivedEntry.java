@@ -0,0 +1,87 @@
+package org.church.management.file.storage.archive;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class is an entry of a zip written by the parallel zip writer and where
+ * its compressed data starts in the zip, so the data can be copied into a later zip.
+ */
+public class ArchivedEntry
+{
+	private String name;
+	private long lastModified;
+	private long size;
+	private long crc;
+	private long compressedSize;
+	private int method;
+	private long dataOffset;
+
+	public ArchivedEntry(String name, long lastModified, long size, long crc, long compressedSize, int method, long dataOffset)
+	{
+		this.name = name;
+		this.lastModified = lastModified;
+		this.size = size;
+		this.crc = crc;
+		this.compressedSize = compressedSize;
+		this.method = method;
+		this.dataOffset = dataOffset;
+	}
+
+	/**
+	 * @return the path in the zip, a directory ends with '/'.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @return the bytes of the entry before compression.
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	public long getCrc()
+	{
+		return crc;
+	}
+
+	public long getCompressedSize()
+	{
+		return compressedSize;
+	}
+
+	/**
+	 * @return 0 when the entry is stored, 8 when it is deflated.
+	 */
+	public int getMethod()
+	{
+		return method;
+	}
+
+	/**
+	 * @return the offset in the zip of the first byte of the compressed data.
+	 */
+	public long getDataOffset()
+	{
+		return dataOffset;
+	}
+
+	public boolean isDirectory()
+	{
+		return name.endsWith("/");
+	}
+
+	public String toString()
+	{
+		return name+" ("+size+" bytes)";
+	}
+}
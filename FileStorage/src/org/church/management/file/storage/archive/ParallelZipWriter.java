@@ -0,0 +1,977 @@
+package org.church.management.file.storage.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class writes a zip whose entries are compressed by the threads of a compressor.
+ * The entries are compressed ahead in parallel and written to the stream in the order they were added.
+ *
+ * A small entry is compressed into memory and written with its sizes in the local header.
+ * A large entry is compressed by one thread in chunks that are written while it is read, with the sizes
+ * in a data descriptor after the data, so the memory stays bounded whatever the size of the files.
+ * The deflater of this Java version cannot flush in the middle of a stream, so a single entry cannot be
+ * split over several threads, the entries after a large entry are compressed while it is written.
+ *
+ * The sizes and offsets past 4 GB and more than 65535 entries are written in the zip64 format.
+ * A large entry of an unknown size or close to 4 GB has a zip64 extra field in its local header
+ * and the 8 byte sizes in its data descriptor, whatever size it turns out to have.
+ * An entry of an earlier zip can be copied over as it is compressed, without compressing it again.
+ *
+ * The writer must be finished or cancelled, otherwise the threads of a large entry wait for it.
+ */
+public class ParallelZipWriter
+{
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+	private static final int FLAG_UTF8 = 0x0800;
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+	private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+	private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+	private static final int ZIP64_LOCAL_EXTRA_SIZE = 20;
+
+	//deflate can grow an entry a little, so an entry this close to 4 GB may pass it once compressed.
+	private static final long ZIP64_ENTRY_THRESHOLD = ZIP64_LIMIT - ZIP64_LIMIT / 256;
+
+	private static final int BUFFERED_ENTRY_SIZE = 4 * 1024 * 1024;
+	private static final long BUFFERED_BYTES = 64L * 1024 * 1024;
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int CHUNK_QUEUE_SIZE = 16;
+	private static final byte[] END_OF_ENTRY = new byte[0];
+
+	private OutputStream output;
+	private ZipCompressor compressor;
+	private int window;
+	private long position = 0;
+	private Calendar calendar = Calendar.getInstance();
+
+	private LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+	private long pendingBytes = 0;
+	private List<CentralRecord> records = new ArrayList<CentralRecord>();
+	private File rawArchive = null;
+	private RandomAccessFile rawFile = null;
+
+	private volatile boolean cancelled = false;
+	private boolean finished = false;
+
+	ParallelZipWriter(OutputStream output, ZipCompressor compressor)
+	{
+		this.output = output;
+		this.compressor = compressor;
+		this.window = Math.max(2, compressor.getParallelism() * 2);
+	}
+
+	/**
+	 * @param name the path of the directory in the zip, a '/' is added to the end.
+	 */
+	public void addDirectory(String name, long lastModified) throws IOException
+	{
+		checkOpen();
+
+		if(name.endsWith("/") == false)
+		{
+			name = name+"/";
+		}
+
+		add(new PendingEntry(name, lastModified, 0));
+	}
+
+	/**
+	 * Adds a file of the local disk, a file deleted before it is read is left out.
+	 */
+	public void addFile(String name, final File file) throws IOException
+	{
+		addEntry(name, file.lastModified(), file.length(), new Source()
+		{
+			public InputStream open() throws Exception
+			{
+				return new FileInputStream(file);
+			}
+		});
+	}
+
+	/**
+	 * Adds an entry read from the source by a compressor thread, a source that throws
+	 * FileNotFoundException when it is opened is left out.
+	 *
+	 * @param size the expected bytes of the entry, -1 when they are not known.
+	 */
+	public void addEntry(String name, long lastModified, long size, Source source) throws IOException
+	{
+		checkOpen();
+
+		PendingEntry entry = new PendingEntry(name, lastModified, size);
+		boolean stored = compressor.isStored(name);
+
+		if(size >= 0 && size <= BUFFERED_ENTRY_SIZE)
+		{
+			entry.future = compressor.getExecutor().submit(new BufferTask(source, stored));
+		}
+
+		else
+		{
+			entry.chunks = new ArrayBlockingQueue<byte[]>(CHUNK_QUEUE_SIZE);
+			entry.zip64 = size < 0 || size >= ZIP64_ENTRY_THRESHOLD;
+			entry.future = compressor.getExecutor().submit(new ChunkTask(source, stored, entry.chunks));
+		}
+
+		add(entry);
+	}
+
+	/**
+	 * Copies an entry of an earlier zip written by this class without compressing it again.
+	 */
+	public void addRaw(ArchivedEntry archived, File archive) throws IOException
+	{
+		checkOpen();
+
+		PendingEntry entry = new PendingEntry(archived.getName(), archived.getLastModified(), 0);
+		entry.raw = archived;
+		entry.rawArchive = archive;
+		add(entry);
+	}
+
+	/**
+	 * Writes the rest of the entries and the central directory, the stream is flushed but not closed.
+	 */
+	public void finish() throws IOException
+	{
+		checkOpen();
+
+		while(pending.isEmpty() == false)
+		{
+			writeNext();
+		}
+
+		writeCentralDirectory();
+		output.flush();
+		closeRaw();
+		finished = true;
+	}
+
+	/**
+	 * Stops the compression of the entries that have not been written, the zip is left unfinished.
+	 */
+	public void cancel()
+	{
+		if(finished)
+		{
+			return;
+		}
+
+		cancelled = true;
+
+		for(PendingEntry entry: pending)
+		{
+			if(entry.future != null)
+			{
+				entry.future.cancel(true);
+			}
+		}
+
+		pending.clear();
+		closeRaw();
+	}
+
+	/**
+	 * @return the entries written to the zip and where their data starts, in the order of the zip.
+	 */
+	public List<ArchivedEntry> getEntries()
+	{
+		List<ArchivedEntry> entries = new ArrayList<ArchivedEntry>(records.size());
+
+		for(CentralRecord record: records)
+		{
+			entries.add(new ArchivedEntry(record.path, record.lastModified, record.size, record.crc, record.compressedSize, record.method, record.offset + 30 + record.name.length + record.getLocalExtraSize()));
+		}
+
+		return entries;
+	}
+
+	/**
+	 * @return the bytes written to the stream so far.
+	 */
+	public long getPosition()
+	{
+		return position;
+	}
+
+	private void checkOpen()
+	{
+		if(finished || cancelled)
+		{
+			throw new IllegalStateException("The zip has already been finished or cancelled.");
+		}
+	}
+
+	private void add(PendingEntry entry) throws IOException
+	{
+		pending.add(entry);
+
+		if(entry.chunks == null)
+		{
+			pendingBytes += entry.size;
+		}
+
+		while(pending.size() > window || pendingBytes > BUFFERED_BYTES)
+		{
+			writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException
+	{
+		PendingEntry entry = pending.removeFirst();
+
+		if(entry.chunks == null)
+		{
+			pendingBytes -= entry.size;
+		}
+
+		try
+		{
+			if(entry.raw != null)
+			{
+				writeRaw(entry);
+			}
+
+			else if(entry.future == null)
+			{
+				CentralRecord record = new CentralRecord(entry.name, entry.lastModified, STORED, FLAG_UTF8);
+				writeLocalHeader(record);
+				records.add(record);
+			}
+
+			else if(entry.chunks == null)
+			{
+				writeBuffered(entry);
+			}
+
+			else
+			{
+				writeChunked(entry);
+			}
+		}
+		catch(IOException e)
+		{
+			if(entry.future != null)
+			{
+				entry.future.cancel(true);
+			}
+
+			cancel();
+			throw e;
+		}
+	}
+
+	private void writeBuffered(PendingEntry entry) throws IOException
+	{
+		EntryData data = await(entry);
+
+		if(data == null)
+		{
+			return;
+		}
+
+		CentralRecord record = new CentralRecord(entry.name, entry.lastModified, data.method, FLAG_UTF8);
+		record.crc = data.crc;
+		record.size = data.size;
+		record.compressedSize = data.bytes.size();
+
+		writeLocalHeader(record);
+		write(data.bytes);
+		records.add(record);
+	}
+
+	private void writeChunked(PendingEntry entry) throws IOException
+	{
+		byte[] chunk = take(entry);
+
+		if(chunk == END_OF_ENTRY && await(entry) == null)
+		{
+			return;
+		}
+
+		CentralRecord record = new CentralRecord(entry.name, entry.lastModified, DEFLATED, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR);
+		record.zip64 = entry.zip64;
+		writeLocalHeader(record);
+		long start = position;
+
+		while(chunk != END_OF_ENTRY)
+		{
+			write(chunk, chunk.length);
+			chunk = take(entry);
+		}
+
+		EntryData data = await(entry);
+		record.crc = data.crc;
+		record.size = data.size;
+		record.compressedSize = position - start;
+
+		writeDataDescriptor(record);
+		records.add(record);
+	}
+
+	private void writeRaw(PendingEntry entry) throws IOException
+	{
+		ArchivedEntry archived = entry.raw;
+
+		CentralRecord record = new CentralRecord(entry.name, entry.lastModified, archived.getMethod(), FLAG_UTF8);
+		record.crc = archived.getCrc();
+		record.size = archived.getSize();
+		record.compressedSize = archived.getCompressedSize();
+
+		//the sizes are known, the ones past 4 GB go in the zip64 extra field of the local header.
+		record.zip64 = record.isZip64Size();
+
+		if(entry.rawArchive.equals(rawArchive) == false)
+		{
+			closeRaw();
+			rawFile = new RandomAccessFile(entry.rawArchive, "r");
+			rawArchive = entry.rawArchive;
+		}
+
+		writeLocalHeader(record);
+		rawFile.seek(archived.getDataOffset());
+		byte[] buffer = new byte[CHUNK_SIZE];
+		long remaining = archived.getCompressedSize();
+
+		while(remaining > 0)
+		{
+			int read = rawFile.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+
+			if(read < 0)
+			{
+				throw new IOException("The archive of the entry is cut short: "+entry.rawArchive.getPath()+".");
+			}
+
+			write(buffer, read);
+			remaining -= read;
+		}
+
+		records.add(record);
+	}
+
+	private void writeDataDescriptor(CentralRecord record) throws IOException
+	{
+		ByteArrayOutputStream descriptor = new ByteArrayOutputStream(24);
+		writeInt(descriptor, DATA_DESCRIPTOR_SIGNATURE);
+		writeInt(descriptor, record.crc);
+
+		//a file that grew past 4 GB after it was listed has no zip64 extra field, its sizes are still written in 8 bytes.
+		if(record.zip64 || record.isZip64Size())
+		{
+			writeLong(descriptor, record.compressedSize);
+			writeLong(descriptor, record.size);
+		}
+
+		else
+		{
+			writeInt(descriptor, record.compressedSize);
+			writeInt(descriptor, record.size);
+		}
+
+		write(descriptor);
+	}
+
+	private void closeRaw()
+	{
+		if(rawFile == null)
+		{
+			return;
+		}
+
+		try
+		{
+			rawFile.close();
+		}
+		catch(IOException e)
+		{
+			//only read from.
+		}
+
+		rawFile = null;
+		rawArchive = null;
+	}
+
+	private void writeLocalHeader(CentralRecord record) throws IOException
+	{
+		record.offset = position;
+		boolean descriptor = (record.flags & FLAG_DATA_DESCRIPTOR) != 0;
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(30 + record.name.length + record.getLocalExtraSize());
+		writeInt(header, LOCAL_HEADER_SIGNATURE);
+		writeShort(header, record.zip64 ? VERSION_ZIP64 : VERSION);
+		writeShort(header, record.flags);
+		writeShort(header, record.method);
+		writeInt(header, record.dosTime);
+		writeInt(header, descriptor ? 0 : record.crc);
+
+		if(record.zip64)
+		{
+			writeInt(header, ZIP64_LIMIT);
+			writeInt(header, ZIP64_LIMIT);
+		}
+
+		else
+		{
+			writeInt(header, descriptor ? 0 : record.compressedSize);
+			writeInt(header, descriptor ? 0 : record.size);
+		}
+
+		writeShort(header, record.name.length);
+		writeShort(header, record.getLocalExtraSize());
+		header.write(record.name);
+
+		if(record.zip64)
+		{
+			//the sizes of an entry with a data descriptor are 0 here and follow the data.
+			writeShort(header, 0x0001);
+			writeShort(header, ZIP64_LOCAL_EXTRA_SIZE - 4);
+			writeLong(header, descriptor ? 0 : record.size);
+			writeLong(header, descriptor ? 0 : record.compressedSize);
+		}
+
+		write(header);
+	}
+
+	private void writeCentralDirectory() throws IOException
+	{
+		long start = position;
+
+		for(CentralRecord record: records)
+		{
+			ByteArrayOutputStream extra = new ByteArrayOutputStream(28);
+
+			if(record.size >= ZIP64_LIMIT)
+			{
+				writeLong(extra, record.size);
+			}
+
+			if(record.compressedSize >= ZIP64_LIMIT)
+			{
+				writeLong(extra, record.compressedSize);
+			}
+
+			if(record.offset >= ZIP64_LIMIT)
+			{
+				writeLong(extra, record.offset);
+			}
+
+			ByteArrayOutputStream header = new ByteArrayOutputStream(46 + record.name.length + 4 + extra.size());
+			writeInt(header, CENTRAL_HEADER_SIGNATURE);
+			writeShort(header, extra.size() > 0 || record.zip64 ? VERSION_ZIP64 : VERSION);
+			writeShort(header, extra.size() > 0 || record.zip64 ? VERSION_ZIP64 : VERSION);
+			writeShort(header, record.flags);
+			writeShort(header, record.method);
+			writeInt(header, record.dosTime);
+			writeInt(header, record.crc);
+			writeInt(header, Math.min(record.compressedSize, ZIP64_LIMIT));
+			writeInt(header, Math.min(record.size, ZIP64_LIMIT));
+			writeShort(header, record.name.length);
+			writeShort(header, extra.size() > 0 ? extra.size() + 4 : 0);
+			writeShort(header, 0);
+			writeShort(header, 0);
+			writeShort(header, 0);
+			writeInt(header, record.isDirectory() ? 0x10 : 0);
+			writeInt(header, Math.min(record.offset, ZIP64_LIMIT));
+			header.write(record.name);
+
+			if(extra.size() > 0)
+			{
+				writeShort(header, 0x0001);
+				writeShort(header, extra.size());
+				extra.writeTo(header);
+			}
+
+			write(header);
+		}
+
+		long end = position, size = end - start;
+		ByteArrayOutputStream trailer = new ByteArrayOutputStream(98);
+
+		if(records.size() >= ZIP64_ENTRY_LIMIT || size >= ZIP64_LIMIT || start >= ZIP64_LIMIT)
+		{
+			writeInt(trailer, ZIP64_END_SIGNATURE);
+			writeLong(trailer, 44);
+			writeShort(trailer, VERSION_ZIP64);
+			writeShort(trailer, VERSION_ZIP64);
+			writeInt(trailer, 0);
+			writeInt(trailer, 0);
+			writeLong(trailer, records.size());
+			writeLong(trailer, records.size());
+			writeLong(trailer, size);
+			writeLong(trailer, start);
+
+			writeInt(trailer, ZIP64_LOCATOR_SIGNATURE);
+			writeInt(trailer, 0);
+			writeLong(trailer, end);
+			writeInt(trailer, 1);
+		}
+
+		writeInt(trailer, END_SIGNATURE);
+		writeShort(trailer, 0);
+		writeShort(trailer, 0);
+		writeShort(trailer, Math.min(records.size(), ZIP64_ENTRY_LIMIT));
+		writeShort(trailer, Math.min(records.size(), ZIP64_ENTRY_LIMIT));
+		writeInt(trailer, Math.min(size, ZIP64_LIMIT));
+		writeInt(trailer, Math.min(start, ZIP64_LIMIT));
+		writeShort(trailer, 0);
+		write(trailer);
+	}
+
+	/**
+	 * @return the compressed entry, null when its source was not found.
+	 */
+	private EntryData await(PendingEntry entry) throws IOException
+	{
+		try
+		{
+			while(true)
+			{
+				try
+				{
+					EntryData data = entry.future.get(1, TimeUnit.SECONDS);
+					return data.skipped ? null : data;
+				}
+				catch(TimeoutException e)
+				{
+					checkRunning();
+				}
+			}
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+
+			throw new IOException("Could not zip up the entry: "+entry.name+".", e.getCause());
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while zipping up the entry: "+entry.name+".");
+		}
+	}
+
+	private byte[] take(PendingEntry entry) throws IOException
+	{
+		try
+		{
+			byte[] chunk = entry.chunks.poll(1, TimeUnit.SECONDS);
+
+			while(chunk == null)
+			{
+				checkRunning();
+				chunk = entry.chunks.poll(1, TimeUnit.SECONDS);
+			}
+
+			return chunk;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while zipping up the entry: "+entry.name+".");
+		}
+	}
+
+	/**
+	 * The tasks waiting in a compressor that was shut down never run.
+	 */
+	private void checkRunning() throws IOException
+	{
+		if(compressor.getExecutor().isShutdown())
+		{
+			throw new IOException("The compressor has been shut down.");
+		}
+	}
+
+	private void write(ByteArrayOutputStream bytes) throws IOException
+	{
+		bytes.writeTo(output);
+		position += bytes.size();
+	}
+
+	private void write(byte[] bytes, int length) throws IOException
+	{
+		output.write(bytes, 0, length);
+		position += length;
+	}
+
+	private long toDosTime(long time)
+	{
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+
+		if(year < 1980)
+		{
+			return (1 << 21) | (1 << 16);
+		}
+
+		return ((long)(year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+				| (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	private static void writeShort(ByteArrayOutputStream output, int value)
+	{
+		output.write(value & 0xFF);
+		output.write((value >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(ByteArrayOutputStream output, long value)
+	{
+		writeShort(output, (int)(value & 0xFFFF));
+		writeShort(output, (int)((value >>> 16) & 0xFFFF));
+	}
+
+	private static void writeLong(ByteArrayOutputStream output, long value)
+	{
+		writeInt(output, value & 0xFFFFFFFFL);
+		writeInt(output, value >>> 32);
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This interface opens the content of an entry, it is called by a compressor thread.
+	 */
+	public interface Source
+	{
+		public InputStream open() throws Exception;
+	}
+
+	private class PendingEntry
+	{
+		private String name;
+		private long lastModified;
+		private long size;
+		private Future<EntryData> future;
+		private BlockingQueue<byte[]> chunks;
+		private boolean zip64 = false;
+		private ArchivedEntry raw;
+		private File rawArchive;
+
+		public PendingEntry(String name, long lastModified, long size)
+		{
+			this.name = name;
+			this.lastModified = lastModified;
+			this.size = Math.max(0, size);
+		}
+	}
+
+	private static class EntryData
+	{
+		private boolean skipped = false;
+		private ByteArrayOutputStream bytes;
+		private int method;
+		private long crc;
+		private long size;
+	}
+
+	/**
+	 * Compresses a small entry into memory.
+	 */
+	private class BufferTask implements Callable<EntryData>
+	{
+		private Source source;
+		private boolean stored;
+
+		public BufferTask(Source source, boolean stored)
+		{
+			this.source = source;
+			this.stored = stored;
+		}
+
+		public EntryData call() throws Exception
+		{
+			EntryData data = new EntryData();
+			InputStream input = open(source, data);
+
+			if(input == null)
+			{
+				return data;
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHUNK_SIZE);
+			Deflater deflater = stored ? null : new Deflater(compressor.getLevel(), true);
+
+			try
+			{
+				if(stored)
+				{
+					read(input, bytes, data);
+				}
+
+				else
+				{
+					DeflaterOutputStream deflated = new DeflaterOutputStream(bytes, deflater, CHUNK_SIZE);
+					read(input, deflated, data);
+					deflated.finish();
+				}
+			}
+			finally
+			{
+				input.close();
+
+				if(deflater != null)
+				{
+					deflater.end();
+				}
+			}
+
+			data.bytes = bytes;
+			data.method = stored ? STORED : DEFLATED;
+			return data;
+		}
+	}
+
+	/**
+	 * Compresses a large entry into chunks the writer takes as they are ready,
+	 * a stored entry is wrapped in uncompressed deflate blocks so it can be streamed.
+	 */
+	private class ChunkTask implements Callable<EntryData>
+	{
+		private Source source;
+		private boolean stored;
+		private BlockingQueue<byte[]> chunks;
+
+		public ChunkTask(Source source, boolean stored, BlockingQueue<byte[]> chunks)
+		{
+			this.source = source;
+			this.stored = stored;
+			this.chunks = chunks;
+		}
+
+		public EntryData call() throws Exception
+		{
+			EntryData data = new EntryData();
+
+			try
+			{
+				InputStream input = open(source, data);
+
+				if(input == null)
+				{
+					return data;
+				}
+
+				Deflater deflater = new Deflater(stored ? Deflater.NO_COMPRESSION : compressor.getLevel(), true);
+
+				try
+				{
+					ChunkOutputStream chunked = new ChunkOutputStream(chunks);
+					DeflaterOutputStream deflated = new DeflaterOutputStream(chunked, deflater, CHUNK_SIZE);
+					read(input, deflated, data);
+					deflated.finish();
+					chunked.flush();
+				}
+				finally
+				{
+					input.close();
+					deflater.end();
+				}
+
+				data.method = DEFLATED;
+				return data;
+			}
+			finally
+			{
+				//the writer stops waiting even when the entry failed.
+				put(chunks, END_OF_ENTRY);
+			}
+		}
+	}
+
+	private InputStream open(Source source, EntryData data) throws Exception
+	{
+		try
+		{
+			return source.open();
+		}
+		catch(FileNotFoundException e)
+		{
+			data.skipped = true;
+			return null;
+		}
+	}
+
+	private void read(InputStream input, OutputStream target, EntryData data) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[CHUNK_SIZE];
+		int read = input.read(buffer);
+
+		while(read >= 0)
+		{
+			if(cancelled)
+			{
+				throw new InterruptedIOException("The zip has been cancelled.");
+			}
+
+			target.write(buffer, 0, read);
+			crc.update(buffer, 0, read);
+			data.size += read;
+			read = input.read(buffer);
+		}
+
+		data.crc = crc.getValue();
+	}
+
+	/**
+	 * Waits for the writer to take a chunk, a cancelled writer takes no more chunks.
+	 */
+	private void put(BlockingQueue<byte[]> chunks, byte[] chunk) throws IOException
+	{
+		try
+		{
+			while(chunks.offer(chunk, 1, TimeUnit.SECONDS) == false)
+			{
+				if(cancelled)
+				{
+					throw new InterruptedIOException("The zip has been cancelled.");
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			throw new InterruptedIOException("The zip has been cancelled.");
+		}
+	}
+
+	/**
+	 * Hands the compressed bytes to the writer a chunk at a time.
+	 */
+	private class ChunkOutputStream extends OutputStream
+	{
+		private BlockingQueue<byte[]> chunks;
+		private byte[] chunk = new byte[CHUNK_SIZE];
+		private int length = 0;
+
+		public ChunkOutputStream(BlockingQueue<byte[]> chunks)
+		{
+			this.chunks = chunks;
+		}
+
+		public void write(int value) throws IOException
+		{
+			write(new byte[] {(byte)value}, 0, 1);
+		}
+
+		public void write(byte[] bytes, int offset, int count) throws IOException
+		{
+			while(count > 0)
+			{
+				int copied = Math.min(count, chunk.length - length);
+				System.arraycopy(bytes, offset, chunk, length, copied);
+				length += copied;
+				offset += copied;
+				count -= copied;
+
+				if(length == chunk.length)
+				{
+					flush();
+				}
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			if(length == 0)
+			{
+				return;
+			}
+
+			byte[] full = chunk;
+
+			if(length < chunk.length)
+			{
+				full = new byte[length];
+				System.arraycopy(chunk, 0, full, 0, length);
+			}
+
+			put(chunks, full);
+			chunk = new byte[CHUNK_SIZE];
+			length = 0;
+		}
+	}
+
+	private class CentralRecord
+	{
+		private String path;
+		private long lastModified;
+		private byte[] name;
+		private long dosTime;
+		private int method;
+		private int flags;
+		private long crc = 0;
+		private long size = 0;
+		private long compressedSize = 0;
+		private long offset = 0;
+		private boolean zip64 = false;
+
+		public CentralRecord(String name, long lastModified, int method, int flags) throws UnsupportedEncodingException
+		{
+			this.path = name;
+			this.lastModified = lastModified;
+			this.name = name.getBytes("UTF-8");
+			this.dosTime = toDosTime(lastModified);
+			this.method = method;
+			this.flags = flags;
+		}
+
+		public boolean isDirectory()
+		{
+			return name.length > 0 && name[name.length - 1] == '/';
+		}
+
+		public boolean isZip64Size()
+		{
+			return size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT;
+		}
+
+		/**
+		 * @return the bytes of the zip64 extra field of the local header, 0 when it has none.
+		 */
+		public int getLocalExtraSize()
+		{
+			return zip64 ? ZIP64_LOCAL_EXTRA_SIZE : 0;
+		}
+	}
+}
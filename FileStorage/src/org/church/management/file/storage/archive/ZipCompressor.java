@@ -0,0 +1,163 @@
+package org.church.management.file.storage.archive;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class holds the threads that compress the entries of the zips a storage writes,
+ * the zips written at the same time share the threads.
+ *
+ * The files with a stored extension are already compressed, like photos and videos,
+ * they are stored as they are instead of spending the time to deflate them again.
+ */
+public class ZipCompressor
+{
+	public static final String DEFAULT_STORED_EXTENSIONS = "jpg,jpeg,png,gif,mp3,mp4,m4a,m4v,mov,avi,mkv,wmv,zip,gz,tgz,bz2,xz,7z,rar,docx,xlsx,pptx";
+
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+	private ExecutorService executor;
+	private int parallelism;
+	private int level;
+	private Set<String> storedExtensions = new HashSet<String>();
+
+	/**
+	 * @param level the deflate level from 1 to 9, -1 for the default level and 0 to store every file.
+	 * @param storedExtensions the extensions without the dot of the files stored without compression.
+	 */
+	public ZipCompressor(int parallelism, int level, Collection<String> storedExtensions)
+	{
+		if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+		{
+			throw new IllegalArgumentException("The compression level must be between -1 and 9.");
+		}
+
+		this.parallelism = Math.max(1, parallelism);
+		this.level = level;
+		this.executor = Executors.newFixedThreadPool(this.parallelism, new CompressorThreadFactory());
+
+		for(String extension: storedExtensions)
+		{
+			this.storedExtensions.add(extension.toLowerCase());
+		}
+	}
+
+	/**
+	 * @return a writer of a new zip to the stream.
+	 */
+	public ParallelZipWriter open(OutputStream output)
+	{
+		return new ParallelZipWriter(output, this);
+	}
+
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @return the level and the stored extensions, the zips written with other settings differ.
+	 */
+	public String getSettings()
+	{
+		List<String> extensions = new ArrayList<String>(storedExtensions);
+		Collections.sort(extensions);
+		StringBuilder settings = new StringBuilder(String.valueOf(level));
+
+		for(String extension: extensions)
+		{
+			settings.append(',').append(extension);
+		}
+
+		return settings.toString();
+	}
+
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return true if the entry is stored without compression.
+	 */
+	public boolean isStored(String name)
+	{
+		if(level == Deflater.NO_COMPRESSION)
+		{
+			return true;
+		}
+
+		int slash = name.lastIndexOf('/');
+		int dot = name.lastIndexOf('.');
+
+		if(dot <= slash + 1)
+		{
+			return false;
+		}
+
+		return storedExtensions.contains(name.substring(dot + 1).toLowerCase());
+	}
+
+	ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * @return the extensions of a list like jpg,png,mp4.
+	 */
+	public static Set<String> parseExtensions(String extensions)
+	{
+		Set<String> parsed = new HashSet<String>();
+
+		if(extensions == null)
+		{
+			return parsed;
+		}
+
+		for(String extension: extensions.split(","))
+		{
+			extension = extension.trim();
+
+			if(extension.startsWith("."))
+			{
+				extension = extension.substring(1);
+			}
+
+			if(extension.length() > 0)
+			{
+				parsed.add(extension.toLowerCase());
+			}
+		}
+
+		return parsed;
+	}
+
+	private static class CompressorThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "zip-compressor-"+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
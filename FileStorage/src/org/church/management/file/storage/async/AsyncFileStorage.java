@@ -0,0 +1,69 @@
+package org.church.management.file.storage.async;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.batch.BatchResult;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This interface runs the file storage operations in the background,
+ * every method returns right away with a future for the result.
+ */
+public interface AsyncFileStorage 
+{
+	public FileStorageFuture<String> createDirectory(String directory);
+	public FileStorageFuture<Void> deleteDirectory(String directory);
+	public FileStorageFuture<String> renameDirectory(String oldDirectory, String newDirectory);
+	
+	public FileStorageFuture<String> upload(String folder, File file);
+	public FileStorageFuture<String> copy(String folder, String renameFile, File file);
+	public FileStorageFuture<Void> deleteFile(String filePath);
+	public FileStorageFuture<File> retrieve(String filePath);
+	public FileStorageFuture<byte[]> retrieveRange(String filePath, long offset, int length);
+	public FileStorageFuture<StorageEntry> stat(String filePath);
+	public FileStorageFuture<String> update(String filePath, File file);
+	public FileStorageFuture<String> renameFile(String filepath, String newFileName);
+	
+	/*
+	 * The future only opens the stream, the caller reads or writes it on its own thread and must close it.
+	 */
+	public FileStorageFuture<InputStream> openRead(String filePath);
+	public FileStorageFuture<OutputStream> openWrite(String filePath);
+	
+	public FileStorageFuture<Long> transferTo(String filePath, WritableByteChannel target);
+	
+	public FileStorageFuture<List<BatchResult>> uploadAll(String folder, Collection<File> files);
+	public FileStorageFuture<List<BatchResult>> deleteAll(Collection<String> filePaths);
+	public FileStorageFuture<List<BatchResult>> renameAll(Map<String, String> renameFiles);
+	public FileStorageFuture<List<BatchResult>> createDirectories(Collection<String> directories);
+	
+	public FileStorageFuture<List<String>> getAvailableFileExtensions();
+	public FileStorageFuture<Long> getMemoryUsage();
+	public FileStorageFuture<Long> getMemoryLimitation();
+	
+	public FileStorageFuture<List<File>> getAllFiles();
+	public FileStorageFuture<List<File>> getAllFilesForDirectory(String directory);
+	
+	/*
+	 * The future opens the iterator, the directories below the first are read on the thread iterating it.
+	 */
+	public FileStorageFuture<StorageEntryIterator> listEntries(String directory, boolean recursive, String continuationToken);
+	public boolean isCloudStorage();
+	public FileStorageFuture<File> zipUpAllFiles(String archiveName);
+	public FileStorageFuture<File> zipUpDirectory(String fullPath, String archiveName);
+	public FileStorageFuture<Void> zipDirectoryTo(String directory, OutputStream output);
+	
+	public FileStorage getFileStorage();
+	public void shutdown();
+}
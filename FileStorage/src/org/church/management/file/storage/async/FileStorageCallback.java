@@ -0,0 +1,15 @@
+package org.church.management.file.storage.async;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This interface is notified once an asynchronous 
+ * file storage operation has finished.
+ */
+public interface FileStorageCallback<T> 
+{
+	public void onSuccess(T result);
+	
+	public void onFailure(Throwable cause);
+}
@@ -0,0 +1,88 @@
+package org.church.management.file.storage.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class is the result of an asynchronous file storage operation.
+ * Callbacks can be added to chain the next operation without 
+ * blocking a thread on get().
+ */
+public class FileStorageFuture<T> extends FutureTask<T>
+{
+	private List<FileStorageCallback<T>> callbacks = new ArrayList<FileStorageCallback<T>>();
+	
+	public FileStorageFuture(Callable<T> callable)
+	{
+		super(callable);
+	}
+	
+	/**
+	 * Adds a callback, if the operation has already finished 
+	 * the callback is notified on the calling thread.
+	 */
+	public void addCallback(FileStorageCallback<T> callback)
+	{
+		synchronized(callbacks)
+		{
+			if(isDone() == false)
+			{
+				callbacks.add(callback);
+				return;
+			}
+		}
+		
+		notifyCallback(callback);
+	}
+	
+	protected void done()
+	{
+		List<FileStorageCallback<T>> finished = null;
+		
+		synchronized(callbacks)
+		{
+			finished = new ArrayList<FileStorageCallback<T>>(callbacks);
+			callbacks.clear();
+		}
+		
+		for(FileStorageCallback<T> callback: finished)
+		{
+			notifyCallback(callback);
+		}
+	}
+	
+	private void notifyCallback(FileStorageCallback<T> callback)
+	{
+		T result = null;
+		
+		try
+		{
+			result = get();
+		}
+		catch(ExecutionException e)
+		{
+			callback.onFailure(e.getCause());
+			return;
+		}
+		catch(CancellationException e)
+		{
+			callback.onFailure(e);
+			return;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			callback.onFailure(e);
+			return;
+		}
+		
+		callback.onSuccess(result);
+	}
+}
@@ -0,0 +1,567 @@
+package org.church.management.file.storage.async.impl;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.async.AsyncFileStorage;
+import org.church.management.file.storage.async.FileStorageFuture;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.file.storage.impl.FTPFileStorage;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class runs the operations of a file storage on an executor.
+ * Only a limited number of operations run against the storage at once, 
+ * the rest wait in a bounded queue without holding a thread.
+ * For a ftp storage the limit is the maximum size of the connection pool, it keeps the
+ * single file operations from asking the pool for more connections than it has.
+ * The batches, the listings and the zips take several connections each and the streams 
+ * hold theirs until they are closed, so the pool can still be exhausted by them.
+ * 
+ * need properties:
+ * 		asyncThreadPoolSize: the number of threads running operations, default is twice the number of processors.
+ * 		asyncQueueSize: the number of operations that can wait to run, default is 10000.
+ */
+public class AsyncFileStorageImpl implements AsyncFileStorage
+{
+	private static final Logger logger = Logger.getLogger(AsyncFileStorageImpl.class);
+	private static final int DEFAULT_QUEUE_SIZE = 10000;
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	
+	private FileStorage storage;
+	private ExecutorService executor;
+	private boolean ownsExecutor = false;
+	
+	private int concurrencyLimit;
+	private int queueSize;
+	private int running = 0;
+	private boolean shutdown = false;
+	private LinkedList<FileStorageFuture<?>> pending = new LinkedList<FileStorageFuture<?>>();
+	
+	public AsyncFileStorageImpl(FileStorage storage, Properties properties)
+	{
+		int threads = Runtime.getRuntime().availableProcessors() * 2;
+		this.queueSize = DEFAULT_QUEUE_SIZE;
+		
+		try
+		{
+			if(properties.getProperty("asyncThreadPoolSize") != null)
+			{
+				threads = Integer.parseInt(properties.getProperty("asyncThreadPoolSize"));
+			}
+			
+			if(properties.getProperty("asyncQueueSize") != null)
+			{
+				queueSize = Integer.parseInt(properties.getProperty("asyncQueueSize"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("AsyncFileStorageImpl.<init> - An error has occurred while parsing the executor properties.", e);
+		}
+		
+		this.storage = storage;
+		this.concurrencyLimit = Math.max(1, Math.min(threads, getStorageLimit(storage)));
+		this.executor = new ThreadPoolExecutor(concurrencyLimit, concurrencyLimit, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new StorageThreadFactory());
+		this.ownsExecutor = true;
+	}
+	
+	/**
+	 * Uses an executor shared with other storages, at most concurrencyLimit 
+	 * operations of this storage are handed to the executor at once.
+	 */
+	public AsyncFileStorageImpl(FileStorage storage, ExecutorService executor, int concurrencyLimit, int queueSize)
+	{
+		this.storage = storage;
+		this.executor = executor;
+		this.concurrencyLimit = Math.max(1, Math.min(concurrencyLimit, getStorageLimit(storage)));
+		this.queueSize = queueSize;
+	}
+	
+	private static int getStorageLimit(FileStorage storage)
+	{
+		if(storage instanceof FTPFileStorage)
+		{
+			return ((FTPFileStorage)storage).getPool().getMaximumPoolSize();
+		}
+		
+		return Integer.MAX_VALUE;
+	}
+	
+	public FileStorage getFileStorage()
+	{
+		return storage;
+	}
+	
+	public int getConcurrencyLimit()
+	{
+		return concurrencyLimit;
+	}
+	
+	public synchronized int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	public FileStorageFuture<String> createDirectory(final String directory) 
+	{
+		return submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return storage.createDirectory(directory);
+			}
+		});
+	}
+
+	public FileStorageFuture<Void> deleteDirectory(final String directory) 
+	{
+		return submit(new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				storage.deleteDirectory(directory);
+				return null;
+			}
+		});
+	}
+
+	public FileStorageFuture<String> renameDirectory(final String oldDirectory, final String newDirectory) 
+	{
+		return submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return storage.renameDirectory(oldDirectory, newDirectory);
+			}
+		});
+	}
+
+	public FileStorageFuture<String> upload(final String folder, final File file) 
+	{
+		return submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return storage.upload(folder, file);
+			}
+		});
+	}
+
+	public FileStorageFuture<String> copy(final String folder, final String renameFile, final File file) 
+	{
+		return submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return storage.copy(folder, renameFile, file);
+			}
+		});
+	}
+
+	public FileStorageFuture<Void> deleteFile(final String filePath) 
+	{
+		return submit(new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				storage.deleteFile(filePath);
+				return null;
+			}
+		});
+	}
+
+	public FileStorageFuture<File> retrieve(final String filePath) 
+	{
+		return submit(new Callable<File>()
+		{
+			public File call() throws Exception
+			{
+				return storage.retrieve(filePath);
+			}
+		});
+	}
+
+	public FileStorageFuture<byte[]> retrieveRange(final String filePath, final long offset, final int length) 
+	{
+		return submit(new Callable<byte[]>()
+		{
+			public byte[] call() throws Exception
+			{
+				return storage.retrieveRange(filePath, offset, length);
+			}
+		});
+	}
+
+	public FileStorageFuture<StorageEntry> stat(final String filePath) 
+	{
+		return submit(new Callable<StorageEntry>()
+		{
+			public StorageEntry call() throws Exception
+			{
+				return storage.stat(filePath);
+			}
+		});
+	}
+
+	public FileStorageFuture<String> update(final String filePath, final File file) 
+	{
+		return submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return storage.update(filePath, file);
+			}
+		});
+	}
+
+	public FileStorageFuture<String> renameFile(final String filepath, final String newFileName) 
+	{
+		return submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return storage.renameFile(filepath, newFileName);
+			}
+		});
+	}
+
+	public FileStorageFuture<InputStream> openRead(final String filePath) 
+	{
+		return submit(new Callable<InputStream>()
+		{
+			public InputStream call() throws Exception
+			{
+				return storage.openRead(filePath);
+			}
+		});
+	}
+
+	public FileStorageFuture<OutputStream> openWrite(final String filePath) 
+	{
+		return submit(new Callable<OutputStream>()
+		{
+			public OutputStream call() throws Exception
+			{
+				return storage.openWrite(filePath);
+			}
+		});
+	}
+
+	public FileStorageFuture<Long> transferTo(final String filePath, final WritableByteChannel target) 
+	{
+		return submit(new Callable<Long>()
+		{
+			public Long call() throws Exception
+			{
+				return storage.transferTo(filePath, target);
+			}
+		});
+	}
+
+	public FileStorageFuture<List<BatchResult>> uploadAll(final String folder, final Collection<File> files) 
+	{
+		return submit(new Callable<List<BatchResult>>()
+		{
+			public List<BatchResult> call() throws Exception
+			{
+				return storage.uploadAll(folder, files);
+			}
+		});
+	}
+
+	public FileStorageFuture<List<BatchResult>> deleteAll(final Collection<String> filePaths) 
+	{
+		return submit(new Callable<List<BatchResult>>()
+		{
+			public List<BatchResult> call() throws Exception
+			{
+				return storage.deleteAll(filePaths);
+			}
+		});
+	}
+
+	public FileStorageFuture<List<BatchResult>> renameAll(final Map<String, String> renameFiles) 
+	{
+		return submit(new Callable<List<BatchResult>>()
+		{
+			public List<BatchResult> call() throws Exception
+			{
+				return storage.renameAll(renameFiles);
+			}
+		});
+	}
+
+	public FileStorageFuture<List<BatchResult>> createDirectories(final Collection<String> directories) 
+	{
+		return submit(new Callable<List<BatchResult>>()
+		{
+			public List<BatchResult> call() throws Exception
+			{
+				return storage.createDirectories(directories);
+			}
+		});
+	}
+
+	public FileStorageFuture<List<String>> getAvailableFileExtensions() 
+	{
+		return submit(new Callable<List<String>>()
+		{
+			public List<String> call() throws Exception
+			{
+				return storage.getAvailableFileExtensions();
+			}
+		});
+	}
+
+	public FileStorageFuture<Long> getMemoryUsage() 
+	{
+		return submit(new Callable<Long>()
+		{
+			public Long call() throws Exception
+			{
+				return storage.getMemoryUsage();
+			}
+		});
+	}
+
+	public FileStorageFuture<Long> getMemoryLimitation() 
+	{
+		return submit(new Callable<Long>()
+		{
+			public Long call() throws Exception
+			{
+				return storage.getMemoryLimitation();
+			}
+		});
+	}
+
+	public FileStorageFuture<List<File>> getAllFiles() 
+	{
+		return submit(new Callable<List<File>>()
+		{
+			public List<File> call() throws Exception
+			{
+				return storage.getAllFiles();
+			}
+		});
+	}
+
+	public FileStorageFuture<List<File>> getAllFilesForDirectory(final String directory) 
+	{
+		return submit(new Callable<List<File>>()
+		{
+			public List<File> call() throws Exception
+			{
+				return storage.getAllFilesForDirectory(directory);
+			}
+		});
+	}
+
+	public FileStorageFuture<StorageEntryIterator> listEntries(final String directory, final boolean recursive, final String continuationToken) 
+	{
+		return submit(new Callable<StorageEntryIterator>()
+		{
+			public StorageEntryIterator call() throws Exception
+			{
+				return storage.listEntries(directory, recursive, continuationToken);
+			}
+		});
+	}
+
+	public boolean isCloudStorage()
+	{
+		return storage.isCloudStorage();
+	}
+
+	public FileStorageFuture<File> zipUpAllFiles(final String archiveName) 
+	{
+		return submit(new Callable<File>()
+		{
+			public File call() throws Exception
+			{
+				return storage.zipUpAllFiles(archiveName);
+			}
+		});
+	}
+
+	public FileStorageFuture<File> zipUpDirectory(final String fullPath, final String archiveName) 
+	{
+		return submit(new Callable<File>()
+		{
+			public File call() throws Exception
+			{
+				return storage.zipUpDirectory(fullPath, archiveName);
+			}
+		});
+	}
+
+	public FileStorageFuture<Void> zipDirectoryTo(final String directory, final OutputStream output) 
+	{
+		return submit(new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				storage.zipDirectoryTo(directory, output);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Stops accepting operations, the queued operations still run.
+	 */
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			shutdown = true;
+			
+			if(running > 0 || pending.isEmpty() == false)
+			{
+				return;
+			}
+		}
+		
+		shutdownExecutor();
+	}
+	
+	private void shutdownExecutor()
+	{
+		if(ownsExecutor)
+		{
+			executor.shutdown();
+		}
+	}
+	
+	private <T> FileStorageFuture<T> submit(Callable<T> operation)
+	{
+		FileStorageFuture<T> future = new FileStorageFuture<T>(operation);
+		
+		synchronized(this)
+		{
+			if(shutdown)
+			{
+				throw new RejectedExecutionException("The asynchronous file storage has been shut down.");
+			}
+			
+			if(pending.size() >= queueSize)
+			{
+				throw new RejectedExecutionException("The asynchronous file storage has "+pending.size()+" operations waiting.");
+			}
+			
+			pending.add(future);
+		}
+		
+		dispatch();
+		return future;
+	}
+	
+	/**
+	 * Hands the waiting operations to the executor 
+	 * while there is room under the concurrency limit.
+	 */
+	private void dispatch()
+	{
+		while(true)
+		{
+			FileStorageFuture<?> next = null;
+			
+			synchronized(this)
+			{
+				if(running >= concurrencyLimit || pending.isEmpty())
+				{
+					return;
+				}
+				
+				next = pending.removeFirst();
+				running++;
+			}
+			
+			try
+			{
+				executor.execute(new Operation(next));
+			}
+			catch(RejectedExecutionException e)
+			{
+				logger.error("AsyncFileStorageImpl.dispatch()- The executor rejected the operation.", e);
+				next.cancel(false);
+				finished();
+			}
+		}
+	}
+	
+	private void finished()
+	{
+		boolean stop = false;
+		
+		synchronized(this)
+		{
+			running--;
+			stop = shutdown && running == 0 && pending.isEmpty();
+		}
+		
+		if(stop)
+		{
+			shutdownExecutor();
+		}
+		
+		else
+		{
+			dispatch();
+		}
+	}
+	
+	private class Operation implements Runnable
+	{
+		private FileStorageFuture<?> future;
+		
+		public Operation(FileStorageFuture<?> future)
+		{
+			this.future = future;
+		}
+		
+		public void run()
+		{
+			try
+			{
+				future.run();
+			}
+			finally
+			{
+				finished();
+			}
+		}
+	}
+	
+	private static class StorageThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "file-storage-async-"+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.church.management.file.storage.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class runs the operations of a batch in parallel.
+ * A failed operation does not stop the batch, its exception 
+ * is kept in the result of the item.
+ */
+public class BatchExecutor 
+{
+	private static final Logger logger = Logger.getLogger(BatchExecutor.class);
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	
+	private ExecutorService executor;
+	private int parallelism;
+	
+	public BatchExecutor(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+		this.executor = Executors.newFixedThreadPool(this.parallelism, new BatchThreadFactory());
+	}
+	
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+	
+	/**
+	 * Runs the operations and waits for all of them.
+	 * 
+	 * @return the results in the same order as the operations.
+	 */
+	public List<BatchResult> execute(List<BatchOperation> operations) throws InterruptedException
+	{
+		List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		
+		for(final BatchOperation operation: operations)
+		{
+			futures.add(executor.submit(new Callable<BatchResult>()
+			{
+				public BatchResult call()
+				{
+					return run(operation);
+				}
+			}));
+		}
+		
+		for(int i = 0; i < futures.size(); i++)
+		{
+			try
+			{
+				results.add(futures.get(i).get());
+			}
+			catch(ExecutionException e)
+			{
+				results.add(new BatchResult(operations.get(i).getItem(), new Exception(e.getCause())));
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Runs the directory operations one depth at a time, the directories 
+	 * of the same depth run in parallel.
+	 * 
+	 * @param operations the operation for each directory, in the same order as the directories.
+	 */
+	public List<BatchResult> executeByDepth(List<String> directories, List<BatchOperation> operations) throws InterruptedException
+	{
+		BatchResult[] results = new BatchResult[operations.size()];
+		
+		for(List<Integer> level: groupByDepth(directories))
+		{
+			List<BatchOperation> levelOperations = new ArrayList<BatchOperation>();
+			
+			for(Integer index: level)
+			{
+				levelOperations.add(operations.get(index));
+			}
+			
+			List<BatchResult> levelResults = execute(levelOperations);
+			
+			for(int i = 0; i < level.size(); i++)
+			{
+				results[level.get(i)] = levelResults.get(i);
+			}
+		}
+		
+		List<BatchResult> ordered = new ArrayList<BatchResult>();
+		
+		for(BatchResult result: results)
+		{
+			ordered.add(result);
+		}
+		
+		return ordered;
+	}
+	
+	/**
+	 * Runs the operation on the calling thread.
+	 */
+	public static BatchResult run(BatchOperation operation)
+	{
+		try
+		{
+			return new BatchResult(operation.getItem(), operation.execute());
+		}
+		catch(Exception e)
+		{
+			logger.error("BatchExecutor.run()- The batch operation failed for: "+operation.getItem()+".", e);
+			return new BatchResult(operation.getItem(), e);
+		}
+	}
+	
+	/**
+	 * Groups the directories by their depth, so the parents can 
+	 * be created before their sub directories.
+	 * 
+	 * @return the indexes of the directories, the shallowest directories first.
+	 */
+	public static List<List<Integer>> groupByDepth(List<String> directories)
+	{
+		TreeMap<Integer, List<Integer>> levels = new TreeMap<Integer, List<Integer>>();
+		
+		for(int i = 0; i < directories.size(); i++)
+		{
+			int depth = getDepth(directories.get(i));
+			List<Integer> level = levels.get(depth);
+			
+			if(level == null)
+			{
+				level = new ArrayList<Integer>();
+				levels.put(depth, level);
+			}
+			
+			level.add(i);
+		}
+		
+		return new ArrayList<List<Integer>>(levels.values());
+	}
+	
+	private static int getDepth(String directory)
+	{
+		String path = directory.replace('\\', '/');
+		int depth = 0;
+		
+		for(int i = 0; i < path.length(); i++)
+		{
+			if(path.charAt(i) == '/' && i > 0 && i < path.length() - 1)
+			{
+				depth++;
+			}
+		}
+		
+		return depth;
+	}
+	
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+	
+	private static class BatchThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "file-storage-batch-"+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
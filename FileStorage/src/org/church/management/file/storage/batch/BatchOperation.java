@@ -0,0 +1,27 @@
+package org.church.management.file.storage.batch;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class is a single operation of a batch.
+ */
+public abstract class BatchOperation 
+{
+	private String item;
+	
+	public BatchOperation(String item)
+	{
+		this.item = item;
+	}
+	
+	public String getItem()
+	{
+		return item;
+	}
+	
+	/**
+	 * @return the path the operation created or changed, null when there is none.
+	 */
+	public abstract String execute() throws Exception;
+}
@@ -0,0 +1,48 @@
+package org.church.management.file.storage.batch;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class is the outcome of one item in a batch operation.
+ * The item is the file, directory or path that was given to the batch,
+ * the path is what the single operation would have returned.
+ */
+public class BatchResult 
+{
+	private String item;
+	private String path;
+	private Exception exception;
+	
+	public BatchResult(String item, String path)
+	{
+		this.item = item;
+		this.path = path;
+	}
+	
+	public BatchResult(String item, Exception exception)
+	{
+		this.item = item;
+		this.exception = exception;
+	}
+	
+	public String getItem()
+	{
+		return item;
+	}
+	
+	public String getPath()
+	{
+		return path;
+	}
+	
+	public Exception getException()
+	{
+		return exception;
+	}
+	
+	public boolean isSuccessful()
+	{
+		return exception == null;
+	}
+}
@@ -0,0 +1,622 @@
+package org.church.management.file.storage.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.DelegatingFileStorage;
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.file.storage.impl.LocalFileChannels;
+import org.church.management.temporary.file.factory.TemporaryFileFactory;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps the recently retrieved files of a remote storage on the local disk,
+ * so a file that is read again is served from the disk instead of being downloaded again.
+ * The least recently used files are removed once the cache is over its size.
+ *
+ * A cached file is checked against the size and modified time of the remote file before
+ * it is used, unless it was checked within the validation interval. The writes made through
+ * this storage remove the files they change from the cache right away.
+ *
+ * retrieve() hands out a copy of the cached file, so the cache can remove its files while
+ * the callers still hold what they retrieved. A cached file that is removed while it is read
+ * is deleted once its last reader is done.
+ *
+ * need properties:
+ * 		cacheFolderPath: the directory where the cached files are kept, it is emptied on start up.
+ * 		cacheSizeLimit: the bytes the cached files may take, default is 268435456.
+ * 		cacheValidationInterval: the milliseconds a checked file is used without checking again, default is 5000.
+ */
+public class CachingFileStorage extends DelegatingFileStorage
+{
+	private static final Logger logger = Logger.getLogger(CachingFileStorage.class);
+	private static final long DEFAULT_CACHE_SIZE_LIMIT = 256L * 1024 * 1024;
+	private static final long DEFAULT_VALIDATION_INTERVAL = 5000;
+
+	private File cacheFolder;
+	private long sizeLimit = DEFAULT_CACHE_SIZE_LIMIT;
+	private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
+	private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private long cachedBytes = 0;
+	private long counter = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	public CachingFileStorage(FileStorage storage, Properties properties) throws Exception
+	{
+		super(storage);
+		this.cacheFolder = new File(properties.getProperty("cacheFolderPath"));
+
+		try
+		{
+			if(properties.getProperty("cacheSizeLimit") != null)
+			{
+				sizeLimit = Long.parseLong(properties.getProperty("cacheSizeLimit"));
+			}
+
+			if(properties.getProperty("cacheValidationInterval") != null)
+			{
+				validationInterval = Long.parseLong(properties.getProperty("cacheValidationInterval"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("CachingFileStorage.<init> - An error has occurred while parsing the properties.", e);
+		}
+
+		try
+		{
+			FileUtils.forceMkdir(cacheFolder);
+			FileUtils.cleanDirectory(cacheFolder);
+		}
+		catch(Exception e)
+		{
+			logger.error("CachingFileStorage.<init> - Could not prepare the cache folder: "+cacheFolder.getPath()+".", e);
+			throw e;
+		}
+	}
+
+	public File retrieve(String filePath) throws Exception
+	{
+		CacheEntry entry = acquireValidEntry(filePath);
+
+		if(entry != null)
+		{
+			try
+			{
+				File copy = TemporaryFileFactory.createFile(new File(filePath).getName());
+				LocalFileChannels.copyFile(entry.file, copy);
+				return copy;
+			}
+			finally
+			{
+				release(entry);
+			}
+		}
+
+		StorageEntry remote = storage.stat(filePath);
+
+		if(remote.exists() == false || remote.isDirectory() || remote.getSize() > sizeLimit)
+		{
+			return storage.retrieve(filePath);
+		}
+
+		//stat comes first, a change during the download makes the entry fail the next check.
+		File downloaded = storage.retrieve(filePath);
+		File cached = createCacheFile();
+
+		try
+		{
+			//the caller keeps the downloaded file, the cache has its own copy.
+			LocalFileChannels.copyFile(downloaded, cached);
+		}
+		catch(IOException e)
+		{
+			logger.error("CachingFileStorage.retrieve()- Could not cache the file: "+filePath+".", e);
+			cached.delete();
+			return downloaded;
+		}
+
+		put(filePath, new CacheEntry(cached, remote.getSize(), remote.getLastModified()));
+		return downloaded;
+	}
+
+	public byte[] retrieveRange(String filePath, long offset, int length) throws Exception
+	{
+		CacheEntry entry = acquireValidEntry(filePath);
+
+		if(entry != null)
+		{
+			try
+			{
+				return LocalFileChannels.readRange(entry.file, offset, length);
+			}
+			finally
+			{
+				release(entry);
+			}
+		}
+
+		return storage.retrieveRange(filePath, offset, length);
+	}
+
+	public InputStream openRead(String filePath) throws Exception
+	{
+		final CacheEntry entry = acquireValidEntry(filePath);
+
+		if(entry != null)
+		{
+			InputStream input = null;
+
+			try
+			{
+				input = new FileInputStream(entry.file);
+			}
+			finally
+			{
+				if(input == null)
+				{
+					release(entry);
+				}
+			}
+
+			return new FilterInputStream(input)
+			{
+				private boolean released = false;
+
+				public void close() throws IOException
+				{
+					try
+					{
+						super.close();
+					}
+					finally
+					{
+						if(released == false)
+						{
+							released = true;
+							release(entry);
+						}
+					}
+				}
+			};
+		}
+
+		return storage.openRead(filePath);
+	}
+
+	public long transferTo(String filePath, WritableByteChannel target) throws Exception
+	{
+		CacheEntry entry = acquireValidEntry(filePath);
+
+		if(entry != null)
+		{
+			try
+			{
+				return LocalFileChannels.transferTo(entry.file, target);
+			}
+			finally
+			{
+				release(entry);
+			}
+		}
+
+		return storage.transferTo(filePath, target);
+	}
+
+	public OutputStream openWrite(final String filePath) throws Exception
+	{
+		invalidate(filePath);
+
+		return new FilterOutputStream(storage.openWrite(filePath))
+		{
+			public void write(byte[] bytes, int offset, int length) throws IOException
+			{
+				out.write(bytes, offset, length);
+			}
+
+			public void close() throws IOException
+			{
+				super.close();
+				invalidate(filePath);
+			}
+		};
+	}
+
+	public void deleteDirectory(String directory) throws Exception
+	{
+		try
+		{
+			storage.deleteDirectory(directory);
+		}
+		finally
+		{
+			invalidateDirectory(directory);
+		}
+	}
+
+	public String renameDirectory(String oldDirectory, String newDirectory) throws Exception
+	{
+		try
+		{
+			return storage.renameDirectory(oldDirectory, newDirectory);
+		}
+		finally
+		{
+			invalidateDirectory(oldDirectory);
+			invalidateDirectory(newDirectory);
+		}
+	}
+
+	public String upload(String folder, File file) throws Exception
+	{
+		String path = storage.upload(folder, file);
+		invalidate(path);
+		return path;
+	}
+
+	public String copy(String folder, String renameFile, File file) throws Exception
+	{
+		String path = storage.copy(folder, renameFile, file);
+		invalidate(path);
+		return path;
+	}
+
+	public void deleteFile(String filePath) throws Exception
+	{
+		try
+		{
+			storage.deleteFile(filePath);
+		}
+		finally
+		{
+			invalidate(filePath);
+		}
+	}
+
+	public String update(String filePath, File file) throws Exception
+	{
+		try
+		{
+			String path = storage.update(filePath, file);
+			invalidate(path);
+			return path;
+		}
+		finally
+		{
+			invalidate(filePath);
+		}
+	}
+
+	public String renameFile(String filepath, String newFileName) throws Exception
+	{
+		try
+		{
+			String path = storage.renameFile(filepath, newFileName);
+			invalidate(path);
+			return path;
+		}
+		finally
+		{
+			invalidate(filepath);
+		}
+	}
+
+	public List<BatchResult> uploadAll(String folder, Collection<File> files) throws Exception
+	{
+		List<BatchResult> results = storage.uploadAll(folder, files);
+		invalidate(results);
+		return results;
+	}
+
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception
+	{
+		try
+		{
+			return storage.deleteAll(filePaths);
+		}
+		finally
+		{
+			for(String filePath: filePaths)
+			{
+				invalidate(filePath);
+			}
+		}
+	}
+
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception
+	{
+		try
+		{
+			List<BatchResult> results = storage.renameAll(renameFiles);
+			invalidate(results);
+			return results;
+		}
+		finally
+		{
+			for(String filePath: renameFiles.keySet())
+			{
+				invalidate(filePath);
+			}
+		}
+	}
+
+	/**
+	 * Removes every cached file.
+	 */
+	public void clear()
+	{
+		synchronized(entries)
+		{
+			for(CacheEntry entry: entries.values())
+			{
+				delete(entry);
+			}
+
+			entries.clear();
+			cachedBytes = 0;
+		}
+	}
+
+	public long getCachedBytes()
+	{
+		synchronized(entries)
+		{
+			return cachedBytes;
+		}
+	}
+
+	public long getHitCount()
+	{
+		synchronized(entries)
+		{
+			return hits;
+		}
+	}
+
+	public long getMissCount()
+	{
+		synchronized(entries)
+		{
+			return misses;
+		}
+	}
+
+	/**
+	 * @return the cached file if it still matches the remote file, otherwise null.
+	 * The file is kept until the entry is given back to release.
+	 */
+	private CacheEntry acquireValidEntry(String filePath) throws Exception
+	{
+		String key = toKey(filePath);
+		CacheEntry entry = null;
+
+		synchronized(entries)
+		{
+			entry = entries.get(key);
+
+			if(entry == null)
+			{
+				misses++;
+				return null;
+			}
+
+			if(entry.file.length() != entry.size)
+			{
+				//the file was changed or deleted by someone holding it.
+				remove(key);
+				misses++;
+				return null;
+			}
+
+			if(System.currentTimeMillis() - entry.validatedAt < validationInterval)
+			{
+				hits++;
+				entry.readers++;
+				return entry;
+			}
+		}
+
+		StorageEntry remote = storage.stat(filePath);
+
+		synchronized(entries)
+		{
+			if(entries.get(key) != entry)
+			{
+				misses++;
+				return null;
+			}
+
+			if(remote.exists() == false || remote.isDirectory() || remote.getSize() != entry.size || remote.getLastModified() != entry.lastModified)
+			{
+				remove(key);
+				misses++;
+				return null;
+			}
+
+			entry.validatedAt = System.currentTimeMillis();
+			hits++;
+			entry.readers++;
+			return entry;
+		}
+	}
+
+	private void release(CacheEntry entry)
+	{
+		synchronized(entries)
+		{
+			entry.readers--;
+
+			if(entry.readers == 0 && entry.removed)
+			{
+				deleteFile(entry);
+			}
+		}
+	}
+
+	private void put(String filePath, CacheEntry entry)
+	{
+		synchronized(entries)
+		{
+			String key = toKey(filePath);
+			remove(key);
+
+			entries.put(key, entry);
+			cachedBytes += entry.size;
+
+			Iterator<CacheEntry> eldest = entries.values().iterator();
+
+			while(cachedBytes > sizeLimit && eldest.hasNext())
+			{
+				CacheEntry evicted = eldest.next();
+				eldest.remove();
+				cachedBytes -= evicted.size;
+				delete(evicted);
+			}
+		}
+	}
+
+	private void invalidate(String filePath)
+	{
+		if(filePath == null)
+		{
+			return;
+		}
+
+		synchronized(entries)
+		{
+			remove(toKey(filePath));
+		}
+	}
+
+	private void invalidate(List<BatchResult> results)
+	{
+		for(BatchResult result: results)
+		{
+			invalidate(result.getPath());
+		}
+	}
+
+	private void invalidateDirectory(String directory)
+	{
+		String key = toKey(directory);
+
+		synchronized(entries)
+		{
+			Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+
+			while(iterator.hasNext())
+			{
+				Map.Entry<String, CacheEntry> entry = iterator.next();
+
+				if(key.length() == 0 || entry.getKey().startsWith(key+"/"))
+				{
+					iterator.remove();
+					cachedBytes -= entry.getValue().size;
+					delete(entry.getValue());
+				}
+			}
+		}
+	}
+
+	private void remove(String key)
+	{
+		CacheEntry entry = entries.remove(key);
+
+		if(entry != null)
+		{
+			cachedBytes -= entry.size;
+			delete(entry);
+		}
+	}
+
+	/**
+	 * The entry has left the cache, its file goes once nobody reads it.
+	 */
+	private void delete(CacheEntry entry)
+	{
+		entry.removed = true;
+
+		if(entry.readers == 0)
+		{
+			deleteFile(entry);
+		}
+	}
+
+	private void deleteFile(CacheEntry entry)
+	{
+		if(entry.file.exists() && entry.file.delete() == false)
+		{
+			logger.error("CachingFileStorage.delete()- Could not delete the cached file: "+entry.file.getPath()+".");
+		}
+	}
+
+	private synchronized File createCacheFile()
+	{
+		counter++;
+		return new File(cacheFolder, "cache_"+counter);
+	}
+
+	/**
+	 * Every path goes through here before it is looked up, so "/a/b", "a/b/" and "a\b" share one entry.
+	 */
+	private static String toKey(String filePath)
+	{
+		String key = filePath.replace('\\', '/');
+
+		while(key.contains("//"))
+		{
+			key = key.replace("//", "/");
+		}
+
+		if(key.startsWith("/"))
+		{
+			key = key.substring(1);
+		}
+
+		if(key.endsWith("/"))
+		{
+			key = key.substring(0, key.length() - 1);
+		}
+
+		return key;
+	}
+
+	private static class CacheEntry
+	{
+		private File file;
+		private long size;
+		private long lastModified;
+		private long validatedAt;
+		private int readers = 0;
+		private boolean removed = false;
+
+		public CacheEntry(File file, long size, long lastModified)
+		{
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.validatedAt = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,629 @@
+package org.church.management.file.storage.catalog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.DelegatingFileStorage;
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.batch.BatchResult;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps a catalog of the files of another storage, with their size, modified time,
+ * content hash and extension. The catalog is updated by the writes made through this storage,
+ * so the listings, the usage and the extensions are answered from memory instead of the storage.
+ * The catalog is kept in a journal file and read back on start up, it is built from the storage
+ * the first time.
+ *
+ * The files changed without going through this storage are only picked up by rebuild(),
+ * verify() tells whether the catalog still matches the storage.
+ *
+ * The paths given to this storage have to be relative to the storage folder and separated by '/'.
+ * A renamed directory is taken to be relative to the storage folder as well.
+ *
+ * need properties:
+ * 		catalogJournalPath: the file keeping the catalog.
+ * 		catalogHashOnRebuild: true to read the files found by rebuild() to hash them, default is false.
+ */
+public class CatalogFileStorage extends DelegatingFileStorage
+{
+	private static final Logger logger = Logger.getLogger(CatalogFileStorage.class);
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	private CatalogIndex index;
+	private boolean hashOnRebuild = false;
+
+	public CatalogFileStorage(FileStorage storage, Properties properties) throws Exception
+	{
+		super(storage);
+		File journalFile = new File(properties.getProperty("catalogJournalPath"));
+		hashOnRebuild = Boolean.parseBoolean(properties.getProperty("catalogHashOnRebuild", "false"));
+		boolean existed = journalFile.exists();
+
+		try
+		{
+			index = new CatalogIndex(journalFile);
+		}
+		catch(Exception e)
+		{
+			logger.error("CatalogFileStorage.<init> - Could not read the catalog: "+journalFile.getPath()+".", e);
+			throw e;
+		}
+
+		if(existed == false)
+		{
+			logger.info("CatalogFileStorage.<init> - Building the catalog: "+journalFile.getPath()+".");
+			rebuild();
+		}
+	}
+
+	/**
+	 * @return what the catalog knows about the file, null if it is not in the catalog.
+	 */
+	public CatalogRecord lookup(String filePath)
+	{
+		return index.get(normalize(filePath));
+	}
+
+	public String createDirectory(String directory) throws Exception
+	{
+		String location = storage.createDirectory(directory);
+		index.addDirectory(normalize(directory), location == null ? "" : location);
+		return location;
+	}
+
+	public void deleteDirectory(String directory) throws Exception
+	{
+		storage.deleteDirectory(directory);
+		index.removeDirectory(normalize(directory));
+	}
+
+	public String renameDirectory(String oldDirectory, String newDirectory) throws Exception
+	{
+		String location = storage.renameDirectory(oldDirectory, newDirectory);
+		index.moveDirectory(normalize(oldDirectory), normalize(newDirectory), location == null ? "" : location);
+		return location;
+	}
+
+	public String upload(String folder, File file) throws Exception
+	{
+		String location = storage.upload(folder, file);
+		record(join(normalize(folder), file.getName()), location, file);
+		return location;
+	}
+
+	public String copy(String folder, String renameFile, File file) throws Exception
+	{
+		String location = storage.copy(folder, renameFile, file);
+		record(join(normalize(folder), renameFile), location, file);
+		return location;
+	}
+
+	public void deleteFile(String filePath) throws Exception
+	{
+		storage.deleteFile(filePath);
+		index.remove(normalize(filePath));
+	}
+
+	/**
+	 * The storages keep the updated file in the same directory under the name of the new file.
+	 */
+	public String update(String filePath, File file) throws Exception
+	{
+		String location = storage.update(filePath, file);
+		String path = normalize(filePath);
+
+		index.remove(path);
+		record(join(getParent(path), file.getName()), location, file);
+		return location;
+	}
+
+	public String renameFile(String filepath, String newFileName) throws Exception
+	{
+		String location = storage.renameFile(filepath, newFileName);
+		String path = normalize(filepath), renamedPath = join(getParent(path), newFileName);
+		CatalogRecord record = index.remove(path);
+
+		if(record != null)
+		{
+			index.put(new CatalogRecord(renamedPath, location == null ? "" : location, record.getSize(), record.getLastModified(), record.getHash()));
+		}
+
+		else
+		{
+			record(renamedPath, location, "");
+		}
+
+		return location;
+	}
+
+	public OutputStream openWrite(String filePath) throws Exception
+	{
+		MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		return new CatalogOutputStream(new DigestOutputStream(storage.openWrite(filePath), digest), digest, normalize(filePath));
+	}
+
+	public List<BatchResult> uploadAll(String folder, Collection<File> files) throws Exception
+	{
+		List<BatchResult> results = storage.uploadAll(folder, files);
+		Iterator<BatchResult> result = results.iterator();
+
+		for(File file: files)
+		{
+			BatchResult uploaded = result.next();
+
+			if(uploaded.isSuccessful())
+			{
+				record(join(normalize(folder), file.getName()), uploaded.getPath(), file);
+			}
+		}
+
+		return results;
+	}
+
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception
+	{
+		List<BatchResult> results = storage.deleteAll(filePaths);
+		Iterator<BatchResult> result = results.iterator();
+
+		for(String filePath: filePaths)
+		{
+			if(result.next().isSuccessful())
+			{
+				index.remove(normalize(filePath));
+			}
+		}
+
+		return results;
+	}
+
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception
+	{
+		List<BatchResult> results = storage.renameAll(renameFiles);
+		Iterator<BatchResult> result = results.iterator();
+
+		for(Map.Entry<String, String> renameFile: renameFiles.entrySet())
+		{
+			BatchResult renamed = result.next();
+
+			if(renamed.isSuccessful())
+			{
+				String path = normalize(renameFile.getKey()), renamedPath = join(getParent(path), renameFile.getValue());
+				CatalogRecord record = index.remove(path);
+				record(renamedPath, renamed.getPath(), record == null ? "" : record.getHash());
+			}
+		}
+
+		return results;
+	}
+
+	public List<BatchResult> createDirectories(Collection<String> directories) throws Exception
+	{
+		List<BatchResult> results = storage.createDirectories(directories);
+		Iterator<BatchResult> result = results.iterator();
+
+		for(String directory: directories)
+		{
+			BatchResult created = result.next();
+
+			if(created.isSuccessful())
+			{
+				index.addDirectory(normalize(directory), created.getPath() == null ? "" : created.getPath());
+			}
+		}
+
+		return results;
+	}
+
+	public StorageEntry stat(String filePath) throws Exception
+	{
+		String path = normalize(filePath);
+		CatalogRecord record = index.get(path);
+
+		if(record != null)
+		{
+			return new StorageEntry(path, getName(path), false, record.getSize(), record.getLastModified());
+		}
+
+		if(index.isDirectory(path))
+		{
+			return new StorageEntry(path, getName(path), true, 0, 0);
+		}
+
+		return storage.stat(filePath);
+	}
+
+	public List<String> getAvailableFileExtensions() throws Exception
+	{
+		return index.getExtensions();
+	}
+
+	public long getMemoryUsage() throws Exception
+	{
+		return index.getTotalSize();
+	}
+
+	public List<File> getAllFiles() throws Exception
+	{
+		return getFiles("");
+	}
+
+	public List<File> getAllFilesForDirectory(String directory) throws Exception
+	{
+		return getFiles(normalize(directory));
+	}
+
+	public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception
+	{
+		String path = normalize(directory);
+
+		if(index.isDirectory(path) == false)
+		{
+			throw new FileNotFoundException("Directory "+directory+" does not existed.");
+		}
+
+		return new CatalogEntryIterator(path, recursive, continuationToken);
+	}
+
+	/**
+	 * Compares the catalog with the storage without changing it.
+	 *
+	 * @return the paths the catalog has wrong, missing or left over.
+	 */
+	public List<String> verify() throws Exception
+	{
+		return synchronize(false);
+	}
+
+	/**
+	 * Brings the catalog in line with the storage, the hashes of the files that did not change are kept.
+	 *
+	 * @return the paths that were corrected.
+	 */
+	public List<String> rebuild() throws Exception
+	{
+		List<String> corrected = synchronize(true);
+
+		if(corrected.isEmpty() == false)
+		{
+			logger.info("CatalogFileStorage.rebuild()- Corrected "+corrected.size()+" paths of the catalog.");
+		}
+
+		return corrected;
+	}
+
+	public void close()
+	{
+		index.close();
+	}
+
+	private List<File> getFiles(String directory)
+	{
+		List<File> files = new ArrayList<File>();
+
+		for(CatalogRecord record: index.getFiles(directory).values())
+		{
+			files.add(new File(record.getLocation().length() > 0 ? record.getLocation() : record.getPath()));
+		}
+
+		return files;
+	}
+
+	/**
+	 * Walks the storage one directory at a time and compares every entry with the catalog.
+	 */
+	private List<String> synchronize(boolean repair) throws Exception
+	{
+		List<String> differences = new ArrayList<String>();
+		Set<String> foundFiles = new HashSet<String>(), foundDirectories = new HashSet<String>();
+		LinkedList<String> directories = new LinkedList<String>();
+		directories.add("");
+
+		while(directories.isEmpty() == false)
+		{
+			String directory = directories.removeFirst();
+			StorageEntryIterator entries = storage.listEntries(directory, false, null);
+
+			while(entries.hasNext())
+			{
+				StorageEntry entry = entries.next();
+				String path = join(directory, entry.getName());
+
+				if(entry.isDirectory())
+				{
+					foundDirectories.add(path);
+					directories.add(path);
+
+					if(index.isDirectory(path) == false)
+					{
+						differences.add(path);
+					}
+
+					if(repair)
+					{
+						index.addDirectory(path, entry.getPath());
+					}
+
+					continue;
+				}
+
+				foundFiles.add(path);
+				CatalogRecord record = index.get(path);
+
+				if(record != null && record.getSize() == entry.getSize() && record.getLastModified() == entry.getLastModified())
+				{
+					if(repair && record.getLocation().equals(entry.getPath()) == false)
+					{
+						index.put(new CatalogRecord(path, entry.getPath(), record.getSize(), record.getLastModified(), record.getHash()));
+					}
+
+					continue;
+				}
+
+				differences.add(path);
+
+				if(repair)
+				{
+					index.put(new CatalogRecord(path, entry.getPath(), entry.getSize(), entry.getLastModified(), hashOnRebuild ? hash(path) : ""));
+				}
+			}
+		}
+
+		for(String path: index.getFiles("").keySet())
+		{
+			if(foundFiles.contains(path) == false)
+			{
+				differences.add(path);
+
+				if(repair)
+				{
+					index.remove(path);
+				}
+			}
+		}
+
+		for(String path: index.getDirectories(""))
+		{
+			if(foundDirectories.contains(path) == false)
+			{
+				differences.add(path);
+
+				if(repair)
+				{
+					index.removeDirectory(path);
+				}
+			}
+		}
+
+		return differences;
+	}
+
+	/**
+	 * Adds the file that was just written to the catalog, the size and modified time come from the storage.
+	 */
+	private void record(String path, String location, File file)
+	{
+		String hash = "";
+
+		try
+		{
+			hash = hash(file);
+		}
+		catch(Exception e)
+		{
+			logger.error("CatalogFileStorage.record()- Could not hash the file: "+file.getPath()+".", e);
+		}
+
+		record(path, location, hash);
+	}
+
+	private void record(String path, String location, String hash)
+	{
+		try
+		{
+			StorageEntry entry = storage.stat(path);
+
+			if(entry.isFile())
+			{
+				index.put(new CatalogRecord(path, location == null ? entry.getPath() : location, entry.getSize(), entry.getLastModified(), hash));
+				return;
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("CatalogFileStorage.record()- Could not read the details of file: "+path+", the catalog is corrected by a rebuild.", e);
+		}
+
+		index.remove(path);
+	}
+
+	private String hash(File file) throws Exception
+	{
+		return hash(new FileInputStream(file));
+	}
+
+	private String hash(String path) throws Exception
+	{
+		return hash(storage.openRead(path));
+	}
+
+	private static String hash(InputStream stream) throws Exception
+	{
+		MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+
+		try
+		{
+			byte[] buffer = new byte[65536];
+			int read = stream.read(buffer);
+
+			while(read >= 0)
+			{
+				digest.update(buffer, 0, read);
+				read = stream.read(buffer);
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		return toHex(digest.digest());
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder();
+
+		for(byte b: bytes)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return hex.toString();
+	}
+
+	private static String normalize(String path)
+	{
+		if(path == null)
+		{
+			return "";
+		}
+
+		String normalized = path.replace('\\', '/');
+
+		while(normalized.contains("//"))
+		{
+			normalized = normalized.replace("//", "/");
+		}
+
+		while(normalized.startsWith("/"))
+		{
+			normalized = normalized.substring(1);
+		}
+
+		while(normalized.endsWith("/"))
+		{
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+
+		return normalized;
+	}
+
+	private static String join(String directory, String name)
+	{
+		if(directory.length() == 0)
+		{
+			return normalize(name);
+		}
+
+		return directory+"/"+normalize(name);
+	}
+
+	private static String getParent(String path)
+	{
+		int index = path.lastIndexOf('/');
+
+		if(index < 0)
+		{
+			return "";
+		}
+
+		return path.substring(0, index);
+	}
+
+	private static String getName(String path)
+	{
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class hashes the content while it is written and
+	 * adds the file to the catalog once the stream is closed.
+	 */
+	private class CatalogOutputStream extends FilterOutputStream
+	{
+		private MessageDigest digest;
+		private String path;
+		private boolean closed = false;
+
+		public CatalogOutputStream(OutputStream stream, MessageDigest digest, String path)
+		{
+			super(stream);
+			this.digest = digest;
+			this.path = path;
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			out.write(bytes, offset, length);
+		}
+
+		public void close() throws IOException
+		{
+			if(closed)
+			{
+				return;
+			}
+
+			closed = true;
+			out.close();
+			record(path, null, toHex(digest.digest()));
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class lists the directories of the catalog.
+	 */
+	private class CatalogEntryIterator extends StorageEntryIterator
+	{
+		public CatalogEntryIterator(String directory, boolean recursive, String continuationToken)
+		{
+			super(directory, recursive, continuationToken);
+		}
+
+		protected List<StorageEntry> listDirectory(String directory) throws Exception
+		{
+			List<StorageEntry> entries = new ArrayList<StorageEntry>();
+
+			for(String path: index.getChildDirectories(directory))
+			{
+				entries.add(new StorageEntry(path, getName(path), true, 0, 0));
+			}
+
+			for(CatalogRecord record: index.getChildFiles(directory))
+			{
+				entries.add(new StorageEntry(record.getPath(), getName(record.getPath()), false, record.getSize(), record.getLastModified()));
+			}
+
+			return entries;
+		}
+	}
+}
@@ -0,0 +1,680 @@
+package org.church.management.file.storage.catalog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class holds the files and directories of the catalog in memory, together with
+ * the total size and the number of files of every extension.
+ * Every change is appended to a journal file, the journal is read back on start up
+ * and compacted once it has grown to more than twice the number of entries.
+ *
+ * The paths are relative to the storage and separated by '/'. The fields of a journal line are separated
+ * by tabs, so the backslashes, tabs and line breaks in the paths and locations are escaped with a backslash.
+ * A journal written before the escaping was added has no format line at its top, it is read as it is
+ * and compacted into the escaped format right away.
+ */
+class CatalogIndex
+{
+	private static final Logger logger = Logger.getLogger(CatalogIndex.class);
+	private static final String ENCODING = "UTF-8";
+	private static final int MINIMUM_COMPACT_SIZE = 1000;
+	private static final String FORMAT_LINE = "V\tescaped";
+
+	private File journalFile;
+	private Writer journal;
+	private int journalLines = 0;
+	private boolean escaped = false;
+
+	private TreeMap<String, CatalogRecord> files = new TreeMap<String, CatalogRecord>();
+	private TreeMap<String, String> directories = new TreeMap<String, String>();
+	private Map<String, Integer> extensions = new HashMap<String, Integer>();
+	private long totalSize = 0;
+
+	public CatalogIndex(File journalFile) throws IOException
+	{
+		this.journalFile = journalFile;
+		recoverCompaction();
+
+		if(journalFile.exists() && journalFile.length() > 0)
+		{
+			load();
+		}
+
+		else
+		{
+			escaped = true;
+			Writer writer = openJournal(journalFile, false);
+
+			try
+			{
+				writer.write(FORMAT_LINE+"\n");
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+
+		this.journal = openJournal(journalFile, true);
+
+		if(escaped == false || (journalLines > MINIMUM_COMPACT_SIZE && journalLines > (files.size() + directories.size()) * 2))
+		{
+			compact();
+		}
+	}
+
+	public synchronized CatalogRecord get(String path)
+	{
+		return files.get(path);
+	}
+
+	public synchronized boolean isDirectory(String path)
+	{
+		return path.length() == 0 || directories.containsKey(path);
+	}
+
+	/**
+	 * @return the path the storage returned for the directory, empty when it is not known.
+	 */
+	public synchronized String getDirectoryLocation(String path)
+	{
+		String location = directories.get(path);
+		return location == null ? "" : location;
+	}
+
+	public synchronized long getTotalSize()
+	{
+		return totalSize;
+	}
+
+	public synchronized List<String> getExtensions()
+	{
+		return new ArrayList<String>(new TreeSet<String>(extensions.keySet()));
+	}
+
+	public synchronized int size()
+	{
+		return files.size();
+	}
+
+	public synchronized void put(CatalogRecord record)
+	{
+		append(toLine(record));
+		applyPut(record);
+	}
+
+	public synchronized CatalogRecord remove(String path)
+	{
+		if(files.containsKey(path) == false)
+		{
+			return null;
+		}
+
+		append("D\t"+escape(path));
+		return applyRemove(path);
+	}
+
+	public synchronized void addDirectory(String path, String location)
+	{
+		if(path.length() == 0 || location.equals(directories.get(path)))
+		{
+			return;
+		}
+
+		append("M\t"+escape(path)+"\t"+escape(location));
+		applyAddDirectory(path, location);
+	}
+
+	/**
+	 * Removes the directory and everything below it.
+	 */
+	public synchronized void removeDirectory(String path)
+	{
+		append("R\t"+escape(path));
+		applyRemoveDirectory(path);
+	}
+
+	/**
+	 * Moves the directory and everything below it to the new path.
+	 * The locations below the directory are rebased on the new location of the directory.
+	 */
+	public synchronized void moveDirectory(String oldPath, String newPath, String location)
+	{
+		append("N\t"+escape(oldPath)+"\t"+escape(newPath)+"\t"+escape(location));
+		applyMoveDirectory(oldPath, newPath, location);
+	}
+
+	/**
+	 * @return the files below the directory, with their paths.
+	 */
+	public synchronized SortedMap<String, CatalogRecord> getFiles(String directory)
+	{
+		if(directory.length() == 0)
+		{
+			return new TreeMap<String, CatalogRecord>(files);
+		}
+
+		return new TreeMap<String, CatalogRecord>(files.subMap(directory+"/", directory+"0"));
+	}
+
+	/**
+	 * @return the directories below the directory.
+	 */
+	public synchronized List<String> getDirectories(String directory)
+	{
+		if(directory.length() == 0)
+		{
+			return new ArrayList<String>(directories.keySet());
+		}
+
+		return new ArrayList<String>(directories.subMap(directory+"/", directory+"0").keySet());
+	}
+
+	/**
+	 * @return the files directly inside the directory.
+	 */
+	public synchronized List<CatalogRecord> getChildFiles(String directory)
+	{
+		List<CatalogRecord> children = new ArrayList<CatalogRecord>();
+
+		for(String path: getChildren(files, directory))
+		{
+			children.add(files.get(path));
+		}
+
+		return children;
+	}
+
+	/**
+	 * @return the directories directly inside the directory.
+	 */
+	public synchronized List<String> getChildDirectories(String directory)
+	{
+		return getChildren(directories, directory);
+	}
+
+	public synchronized void close()
+	{
+		try
+		{
+			journal.close();
+		}
+		catch(IOException e)
+		{
+			logger.error("CatalogIndex.close()- Could not close the journal: "+journalFile.getPath()+".", e);
+		}
+	}
+
+	/**
+	 * Steps over the sub directories instead of reading every path below the directory.
+	 */
+	private static List<String> getChildren(TreeMap<String, ?> paths, String directory)
+	{
+		List<String> children = new ArrayList<String>();
+		String prefix = directory.length() == 0 ? "" : directory+"/";
+		String path = paths.ceilingKey(prefix);
+
+		while(path != null && path.startsWith(prefix))
+		{
+			int slash = path.indexOf('/', prefix.length());
+
+			if(slash < 0)
+			{
+				children.add(path);
+				path = paths.higherKey(path);
+			}
+
+			else
+			{
+				//'0' comes right after '/', so this is the first path after the sub directory.
+				path = paths.ceilingKey(path.substring(0, slash)+"0");
+			}
+		}
+
+		return children;
+	}
+
+	private void applyPut(CatalogRecord record)
+	{
+		applyRemove(record.getPath());
+		files.put(record.getPath(), record);
+		totalSize += record.getSize();
+
+		Integer count = extensions.get(record.getExtension());
+		extensions.put(record.getExtension(), count == null ? 1 : count + 1);
+
+		int index = record.getPath().lastIndexOf('/');
+
+		if(index > 0)
+		{
+			applyAddParents(record.getPath().substring(0, index));
+		}
+	}
+
+	private CatalogRecord applyRemove(String path)
+	{
+		CatalogRecord record = files.remove(path);
+
+		if(record == null)
+		{
+			return null;
+		}
+
+		totalSize -= record.getSize();
+		int count = extensions.get(record.getExtension()) - 1;
+
+		if(count <= 0)
+		{
+			extensions.remove(record.getExtension());
+		}
+
+		else
+		{
+			extensions.put(record.getExtension(), count);
+		}
+
+		return record;
+	}
+
+	private void applyAddDirectory(String path, String location)
+	{
+		directories.put(path, location);
+		int index = path.lastIndexOf('/');
+
+		if(index > 0)
+		{
+			applyAddParents(path.substring(0, index));
+		}
+	}
+
+	/**
+	 * The parents of a file are directories too, their locations stay unknown until they are listed.
+	 */
+	private void applyAddParents(String path)
+	{
+		while(path.length() > 0 && directories.containsKey(path) == false)
+		{
+			directories.put(path, "");
+			int index = path.lastIndexOf('/');
+
+			if(index <= 0)
+			{
+				break;
+			}
+
+			path = path.substring(0, index);
+		}
+	}
+
+	private void applyRemoveDirectory(String path)
+	{
+		if(path.length() == 0)
+		{
+			files.clear();
+			directories.clear();
+			extensions.clear();
+			totalSize = 0;
+			return;
+		}
+
+		for(String file: new ArrayList<String>(files.subMap(path+"/", path+"0").keySet()))
+		{
+			applyRemove(file);
+		}
+
+		directories.subMap(path+"/", path+"0").clear();
+		directories.remove(path);
+	}
+
+	private void applyMoveDirectory(String oldPath, String newPath, String location)
+	{
+		String oldLocation = getDirectoryLocation(oldPath);
+		List<CatalogRecord> moved = new ArrayList<CatalogRecord>(files.subMap(oldPath+"/", oldPath+"0").values());
+		Map<String, String> movedDirectories = new TreeMap<String, String>(directories.subMap(oldPath+"/", oldPath+"0"));
+
+		applyRemoveDirectory(oldPath);
+		applyAddDirectory(newPath, location);
+
+		for(Map.Entry<String, String> directory: movedDirectories.entrySet())
+		{
+			String path = newPath+directory.getKey().substring(oldPath.length());
+			applyAddDirectory(path, rebase(directory.getValue(), directory.getKey().substring(oldPath.length()), oldLocation, location));
+		}
+
+		for(CatalogRecord record: moved)
+		{
+			String relative = record.getPath().substring(oldPath.length());
+			applyPut(new CatalogRecord(newPath+relative, rebase(record.getLocation(), relative, oldLocation, location), record.getSize(), record.getLastModified(), record.getHash()));
+		}
+	}
+
+	/**
+	 * @param relative the part of the path below the directory, starting with '/'.
+	 */
+	private static String rebase(String location, String relative, String oldLocation, String newLocation)
+	{
+		if(newLocation.length() == 0)
+		{
+			return "";
+		}
+
+		if(oldLocation.length() > 0 && location.startsWith(oldLocation))
+		{
+			return newLocation+location.substring(oldLocation.length());
+		}
+
+		//the separator of the storage is taken from the location it returned.
+		if(newLocation.indexOf('\\') >= 0 && newLocation.indexOf('/') < 0)
+		{
+			return newLocation+relative.replace('/', '\\');
+		}
+
+		return newLocation+relative;
+	}
+
+	private void append(String line)
+	{
+		try
+		{
+			journal.write(line);
+			journal.write('\n');
+			journal.flush();
+			journalLines++;
+
+			if(journalLines > MINIMUM_COMPACT_SIZE && journalLines > (files.size() + directories.size()) * 2)
+			{
+				compact();
+			}
+		}
+		catch(IOException e)
+		{
+			//the change is still answered while this process runs, a rebuild brings the journal back in line.
+			logger.error("CatalogIndex.append()- Could not write to the journal: "+line+".", e);
+		}
+	}
+
+	private void load() throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), ENCODING));
+
+		try
+		{
+			String line = reader.readLine();
+
+			if(FORMAT_LINE.equals(line))
+			{
+				escaped = true;
+				line = reader.readLine();
+			}
+
+			while(line != null)
+			{
+				journalLines++;
+
+				try
+				{
+					if(line.startsWith("P\t"))
+					{
+						String[] fields = line.split("\t", 6);
+						applyPut(new CatalogRecord(readField(fields[4]), readField(fields[5]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+					}
+
+					else if(line.startsWith("D\t"))
+					{
+						applyRemove(readField(line.substring(2)));
+					}
+
+					else if(line.startsWith("M\t"))
+					{
+						String[] fields = line.split("\t", 3);
+						applyAddDirectory(readField(fields[1]), readField(fields[2]));
+					}
+
+					else if(line.startsWith("R\t"))
+					{
+						applyRemoveDirectory(readField(line.substring(2)));
+					}
+
+					else if(line.startsWith("N\t"))
+					{
+						String[] fields = line.split("\t", 4);
+						applyMoveDirectory(readField(fields[1]), readField(fields[2]), readField(fields[3]));
+					}
+				}
+				catch(Exception e)
+				{
+					//a line cut short by a crash is the last one in the journal.
+					logger.error("CatalogIndex.load()- Skipping a damaged journal line: "+line+".", e);
+				}
+
+				line = reader.readLine();
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Finishes or drops a compaction that a crash has interrupted, the same way as the content index.
+	 * The compacted journal is complete once the old one is gone, because it is synced before the old one is deleted.
+	 */
+	private void recoverCompaction() throws IOException
+	{
+		File compacted = getCompactedFile();
+
+		if(compacted.exists() == false)
+		{
+			return;
+		}
+
+		if(journalFile.exists())
+		{
+			logger.debug("CatalogIndex.recoverCompaction()- Dropping the unfinished compaction: "+compacted.getPath()+".");
+
+			if(compacted.delete() == false)
+			{
+				throw new IOException("Could not delete the unfinished compaction: "+compacted.getPath()+".");
+			}
+		}
+
+		else if(compacted.renameTo(journalFile) == false)
+		{
+			throw new IOException("Could not restore the compacted journal: "+compacted.getPath()+".");
+		}
+	}
+
+	/**
+	 * Writes the live files and directories to a new journal and replaces the old one.
+	 * The journal is opened again even when the replacement fails, so the later changes are still written.
+	 */
+	private void compact() throws IOException
+	{
+		File compacted = getCompactedFile();
+		FileOutputStream output = new FileOutputStream(compacted, false);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, ENCODING));
+		int lines = 0;
+
+		try
+		{
+			writer.write(FORMAT_LINE+"\n");
+
+			for(Map.Entry<String, String> directory: directories.entrySet())
+			{
+				writer.write("M\t"+escape(directory.getKey())+"\t"+escape(directory.getValue())+"\n");
+				lines++;
+			}
+
+			for(CatalogRecord record: files.values())
+			{
+				writer.write(toLine(record)+"\n");
+				lines++;
+			}
+
+			//the compacted journal is on the disk before the old one can go away.
+			writer.flush();
+			output.getFD().sync();
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		if(journal != null)
+		{
+			journal.close();
+		}
+
+		try
+		{
+			//the rename replaces the journal in one step where the file system allows it,
+			//otherwise the journal is deleted first and the start up finishes the rename after a crash.
+			if(compacted.renameTo(journalFile) == false)
+			{
+				if(journalFile.delete() == false && journalFile.exists())
+				{
+					throw new IOException("Could not replace the journal: "+journalFile.getPath()+".");
+				}
+
+				if(compacted.renameTo(journalFile) == false)
+				{
+					throw new IOException("Could not replace the journal: "+journalFile.getPath()+".");
+				}
+			}
+
+			journalLines = lines;
+			escaped = true;
+		}
+		finally
+		{
+			//when only the compacted journal is left, the changes go after it and the start up renames it into place.
+			journal = openJournal(journalFile.exists() ? journalFile : compacted, true);
+		}
+	}
+
+	private File getCompactedFile()
+	{
+		return new File(journalFile.getPath()+".compact");
+	}
+
+	private static String toLine(CatalogRecord record)
+	{
+		return "P\t"+record.getSize()+"\t"+record.getLastModified()+"\t"+record.getHash()+"\t"+escape(record.getPath())+"\t"+escape(record.getLocation());
+	}
+
+	/**
+	 * @return the field of a journal line, the lines of a journal without the format line were written unescaped.
+	 */
+	private String readField(String field)
+	{
+		return escaped ? unescape(field) : field;
+	}
+
+	private static String escape(String field)
+	{
+		StringBuilder escapedField = new StringBuilder(field.length());
+
+		for(int i = 0; i < field.length(); i++)
+		{
+			char c = field.charAt(i);
+
+			if(c == '\\')
+			{
+				escapedField.append("\\\\");
+			}
+
+			else if(c == '\t')
+			{
+				escapedField.append("\\t");
+			}
+
+			else if(c == '\n')
+			{
+				escapedField.append("\\n");
+			}
+
+			else if(c == '\r')
+			{
+				escapedField.append("\\r");
+			}
+
+			else
+			{
+				escapedField.append(c);
+			}
+		}
+
+		return escapedField.toString();
+	}
+
+	private static String unescape(String field)
+	{
+		if(field.indexOf('\\') < 0)
+		{
+			return field;
+		}
+
+		StringBuilder unescaped = new StringBuilder(field.length());
+
+		for(int i = 0; i < field.length(); i++)
+		{
+			char c = field.charAt(i);
+
+			if(c != '\\' || i + 1 == field.length())
+			{
+				unescaped.append(c);
+				continue;
+			}
+
+			char next = field.charAt(++i);
+
+			if(next == 't')
+			{
+				unescaped.append('\t');
+			}
+
+			else if(next == 'n')
+			{
+				unescaped.append('\n');
+			}
+
+			else if(next == 'r')
+			{
+				unescaped.append('\r');
+			}
+
+			else
+			{
+				unescaped.append(next);
+			}
+		}
+
+		return unescaped.toString();
+	}
+
+	private static Writer openJournal(File file, boolean append) throws IOException
+	{
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), ENCODING));
+	}
+}
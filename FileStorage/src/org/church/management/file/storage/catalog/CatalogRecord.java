@@ -0,0 +1,85 @@
+package org.church.management.file.storage.catalog;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class is what the catalog knows about a file of the storage.
+ */
+public class CatalogRecord
+{
+	private String path;
+	private String location;
+	private long size;
+	private long lastModified;
+	private String hash;
+
+	public CatalogRecord(String path, String location, long size, long lastModified, String hash)
+	{
+		this.path = path;
+		this.location = location;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.hash = hash;
+	}
+
+	/**
+	 * @return the path relative to the storage separated by '/'.
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * @return the path the storage returned for the file.
+	 */
+	public String getLocation()
+	{
+		return location;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @return the hex SHA-256 of the content, empty when it is not known.
+	 */
+	public String getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * @return the lower case extension without the dot, empty when the name has none.
+	 */
+	public String getExtension()
+	{
+		return getExtension(path);
+	}
+
+	public String toString()
+	{
+		return path+" ("+size+" bytes)";
+	}
+
+	static String getExtension(String path)
+	{
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+
+		if(dot <= slash + 1)
+		{
+			return "";
+		}
+
+		return path.substring(dot + 1).toLowerCase();
+	}
+}
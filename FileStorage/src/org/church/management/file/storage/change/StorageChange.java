@@ -0,0 +1,102 @@
+package org.church.management.file.storage.change;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class is one change to the files of a storage. The changes of a feed are numbered
+ * in the order they happened, the numbers keep counting up across restarts.
+ */
+public class StorageChange
+{
+	public static final int CREATED = 0;
+	public static final int MODIFIED = 1;
+	public static final int DELETED = 2;
+	public static final int RENAMED = 3;
+
+	private static final String[] TYPE_NAMES = {"created", "modified", "deleted", "renamed"};
+
+	private long sequence;
+	private long time;
+	private int type;
+	private boolean directory;
+	private long size;
+	private String path;
+	private String oldPath;
+
+	public StorageChange(long sequence, long time, int type, boolean directory, long size, String path, String oldPath)
+	{
+		this.sequence = sequence;
+		this.time = time;
+		this.type = type;
+		this.directory = directory;
+		this.size = size;
+		this.path = path;
+		this.oldPath = oldPath;
+	}
+
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * @return the time in milliseconds the change was recorded.
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+
+	/**
+	 * @return CREATED, MODIFIED, DELETED or RENAMED.
+	 */
+	public int getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return true if the change is to a directory, a deleted or renamed directory takes everything below it along.
+	 */
+	public boolean isDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @return the size of the file after the change, 0 for directories and deleted files.
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the path relative to the storage folder separated by '/'.
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * @return the path before a rename, otherwise null.
+	 */
+	public String getOldPath()
+	{
+		return oldPath;
+	}
+
+	public String toString()
+	{
+		String change = sequence+" "+TYPE_NAMES[type]+" "+path;
+
+		if(oldPath != null)
+		{
+			change = change+" from "+oldPath;
+		}
+
+		return change;
+	}
+}
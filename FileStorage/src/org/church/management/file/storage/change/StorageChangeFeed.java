@@ -0,0 +1,331 @@
+package org.church.management.file.storage.change;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps the recent changes of a storage in the order they happened.
+ * A consumer remembers the sequence number of the last change it has handled and asks
+ * for the changes after it, so it only has to look at what changed since.
+ *
+ * Every change is appended to a feed file, so the sequence numbers and the recent changes
+ * survive a restart. Only the latest changes are kept, a consumer that has fallen behind
+ * the earliest kept change has missed changes and has to read the whole storage again.
+ */
+public class StorageChangeFeed
+{
+	private static final Logger logger = Logger.getLogger(StorageChangeFeed.class);
+	private static final String ENCODING = "UTF-8";
+
+	private File feedFile;
+	private Writer writer;
+	private int retention;
+
+	private List<StorageChange> changes = new ArrayList<StorageChange>();
+	private long latestSequence = 0;
+
+	/**
+	 * @param retention the number of changes kept for the consumers.
+	 */
+	public StorageChangeFeed(File feedFile, int retention) throws IOException
+	{
+		this.feedFile = feedFile;
+		this.retention = Math.max(1, retention);
+		recoverTrim();
+
+		if(feedFile.exists())
+		{
+			load();
+		}
+
+		writer = openFeed(feedFile, true);
+
+		if(changes.size() > this.retention)
+		{
+			trim();
+		}
+	}
+
+	public synchronized long getLatestSequence()
+	{
+		return latestSequence;
+	}
+
+	/**
+	 * @return the time of the latest change, 0 if there is none.
+	 */
+	public synchronized long getLatestTime()
+	{
+		return changes.isEmpty() ? 0 : changes.get(changes.size() - 1).getTime();
+	}
+
+	/**
+	 * @return false if changes after the sequence number have already been dropped.
+	 */
+	public synchronized boolean isAvailable(long afterSequence)
+	{
+		long earliest = changes.isEmpty() ? latestSequence + 1 : changes.get(0).getSequence();
+		return afterSequence >= earliest - 1 && afterSequence <= latestSequence;
+	}
+
+	/**
+	 * @return up to the maximum of changes after the sequence number, oldest first.
+	 */
+	public synchronized List<StorageChange> getChanges(long afterSequence, int maximum)
+	{
+		if(isAvailable(afterSequence) == false)
+		{
+			throw new IllegalArgumentException("The changes after "+afterSequence+" are no longer kept, the earliest change kept is "+(changes.isEmpty() ? latestSequence : changes.get(0).getSequence())+".");
+		}
+
+		if(changes.isEmpty())
+		{
+			return new ArrayList<StorageChange>();
+		}
+
+		int start = (int)(afterSequence + 1 - changes.get(0).getSequence());
+		int end = (int)Math.min(changes.size(), (long)start + maximum);
+		return new ArrayList<StorageChange>(changes.subList(start, end));
+	}
+
+	/**
+	 * Waits until there is a change after the sequence number or the timeout has passed.
+	 *
+	 * @return the changes after the sequence number, empty on a timeout.
+	 */
+	public synchronized List<StorageChange> awaitChanges(long afterSequence, int maximum, long timeout) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while(latestSequence <= afterSequence)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+
+			if(remaining <= 0)
+			{
+				break;
+			}
+
+			wait(remaining);
+		}
+
+		return getChanges(afterSequence, maximum);
+	}
+
+	/**
+	 * Adds a change to the feed, this is called by the storage.
+	 */
+	public synchronized StorageChange record(int type, boolean directory, long size, String path, String oldPath)
+	{
+		latestSequence++;
+		StorageChange change = new StorageChange(latestSequence, System.currentTimeMillis(), type, directory, size, path, oldPath);
+		changes.add(change);
+
+		try
+		{
+			writer.write(format(change));
+			writer.flush();
+		}
+		catch(IOException e)
+		{
+			//the change is still handed out while this process runs.
+			logger.error("StorageChangeFeed.record()- Could not write to the feed: "+feedFile.getPath()+".", e);
+		}
+
+		if(changes.size() >= retention * 2)
+		{
+			trim();
+		}
+
+		notifyAll();
+		return change;
+	}
+
+	public synchronized void close()
+	{
+		try
+		{
+			writer.close();
+		}
+		catch(IOException e)
+		{
+			logger.error("StorageChangeFeed.close()- Could not close the feed: "+feedFile.getPath()+".", e);
+		}
+	}
+
+	/**
+	 * Finishes or drops a trim that a crash has interrupted. The trimmed feed is synced before
+	 * the old feed is deleted, so it is complete once the old feed is gone.
+	 */
+	private void recoverTrim() throws IOException
+	{
+		File trimmed = getTrimmedFile();
+
+		if(trimmed.exists() == false)
+		{
+			return;
+		}
+
+		if(feedFile.exists())
+		{
+			logger.debug("StorageChangeFeed.recoverTrim()- Dropping the unfinished trim: "+trimmed.getPath()+".");
+
+			if(trimmed.delete() == false)
+			{
+				throw new IOException("Could not delete the unfinished trim: "+trimmed.getPath()+".");
+			}
+		}
+
+		else if(trimmed.renameTo(feedFile) == false)
+		{
+			throw new IOException("Could not restore the trimmed feed: "+trimmed.getPath()+".");
+		}
+	}
+
+	/**
+	 * Drops the oldest changes and writes the rest to a new feed file.
+	 * The writer is opened again even when the replacement fails, so the later changes are still written.
+	 */
+	private void trim()
+	{
+		changes.subList(0, changes.size() - retention).clear();
+		File trimmed = getTrimmedFile();
+
+		try
+		{
+			FileOutputStream stream = new FileOutputStream(trimmed, false);
+			Writer output = new BufferedWriter(new OutputStreamWriter(stream, ENCODING));
+
+			try
+			{
+				for(StorageChange change: changes)
+				{
+					output.write(format(change));
+				}
+
+				//the trimmed feed is on the disk before the old one can go away.
+				output.flush();
+				stream.getFD().sync();
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+		catch(IOException e)
+		{
+			logger.error("StorageChangeFeed.trim()- Could not write the trimmed feed: "+trimmed.getPath()+".", e);
+			trimmed.delete();
+			return;
+		}
+
+		try
+		{
+			writer.close();
+
+			//the rename replaces the feed in one step where the file system allows it,
+			//otherwise the feed is deleted first and the start up finishes the rename after a crash.
+			if(trimmed.renameTo(feedFile) == false)
+			{
+				if(feedFile.delete() == false && feedFile.exists())
+				{
+					throw new IOException("Could not replace the feed: "+feedFile.getPath()+".");
+				}
+
+				if(trimmed.renameTo(feedFile) == false)
+				{
+					throw new IOException("Could not replace the feed: "+feedFile.getPath()+".");
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			logger.error("StorageChangeFeed.trim()- Could not trim the feed: "+feedFile.getPath()+".", e);
+		}
+		finally
+		{
+			reopen(trimmed);
+		}
+	}
+
+	/**
+	 * When only the trimmed feed is left, the changes go after it and the start up renames it into place.
+	 */
+	private void reopen(File trimmed)
+	{
+		try
+		{
+			writer = openFeed(feedFile.exists() ? feedFile : trimmed, true);
+		}
+		catch(IOException e)
+		{
+			//the closed writer fails every later write, the changes are then only kept in memory.
+			logger.error("StorageChangeFeed.reopen()- Could not open the feed: "+feedFile.getPath()+".", e);
+		}
+	}
+
+	private File getTrimmedFile()
+	{
+		return new File(feedFile.getPath()+".trim");
+	}
+
+	private void load() throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(feedFile), ENCODING));
+
+		try
+		{
+			String line = reader.readLine();
+
+			while(line != null)
+			{
+				try
+				{
+					String[] fields = line.split("\t", 7);
+					StorageChange change = new StorageChange(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Integer.parseInt(fields[2]), fields[3].equals("1"), Long.parseLong(fields[4]), fields[5], fields[6].length() == 0 ? null : fields[6]);
+
+					if(change.getSequence() > latestSequence)
+					{
+						changes.add(change);
+						latestSequence = change.getSequence();
+					}
+				}
+				catch(Exception e)
+				{
+					//a line cut short by a crash is the last one in the feed.
+					logger.error("StorageChangeFeed.load()- Skipping a damaged feed line: "+line+".", e);
+				}
+
+				line = reader.readLine();
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	private static String format(StorageChange change)
+	{
+		return change.getSequence()+"\t"+change.getTime()+"\t"+change.getType()+"\t"+(change.isDirectory() ? "1" : "0")+"\t"+change.getSize()+"\t"+change.getPath()+"\t"+(change.getOldPath() == null ? "" : change.getOldPath())+"\n";
+	}
+
+	private static Writer openFeed(File file, boolean append) throws IOException
+	{
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), ENCODING));
+	}
+}
@@ -0,0 +1,18 @@
+package org.church.management.file.storage.exception;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This exception is thrown by a storage listing when 
+ * a directory could not be read while iterating.
+ */
+public class StorageListingException extends RuntimeException 
+{
+	private static final long serialVersionUID = 1L;
+
+	public StorageListingException(String message, Throwable ex)
+	{
+		super(message, ex);
+	}
+}
@@ -0,0 +1,36 @@
+package org.church.management.file.storage.exception;
+
+/**
+ *
+ * @author Trae
+ *
+ * This exception is thrown when a write would take a storage
+ * or one of its directories over its quota.
+ */
+public class StorageQuotaExceededException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	private String directory;
+	private long limitation;
+
+	/**
+	 * @param directory the directory whose quota would be exceeded, "" for the whole storage.
+	 */
+	public StorageQuotaExceededException(String message, String directory, long limitation)
+	{
+		super(message);
+		this.directory = directory;
+		this.limitation = limitation;
+	}
+
+	public String getDirectory()
+	{
+		return directory;
+	}
+
+	public long getLimitation()
+	{
+		return limitation;
+	}
+}
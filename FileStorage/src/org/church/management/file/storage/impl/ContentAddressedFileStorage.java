@@ -0,0 +1,1193 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.church.management.annotations.Supported;
+import org.church.management.file.storage.LocalFileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.archive.ParallelZipWriter;
+import org.church.management.file.storage.archive.ZipCompressor;
+import org.church.management.file.storage.batch.BatchExecutor;
+import org.church.management.file.storage.batch.BatchOperation;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.file.storage.impl.ContentIndex.ContentRecord;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class stores every distinct content only once. The content is kept in a file named
+ * after its SHA-256 hash under the blobs folder, and an index maps the paths of the storage
+ * to those hashes. Uploading a content that is already stored only adds the path to the index,
+ * copying a file retrieved from this storage does not even read it.
+ * Content that no path points at anymore is deleted by a background garbage collection.
+ *
+ * The paths of this storage are relative to the storage and separated by '/'.
+ * The files returned by retrieve() and getAllFiles() are shared by every path with the
+ * same content and are named after the hash, so they must not be changed.
+ *
+ * need properties:
+ * 		storagePath: the directory where the content and the index are stored
+ * 		tempFolderPath: the directory where the archives are created, default is the temp folder in the storage
+ * 		storageMemoryLimitation: how much memory is available
+ * 		batchParallelism: the number of batch operations running at once, default is the number of processors.
+ * 		garbageCollectionInterval: the milliseconds between the garbage collections, default is 60000.
+ * 		zipParallelism: the number of threads compressing the entries of the zips, default is the number of processors.
+ * 		zipCompressionLevel: the deflate level of the zips from 1 to 9, default is -1 for the deflate default, 0 stores every file.
+ * 		zipStoredExtensions: the extensions of the files stored in the zips without compression like jpg,png,mp4, default is the common media and archive formats.
+ */
+public class ContentAddressedFileStorage implements LocalFileStorage
+{
+	private static final Logger logger = Logger.getLogger(ContentAddressedFileStorage.class);
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final long DEFAULT_GARBAGE_COLLECTION_INTERVAL = 60000;
+
+	private Properties properties;
+	private File storageFolder;
+	private File blobFolder;
+	private File blobTempFolder;
+	private String tempFolderPath;
+	private long memoryLimitation = 0;
+	private long physicalBytes = 0;
+	private long temporaryCounter = 0;
+
+	private ContentIndex index;
+	private BatchExecutor batchExecutor;
+	private ZipCompressor zipCompressor;
+	private ScheduledExecutorService garbageCollector;
+
+	public ContentAddressedFileStorage(Properties properties) throws Exception
+	{
+		this.properties = properties;
+		this.storageFolder = new File(properties.getProperty("storagePath"));
+		this.blobFolder = new File(storageFolder, "blobs");
+		this.blobTempFolder = new File(storageFolder, "incoming");
+		this.tempFolderPath = properties.getProperty("tempFolderPath");
+
+		if(tempFolderPath == null)
+		{
+			tempFolderPath = new File(storageFolder, "temp").getPath();
+		}
+
+		try
+		{
+			memoryLimitation = Long.parseLong(this.properties.getProperty("storageMemoryLimitation"));
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.<init> - An error has occurred while parsing memory limitation property.", e);
+		}
+
+		int batchParallelism = Runtime.getRuntime().availableProcessors();
+		long garbageCollectionInterval = DEFAULT_GARBAGE_COLLECTION_INTERVAL;
+		int zipParallelism = Runtime.getRuntime().availableProcessors(), zipLevel = -1;
+		Set<String> zipStoredExtensions = ZipCompressor.parseExtensions(ZipCompressor.DEFAULT_STORED_EXTENSIONS);
+
+		try
+		{
+			if(this.properties.getProperty("batchParallelism") != null)
+			{
+				batchParallelism = Integer.parseInt(this.properties.getProperty("batchParallelism"));
+			}
+
+			if(this.properties.getProperty("garbageCollectionInterval") != null)
+			{
+				garbageCollectionInterval = Long.parseLong(this.properties.getProperty("garbageCollectionInterval"));
+			}
+
+			if(this.properties.getProperty("zipParallelism") != null)
+			{
+				zipParallelism = Integer.parseInt(this.properties.getProperty("zipParallelism"));
+			}
+
+			if(this.properties.getProperty("zipCompressionLevel") != null)
+			{
+				int level = Integer.parseInt(this.properties.getProperty("zipCompressionLevel"));
+
+				if(level < -1 || level > 9)
+				{
+					throw new IllegalArgumentException("The zip compression level must be between -1 and 9.");
+				}
+
+				zipLevel = level;
+			}
+
+			if(this.properties.getProperty("zipStoredExtensions") != null)
+			{
+				zipStoredExtensions = ZipCompressor.parseExtensions(this.properties.getProperty("zipStoredExtensions"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.<init> - An error has occurred while parsing the properties.", e);
+		}
+
+		zipCompressor = new ZipCompressor(zipParallelism, zipLevel, zipStoredExtensions);
+
+		try
+		{
+			FileUtils.forceMkdir(blobFolder);
+			FileUtils.forceMkdir(new File(tempFolderPath));
+
+			if(blobTempFolder.exists())
+			{
+				//uploads that were cut short by a shutdown.
+				FileUtils.cleanDirectory(blobTempFolder);
+			}
+
+			FileUtils.forceMkdir(blobTempFolder);
+
+			index = new ContentIndex(new File(storageFolder, "index.journal"));
+			scanBlobs();
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.<init> - Could not open the storage: "+storageFolder.getPath()+".", e);
+			throw e;
+		}
+
+		batchExecutor = new BatchExecutor(batchParallelism);
+		garbageCollector = Executors.newSingleThreadScheduledExecutor(new GarbageCollectorThreadFactory());
+		garbageCollector.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				collectGarbage();
+			}
+		}, garbageCollectionInterval, garbageCollectionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Counts the stored content and finds the content left behind
+	 * without a path, for example by a crash during a delete.
+	 */
+	private void scanBlobs()
+	{
+		Set<String> referenced = new HashSet<String>();
+
+		for(ContentRecord record: index.getPaths().values())
+		{
+			referenced.add(record.getHash());
+		}
+
+		for(File blob: FileUtils.listFiles(blobFolder, null, true))
+		{
+			physicalBytes += blob.length();
+
+			if(referenced.contains(blob.getName()) == false)
+			{
+				index.markUnreferenced(blob.getName());
+			}
+		}
+	}
+
+	@Supported
+	public String createDirectory(String directory) throws Exception
+	{
+		String path = normalize(directory);
+
+		try
+		{
+			synchronized(index)
+			{
+				index.addDirectory(path);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("Directory failed to created with directory name: "+directory+".", e);
+			throw e;
+		}
+
+		return path;
+	}
+
+	@Supported
+	public void deleteDirectory(String directory) throws Exception
+	{
+		String path = normalize(directory);
+
+		try
+		{
+			synchronized(index)
+			{
+				for(String filePath: new ArrayList<String>(index.getFiles(path).keySet()))
+				{
+					index.remove(filePath);
+				}
+
+				for(String subDirectory: index.getDirectories(path))
+				{
+					index.removeDirectory(subDirectory);
+				}
+
+				index.removeDirectory(path);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.deleteDirectory()- An error has occurred while deleting the directory.", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * The new directory is relative to the storage, the same as the server storage.
+	 */
+	@Supported
+	public String renameDirectory(String oldDirectory, String newDirectory) throws Exception
+	{
+		String oldPath = normalize(oldDirectory);
+		String newPath = normalize(newDirectory);
+
+		try
+		{
+			synchronized(index)
+			{
+				if(oldPath.length() == 0 || index.isDirectory(oldPath) == false)
+				{
+					throw new FileNotFoundException("Directory "+oldDirectory+" could not be renamed because it does not existed.");
+				}
+
+				index.addDirectory(newPath);
+
+				for(String subDirectory: index.getDirectories(oldPath))
+				{
+					index.addDirectory(newPath+subDirectory.substring(oldPath.length()));
+					index.removeDirectory(subDirectory);
+				}
+
+				for(Map.Entry<String, ContentRecord> entry: new ArrayList<Map.Entry<String, ContentRecord>>(index.getFiles(oldPath).entrySet()))
+				{
+					ContentRecord record = entry.getValue();
+					index.put(newPath+entry.getKey().substring(oldPath.length()), record.getHash(), record.getSize(), record.getLastModified());
+					index.remove(entry.getKey());
+				}
+
+				index.removeDirectory(oldPath);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.renameDirectory() - An error has occurred while renaming a directory: "+oldDirectory+" to "+newDirectory+".", e);
+			throw e;
+		}
+
+		return newPath;
+	}
+
+	@Supported
+	public String upload(String folder, File file) throws Exception
+	{
+		String path = join(normalize(folder), file.getName());
+
+		try
+		{
+			if(file.exists())
+			{
+				store(path, file);
+			}
+
+			else
+			{
+				throw new FileNotFoundException("File "+file.getAbsolutePath()+" could not be copied.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.upload() - An error has occurred while uploading file: "+file.getPath()+".", e);
+			throw e;
+		}
+
+		return path;
+	}
+
+	@Supported
+	public String copy(String folder, String renameFile, File file) throws Exception
+	{
+		String path = join(normalize(folder), renameFile);
+
+		try
+		{
+			if(file.exists())
+			{
+				store(path, file);
+			}
+
+			else
+			{
+				throw new FileNotFoundException("File "+file.getAbsolutePath()+" could not be copied.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.copy()- An error has occurred while copying files.", e);
+			throw e;
+		}
+
+		return path;
+	}
+
+	@Supported
+	public void deleteFile(String filePath) throws Exception
+	{
+		try
+		{
+			synchronized(index)
+			{
+				index.remove(normalize(filePath));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.delete() - An error has occurred while deleting the file: "+filePath+".", e);
+			throw e;
+		}
+	}
+
+	@Supported
+	public File retrieve(String filePath) throws Exception
+	{
+		return getContentFile(filePath);
+	}
+
+	@Supported
+	public byte[] retrieveRange(String filePath, long offset, int length) throws Exception
+	{
+		return LocalFileChannels.readRange(getContentFile(filePath), offset, length);
+	}
+
+	@Supported
+	public StorageEntry stat(String filePath) throws Exception
+	{
+		String path = normalize(filePath);
+		String name = path.substring(path.lastIndexOf('/') + 1);
+
+		synchronized(index)
+		{
+			ContentRecord record = index.get(path);
+
+			if(record != null)
+			{
+				return new StorageEntry(path, name, false, record.getSize(), record.getLastModified());
+			}
+
+			if(index.isDirectory(path))
+			{
+				return new StorageEntry(path, name, true, 0, 0);
+			}
+		}
+
+		return StorageEntry.missing(path, name);
+	}
+
+	/**
+	 * Keeps the path of the updated file and takes the name of the new file,
+	 * the same as the server storage.
+	 */
+	@Supported
+	public String update(String filePath, File file) throws Exception
+	{
+		String path = normalize(filePath);
+		String updatedPath = null;
+
+		try
+		{
+			synchronized(index)
+			{
+				if(index.get(path) == null)
+				{
+					throw new FileNotFoundException("File "+filePath+" could not be update, because it does not existed.");
+				}
+			}
+
+			updatedPath = join(getParent(path), file.getName());
+			store(updatedPath, file);
+
+			if(updatedPath.equals(path) == false)
+			{
+				synchronized(index)
+				{
+					index.remove(path);
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.update()- An error has while updating file: "+filePath+".", e);
+			throw e;
+		}
+
+		return updatedPath;
+	}
+
+	@Supported
+	public String renameFile(String filepath, String newFileName) throws Exception
+	{
+		String path = normalize(filepath);
+		String renamedPath = join(getParent(path), newFileName);
+
+		try
+		{
+			synchronized(index)
+			{
+				ContentRecord record = index.get(path);
+
+				if(record == null)
+				{
+					throw new FileNotFoundException("File "+filepath+" could not rename, because it does not existed.");
+				}
+
+				index.put(renamedPath, record.getHash(), record.getSize(), record.getLastModified());
+				index.remove(path);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.renamedFile() - An error has occurred while renaming the file: "+filepath+" to "+newFileName+".", e);
+			throw e;
+		}
+
+		return renamedPath;
+	}
+
+	@Supported
+	public InputStream openRead(String filePath) throws Exception
+	{
+		return new FileInputStream(getContentFile(filePath));
+	}
+
+	/**
+	 * The content is hashed while it is written, once the stream
+	 * is closed the path points at the content.
+	 */
+	@Supported
+	public OutputStream openWrite(String filePath) throws Exception
+	{
+		String path = normalize(filePath);
+
+		try
+		{
+			File temporary = createTemporaryBlob();
+			MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+			return new ContentOutputStream(new DigestOutputStream(new FileOutputStream(temporary), digest), digest, temporary, path);
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.openWrite()- An error has occurred while opening the file: "+filePath+".", e);
+			throw e;
+		}
+	}
+
+	@Supported
+	public FileChannel openChannel(String filePath) throws Exception
+	{
+		return LocalFileChannels.openReadOnly(getContentFile(filePath));
+	}
+
+	@Supported
+	public MappedByteBuffer map(String filePath) throws Exception
+	{
+		return LocalFileChannels.map(getContentFile(filePath));
+	}
+
+	@Supported
+	public long transferTo(String filePath, WritableByteChannel target) throws Exception
+	{
+		return LocalFileChannels.transferTo(getContentFile(filePath), target);
+	}
+
+	@Supported
+	public List<BatchResult> uploadAll(final String folder, Collection<File> files) throws Exception
+	{
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+
+		for(final File file: files)
+		{
+			operations.add(new BatchOperation(file.getPath())
+			{
+				public String execute() throws Exception
+				{
+					return upload(folder, file);
+				}
+			});
+		}
+
+		return batchExecutor.execute(operations);
+	}
+
+	@Supported
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception
+	{
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+
+		for(final String filePath: filePaths)
+		{
+			operations.add(new BatchOperation(filePath)
+			{
+				public String execute() throws Exception
+				{
+					deleteFile(filePath);
+					return filePath;
+				}
+			});
+		}
+
+		return batchExecutor.execute(operations);
+	}
+
+	@Supported
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception
+	{
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+
+		for(final Map.Entry<String, String> entry: renameFiles.entrySet())
+		{
+			operations.add(new BatchOperation(entry.getKey())
+			{
+				public String execute() throws Exception
+				{
+					return renameFile(entry.getKey(), entry.getValue());
+				}
+			});
+		}
+
+		return batchExecutor.execute(operations);
+	}
+
+	@Supported
+	public List<BatchResult> createDirectories(Collection<String> directories) throws Exception
+	{
+		List<String> directoryNames = new ArrayList<String>(directories);
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+
+		for(final String directoryName: directoryNames)
+		{
+			operations.add(new BatchOperation(directoryName)
+			{
+				public String execute() throws Exception
+				{
+					return createDirectory(directoryName);
+				}
+			});
+		}
+
+		return batchExecutor.executeByDepth(directoryNames, operations);
+	}
+
+	@Supported
+	public List<String> getAvailableFileExtensions() throws Exception
+	{
+		Set<String> extensions = new HashSet<String>();
+
+		synchronized(index)
+		{
+			for(String path: index.getPaths().keySet())
+			{
+				int dot = path.lastIndexOf('.');
+
+				if(dot > path.lastIndexOf('/') + 1)
+				{
+					extensions.add(path.substring(dot + 1).toLowerCase());
+				}
+			}
+		}
+
+		return new ArrayList<String>(extensions);
+	}
+
+	/**
+	 * @return the bytes on the disk, every distinct content is counted once.
+	 */
+	@Supported
+	public long getMemoryUsage() throws Exception
+	{
+		synchronized(index)
+		{
+			return physicalBytes;
+		}
+	}
+
+	@Supported
+	public long getMemoryLimitation() throws Exception
+	{
+		return memoryLimitation;
+	}
+
+	@Supported
+	public List<File> getAllFiles() throws Exception
+	{
+		List<File> files = new ArrayList<File>();
+
+		synchronized(index)
+		{
+			for(ContentRecord record: index.getPaths().values())
+			{
+				files.add(getBlobFile(record.getHash()));
+			}
+		}
+
+		return files;
+	}
+
+	@Supported
+	public List<File> getAllFilesForDirectory(String directory) throws Exception
+	{
+		String path = normalize(directory);
+		List<File> files = new ArrayList<File>();
+
+		synchronized(index)
+		{
+			for(Map.Entry<String, ContentRecord> entry: index.getFiles(path).entrySet())
+			{
+				if(entry.getKey().indexOf('/', path.length() + 1) < 0)
+				{
+					files.add(getBlobFile(entry.getValue().getHash()));
+				}
+			}
+		}
+
+		return files;
+	}
+
+	@Supported
+	public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception
+	{
+		String path = "";
+
+		if(directory != null)
+		{
+			path = normalize(directory);
+		}
+
+		synchronized(index)
+		{
+			if(index.isDirectory(path) == false)
+			{
+				logger.error("ContentAddressedStorage.listEntries()- An error has occurred while listing the directory: "+directory+".");
+				throw new FileNotFoundException("Directory "+directory+" does not existed.");
+			}
+		}
+
+		return new ContentEntryIterator(path, recursive, continuationToken);
+	}
+
+	public boolean isCloudStorage()
+	{
+		return false;
+	}
+
+	@Supported
+	public File zipUpAllFiles(String archiveName) throws Exception
+	{
+		File archive = new File(tempFolderPath, archiveName);
+
+		try
+		{
+			writeArchive("", archive);
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.zipUpAllFiles()- An error has occurred while zip up files.", e);
+			throw e;
+		}
+
+		return archive;
+	}
+
+	@Supported
+	public File zipUpDirectory(String fullPath, String archiveName) throws Exception
+	{
+		String path = normalize(fullPath);
+		File archive = new File(tempFolderPath, archiveName);
+
+		try
+		{
+			synchronized(index)
+			{
+				if(index.isDirectory(path) == false)
+				{
+					throw new FileNotFoundException("Directory "+fullPath+" could not zip up, because it is deleted.");
+				}
+			}
+
+			writeArchive(path, archive);
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.zipUpDirectory()- Could not zip up directory: "+fullPath+".", e);
+			throw e;
+		}
+
+		return archive;
+	}
+
+	@Supported
+	public void zipDirectoryTo(String directory, OutputStream output) throws Exception
+	{
+		String path = normalize(directory);
+
+		try
+		{
+			synchronized(index)
+			{
+				if(index.isDirectory(path) == false)
+				{
+					throw new FileNotFoundException("Directory "+directory+" could not zip up, because it is deleted.");
+				}
+			}
+
+			writeArchive(path, output);
+		}
+		catch(Exception e)
+		{
+			logger.error("ContentAddressedStorage.zipDirectoryTo()- Could not zip up directory: "+directory+".", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes the content that no path points at anymore.
+	 * Runs in the background, but can be called to free the space right away.
+	 */
+	public void collectGarbage()
+	{
+		synchronized(index)
+		{
+			for(String hash: new ArrayList<String>(index.getUnreferenced()))
+			{
+				if(index.getReferences(hash) > 0)
+				{
+					index.getUnreferenced().remove(hash);
+					continue;
+				}
+
+				File blob = getBlobFile(hash);
+				long size = blob.length();
+
+				if(blob.exists() && blob.delete() == false)
+				{
+					logger.error("ContentAddressedStorage.collectGarbage()- Could not delete the content: "+hash+".");
+					continue;
+				}
+
+				physicalBytes -= size;
+				index.getUnreferenced().remove(hash);
+			}
+		}
+	}
+
+	public void shutdown()
+	{
+		garbageCollector.shutdown();
+		batchExecutor.shutdown();
+		zipCompressor.shutdown();
+
+		synchronized(index)
+		{
+			index.close();
+		}
+	}
+
+	private void writeArchive(String directory, File archive) throws Exception
+	{
+		OutputStream output = new FileOutputStream(archive);
+
+		try
+		{
+			writeArchive(directory, output);
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	/**
+	 * Writes the zip of the directory, the stream is finished but not closed.
+	 */
+	private void writeArchive(String directory, OutputStream output) throws Exception
+	{
+		Map<String, ContentRecord> files = null;
+		List<String> directories = null;
+
+		synchronized(index)
+		{
+			files = new TreeMap<String, ContentRecord>(index.getFiles(directory));
+			directories = index.getDirectories(directory);
+		}
+
+		int prefix = 0;
+
+		if(directory.length() > 0)
+		{
+			prefix = directory.length() + 1;
+		}
+
+		ParallelZipWriter zip = zipCompressor.open(output);
+		long now = System.currentTimeMillis();
+
+		try
+		{
+			for(String subDirectory: directories)
+			{
+				zip.addDirectory(subDirectory.substring(prefix), now);
+			}
+
+			for(Map.Entry<String, ContentRecord> entry: files.entrySet())
+			{
+				final File blob = getBlobFile(entry.getValue().getHash());
+
+				zip.addEntry(entry.getKey().substring(prefix), entry.getValue().getLastModified(), entry.getValue().getSize(), new ParallelZipWriter.Source()
+				{
+					public InputStream open() throws Exception
+					{
+						return new FileInputStream(blob);
+					}
+				});
+			}
+
+			zip.finish();
+		}
+		finally
+		{
+			zip.cancel();
+		}
+	}
+
+	/**
+	 * Points the path at the content of the file, the content is only
+	 * copied into the storage when it is not stored already.
+	 */
+	private void store(String path, File file) throws Exception
+	{
+		String hash = getStoredHash(file);
+
+		if(hash == null)
+		{
+			hash = hash(file);
+		}
+
+		synchronized(index)
+		{
+			if(getBlobFile(hash).exists())
+			{
+				index.put(path, hash, file.length(), System.currentTimeMillis());
+				return;
+			}
+		}
+
+		File temporary = createTemporaryBlob();
+
+		try
+		{
+			LocalFileChannels.copyFile(file, temporary);
+			commit(temporary, hash, path);
+		}
+		finally
+		{
+			if(temporary.exists())
+			{
+				temporary.delete();
+			}
+		}
+	}
+
+	/**
+	 * Moves the new content into place, unless the same
+	 * content was stored in the meantime.
+	 */
+	private void commit(File temporary, String hash, String path) throws IOException
+	{
+		long size = temporary.length();
+
+		synchronized(index)
+		{
+			File blob = getBlobFile(hash);
+
+			if(blob.exists() == false)
+			{
+				FileUtils.forceMkdir(blob.getParentFile());
+
+				if(temporary.renameTo(blob) == false)
+				{
+					throw new IOException("Could not store the content of: "+path+".");
+				}
+
+				physicalBytes += size;
+			}
+
+			index.put(path, hash, size, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return the hash of a file that is content of this storage, otherwise null.
+	 */
+	private String getStoredHash(File file)
+	{
+		File shard = file.getAbsoluteFile().getParentFile();
+
+		if(shard == null || shard.getParentFile() == null || shard.getParentFile().getParentFile() == null)
+		{
+			return null;
+		}
+
+		if(shard.getParentFile().getParentFile().equals(blobFolder.getAbsoluteFile()) && getBlobFile(file.getName()).equals(file))
+		{
+			return file.getName();
+		}
+
+		return null;
+	}
+
+	private String hash(File file) throws Exception
+	{
+		MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		InputStream stream = new FileInputStream(file);
+
+		try
+		{
+			byte[] buffer = new byte[65536];
+			int read = stream.read(buffer);
+
+			while(read >= 0)
+			{
+				digest.update(buffer, 0, read);
+				read = stream.read(buffer);
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		return toHex(digest.digest());
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder();
+
+		for(byte b: bytes)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return hex.toString();
+	}
+
+	private File getBlobFile(String hash)
+	{
+		return new File(blobFolder, hash.substring(0, 2)+File.separator+hash.substring(2, 4)+File.separator+hash);
+	}
+
+	private File getContentFile(String filePath) throws FileNotFoundException
+	{
+		ContentRecord record = null;
+
+		synchronized(index)
+		{
+			record = index.get(normalize(filePath));
+		}
+
+		if(record == null)
+		{
+			logger.error("ContentAddressedStorage.retrieve()- An error has occurred while retrieving the file: "+filePath+".");
+			throw new FileNotFoundException("File "+filePath+" does not existed.");
+		}
+
+		return getBlobFile(record.getHash());
+	}
+
+	private synchronized File createTemporaryBlob()
+	{
+		temporaryCounter++;
+		return new File(blobTempFolder, "incoming_"+System.currentTimeMillis()+"_"+temporaryCounter);
+	}
+
+	private static String normalize(String path)
+	{
+		if(path == null)
+		{
+			return "";
+		}
+
+		String normalized = path.replace('\\', '/');
+
+		while(normalized.contains("//"))
+		{
+			normalized = normalized.replace("//", "/");
+		}
+
+		while(normalized.startsWith("/"))
+		{
+			normalized = normalized.substring(1);
+		}
+
+		while(normalized.endsWith("/"))
+		{
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+
+		return normalized;
+	}
+
+	private static String join(String directory, String name)
+	{
+		if(directory.length() == 0)
+		{
+			return normalize(name);
+		}
+
+		return directory+"/"+normalize(name);
+	}
+
+	private static String getParent(String path)
+	{
+		int index = path.lastIndexOf('/');
+
+		if(index < 0)
+		{
+			return "";
+		}
+
+		return path.substring(0, index);
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class hashes the content while it is written and
+	 * stores it under its hash once the stream is closed.
+	 */
+	private class ContentOutputStream extends FilterOutputStream
+	{
+		private MessageDigest digest;
+		private File temporary;
+		private String path;
+		private boolean closed = false;
+
+		public ContentOutputStream(OutputStream stream, MessageDigest digest, File temporary, String path)
+		{
+			super(stream);
+			this.digest = digest;
+			this.temporary = temporary;
+			this.path = path;
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			out.write(bytes, offset, length);
+		}
+
+		public void close() throws IOException
+		{
+			if(closed)
+			{
+				return;
+			}
+
+			closed = true;
+
+			try
+			{
+				out.close();
+				commit(temporary, toHex(digest.digest()), path);
+			}
+			finally
+			{
+				if(temporary.exists())
+				{
+					temporary.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class lists the directories of the index.
+	 */
+	private class ContentEntryIterator extends StorageEntryIterator
+	{
+		public ContentEntryIterator(String directory, boolean recursive, String continuationToken)
+		{
+			super(directory, recursive, continuationToken);
+		}
+
+		protected List<StorageEntry> listDirectory(String directory) throws Exception
+		{
+			List<StorageEntry> entries = new ArrayList<StorageEntry>();
+			int start = 0;
+
+			if(directory.length() > 0)
+			{
+				start = directory.length() + 1;
+			}
+
+			synchronized(index)
+			{
+				for(String subDirectory: index.getDirectories(directory))
+				{
+					if(subDirectory.indexOf('/', start) < 0)
+					{
+						entries.add(new StorageEntry(subDirectory, subDirectory.substring(start), true, 0, 0));
+					}
+				}
+
+				for(Map.Entry<String, ContentRecord> entry: index.getFiles(directory).entrySet())
+				{
+					if(entry.getKey().indexOf('/', start) < 0)
+					{
+						ContentRecord record = entry.getValue();
+						entries.add(new StorageEntry(entry.getKey(), entry.getKey().substring(start), false, record.getSize(), record.getLastModified()));
+					}
+				}
+			}
+
+			return entries;
+		}
+	}
+
+	private static class GarbageCollectorThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "content-garbage-collector");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,452 @@
+package org.church.management.file.storage.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class maps the paths of a content addressed storage to the hash of their content
+ * and counts the references to every hash.
+ * The index lives in memory and every change is appended to a journal file,
+ * the journal is read back on start up and compacted once it has grown
+ * to more than twice the number of live paths.
+ *
+ * The compacted journal is written next to the journal and synced before it replaces it,
+ * a compaction cut short by a crash is finished or dropped on the next start up.
+ *
+ * All the methods have to be called while holding the lock of the index.
+ */
+class ContentIndex
+{
+	private static final Logger logger = Logger.getLogger(ContentIndex.class);
+	private static final String ENCODING = "UTF-8";
+	private static final int MINIMUM_COMPACT_SIZE = 1000;
+
+	private File journalFile;
+	private Writer journal;
+	private int journalLines = 0;
+
+	private TreeMap<String, ContentRecord> paths = new TreeMap<String, ContentRecord>();
+	private TreeSet<String> directories = new TreeSet<String>();
+	private Map<String, Integer> references = new HashMap<String, Integer>();
+	private Set<String> unreferenced = new HashSet<String>();
+
+	public ContentIndex(File journalFile) throws IOException
+	{
+		this.journalFile = journalFile;
+		recoverCompaction();
+
+		if(journalFile.exists())
+		{
+			load();
+		}
+
+		this.journal = openJournal(journalFile, true);
+
+		if(journalLines > MINIMUM_COMPACT_SIZE && journalLines > paths.size() * 2)
+		{
+			compact();
+		}
+	}
+
+	public ContentRecord get(String path)
+	{
+		return paths.get(path);
+	}
+
+	public boolean isDirectory(String path)
+	{
+		return path.length() == 0 || directories.contains(path);
+	}
+
+	public int getReferences(String hash)
+	{
+		Integer count = references.get(hash);
+
+		if(count == null)
+		{
+			return 0;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Points the path at the content, the content the path pointed at before loses a reference.
+	 */
+	public void put(String path, String hash, long size, long lastModified) throws IOException
+	{
+		append("P\t"+hash+"\t"+size+"\t"+lastModified+"\t"+path);
+		applyPut(path, new ContentRecord(hash, size, lastModified));
+	}
+
+	public ContentRecord remove(String path) throws IOException
+	{
+		if(paths.containsKey(path) == false)
+		{
+			return null;
+		}
+
+		append("D\t"+path);
+		return applyRemove(path);
+	}
+
+	public void addDirectory(String path) throws IOException
+	{
+		if(path.length() == 0 || directories.contains(path))
+		{
+			return;
+		}
+
+		append("M\t"+path);
+		applyAddDirectory(path);
+	}
+
+	public void removeDirectory(String path) throws IOException
+	{
+		if(directories.contains(path) == false)
+		{
+			return;
+		}
+
+		append("R\t"+path);
+		directories.remove(path);
+	}
+
+	/**
+	 * @return the files below the directory, with their paths.
+	 */
+	public SortedMap<String, ContentRecord> getFiles(String directory)
+	{
+		if(directory.length() == 0)
+		{
+			return paths;
+		}
+
+		return paths.subMap(directory+"/", directory+"0");
+	}
+
+	/**
+	 * @return the directories below the directory.
+	 */
+	public List<String> getDirectories(String directory)
+	{
+		if(directory.length() == 0)
+		{
+			return new ArrayList<String>(directories);
+		}
+
+		return new ArrayList<String>(directories.subSet(directory+"/", directory+"0"));
+	}
+
+	/**
+	 * @return the hashes that no path points at anymore.
+	 */
+	public Set<String> getUnreferenced()
+	{
+		return unreferenced;
+	}
+
+	public void markUnreferenced(String hash)
+	{
+		if(getReferences(hash) == 0)
+		{
+			unreferenced.add(hash);
+		}
+	}
+
+	public Map<String, ContentRecord> getPaths()
+	{
+		return paths;
+	}
+
+	public void close()
+	{
+		try
+		{
+			journal.close();
+		}
+		catch(IOException e)
+		{
+			logger.error("ContentIndex.close()- Could not close the journal: "+journalFile.getPath()+".", e);
+		}
+	}
+
+	private void applyPut(String path, ContentRecord record)
+	{
+		ContentRecord previous = paths.put(path, record);
+
+		if(previous != null)
+		{
+			release(previous.getHash());
+		}
+
+		references.put(record.getHash(), getReferences(record.getHash()) + 1);
+		unreferenced.remove(record.getHash());
+
+		int index = path.lastIndexOf('/');
+
+		if(index > 0)
+		{
+			applyAddDirectory(path.substring(0, index));
+		}
+	}
+
+	private ContentRecord applyRemove(String path)
+	{
+		ContentRecord record = paths.remove(path);
+
+		if(record != null)
+		{
+			release(record.getHash());
+		}
+
+		return record;
+	}
+
+	private void applyAddDirectory(String path)
+	{
+		while(path.length() > 0 && directories.add(path))
+		{
+			int index = path.lastIndexOf('/');
+
+			if(index <= 0)
+			{
+				break;
+			}
+
+			path = path.substring(0, index);
+		}
+	}
+
+	private void release(String hash)
+	{
+		int count = getReferences(hash) - 1;
+
+		if(count <= 0)
+		{
+			references.remove(hash);
+			unreferenced.add(hash);
+		}
+
+		else
+		{
+			references.put(hash, count);
+		}
+	}
+
+	private void append(String line) throws IOException
+	{
+		journal.write(line);
+		journal.write('\n');
+		journal.flush();
+		journalLines++;
+
+		if(journalLines > MINIMUM_COMPACT_SIZE && journalLines > (paths.size() + directories.size()) * 2)
+		{
+			compact();
+		}
+	}
+
+	private void load() throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), ENCODING));
+
+		try
+		{
+			String line = reader.readLine();
+
+			while(line != null)
+			{
+				journalLines++;
+
+				try
+				{
+					if(line.startsWith("P\t"))
+					{
+						String[] fields = line.split("\t", 5);
+						applyPut(fields[4], new ContentRecord(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+					}
+
+					else if(line.startsWith("D\t"))
+					{
+						applyRemove(line.substring(2));
+					}
+
+					else if(line.startsWith("M\t"))
+					{
+						applyAddDirectory(line.substring(2));
+					}
+
+					else if(line.startsWith("R\t"))
+					{
+						directories.remove(line.substring(2));
+					}
+				}
+				catch(Exception e)
+				{
+					//a line cut short by a crash is the last one in the journal.
+					logger.error("ContentIndex.load()- Skipping a damaged journal line: "+line+".", e);
+				}
+
+				line = reader.readLine();
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Finishes a compaction cut short by a crash. The compacted journal is complete once the old
+	 * journal has been deleted, while the old journal is still there the compacted one may be cut short.
+	 */
+	private void recoverCompaction() throws IOException
+	{
+		File compacted = getCompactedFile();
+
+		if(compacted.exists() == false)
+		{
+			return;
+		}
+
+		if(journalFile.exists())
+		{
+			logger.debug("ContentIndex.recoverCompaction()- Dropping the unfinished compaction: "+compacted.getPath()+".");
+
+			if(compacted.delete() == false)
+			{
+				throw new IOException("Could not delete the unfinished compaction: "+compacted.getPath()+".");
+			}
+		}
+
+		else if(compacted.renameTo(journalFile) == false)
+		{
+			throw new IOException("Could not restore the compacted journal: "+compacted.getPath()+".");
+		}
+	}
+
+	/**
+	 * Writes the live paths and directories to a new journal and replaces the old one.
+	 */
+	private void compact() throws IOException
+	{
+		File compacted = getCompactedFile();
+		FileOutputStream output = new FileOutputStream(compacted, false);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, ENCODING));
+		int lines = 0;
+
+		try
+		{
+			for(String directory: directories)
+			{
+				writer.write("M\t"+directory+"\n");
+				lines++;
+			}
+
+			for(Map.Entry<String, ContentRecord> entry: paths.entrySet())
+			{
+				ContentRecord record = entry.getValue();
+				writer.write("P\t"+record.getHash()+"\t"+record.getSize()+"\t"+record.getLastModified()+"\t"+entry.getKey()+"\n");
+				lines++;
+			}
+
+			//the compacted journal is on the disk before the old one can go away.
+			writer.flush();
+			output.getFD().sync();
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		if(journal != null)
+		{
+			journal.close();
+		}
+
+		//the rename replaces the journal in one step where the file system allows it,
+		//otherwise the journal is deleted first and the start up finishes the rename after a crash.
+		if(compacted.renameTo(journalFile) == false)
+		{
+			if(journalFile.delete() == false && journalFile.exists())
+			{
+				throw new IOException("Could not replace the journal: "+journalFile.getPath()+".");
+			}
+
+			if(compacted.renameTo(journalFile) == false)
+			{
+				throw new IOException("Could not replace the journal: "+journalFile.getPath()+".");
+			}
+		}
+
+		journal = openJournal(journalFile, true);
+		journalLines = lines;
+	}
+
+	private File getCompactedFile()
+	{
+		return new File(journalFile.getPath()+".compact");
+	}
+
+	private static Writer openJournal(File file, boolean append) throws IOException
+	{
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), ENCODING));
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class is the content a path points at.
+	 */
+	static class ContentRecord
+	{
+		private String hash;
+		private long size;
+		private long lastModified;
+
+		public ContentRecord(String hash, long size, long lastModified)
+		{
+			this.hash = hash;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public String getHash()
+		{
+			return hash;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+	}
+}
\ No newline at end of file
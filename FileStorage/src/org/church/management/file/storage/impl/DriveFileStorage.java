@@ -1,425 +1,965 @@
-package org.church.management.file.storage.impl;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
-
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.IOFileFilter;
-import org.apache.log4j.Logger;
-import org.church.management.annotations.Supported;
-import org.church.management.file.storage.FileStorage;
-
-import de.schlichtherle.truezip.file.TFile;
-import de.schlichtherle.truezip.file.TVFS;
-
-/**
- * 
- * @author Trae
- *
- * This class will store the files on a mapped drive or local drive.
- *
- * need properties:
- * 		storagePath: the directory where the files are stored
- * 		memoryLimitation: how much memory is available
- *
- */
-
-public class DriveFileStorage implements FileStorage
-{
-	private static final Logger logger = Logger.getLogger(DriveFileStorage.class);
-	
-	private Properties properties;
-	private String storagePath;
-	private long memoryLimitation = 0;
-	private static String fileSeparator = "";
-	private static String tempFolderPath;
-	
-	static
-	{
-		fileSeparator = System.getProperty("file.separator");
-	}
-	
-	public DriveFileStorage(Properties properties)
-	{
-		this.properties = properties;
-		this.storagePath = properties.getProperty("storagePath");
-		String tempFolderFullPath = this.properties.getProperty("tempFolderPath");
-		
-		if(tempFolderFullPath != null)
-		{
-			tempFolderPath = tempFolderFullPath;
-		}
-		
-		else
-		{
-		
-			URL url = Thread.currentThread().getContextClassLoader().getResource("hibernate.cfg.xml");
-			String path = url.getFile().replace("%20", " ");
-			File file = new File(path);
-			File parent = file.getParentFile();
-			parent = parent.getParentFile();
-			File tempFolder = new File(parent.getPath()+fileSeparator+"temp");
-			tempFolderPath = tempFolder.getPath();
-		}
-		
-		try
-		{
-			memoryLimitation = Long.parseLong(this.properties.getProperty("storageMemoryLimitation"));
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.<init> - An error has occurred while parsing memory limitation property.", e);
-		}
-	}
-
-	@Supported
-	public String createDirectory(String directoryName) throws Exception 
-	{
-		String path = storagePath+fileSeparator+directoryName;
-		File directory = new File(path);
-		
-		try
-		{
-			if(directory.exists())
-			{
-				return directory.getPath();
-			}
-			
-			boolean created = directory.mkdir();
-			
-			if(created == false)
-			{
-				logger.error("DriveStorage.createDirectory()- An error has occurred while create the directory.");
-				throw new Exception("Could not create directory.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("Directory failed to created with directory name: "+directoryName+".", e);
-			throw e;
-		}
-		
-		return directory.getPath();
-	}
-
-	@Supported
-	public void deleteDirectory(String directoryFilePath) throws Exception 
-	{
-		try
-		{
-			File directory = new File(directoryFilePath);
-			
-			if(directory.exists())
-			{
-				FileUtils.deleteDirectory(directory);
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.deleteDirectory()- An error has occurred while deleting the directory.", e);
-			throw e;
-		}
-	}
-
-	@Supported
-	public String renameDirectory(String oldDirectoryPath, String newDirectoryName) throws Exception 
-	{
-		File oldDirectory = new File(oldDirectoryPath);
-		File newDirectory = new File(storagePath+fileSeparator+newDirectoryName);
-		boolean renamed = false;
-		
-		try
-		{
-			if(oldDirectory.exists())
-			{
-				renamed = oldDirectory.renameTo(newDirectory);
-			}
-			
-			else
-			{
-				throw new FileNotFoundException("Directory "+oldDirectoryPath+" could not be renamed.");
-			}
-			
-			if(renamed == false)
-			{
-				throw new Exception("Could not renamed directory.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.renameDirectory() - An error has occurred while renaming a directory: "+oldDirectoryPath+" to "+newDirectoryName+".", e);
-			throw e;
-		}
-		
-		return newDirectory.getPath();
-	}
-
-	@Supported
-	public String upload(String folder, File file) throws Exception 
-	{
-		String fullPath = storagePath+fileSeparator+folder+fileSeparator+file.getName();
-		File copiedFile = new File(fullPath);
-		
-		try
-		{
-			if(file.exists())
-			{
-				FileUtils.copyFile(file, copiedFile);
-			}
-			
-			else
-			{
-				throw new FileNotFoundException("File "+file.getAbsolutePath()+" could not be upload, because it was deleted.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.upload() - An error has occurred while uploading file: "+file.getPath()+".", e);
-			throw e;
-		}
-		
-		return copiedFile.getPath();
-	}
-
-	@Supported
-	public String copy(String folder, String renameFile, File file) throws Exception 
-	{
-		String fullPath = storagePath+fileSeparator+folder+fileSeparator+renameFile;
-		File copiedToFile = new File(fullPath);
-		
-		try
-		{
-			if(file.exists())
-			{
-				FileUtils.copyFile(file, copiedToFile);
-			}
-			
-			else
-			{
-				throw new FileNotFoundException("File "+file.getAbsolutePath()+" could not be copied, because it was deleted.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.upload()- An error has occurred while copying files.", e);
-			throw e;
-		}
-		
-		return fullPath;
-	}
-
-	@Supported
-	public void deleteFile(String filePath) throws Exception 
-	{
-		boolean deleted = false;
-		File file = new File(filePath);
-		
-		try
-		{
-			if(file.exists())
-			{
-				deleted = file.delete();
-			}
-			
-			else
-			{
-				return;
-			}
-			
-			if(deleted == false)
-			{
-				throw new Exception("Could not delete file.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.delete() - An error has occurred while deleting the file: "+filePath+".", e);
-			throw e;
-		}	
-	}
-
-	@Supported
-	public File retrieve(String filePath) throws Exception 
-	{
-		File file = new File(filePath);
-
-		if(file.exists() == false)
-		{
-			logger.error("DriveStorage.retrieve()- An error has occurred while retrieving the file: "+filePath+".");
-			throw new FileNotFoundException("File "+filePath+" could not be found.");
-		}
-
-		return file;
-	}
-
-	@Supported
-	public String update(String filePath, File file) throws Exception 
-	{
-		File originalFile = new File(filePath), copiedFile = null;
-		
-		try
-		{
-			if(originalFile.exists())
-			{
-				FileUtils.forceDelete(originalFile);
-				File parent = originalFile.getParentFile();
-					
-			    copiedFile = new File(parent.getPath(), file.getName());
-				FileUtils.copyFile(file, copiedFile);
-			}
-			
-			else
-			{
-				throw new FileNotFoundException("File "+filePath+" could not be updated, because it was deleted.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.update()- An error has while updating file: "+filePath+".", e);
-			throw e;
-		}
-		
-		return copiedFile.getPath();
-	}
-
-	@Supported
-	public String renameFile(String filepath, String newFileName) throws Exception 
-	{
-		File renamedFile = null;
-		
-		try
-		{
-			File file = new File(filepath);
-			
-			if(file.exists())
-			{
-				File parent = file.getParentFile();
-				renamedFile = new File(parent.getPath()+fileSeparator+newFileName);
-				file.renameTo(renamedFile);
-			}
-			
-			else
-			{
-				throw new FileNotFoundException("File "+filepath+" could not be renamed.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.renamedFile() - An error has occurred while renaming the file: "+filepath+" to "+newFileName+".", e);
-			throw e;
-		}
-		
-		return renamedFile.getPath();
-	}
-
-	@Supported
-	public List<String> getAvailableFileExtensions() throws Exception 
-	{
-		return new ArrayList<String>();
-	}
-
-	@Supported
-	public long getMemoryUsage() throws Exception 
-	{
-		return FileUtils.sizeOfDirectory(new File(storagePath));
-	}
-
-	@Supported
-	public long getMemoryLimitation() throws Exception 
-	{
-		return this.memoryLimitation;
-	}
-
-	@Supported
-	public List<File> getAllFiles() throws Exception 
-	{
-		DriveStorageFileFilter filter = new DriveStorageFileFilter(true);
-		return new ArrayList<File>(FileUtils.listFiles(new File(storagePath), filter, filter));
-	}
-
-	@Supported
-	public List<File> getAllFilesForDirectory(String directoryPath) throws Exception 
-	{
-		DriveStorageFileFilter filter = new DriveStorageFileFilter(false);
-		return new ArrayList<File>(FileUtils.listFiles(new File(directoryPath), filter, filter));
-	}
-
-	public boolean isCloudStorage() 
-	{
-		return false;
-	}
-	
-	@Supported
-	public File zipUpAllFiles(String archiveName) throws Exception
-	{
-		TFile archive = new TFile(tempFolderPath+File.separatorChar+archiveName);
-		
-		try
-		{
-			TFile direct = new TFile(storagePath);
-			direct.cp_rp(archive);
-			
-			TVFS.umount(archive);
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.zipUpAllFiles()- An error has occurred while zip up files.", e);
-			throw e;
-		}
-		
-		return archive;
-	}
-	
-	private class DriveStorageFileFilter implements IOFileFilter
-	{
-		private boolean includeDirectories = false;
-		
-		public DriveStorageFileFilter(boolean includeDirectories)
-		{
-			this.includeDirectories = includeDirectories;
-		}
-
-		public boolean accept(File arg0) 
-		{
-			return true;
-		}
-
-		public boolean accept(File arg0, String arg1) 
-		{
-			return includeDirectories;
-		}
-	}
-
-	@Supported
-	public File zipUpDirectory(String fullPath, String archiveName) throws Exception 
-	{
-		TFile archive = new TFile(tempFolderPath+File.separatorChar+archiveName);
-		
-		try
-		{
-			TFile direct = new TFile(fullPath);
-			
-			if(direct.exists())
-			{
-				direct.cp_rp(archive);
-				TVFS.umount(archive);
-			}
-			
-			else
-			{
-				throw new FileNotFoundException("Directory "+fullPath+" could not be zipped up.");
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("DriveStorage.zipUpDirectory()- An error has occurred while zip up files.", e);
-			throw e;
-		}
-		
-		return archive;
-	}
-}
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.church.management.annotations.Supported;
+import org.church.management.file.storage.LocalFileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.archive.ArchiveCache;
+import org.church.management.file.storage.archive.ZipCompressor;
+import org.church.management.file.storage.batch.BatchExecutor;
+import org.church.management.file.storage.batch.BatchOperation;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.file.storage.change.StorageChangeFeed;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class will store the files on a mapped drive or local drive.
+ *
+ * need properties:
+ * 		storagePath: the directory where the files are stored
+ * 		memoryLimitation: how much memory is available
+ * 		batchParallelism: the number of batch operations running at once, default is the number of processors.
+ * 		walkParallelism: the number of directories read at once when walking the storage, default is twice the number of processors.
+ * 		usageFilePath: the file keeping the storage usage between restarts, default is <storage folder>.usage next to the storage folder.
+ * 		usageReconcileInterval: the milliseconds between the scans correcting the storage usage, default is an hour, 0 turns them off.
+ * 		usageScanThrottle: the milliseconds the usage scan rests after every thousand files, default is 5.
+ * 		directoryQuotas: the bytes directories may hold like tenants/a=1048576,tenants/b=2097152, the writes are checked against them and memoryLimitation.
+ * 		changeFeedPath: the file the changes of the storage are recorded in, no changes are recorded without it.
+ * 		changeFeedRetention: the number of recent changes kept in the change feed, default is 100000.
+ * 		changeScanInterval: the milliseconds between the scans finding the files changed outside the storage, default is a minute, 0 turns them off.
+ * 		zipParallelism: the number of threads compressing the entries of the zips, default is the number of processors.
+ * 		zipCompressionLevel: the deflate level of the zips from 1 to 9, default is -1 for the deflate default, 0 stores every file.
+ * 		zipStoredExtensions: the extensions of the files stored in the zips without compression like jpg,png,mp4, default is the common media and archive formats.
+ * 		archiveCachePath: the folder the zips of the directories are kept in to be sent again, default is <storage folder>.archives next to the storage folder.
+ * 		archiveCacheSize: the bytes the kept zips may take, default is a gigabyte, 0 turns the cache off.
+ *
+ */
+
+public class DriveFileStorage implements LocalFileStorage
+{
+	private static final Logger logger = Logger.getLogger(DriveFileStorage.class);
+	
+	private Properties properties;
+	private String storagePath;
+	private long memoryLimitation = 0;
+	private BatchExecutor batchExecutor;
+	private LocalFileWalker fileWalker;
+	private ZipCompressor zipCompressor;
+	private ArchiveCache archiveCache;
+	private StorageUsageTracker usageTracker;
+	private StorageQuota storageQuota;
+	private LocalChangeScanner changeScanner;
+	private static String fileSeparator = "";
+	private static String tempFolderPath;
+	
+	static
+	{
+		fileSeparator = System.getProperty("file.separator");
+	}
+	
+	public DriveFileStorage(Properties properties)
+	{
+		this.properties = properties;
+		this.storagePath = properties.getProperty("storagePath");
+		String tempFolderFullPath = this.properties.getProperty("tempFolderPath");
+		
+		if(tempFolderFullPath != null)
+		{
+			tempFolderPath = tempFolderFullPath;
+		}
+		
+		else
+		{
+		
+			URL url = Thread.currentThread().getContextClassLoader().getResource("hibernate.cfg.xml");
+			String path = url.getFile().replace("%20", " ");
+			File file = new File(path);
+			File parent = file.getParentFile();
+			parent = parent.getParentFile();
+			File tempFolder = new File(parent.getPath()+fileSeparator+"temp");
+			tempFolderPath = tempFolder.getPath();
+		}
+		
+		try
+		{
+			memoryLimitation = Long.parseLong(this.properties.getProperty("storageMemoryLimitation"));
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while parsing memory limitation property.", e);
+		}
+		
+		int batchParallelism = Runtime.getRuntime().availableProcessors();
+		
+		try
+		{
+			if(this.properties.getProperty("batchParallelism") != null)
+			{
+				batchParallelism = Integer.parseInt(this.properties.getProperty("batchParallelism"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while parsing batch parallelism property.", e);
+		}
+		
+		batchExecutor = new BatchExecutor(batchParallelism);
+		
+		int walkParallelism = Runtime.getRuntime().availableProcessors() * 2;
+		
+		try
+		{
+			if(this.properties.getProperty("walkParallelism") != null)
+			{
+				walkParallelism = Integer.parseInt(this.properties.getProperty("walkParallelism"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while parsing walk parallelism property.", e);
+		}
+		
+		fileWalker = new LocalFileWalker(walkParallelism);
+		
+		int zipParallelism = Runtime.getRuntime().availableProcessors(), zipLevel = -1;
+		Set<String> zipStoredExtensions = ZipCompressor.parseExtensions(ZipCompressor.DEFAULT_STORED_EXTENSIONS);
+		
+		try
+		{
+			if(this.properties.getProperty("zipParallelism") != null)
+			{
+				zipParallelism = Integer.parseInt(this.properties.getProperty("zipParallelism"));
+			}
+			
+			if(this.properties.getProperty("zipCompressionLevel") != null)
+			{
+				int level = Integer.parseInt(this.properties.getProperty("zipCompressionLevel"));
+				
+				if(level < -1 || level > 9)
+				{
+					throw new IllegalArgumentException("The zip compression level must be between -1 and 9.");
+				}
+				
+				zipLevel = level;
+			}
+			
+			if(this.properties.getProperty("zipStoredExtensions") != null)
+			{
+				zipStoredExtensions = ZipCompressor.parseExtensions(this.properties.getProperty("zipStoredExtensions"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while parsing zip properties.", e);
+		}
+		
+		zipCompressor = new ZipCompressor(zipParallelism, zipLevel, zipStoredExtensions);
+		
+		long reconcileInterval = 3600000, scanThrottle = 5;
+		
+		try
+		{
+			if(this.properties.getProperty("usageReconcileInterval") != null)
+			{
+				reconcileInterval = Long.parseLong(this.properties.getProperty("usageReconcileInterval"));
+			}
+			
+			if(this.properties.getProperty("usageScanThrottle") != null)
+			{
+				scanThrottle = Long.parseLong(this.properties.getProperty("usageScanThrottle"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while parsing usage properties.", e);
+		}
+		
+		File storageFolder = new File(storagePath).getAbsoluteFile();
+		File usageFile = new File(storageFolder.getParentFile(), storageFolder.getName()+".usage");
+		
+		if(this.properties.getProperty("usageFilePath") != null)
+		{
+			usageFile = new File(this.properties.getProperty("usageFilePath"));
+		}
+		
+		Map<String, Long> directoryQuotas = new HashMap<String, Long>();
+		
+		try
+		{
+			directoryQuotas = StorageQuota.parseDirectoryQuotas(this.properties.getProperty("directoryQuotas"));
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while parsing directory quotas property.", e);
+		}
+		
+		usageTracker = new StorageUsageTracker(storageFolder, usageFile, reconcileInterval, scanThrottle, directoryQuotas.keySet(), fileWalker);
+		storageQuota = new StorageQuota(usageTracker, memoryLimitation, directoryQuotas);
+		
+		File archiveFolder = new File(storageFolder.getParentFile(), storageFolder.getName()+".archives");
+		long archiveCacheSize = 1073741824;
+		
+		try
+		{
+			if(this.properties.getProperty("archiveCachePath") != null)
+			{
+				archiveFolder = new File(this.properties.getProperty("archiveCachePath"));
+			}
+			
+			if(this.properties.getProperty("archiveCacheSize") != null)
+			{
+				archiveCacheSize = Long.parseLong(this.properties.getProperty("archiveCacheSize"));
+			}
+			
+			if(archiveCacheSize > 0)
+			{
+				archiveCache = new ArchiveCache(archiveFolder, archiveCacheSize);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while opening the archive cache, the zips are not cached.", e);
+		}
+		
+		StorageChangeFeed changeFeed = null;
+		long changeScanInterval = 60000;
+		int changeFeedRetention = 100000;
+		
+		try
+		{
+			if(this.properties.getProperty("changeScanInterval") != null)
+			{
+				changeScanInterval = Long.parseLong(this.properties.getProperty("changeScanInterval"));
+			}
+			
+			if(this.properties.getProperty("changeFeedRetention") != null)
+			{
+				changeFeedRetention = Integer.parseInt(this.properties.getProperty("changeFeedRetention"));
+			}
+			
+			if(this.properties.getProperty("changeFeedPath") != null)
+			{
+				changeFeed = new StorageChangeFeed(new File(this.properties.getProperty("changeFeedPath")), changeFeedRetention);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.<init> - An error has occurred while opening the change feed.", e);
+		}
+		
+		changeScanner = new LocalChangeScanner(storageFolder, changeFeed, fileWalker, changeScanInterval);
+	}
+
+	@Supported
+	public String createDirectory(String directoryName) throws Exception 
+	{
+		String path = storagePath+fileSeparator+directoryName;
+		File directory = new File(path);
+		
+		try
+		{
+			if(directory.exists())
+			{
+				return directory.getPath();
+			}
+			
+			boolean created = directory.mkdir();
+			
+			if(created == false)
+			{
+				logger.error("DriveStorage.createDirectory()- An error has occurred while create the directory.");
+				throw new Exception("Could not create directory.");
+			}
+			
+			changeScanner.directoryCreated(directory);
+		}
+		catch(Exception e)
+		{
+			logger.error("Directory failed to created with directory name: "+directoryName+".", e);
+			throw e;
+		}
+		
+		return directory.getPath();
+	}
+
+	@Supported
+	public void deleteDirectory(String directoryFilePath) throws Exception 
+	{
+		try
+		{
+			File directory = resolveFile(directoryFilePath);
+			
+			if(directory.exists())
+			{
+				long size = fileWalker.sizeOf(directory);
+				
+				try
+				{
+					FileUtils.deleteDirectory(directory);
+				}
+				finally
+				{
+					usageTracker.add(directory, StorageUsageTracker.sizeOf(directory) - size);
+				}
+				
+				changeScanner.deleted(directory, true);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.deleteDirectory()- An error has occurred while deleting the directory.", e);
+			throw e;
+		}
+	}
+
+	@Supported
+	public String renameDirectory(String oldDirectoryPath, String newDirectoryName) throws Exception 
+	{
+		File oldDirectory = resolveFile(oldDirectoryPath);
+		File newDirectory = new File(storagePath+fileSeparator+newDirectoryName);
+		boolean renamed = false;
+		
+		try
+		{
+			if(oldDirectory.exists())
+			{
+				renamed = oldDirectory.renameTo(newDirectory);
+			}
+			
+			else
+			{
+				throw new FileNotFoundException("Directory "+oldDirectoryPath+" could not be renamed.");
+			}
+			
+			if(renamed == false)
+			{
+				throw new Exception("Could not renamed directory.");
+			}
+			
+			usageTracker.move(oldDirectory, newDirectory);
+			changeScanner.renamed(oldDirectory, newDirectory, true);
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.renameDirectory() - An error has occurred while renaming a directory: "+oldDirectoryPath+" to "+newDirectoryName+".", e);
+			throw e;
+		}
+		
+		return newDirectory.getPath();
+	}
+
+	@Supported
+	public String upload(String folder, File file) throws Exception 
+	{
+		String fullPath = storagePath+fileSeparator+folder+fileSeparator+file.getName();
+		File copiedFile = new File(fullPath);
+		
+		try
+		{
+			if(file.exists())
+			{
+				long previousSize = StorageUsageTracker.sizeOf(copiedFile);
+				StorageQuota.Reservation reservation = storageQuota.reserve(copiedFile, file.length() - previousSize);
+				
+				try
+				{
+					LocalFileChannels.copyFile(file, copiedFile);
+					usageTracker.add(copiedFile, copiedFile.length() - previousSize);
+					changeScanner.written(copiedFile);
+				}
+				finally
+				{
+					reservation.release();
+				}
+			}
+			
+			else
+			{
+				throw new FileNotFoundException("File "+file.getAbsolutePath()+" could not be upload, because it was deleted.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.upload() - An error has occurred while uploading file: "+file.getPath()+".", e);
+			throw e;
+		}
+		
+		return copiedFile.getPath();
+	}
+
+	@Supported
+	public String copy(String folder, String renameFile, File file) throws Exception 
+	{
+		String fullPath = storagePath+fileSeparator+folder+fileSeparator+renameFile;
+		File copiedToFile = new File(fullPath);
+		
+		try
+		{
+			if(file.exists())
+			{
+				long previousSize = StorageUsageTracker.sizeOf(copiedToFile);
+				StorageQuota.Reservation reservation = storageQuota.reserve(copiedToFile, file.length() - previousSize);
+				
+				try
+				{
+					LocalFileChannels.copyFile(file, copiedToFile);
+					usageTracker.add(copiedToFile, copiedToFile.length() - previousSize);
+					changeScanner.written(copiedToFile);
+				}
+				finally
+				{
+					reservation.release();
+				}
+			}
+			
+			else
+			{
+				throw new FileNotFoundException("File "+file.getAbsolutePath()+" could not be copied, because it was deleted.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.upload()- An error has occurred while copying files.", e);
+			throw e;
+		}
+		
+		return fullPath;
+	}
+
+	@Supported
+	public void deleteFile(String filePath) throws Exception 
+	{
+		boolean deleted = false;
+		File file = resolveFile(filePath);
+		
+		try
+		{
+			if(file.exists())
+			{
+				long size = file.length();
+				deleted = file.delete();
+				
+				if(deleted)
+				{
+					usageTracker.add(file, -size);
+					changeScanner.deleted(file, false);
+				}
+			}
+			
+			else
+			{
+				return;
+			}
+			
+			if(deleted == false)
+			{
+				throw new Exception("Could not delete file.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.delete() - An error has occurred while deleting the file: "+filePath+".", e);
+			throw e;
+		}	
+	}
+
+	@Supported
+	public File retrieve(String filePath) throws Exception 
+	{
+		File file = resolveFile(filePath);
+
+		if(file.exists() == false)
+		{
+			logger.error("DriveStorage.retrieve()- An error has occurred while retrieving the file: "+filePath+".");
+			throw new FileNotFoundException("File "+filePath+" could not be found.");
+		}
+
+		return file;
+	}
+
+	@Supported
+	public byte[] retrieveRange(String filePath, long offset, int length) throws Exception 
+	{
+		File file = resolveFile(filePath);
+		
+		if(file.exists() == false || file.isFile() == false)
+		{
+			logger.error("DriveStorage.retrieveRange()- An error has occurred while retrieving the file: "+filePath+".");
+			throw new FileNotFoundException("File "+filePath+" does not existed.");
+		}
+		
+		return LocalFileChannels.readRange(file, offset, length);
+	}
+
+	@Supported
+	public StorageEntry stat(String filePath) throws Exception 
+	{
+		File file = resolveFile(filePath);
+		
+		if(file.exists() == false)
+		{
+			return StorageEntry.missing(file.getPath(), file.getName());
+		}
+		
+		boolean isDirectory = file.isDirectory();
+		long size = 0;
+		
+		if(isDirectory == false)
+		{
+			size = file.length();
+		}
+		
+		return new StorageEntry(file.getPath(), file.getName(), isDirectory, size, file.lastModified());
+	}
+
+	@Supported
+	public InputStream openRead(String filePath) throws Exception 
+	{
+		File file = resolveFile(filePath);
+		
+		if(file.exists() == false || file.isFile() == false)
+		{
+			logger.error("DriveStorage.openRead()- An error has occurred while opening the file: "+filePath+".");
+			throw new FileNotFoundException("File "+filePath+" does not existed.");
+		}
+		
+		return new FileInputStream(file);
+	}
+
+	@Supported
+	public OutputStream openWrite(String filePath) throws Exception 
+	{
+		File file = resolveFile(filePath);
+		
+		try
+		{
+			storageQuota.check(file);
+			File parent = file.getParentFile();
+			
+			if(parent != null && parent.exists() == false)
+			{
+				FileUtils.forceMkdir(parent);
+			}
+			
+			return changeScanner.openWrite(file, usageTracker.openWrite(file));
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.openWrite()- An error has occurred while opening the file: "+filePath+".", e);
+			throw e;
+		}
+	}
+	
+	@Supported
+	public FileChannel openChannel(String filePath) throws Exception 
+	{
+		File file = resolveFile(filePath);
+		
+		if(file.exists() == false || file.isFile() == false)
+		{
+			logger.error("DriveStorage.openChannel()- An error has occurred while opening the file: "+filePath+".");
+			throw new FileNotFoundException("File "+filePath+" does not existed.");
+		}
+		
+		return LocalFileChannels.openReadOnly(file);
+	}
+	
+	@Supported
+	public MappedByteBuffer map(String filePath) throws Exception 
+	{
+		File file = resolveFile(filePath);
+		
+		if(file.exists() == false || file.isFile() == false)
+		{
+			logger.error("DriveStorage.map()- An error has occurred while opening the file: "+filePath+".");
+			throw new FileNotFoundException("File "+filePath+" does not existed.");
+		}
+		
+		return LocalFileChannels.map(file);
+	}
+	
+	@Supported
+	public long transferTo(String filePath, WritableByteChannel target) throws Exception 
+	{
+		File file = resolveFile(filePath);
+		
+		if(file.exists() == false || file.isFile() == false)
+		{
+			logger.error("DriveStorage.transferTo()- An error has occurred while sending the file: "+filePath+".");
+			throw new FileNotFoundException("File "+filePath+" does not existed.");
+		}
+		
+		return LocalFileChannels.transferTo(file, target);
+	}
+	
+	@Supported
+	public List<BatchResult> uploadAll(final String folder, Collection<File> files) throws Exception 
+	{
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+		
+		for(final File file: files)
+		{
+			operations.add(new BatchOperation(file.getPath())
+			{
+				public String execute() throws Exception
+				{
+					return upload(folder, file);
+				}
+			});
+		}
+		
+		return batchExecutor.execute(operations);
+	}
+
+	@Supported
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception 
+	{
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+		
+		for(final String filePath: filePaths)
+		{
+			operations.add(new BatchOperation(filePath)
+			{
+				public String execute() throws Exception
+				{
+					deleteFile(filePath);
+					return filePath;
+				}
+			});
+		}
+		
+		return batchExecutor.execute(operations);
+	}
+
+	@Supported
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception 
+	{
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+		
+		for(final Map.Entry<String, String> entry: renameFiles.entrySet())
+		{
+			operations.add(new BatchOperation(entry.getKey())
+			{
+				public String execute() throws Exception
+				{
+					return renameFile(entry.getKey(), entry.getValue());
+				}
+			});
+		}
+		
+		return batchExecutor.execute(operations);
+	}
+
+	@Supported
+	public List<BatchResult> createDirectories(Collection<String> directories) throws Exception 
+	{
+		List<String> directoryNames = new ArrayList<String>(directories);
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+		
+		for(final String directoryName: directoryNames)
+		{
+			operations.add(new BatchOperation(directoryName)
+			{
+				public String execute() throws Exception
+				{
+					return createDirectory(directoryName);
+				}
+			});
+		}
+		
+		return batchExecutor.executeByDepth(directoryNames, operations);
+	}
+
+	/**
+	 * Paths returned by this storage are absolute, relative paths 
+	 * are resolved against the storage folder.
+	 */
+	private File resolveFile(String filePath)
+	{
+		File file = new File(filePath);
+		
+		if(file.isAbsolute() == false)
+		{
+			file = new File(storagePath, filePath);
+		}
+		
+		return file;
+	}
+
+	@Supported
+	public String update(String filePath, File file) throws Exception 
+	{
+		File originalFile = resolveFile(filePath), copiedFile = null;
+		
+		try
+		{
+			if(originalFile.exists())
+			{
+				File parent = originalFile.getParentFile();
+			    copiedFile = new File(parent.getPath(), file.getName());
+				long originalSize = originalFile.length();
+				long previousSize = copiedFile.equals(originalFile) ? 0 : StorageUsageTracker.sizeOf(copiedFile);
+				StorageQuota.Reservation reservation = storageQuota.reserve(copiedFile, file.length() - originalSize - previousSize);
+				
+				try
+				{
+					FileUtils.forceDelete(originalFile);
+					usageTracker.add(originalFile, -originalSize);
+					
+					if(copiedFile.equals(originalFile) == false)
+					{
+						changeScanner.deleted(originalFile, false);
+					}
+					
+					LocalFileChannels.copyFile(file, copiedFile);
+					usageTracker.add(copiedFile, copiedFile.length() - previousSize);
+					changeScanner.written(copiedFile);
+				}
+				finally
+				{
+					reservation.release();
+				}
+			}
+			
+			else
+			{
+				throw new FileNotFoundException("File "+filePath+" could not be updated, because it was deleted.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.update()- An error has while updating file: "+filePath+".", e);
+			throw e;
+		}
+		
+		return copiedFile.getPath();
+	}
+
+	@Supported
+	public String renameFile(String filepath, String newFileName) throws Exception 
+	{
+		File renamedFile = null;
+		
+		try
+		{
+			File file = resolveFile(filepath);
+			
+			if(file.exists())
+			{
+				File parent = file.getParentFile();
+				renamedFile = new File(parent.getPath()+fileSeparator+newFileName);
+				long previousSize = renamedFile.equals(file) ? 0 : StorageUsageTracker.sizeOf(renamedFile);
+				
+				if(file.renameTo(renamedFile))
+				{
+					usageTracker.add(renamedFile, -previousSize);
+					usageTracker.move(file, renamedFile);
+					changeScanner.renamed(file, renamedFile, false);
+				}
+			}
+			
+			else
+			{
+				throw new FileNotFoundException("File "+filepath+" could not be renamed.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.renamedFile() - An error has occurred while renaming the file: "+filepath+" to "+newFileName+".", e);
+			throw e;
+		}
+		
+		return renamedFile.getPath();
+	}
+
+	@Supported
+	public List<String> getAvailableFileExtensions() throws Exception 
+	{
+		return new ArrayList<String>();
+	}
+
+	@Supported
+	public long getMemoryUsage() throws Exception 
+	{
+		return usageTracker.getUsage();
+	}
+
+	@Supported
+	public long getMemoryLimitation() throws Exception 
+	{
+		return this.memoryLimitation;
+	}
+
+	@Supported
+	public List<File> getAllFiles() throws Exception 
+	{
+		return fileWalker.listFiles(new File(storagePath));
+	}
+
+	@Supported
+	public List<File> getAllFilesForDirectory(String directoryPath) throws Exception 
+	{
+		return fileWalker.listFiles(resolveFile(directoryPath));
+	}
+
+	@Supported
+	public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception 
+	{
+		File directoryFile = new File(storagePath);
+		
+		if(directory != null && directory.length() > 0)
+		{
+			directoryFile = resolveFile(directory);
+		}
+		
+		if(directoryFile.isDirectory() == false)
+		{
+			logger.error("DriveStorage.listEntries()- An error has occurred while listing the directory: "+directory+".");
+			throw new FileNotFoundException("Directory "+directory+" does not existed.");
+		}
+		
+		return new LocalStorageEntryIterator(directoryFile, recursive, continuationToken);
+	}
+
+	/**
+	 * @return the changes made to the files of the storage, null when changeFeedPath is not set.
+	 */
+	public StorageChangeFeed getChangeFeed()
+	{
+		return changeScanner.getFeed();
+	}
+	
+	/**
+	 * Stops the batch threads, saves the storage usage and closes the change feed.
+	 */
+	public void shutdown()
+	{
+		batchExecutor.shutdown();
+		usageTracker.shutdown();
+		changeScanner.shutdown();
+		zipCompressor.shutdown();
+		fileWalker.shutdown();
+	}
+
+	public boolean isCloudStorage() 
+	{
+		return false;
+	}
+	
+	@Supported
+	public File zipUpAllFiles(String archiveName) throws Exception
+	{
+		File archive = new File(tempFolderPath, archiveName);
+		
+		try
+		{
+			zipDirectory(new File(storagePath), archive);
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.zipUpAllFiles()- An error has occurred while zip up files.", e);
+			throw e;
+		}
+		
+		return archive;
+	}
+
+	@Supported
+	public File zipUpDirectory(String fullPath, String archiveName) throws Exception 
+	{
+		File archive = new File(tempFolderPath, archiveName);
+		
+		try
+		{
+			File directory = resolveFile(fullPath);
+			
+			if(directory.isDirectory())
+			{
+				zipDirectory(directory, archive);
+			}
+			
+			else
+			{
+				throw new FileNotFoundException("Directory "+fullPath+" could not be zipped up.");
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.zipUpDirectory()- An error has occurred while zip up files.", e);
+			throw e;
+		}
+		
+		return archive;
+	}
+
+	@Supported
+	public void zipDirectoryTo(String directoryPath, OutputStream output) throws Exception 
+	{
+		File directory = new File(storagePath);
+		
+		if(directoryPath != null && directoryPath.length() > 0)
+		{
+			directory = resolveFile(directoryPath);
+		}
+		
+		try
+		{
+			if(directory.isDirectory() == false)
+			{
+				throw new FileNotFoundException("Directory "+directoryPath+" could not zip up, because it is deleted.");
+			}
+			
+			zipDirectory(directory, output);
+		}
+		catch(Exception e)
+		{
+			logger.error("DriveStorage.zipDirectoryTo()- Could not zip up directory: "+directoryPath+".", e);
+			throw e;
+		}
+	}
+
+	private void zipDirectory(File directory, File archive) throws Exception
+	{
+		OutputStream output = new FileOutputStream(archive);
+		
+		try
+		{
+			zipDirectory(directory, output);
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	/**
+	 * Zips the directory through the archive cache, a directory outside the storage is not cached.
+	 */
+	private void zipDirectory(File directory, OutputStream output) throws Exception
+	{
+		String key = usageTracker.getRelativePath(directory);
+		LocalZipWriter.writeDirectory(directory, key, zipCompressor, key == null ? null : archiveCache, output);
+	}
+}
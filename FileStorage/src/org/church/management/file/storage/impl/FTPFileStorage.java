@@ -1,719 +1,1963 @@
-package org.church.management.file.storage.impl;
-
-import it.sauronsoftware.ftp4j.FTPCodes;
-import it.sauronsoftware.ftp4j.FTPDataTransferListener;
-import it.sauronsoftware.ftp4j.FTPException;
-import it.sauronsoftware.ftp4j.FTPFile;
-import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
-
-import org.apache.log4j.Logger;
-import org.church.management.annotations.Supported;
-import org.church.management.annotations.Unsupported;
-import org.church.management.file.storage.CloudFileStorage;
-import org.church.management.ftp.connection.pool.FTPConnectionPoolManagement;
-import org.church.management.ftp.session.FTPSession;
-import org.church.management.temporary.file.factory.TemporaryFileFactory;
-/***
- * 
- * @author Trae
- * 
- * This class is for storing files on a ftp server.
- *
- * need properties
- * 		host: the ip address to the ftp
- * 		port: the port for the ftp server
- * 		username: the username for ftp login
- * 		password: the password for ftp login
- * 		passive: this for data upload, the usually setting is true
- *		noopTimeout: this variable will ping the server to keep the connection alive.
- *		storageFolder: this directory is where all the directories and files are stored.
- *		
- *		minPoolSize: the minimum number of connections in the pool.
- *		maxPoolSize: the max number of connections in the pool.
- *
- *		TODO will need new properties for passive and active
- */
-public class FTPFileStorage implements CloudFileStorage
-{
-	private static final Logger logger = Logger.getLogger(FTPFileStorage.class);
-	
-	private static String fileSeparator;
-	private String storageFolder;
-	
-	private FTPConnectionPoolManagement pool;
-	
-	static
-	{
-		fileSeparator = System.getProperty("file.separator");
-	}
-	
-	public FTPFileStorage(Properties properties) throws Exception
-	{
-		Integer port = null;
-		Integer noopTimeout = Integer.parseInt(properties.getProperty("noopTimeout"));
-		String username = properties.getProperty("username");
-		Boolean passive = Boolean.parseBoolean(properties.getProperty("passive"));
-		String password = properties.getProperty("password");
-		String host = properties.getProperty("host");
-		int minimumPoolSize = Integer.parseInt(properties.getProperty("minimumPoolSize"));
-		int maximumPoolSize = Integer.parseInt(properties.getProperty("maximumPoolSize"));
-				
-		String hostPort = properties.getProperty("port");
-		
-		if(hostPort == null)
-		{
-			port = null;
-		}
-		
-		else 
-		{
-			port = Integer.parseInt(properties.getProperty("port"));
-		}
-		
-		storageFolder = properties.getProperty("storagePath");
-		
-		if(port != null)
-		{
-			pool = new FTPConnectionPoolManagement(host, port, username, password, storageFolder, passive, minimumPoolSize, maximumPoolSize, noopTimeout);
-		}
-		
-		else
-		{
-			pool = new FTPConnectionPoolManagement(host, username, password, storageFolder, passive, minimumPoolSize, maximumPoolSize, noopTimeout);
-		}
-	}
-	
-	@Supported
-	public String createDirectory(String directory) throws Exception
-	{
-		String path = "";
-		FTPSession session = null;
-				
-		try 
-		{
-			session = pool.openSession();
-			path = session.createDirectory(directory);
-		} 
-		
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.createDirectory()- Illegal State on the server.", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.createDirectory()- IO Error could not create the directory.", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.createDirectory()- Could not create the directory: "+directory+".", e);
-			throw e;
-		} 
-		
-		catch (FTPException e) 
-		{
-			logger.error("FTPFileStorage.createDirectory()- Could not create the directory: "+directory+".", e);
-			
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException(directory+" could not be created.");
-			}
-			
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-		return path;
-	}
-
-	@Supported
-	public void deleteDirectory(String directory) throws Exception
-	{
-		FTPSession session = null;
-		
-		try 
-		{
-			session = pool.openSession();
-			session.deleteDirectory(directory);
-		} 
-		
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.deleteDirectory()- Illegal State happened while deleting directory: "+directory+".", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.deleteDirectory()- IO Error deleting the directory: "+directory+".", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.deleteDirectory()- Could not delete the directory: "+directory+".", e);
-			throw e;
-		} 
-		
-		catch (FTPException e) 
-		{
-			logger.error("FTPFileStorage.deleteDirectory()- Could not delete the directory: "+directory+".", e);
-			
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException(directory+" could not be deleted.");
-			}
-			
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-	}
-
-	@Supported
-	public String renameDirectory(String oldDirectory, String newDirectory) throws Exception 
-	{
-		String path = "";
-		FTPSession session = null;
-		
-		try
-		{
-			session = pool.openSession();
-			path = session.renameDirectory(oldDirectory, newDirectory);
-		}
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.renameDirectory()- Illegal State happened while rename directory: "+oldDirectory+".", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.renameDirectory()- IO Error rename the directory: "+oldDirectory+".", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.renameDirectory()- Could not rename the directory: "+oldDirectory+".", e);
-			throw e;
-		} 
-		
-		catch (FTPException e) 
-		{
-			logger.error("FTPFileStorage.renameDirectory()- Could not rename the directory: "+oldDirectory+".", e);
-			
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException(oldDirectory+" could not be renamed.");
-			}
-			
-			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
-			{
-				throw new FileNotFoundException(oldDirectory+" could not be renamed.");
-			}
-			
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-		return path;
-	}
-
-	@Supported
-	public String upload(String directory, File file) throws Exception 
-	{
-		String path = "";
-		FTPSession session = null;
-		
-		try
-		{
-			session = pool.openSession();
-			path = session.upload(directory, file);
-		}
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.upload()- Illegal State happened while uploading file.", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.upload()- IO Error upload file to directory: "+directory+".", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.upload()- Could not upload the file.", e);
-			throw e;
-		} 
-		
-		catch (FTPException e) 
-		{
-			logger.error("FTPFileStorage.upload()- Could not upload the file.", e);
-			
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException("Could not upload file to "+directory+".");
-			}
-			
-			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
-			{
-				throw new FileNotFoundException(directory+" could not upload file to.");
-			}
-			
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-		return path;
-	}
-
-	@Supported
-	public String copy(String directory, String renameFile, File file) throws Exception 
-	{
-		String path = "";
-		FTPSession session = null;
-		
-		try
-		{
-			session = pool.openSession();
-			path = session.copy(directory, renameFile, file);
-		}
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.copy()- Illegal State happened while copying file.", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.copy()- IO Error copying file to directory: "+directory+".", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.copy()- Could not copy the file.", e);
-			throw e;
-		} 
-		
-		catch (FTPException e) 
-		{
-			logger.error("FTPFileStorage.copy()- Could not copy the file.", e);
-			
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException("Could not copy file to "+directory+".");
-			}
-			
-			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
-			{
-				throw new FileNotFoundException(directory+" could not upload file to.");
-			}
-			
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-		return path;
-	}
-
-	@Supported
-	public void deleteFile(String filePath) throws Exception 
-	{
-		FTPSession session = null;
-		
-		try
-		{
-			session = pool.openSession();
-			session.delete(filePath);
-		}
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.deleteFile()- Illegal State happened while deleting the file.", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.deleteFile()- IO Error delete file: "+filePath+".", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.deleteFile()- Could not delete the file.", e);
-			throw e;
-		}
-		
-		catch(FTPException e)
-		{
-			logger.error("FTPFileStorage.deleteFile()- Could not delete the file.", e);
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-	}
-
-	@Supported
-	public File retrieve(String filePath) throws Exception 
-	{
-		File temporaryFile = null;
-		FTPSession session = null;
-		
-		try
-		{
-			session = pool.openSession();
-			File file = new File(filePath);
-			String filename = file.getName();
-			temporaryFile = TemporaryFileFactory.createFile(filename);
-			session.retrieve(filePath, temporaryFile);
-		}
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+".", e);
-			throw e;
-		}
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+", because of io exception.", e);
-			throw e;
-		}
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+".", e);
-			throw e;
-		}
-		
-		catch(FTPException e)
-		{
-			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+", because of state: "+e.getCode()+".", e);
-			
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException("Could not be retrieved "+filePath+".");
-			}
-			
-			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
-			{
-				throw new FileNotFoundException(filePath+" could not retrieve the file.");
-			}
-			
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-			
-		return temporaryFile;
-	}
-
-	@Supported
-	public String update(String filePath, File file) throws Exception 
-	{	
-		String path = "";
-		FTPSession session = null;
-		
-		try
-		{
-			session = pool.openSession();
-			path = session.update(filePath, file);
-		}
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.update()- Illegal State happened while uploading file.", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.update()- IO Error update file: "+filePath+".", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.update()- Could not update the file.", e);
-			throw e;
-		}
-		
-		catch(FTPException e)
-		{
-			logger.error("FTPFileStorage.update()- Could not update the file.", e);
-		
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException("Could not copy file to "+filePath+".");
-			}
-			
-			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
-			{
-				throw new FileNotFoundException(filePath+" could not update the file.");
-			}
-				
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-		return path;
-	}
-
-	@Supported
-	public String renameFile(String filepath, String newFileName) throws Exception 
-	{
-		FTPSession session = null;
-		String path = "";
-		
-		try
-		{
-			session = pool.openSession();
-			path = session.renameFile(filepath, newFileName);
-		}
-		catch (IllegalStateException e) 
-		{
-			logger.error("FTPFileStorage.renameFile()- Illegal State happened while renaming file.", e);
-			throw e;
-		} 
-		
-		catch (IOException e) 
-		{
-			logger.error("FTPFileStorage.renameFile()- IO Error renaming file: "+filepath+".", e);
-			throw e;
-		} 
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			logger.error("FTPFileStorage.renameFile()- Could not renaming the file.", e);
-			throw e;
-		}
-		
-		catch(FTPException e)
-		{
-			logger.error("FTPFileStorage.renameFile()- Could not renaming the file.", e);
-		
-			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
-			{
-				throw new FileNotFoundException("Could not rename the file: "+filepath+".");
-			}
-			
-			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
-			{
-				throw new FileNotFoundException(filepath+" could not rename the file.");
-			}
-				
-			throw e;
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-		return path;
-	}
-
-	@Unsupported
-	public List<String> getAvailableFileExtensions() throws Exception 
-	{
-		return new ArrayList<String>();
-	}
-
-	@Unsupported
-	public long getMemoryUsage() throws Exception {
-		return 0;
-	}
-
-	@Unsupported
-	public long getMemoryLimitation() throws Exception {
-		return 0;
-	}
-
-	@Supported
-	public List<File> getAllFiles() throws Exception {
-		// TODO Auto-generated method stub
-		
-		//TODO get a directory from the temp file storage.
-		
-		return null;
-	}
-
-	@Supported
-	public List<File> getAllFilesForDirectory(String directory) throws Exception 
-	{
-		List<File> files = null;
-		FTPSession session = null;
-		
-		try
-		{
-			//TODO get a directory from the temp file storage and some how keep the original names.
-			session = pool.openSession();
-			List<FTPFile> ftpFiles = session.getAllFilesForDirectory(directory);
-		
-			if(ftpFiles.size() > 0)
-			{
-				File directoryFile = TemporaryFileFactory.createTempDirectory();
-				
-				for(FTPFile file: ftpFiles)
-				{
-					if(file.getType() == FTPFile.TYPE_FILE)
-					{
-						System.out.println("File from ftp "+file.getName());
-					}
-					
-					else if(file.getType() == FTPFile.TYPE_DIRECTORY)
-					{
-						//create new directory within the 
-						System.out.println("Directory from ftp "+file.getName());
-						
-					}
-				}
-			}
-			
-			else
-			{
-				files = new ArrayList<File>();
-			}
-		}
-		catch (IllegalStateException e)
-		{
-			
-		}
-		
-		catch (IOException e)
-		{
-			
-		}
-		
-		catch (FTPIllegalReplyException e) 
-		{
-			
-		}
-		
-		catch(FTPException e)
-		{
-			
-		}
-		
-		finally
-		{
-			if(session != null)
-			{
-				session.close();
-			}
-		}
-		
-		return files;
-	}
-
-	public boolean isCloudStorage() 
-	{
-		return true;
-	}
-
-	@Supported
-	public File zipUpAllFiles(String archiveName) throws IOException
-	{
-		//TODO get a directory from the temp file storage.
-		
-		return null;
-	}
-
-	@Supported
-	public File zipUpDirectory(String fullPath, String archiveName) throws IOException {
-		
-		
-		
-		//TODO get a directory from the temp file storage.
-		
-		return null;
-	}
-	
-	public FTPConnectionPoolManagement getPool()
-	{
-		return this.pool;
-	}
-
-	public boolean isConnected() 
-	{
-		return pool.isConnected();
-	}
-
-	public void disconnect() 
-	{
-		pool.disconnect();	
-	}
-
-	public void reconnect() throws Exception 
-	{
-		pool.reconnect();
-	}
-}
+package org.church.management.file.storage.impl;
+
+import it.sauronsoftware.ftp4j.FTPCodes;
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.FTPIllegalReplyException;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.church.management.annotations.Supported;
+import org.church.management.annotations.Unsupported;
+import org.church.management.file.storage.Abortable;
+import org.church.management.file.storage.CloudFileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.archive.ParallelZipWriter;
+import org.church.management.file.storage.archive.ZipCompressor;
+import org.church.management.file.storage.batch.BatchExecutor;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.ftp.connection.pool.FTPConnectionPoolManagement;
+import org.church.management.ftp.session.FTPSession;
+import org.church.management.temporary.file.factory.TemporaryFileFactory;
+/***
+ * 
+ * @author Trae
+ * 
+ * This class is for storing files on a ftp server.
+ *
+ * need properties
+ * 		host: the ip address to the ftp
+ * 		port: the port for the ftp server
+ * 		username: the username for ftp login
+ * 		password: the password for ftp login
+ * 		passive: this for data upload, the usually setting is true
+ *		noopTimeout: this variable will ping the server to keep the connection alive.
+ *		storageFolder: this directory is where all the directories and files are stored.
+ *		
+ *		minPoolSize: the minimum number of connections in the pool.
+ *		maxPoolSize: the max number of connections in the pool.
+ *		batchParallelism: the number of connections a batch operation uses at once, default is half the max pool size.
+ *		A batch always leaves one connection of the pool for the single operations running beside it.
+ *
+ *		writeBehind: true to accept the uploads into a local spool and send them to the server in the background, default is false.
+ *		spoolFolderPath: the directory where the uploads wait to be sent, needed for write behind.
+ *		writeBehindParallelism: the number of uploads sent at once, default is the batch parallelism.
+ *		writeBehindAttempts: how many times an upload is tried before it waits for the next start up, default is 10.
+ *		writeBehindRetryDelay: the milliseconds before the first retry, the delay doubles with every retry, default is 1000.
+ *
+ *		zipParallelism: the number of files downloaded and compressed at once for a zip, default is the batch parallelism up to 4.
+ *		zipCompressionLevel: the deflate level of the zips from 1 to 9, default is -1 for the deflate default, 0 stores every file.
+ *		zipStoredExtensions: the extensions of the files stored in the zips without compression like jpg,png,mp4, default is the common media and archive formats.
+ *
+ *		listingCacheTtl: the milliseconds a directory listing is kept to be answered again without the server, default is 30000, 0 turns the cache off.
+ *		listingCacheSize: the number of directory listings kept, default is 10000.
+ *		The listings are dropped by the writes through this storage, a change made by another client shows once its listing expires.
+ *
+ *		TODO will need new properties for passive and active
+ */
+public class FTPFileStorage implements CloudFileStorage
+{
+	private static final Logger logger = Logger.getLogger(FTPFileStorage.class);
+	
+	private static String fileSeparator;
+	private String storageFolder;
+	
+	private static final int MAXIMUM_BATCH_CHUNK_SIZE = 64;
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	
+	private static final Comparator<StorageEntry> PATH_ORDER = new Comparator<StorageEntry>()
+	{
+		public int compare(StorageEntry first, StorageEntry second)
+		{
+			return first.getPath().compareTo(second.getPath());
+		}
+	};
+	
+	private FTPConnectionPoolManagement pool;
+	private int batchParallelism;
+	private ExecutorService workers;
+	private FTPListingCache listingCache;
+	private FTPTreeLister treeLister;
+	private FTPUploadSpool spool = null;
+	private ZipCompressor zipCompressor;
+	
+	static
+	{
+		fileSeparator = System.getProperty("file.separator");
+	}
+	
+	public FTPFileStorage(Properties properties) throws Exception
+	{
+		Integer port = null;
+		Integer noopTimeout = Integer.parseInt(properties.getProperty("noopTimeout"));
+		String username = properties.getProperty("username");
+		Boolean passive = Boolean.parseBoolean(properties.getProperty("passive"));
+		String password = properties.getProperty("password");
+		String host = properties.getProperty("host");
+		int minimumPoolSize = Integer.parseInt(properties.getProperty("minimumPoolSize"));
+		int maximumPoolSize = Integer.parseInt(properties.getProperty("maximumPoolSize"));
+				
+		String hostPort = properties.getProperty("port");
+		
+		if(hostPort == null)
+		{
+			port = null;
+		}
+		
+		else 
+		{
+			port = Integer.parseInt(properties.getProperty("port"));
+		}
+		
+		storageFolder = properties.getProperty("storagePath");
+		
+		if(port != null)
+		{
+			pool = new FTPConnectionPoolManagement(host, port, username, password, storageFolder, passive, minimumPoolSize, maximumPoolSize, noopTimeout);
+		}
+		
+		else
+		{
+			pool = new FTPConnectionPoolManagement(host, username, password, storageFolder, passive, minimumPoolSize, maximumPoolSize, noopTimeout);
+		}
+		
+		//the work spread over several connections never takes the whole pool, a single operation still gets a connection.
+		int sharedConnections = Math.max(1, maximumPoolSize - 1);
+		batchParallelism = Math.max(1, maximumPoolSize / 2);
+		
+		if(properties.getProperty("batchParallelism") != null)
+		{
+			batchParallelism = Math.min(sharedConnections, Integer.parseInt(properties.getProperty("batchParallelism")));
+		}
+		
+		workers = Executors.newCachedThreadPool(new WorkerThreadFactory());
+		
+		long listingCacheTtl = 30000;
+		int listingCacheSize = 10000;
+		
+		if(properties.getProperty("listingCacheTtl") != null)
+		{
+			listingCacheTtl = Long.parseLong(properties.getProperty("listingCacheTtl"));
+		}
+		
+		if(properties.getProperty("listingCacheSize") != null)
+		{
+			listingCacheSize = Integer.parseInt(properties.getProperty("listingCacheSize"));
+		}
+		
+		listingCache = new FTPListingCache(listingCacheTtl, listingCacheSize);
+		treeLister = new FTPTreeLister(pool, listingCache, workers, batchParallelism);
+		
+		//every zip holds its sessions until it is written, a few are enough to keep the compressor threads busy.
+		int zipParallelism = Math.min(4, batchParallelism), zipLevel = -1;
+		Set<String> zipStoredExtensions = ZipCompressor.parseExtensions(ZipCompressor.DEFAULT_STORED_EXTENSIONS);
+		
+		if(properties.getProperty("zipParallelism") != null)
+		{
+			zipParallelism = Math.min(sharedConnections, Integer.parseInt(properties.getProperty("zipParallelism")));
+		}
+		
+		if(properties.getProperty("zipCompressionLevel") != null)
+		{
+			zipLevel = Integer.parseInt(properties.getProperty("zipCompressionLevel"));
+		}
+		
+		if(properties.getProperty("zipStoredExtensions") != null)
+		{
+			zipStoredExtensions = ZipCompressor.parseExtensions(properties.getProperty("zipStoredExtensions"));
+		}
+		
+		zipCompressor = new ZipCompressor(zipParallelism, zipLevel, zipStoredExtensions);
+		
+		if(Boolean.parseBoolean(properties.getProperty("writeBehind")))
+		{
+			int spoolParallelism = batchParallelism;
+			int attempts = 10;
+			long retryDelay = 1000;
+			
+			if(properties.getProperty("writeBehindParallelism") != null)
+			{
+				spoolParallelism = Math.min(sharedConnections, Integer.parseInt(properties.getProperty("writeBehindParallelism")));
+			}
+			
+			if(properties.getProperty("writeBehindAttempts") != null)
+			{
+				attempts = Integer.parseInt(properties.getProperty("writeBehindAttempts"));
+			}
+			
+			if(properties.getProperty("writeBehindRetryDelay") != null)
+			{
+				retryDelay = Long.parseLong(properties.getProperty("writeBehindRetryDelay"));
+			}
+			
+			spool = new FTPUploadSpool(new File(properties.getProperty("spoolFolderPath")), new SpoolUploader(), spoolParallelism, attempts, retryDelay);
+		}
+	}
+	
+	@Supported
+	public String createDirectory(String directory) throws Exception
+	{
+		String path = "";
+		FTPSession session = null;
+				
+		try 
+		{
+			session = pool.openSession();
+			path = session.createDirectory(directory);
+		} 
+		
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.createDirectory()- Illegal State on the server.", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.createDirectory()- IO Error could not create the directory.", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.createDirectory()- Could not create the directory: "+directory+".", e);
+			throw e;
+		} 
+		
+		catch (FTPException e) 
+		{
+			logger.error("FTPFileStorage.createDirectory()- Could not create the directory: "+directory+".", e);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException(directory+" could not be created.");
+			}
+			
+			throw e;
+		}
+		
+		finally
+		{
+			listingCache.invalidate(directory);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		return path;
+	}
+
+	@Supported
+	public void deleteDirectory(String directory) throws Exception
+	{
+		FTPSession session = null;
+		
+		try 
+		{
+			discardFailedUploads(directory);
+			flushSpool(directory);
+			session = pool.openSession();
+			session.deleteDirectory(directory);
+		} 
+		
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.deleteDirectory()- Illegal State happened while deleting directory: "+directory+".", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.deleteDirectory()- IO Error deleting the directory: "+directory+".", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.deleteDirectory()- Could not delete the directory: "+directory+".", e);
+			throw e;
+		} 
+		
+		catch (FTPException e) 
+		{
+			logger.error("FTPFileStorage.deleteDirectory()- Could not delete the directory: "+directory+".", e);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException(directory+" could not be deleted.");
+			}
+			
+			throw e;
+		}
+		
+		finally
+		{
+			listingCache.invalidateTree(directory);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+	}
+
+	@Supported
+	public String renameDirectory(String oldDirectory, String newDirectory) throws Exception 
+	{
+		String path = "";
+		String target = getSiblingPath(oldDirectory, newDirectory);
+		FTPSession session = null;
+		
+		try
+		{
+			discardFailedUploads(oldDirectory);
+			discardFailedUploads(target);
+			flushSpool(oldDirectory);
+			flushSpool(target);
+			session = pool.openSession();
+			path = session.renameDirectory(oldDirectory, newDirectory);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.renameDirectory()- Illegal State happened while rename directory: "+oldDirectory+".", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.renameDirectory()- IO Error rename the directory: "+oldDirectory+".", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.renameDirectory()- Could not rename the directory: "+oldDirectory+".", e);
+			throw e;
+		} 
+		
+		catch (FTPException e) 
+		{
+			logger.error("FTPFileStorage.renameDirectory()- Could not rename the directory: "+oldDirectory+".", e);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException(oldDirectory+" could not be renamed.");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(oldDirectory+" could not be renamed.");
+			}
+			
+			throw e;
+		}
+		
+		finally
+		{
+			//the new name is only a name, the renamed directory sits next to the old one and shares its parent listing.
+			listingCache.invalidateTree(oldDirectory);
+			listingCache.invalidateTree(path.length() > 0 ? path : target);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		return path;
+	}
+
+	@Supported
+	public String upload(String directory, File file) throws Exception 
+	{
+		String path = "";
+		FTPSession session = null;
+		
+		if(spool != null)
+		{
+			return spoolFile(directory+"/"+file.getName(), file);
+		}
+		
+		try
+		{
+			session = pool.openSession();
+			path = session.upload(directory, file);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.upload()- Illegal State happened while uploading file.", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.upload()- IO Error upload file to directory: "+directory+".", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.upload()- Could not upload the file.", e);
+			throw e;
+		} 
+		
+		catch (FTPException e) 
+		{
+			logger.error("FTPFileStorage.upload()- Could not upload the file.", e);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not upload file to "+directory+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(directory+" could not upload file to.");
+			}
+			
+			throw e;
+		}
+		
+		finally
+		{
+			listingCache.invalidateDirectory(directory);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		return path;
+	}
+
+	@Supported
+	public String copy(String directory, String renameFile, File file) throws Exception 
+	{
+		String path = "";
+		FTPSession session = null;
+		
+		if(spool != null)
+		{
+			return spoolFile(directory+"/"+renameFile, file);
+		}
+		
+		try
+		{
+			session = pool.openSession();
+			path = session.copy(directory, renameFile, file);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.copy()- Illegal State happened while copying file.", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.copy()- IO Error copying file to directory: "+directory+".", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.copy()- Could not copy the file.", e);
+			throw e;
+		} 
+		
+		catch (FTPException e) 
+		{
+			logger.error("FTPFileStorage.copy()- Could not copy the file.", e);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not copy file to "+directory+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(directory+" could not upload file to.");
+			}
+			
+			throw e;
+		}
+		
+		finally
+		{
+			listingCache.invalidateDirectory(directory);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		return path;
+	}
+
+	@Supported
+	public void deleteFile(String filePath) throws Exception 
+	{
+		FTPSession session = null;
+		
+		try
+		{
+			discardFailedUploads(filePath);
+			flushSpool(filePath);
+			session = pool.openSession();
+			session.delete(filePath);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.deleteFile()- Illegal State happened while deleting the file.", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.deleteFile()- IO Error delete file: "+filePath+".", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.deleteFile()- Could not delete the file.", e);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.deleteFile()- Could not delete the file.", e);
+			throw e;
+		}
+		
+		finally
+		{
+			listingCache.invalidate(filePath);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+	}
+
+	@Supported
+	public File retrieve(String filePath) throws Exception 
+	{
+		File temporaryFile = null;
+		FTPSession session = null;
+		
+		try
+		{
+			File file = new File(filePath);
+			String filename = file.getName();
+			File spooled = acquireSpooledFile(filePath);
+			
+			if(spooled != null)
+			{
+				try
+				{
+					temporaryFile = TemporaryFileFactory.createFile(filename);
+					LocalFileChannels.copyFile(spooled, temporaryFile);
+					return temporaryFile;
+				}
+				finally
+				{
+					releaseSpooledFile(spooled);
+				}
+			}
+			
+			session = pool.openSession();
+			temporaryFile = TemporaryFileFactory.createFile(filename);
+			session.retrieve(filePath, temporaryFile);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+".", e);
+			throw e;
+		}
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+", because of io exception.", e);
+			throw e;
+		}
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+".", e);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.retrieve()- Could not retrieve file: "+filePath+", because of state: "+e.getCode()+".", e);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not be retrieved "+filePath+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(filePath+" could not retrieve the file.");
+			}
+			
+			throw e;
+		}
+		
+		finally
+		{
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+			
+		return temporaryFile;
+	}
+
+	@Supported
+	public byte[] retrieveRange(String filePath, long offset, int length) throws Exception 
+	{
+		byte[] range = null;
+		FTPSession session = null;
+		File spooled = acquireSpooledFile(filePath);
+		
+		if(spooled != null)
+		{
+			try
+			{
+				return LocalFileChannels.readRange(spooled, offset, length);
+			}
+			finally
+			{
+				releaseSpooledFile(spooled);
+			}
+		}
+		
+		try
+		{
+			session = pool.openSession();
+			range = session.retrieveRange(filePath, offset, length);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.retrieveRange()- Could not retrieve file: "+filePath+".", e);
+			throw e;
+		}
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.retrieveRange()- Could not retrieve file: "+filePath+", because of io exception.", e);
+			throw e;
+		}
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.retrieveRange()- Could not retrieve file: "+filePath+".", e);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.retrieveRange()- Could not retrieve file: "+filePath+", because of state: "+e.getCode()+".", e);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not be retrieved "+filePath+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(filePath+" could not retrieve the file.");
+			}
+			
+			throw e;
+		}
+		
+		finally
+		{
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+			
+		return range;
+	}
+
+	@Supported
+	public StorageEntry stat(String filePath) throws Exception 
+	{
+		StorageEntry entry = null;
+		FTPSession session = null;
+		File spooled = acquireSpooledFile(filePath);
+		
+		if(spooled != null)
+		{
+			try
+			{
+				return new StorageEntry(filePath, new File(filePath).getName(), false, spooled.length(), spooled.lastModified());
+			}
+			finally
+			{
+				releaseSpooledFile(spooled);
+			}
+		}
+		
+		entry = statFromCache(filePath);
+		
+		if(entry != null)
+		{
+			return entry;
+		}
+		
+		try
+		{
+			session = pool.openSession();
+			entry = session.stat(filePath);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.stat()- Could not read the details of file: "+filePath+".", e);
+			throw e;
+		}
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.stat()- Could not read the details of file: "+filePath+", because of io exception.", e);
+			throw e;
+		}
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.stat()- Could not read the details of file: "+filePath+".", e);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.stat()- Could not read the details of file: "+filePath+", because of state: "+e.getCode()+".", e);
+			throw e;
+		}
+		
+		finally
+		{
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		return entry;
+	}
+
+	/**
+	 * @return the entry from the kept listing of the parent directory, null when the listing is not kept.
+	 */
+	private StorageEntry statFromCache(String filePath)
+	{
+		String path = FTPTreeLister.normalize(filePath);
+		List<StorageEntry> entries = listingCache.get(FTPListingCache.parentOf(path));
+		
+		if(entries == null)
+		{
+			return null;
+		}
+		
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		
+		for(StorageEntry entry: entries)
+		{
+			if(entry.getName().equals(name))
+			{
+				return new StorageEntry(filePath, name, entry.isDirectory(), entry.getSize(), entry.getLastModified());
+			}
+		}
+		
+		return StorageEntry.missing(filePath, name);
+	}
+
+	@Supported
+	public String update(String filePath, File file) throws Exception 
+	{	
+		String path = "";
+		FTPSession session = null;
+		
+		if(spool != null)
+		{
+			return spoolFile(filePath, file);
+		}
+		
+		try
+		{
+			session = pool.openSession();
+			path = session.update(filePath, file);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.update()- Illegal State happened while uploading file.", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.update()- IO Error update file: "+filePath+".", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.update()- Could not update the file.", e);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.update()- Could not update the file.", e);
+		
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not copy file to "+filePath+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(filePath+" could not update the file.");
+			}
+				
+			throw e;
+		}
+		
+		finally
+		{
+			listingCache.invalidate(filePath);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		return path;
+	}
+
+	@Supported
+	public String renameFile(String filepath, String newFileName) throws Exception 
+	{
+		FTPSession session = null;
+		String path = "";
+		
+		try
+		{
+			String target = getSiblingPath(filepath, newFileName);
+			discardFailedUploads(filepath);
+			discardFailedUploads(target);
+			flushSpool(filepath);
+			flushSpool(target);
+			session = pool.openSession();
+			path = session.renameFile(filepath, newFileName);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.renameFile()- Illegal State happened while renaming file.", e);
+			throw e;
+		} 
+		
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.renameFile()- IO Error renaming file: "+filepath+".", e);
+			throw e;
+		} 
+		
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.renameFile()- Could not renaming the file.", e);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.renameFile()- Could not renaming the file.", e);
+		
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not rename the file: "+filepath+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(filepath+" could not rename the file.");
+			}
+				
+			throw e;
+		}
+		
+		finally
+		{
+			listingCache.invalidate(filepath);
+			
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		return path;
+	}
+
+	@Supported
+	public InputStream openRead(String filePath) throws Exception 
+	{
+		FTPSession session = null;
+		
+		try
+		{
+			File spooled = acquireSpooledFile(filePath);
+			
+			if(spooled != null)
+			{
+				return openSpooledFile(spooled);
+			}
+			
+			session = pool.openSession();
+			InputStream stream = session.openRead(filePath);
+			return new SessionInputStream(stream, session);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.openRead()- Could not open file: "+filePath+".", e);
+			closeSession(session);
+			throw e;
+		}
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.openRead()- Could not open file: "+filePath+", because of io exception.", e);
+			closeSession(session);
+			throw e;
+		}
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.openRead()- Could not open file: "+filePath+".", e);
+			closeSession(session);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.openRead()- Could not open file: "+filePath+", because of state: "+e.getCode()+".", e);
+			closeSession(session);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not be opened "+filePath+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(filePath+" could not open the file.");
+			}
+			
+			throw e;
+		}
+		
+		catch(Exception e)
+		{
+			logger.error("FTPFileStorage.openRead()- Could not open file: "+filePath+".", e);
+			closeSession(session);
+			throw e;
+		}
+	}
+
+	/**
+	 * The file is streamed from the server into the channel, 
+	 * only one buffer of it is held in memory at a time.
+	 */
+	@Supported
+	public long transferTo(String filePath, WritableByteChannel target) throws Exception 
+	{
+		InputStream stream = openRead(filePath);
+		
+		try
+		{
+			return LocalFileChannels.copy(stream, target);
+		}
+		catch(IOException e)
+		{
+			logger.error("FTPFileStorage.transferTo()- Could not send file: "+filePath+".", e);
+			throw e;
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	@Supported
+	public OutputStream openWrite(String filePath) throws Exception 
+	{
+		FTPSession session = null;
+		
+		try
+		{
+			flushSpool(filePath);
+			session = pool.openSession();
+			OutputStream stream = session.openWrite(filePath);
+			listingCache.invalidate(filePath);
+			return new SessionOutputStream(stream, session, filePath);
+		}
+		catch (IllegalStateException e) 
+		{
+			logger.error("FTPFileStorage.openWrite()- Illegal State happened while opening file: "+filePath+".", e);
+			closeSession(session);
+			throw e;
+		}
+		catch (IOException e) 
+		{
+			logger.error("FTPFileStorage.openWrite()- IO Error opening file: "+filePath+".", e);
+			closeSession(session);
+			throw e;
+		}
+		catch (FTPIllegalReplyException e) 
+		{
+			logger.error("FTPFileStorage.openWrite()- Could not open the file: "+filePath+".", e);
+			closeSession(session);
+			throw e;
+		}
+		
+		catch(FTPException e)
+		{
+			logger.error("FTPFileStorage.openWrite()- Could not open the file: "+filePath+".", e);
+			closeSession(session);
+			
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+			{
+				throw new FileNotFoundException("Could not write the file "+filePath+".");
+			}
+			
+			else if(e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException(filePath+" could not write the file.");
+			}
+			
+			throw e;
+		}
+		
+		catch(Exception e)
+		{
+			logger.error("FTPFileStorage.openWrite()- Could not open the file: "+filePath+".", e);
+			closeSession(session);
+			throw e;
+		}
+	}
+	
+	@Supported
+	public List<BatchResult> uploadAll(final String directory, Collection<File> files) throws Exception 
+	{
+		if(spool != null)
+		{
+			List<BatchResult> results = new ArrayList<BatchResult>();
+			
+			for(File file: files)
+			{
+				try
+				{
+					results.add(new BatchResult(file.getPath(), spoolFile(directory+"/"+file.getName(), file)));
+				}
+				catch(Exception e)
+				{
+					results.add(new BatchResult(file.getPath(), e));
+				}
+			}
+			
+			return results;
+		}
+		
+		return executeBatch(new ArrayList<File>(files), new SessionBatch<File>()
+		{
+			public List<BatchResult> execute(FTPSession session, List<File> chunk) throws Exception
+			{
+				try
+				{
+					return session.uploadAll(directory, chunk);
+				}
+				finally
+				{
+					listingCache.invalidateDirectory(directory);
+				}
+			}
+
+			public String getItem(File item)
+			{
+				return item.getPath();
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception 
+	{
+		for(String filePath: filePaths)
+		{
+			discardFailedUploads(filePath);
+			flushSpool(filePath);
+		}
+		
+		return executeBatch(new ArrayList<String>(filePaths), new SessionBatch<String>()
+		{
+			public List<BatchResult> execute(FTPSession session, List<String> chunk) throws Exception
+			{
+				try
+				{
+					return session.deleteAll(chunk);
+				}
+				finally
+				{
+					for(String filePath: chunk)
+					{
+						listingCache.invalidate(filePath);
+					}
+				}
+			}
+
+			public String getItem(String item)
+			{
+				return item;
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception 
+	{
+		for(Map.Entry<String, String> entry: renameFiles.entrySet())
+		{
+			String target = getSiblingPath(entry.getKey(), entry.getValue());
+			discardFailedUploads(entry.getKey());
+			discardFailedUploads(target);
+			flushSpool(entry.getKey());
+			flushSpool(target);
+		}
+		
+		return executeBatch(new ArrayList<Map.Entry<String, String>>(renameFiles.entrySet()), new SessionBatch<Map.Entry<String, String>>()
+		{
+			public List<BatchResult> execute(FTPSession session, List<Map.Entry<String, String>> chunk) throws Exception
+			{
+				Map<String, String> renames = new LinkedHashMap<String, String>();
+				
+				for(Map.Entry<String, String> entry: chunk)
+				{
+					renames.put(entry.getKey(), entry.getValue());
+				}
+				
+				try
+				{
+					return session.renameAll(renames);
+				}
+				finally
+				{
+					for(String filePath: renames.keySet())
+					{
+						listingCache.invalidate(filePath);
+					}
+				}
+			}
+
+			public String getItem(Map.Entry<String, String> item)
+			{
+				return item.getKey();
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> createDirectories(Collection<String> directories) throws Exception 
+	{
+		List<String> directoryNames = new ArrayList<String>(directories);
+		BatchResult[] results = new BatchResult[directoryNames.size()];
+		
+		//the parents have to exist before their sub directories are created.
+		for(List<Integer> level: BatchExecutor.groupByDepth(directoryNames))
+		{
+			List<String> levelDirectories = new ArrayList<String>();
+			
+			for(Integer index: level)
+			{
+				levelDirectories.add(directoryNames.get(index));
+			}
+			
+			List<BatchResult> levelResults = executeBatch(levelDirectories, new SessionBatch<String>()
+			{
+				public List<BatchResult> execute(FTPSession session, List<String> chunk) throws Exception
+				{
+					try
+					{
+						return session.createDirectories(chunk);
+					}
+					finally
+					{
+						for(String directory: chunk)
+						{
+							listingCache.invalidate(directory);
+						}
+					}
+				}
+
+				public String getItem(String item)
+				{
+					return item;
+				}
+			});
+			
+			for(int i = 0; i < level.size(); i++)
+			{
+				results[level.get(i)] = levelResults.get(i);
+			}
+		}
+		
+		List<BatchResult> ordered = new ArrayList<BatchResult>();
+		
+		for(BatchResult result: results)
+		{
+			ordered.add(result);
+		}
+		
+		return ordered;
+	}
+	
+	/**
+	 * Splits the items into chunks and spreads the chunks over several pooled sessions.
+	 * Each session works through the chunks one at a time, so one command group 
+	 * runs on a single connection without borrowing it again for every item.
+	 */
+	private <T> List<BatchResult> executeBatch(List<T> items, final SessionBatch<T> batch) throws Exception
+	{
+		List<BatchResult> ordered = new ArrayList<BatchResult>();
+		
+		if(items.isEmpty())
+		{
+			return ordered;
+		}
+		
+		List<FTPSession> sessions = pool.openSessions(Math.min(batchParallelism, items.size()));
+		int chunkSize = (items.size() + sessions.size() * 4 - 1) / (sessions.size() * 4);
+		chunkSize = Math.max(1, Math.min(MAXIMUM_BATCH_CHUNK_SIZE, chunkSize));
+		
+		final List<List<T>> chunks = new ArrayList<List<T>>();
+		
+		for(int i = 0; i < items.size(); i += chunkSize)
+		{
+			chunks.add(items.subList(i, Math.min(items.size(), i + chunkSize)));
+		}
+		
+		final List<List<BatchResult>> results = new ArrayList<List<BatchResult>>();
+		
+		for(int i = 0; i < chunks.size(); i++)
+		{
+			results.add(null);
+		}
+		
+		final AtomicInteger nextChunk = new AtomicInteger(0);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		
+		for(int i = 1; i < sessions.size(); i++)
+		{
+			futures.add(workers.submit(new BatchWorker<T>(sessions.get(i), batch, chunks, results, nextChunk)));
+		}
+		
+		new BatchWorker<T>(sessions.get(0), batch, chunks, results, nextChunk).run();
+		Throwable failure = null;
+		
+		for(Future<?> future: futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch(ExecutionException e)
+			{
+				logger.error("FTPFileStorage.executeBatch()- A batch worker has failed.", e);
+				failure = e.getCause();
+			}
+		}
+		
+		for(int i = 0; i < chunks.size(); i++)
+		{
+			List<BatchResult> chunkResults = results.get(i);
+			
+			if(chunkResults != null)
+			{
+				ordered.addAll(chunkResults);
+				continue;
+			}
+			
+			//the chunk has no results when its worker died or the session returned none, every item of it has failed.
+			for(T item: chunks.get(i))
+			{
+				ordered.add(new BatchResult(batch.getItem(item), new Exception("The batch operation was not completed for: "+batch.getItem(item)+".", failure)));
+			}
+		}
+		
+		return ordered;
+	}
+	
+	/**
+	 * Waits until every spooled upload has reached the server.
+	 */
+	public void flush() throws Exception
+	{
+		flushSpool("");
+	}
+	
+	/**
+	 * @return the uploads that have not reached the server yet.
+	 */
+	public int getPendingUploadCount()
+	{
+		if(spool == null)
+		{
+			return 0;
+		}
+		
+		return spool.getPendingCount();
+	}
+	
+	private String spoolFile(String path, File file) throws Exception
+	{
+		try
+		{
+			spool.spool(path, file);
+		}
+		catch(FileNotFoundException e)
+		{
+			logger.error("FTPFileStorage.spoolFile()- Could not find the file: "+file.getPath()+".", e);
+			throw e;
+		}
+		catch(IOException e)
+		{
+			logger.error("FTPFileStorage.spoolFile()- Could not spool the file: "+file.getPath()+" for "+path+".", e);
+			throw e;
+		}
+		
+		return path;
+	}
+	
+	/**
+	 * The spooled file is kept while it is read, it has to be given back to releaseSpooledFile.
+	 */
+	private File acquireSpooledFile(String filePath)
+	{
+		if(spool == null)
+		{
+			return null;
+		}
+		
+		return spool.acquireSpooledFile(filePath);
+	}
+	
+	private void releaseSpooledFile(File spooled)
+	{
+		if(spool != null && spooled != null)
+		{
+			spool.releaseSpooledFile(spooled);
+		}
+	}
+	
+	/**
+	 * @return a stream that releases the spooled file once it is closed.
+	 */
+	private InputStream openSpooledFile(File spooled) throws IOException
+	{
+		try
+		{
+			return new SpooledInputStream(spooled);
+		}
+		catch(IOException e)
+		{
+			releaseSpooledFile(spooled);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Drops the spooled uploads under the path that have used up their attempts,
+	 * the path is deleted or renamed so their content is not wanted anymore.
+	 */
+	private void discardFailedUploads(String directory)
+	{
+		if(spool != null)
+		{
+			spool.discardFailed(directory);
+		}
+	}
+	
+	/**
+	 * @return the path of name in the directory of path, the way the session builds the target of a rename.
+	 */
+	private static String getSiblingPath(String path, String name)
+	{
+		return path.substring(0, path.lastIndexOf("/") + 1)+name;
+	}
+	
+	/**
+	 * Waits for the spooled uploads in the directory, so an operation on the server
+	 * does not run ahead of the uploads that were accepted before it.
+	 */
+	private void flushSpool(String directory) throws Exception
+	{
+		if(spool != null)
+		{
+			spool.flush(directory);
+		}
+	}
+	
+	private void closeSession(FTPSession session)
+	{
+		if(session != null && session.isClosed() == false)
+		{
+			session.close();
+		}
+	}
+	
+	/**
+	 * Ends a failed upload without committing it, the part of the file already on the server is deleted.
+	 */
+	private static void abortUpload(OutputStream output, String filePath)
+	{
+		try
+		{
+			if(output instanceof Abortable)
+			{
+				((Abortable)output).abort();
+			}
+			
+			else
+			{
+				output.close();
+			}
+		}
+		catch(IOException e)
+		{
+			logger.error("FTPFileStorage.abortUpload()- Could not abort the upload of the file: "+filePath+".", e);
+		}
+	}
+
+	@Unsupported
+	public List<String> getAvailableFileExtensions() throws Exception 
+	{
+		return new ArrayList<String>();
+	}
+
+	@Unsupported
+	public long getMemoryUsage() throws Exception {
+		return 0;
+	}
+
+	@Unsupported
+	public long getMemoryLimitation() throws Exception {
+		return 0;
+	}
+
+	/**
+	 * The files are listed over several sessions at once and nothing is downloaded,
+	 * the returned files are FTPRemoteFile with the size and modified date of the server.
+	 */
+	@Supported
+	public List<File> getAllFiles() throws Exception 
+	{
+		return getAllFilesForDirectory("");
+	}
+
+	/**
+	 * The files are listed over several sessions at once and nothing is downloaded,
+	 * the returned files are FTPRemoteFile with the size and modified date of the server.
+	 */
+	@Supported
+	public List<File> getAllFilesForDirectory(String directory) throws Exception 
+	{
+		List<File> files = new ArrayList<File>();
+		
+		try
+		{
+			for(StorageEntry entry: treeLister.list(directory))
+			{
+				if(entry.isFile())
+				{
+					files.add(new FTPRemoteFile(entry));
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPFileStorage.getAllFilesForDirectory()- Could not list the files of the directory: "+directory+".", e);
+			throw e;
+		}
+		
+		return files;
+	}
+
+	/**
+	 * The directories are listed as the iteration reaches them, 
+	 * so the errors of the server come from the iterator as StorageListingException.
+	 */
+	@Supported
+	public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception 
+	{
+		if(directory == null)
+		{
+			directory = "";
+		}
+		
+		return new FTPStorageEntryIterator(pool, listingCache, directory, recursive, continuationToken);
+	}
+
+	public boolean isCloudStorage() 
+	{
+		return true;
+	}
+
+	@Supported
+	public File zipUpAllFiles(String archiveName) throws Exception
+	{
+		try
+		{
+			return zipDirectory("", archiveName);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPFileStorage.zipUpAllFiles()- An error has occurred while zip up files.", e);
+			throw e;
+		}
+	}
+
+	@Supported
+	public File zipUpDirectory(String fullPath, String archiveName) throws Exception 
+	{
+		try
+		{
+			return zipDirectory(fullPath, archiveName);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPFileStorage.zipUpDirectory()- Could not zip up directory: "+fullPath+".", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * The files are downloaded over several sessions of the pool at once and 
+	 * each is compressed straight into the stream as it arrives, nothing is downloaded to the disk.
+	 */
+	@Supported
+	public void zipDirectoryTo(String directory, OutputStream output) throws Exception
+	{
+		FTPSessionQueue sessions = null;
+		ParallelZipWriter zip = null;
+		
+		try
+		{
+			//the whole tree is listed before the downloads take the sessions.
+			List<StorageEntry> entries = treeLister.list(directory);
+			Collections.sort(entries, PATH_ORDER);
+			String prefix = FTPTreeLister.normalize(directory);
+			prefix = prefix.length() > 0 ? prefix+"/" : prefix;
+			
+			sessions = new FTPSessionQueue(pool, pool.openSessions(zipCompressor.getParallelism()));
+			zip = zipCompressor.open(output);
+			
+			for(StorageEntry entry: entries)
+			{
+				String name = entry.getPath().substring(prefix.length());
+				long lastModified = entry.getLastModified() > 0 ? entry.getLastModified() : System.currentTimeMillis();
+				
+				if(entry.isDirectory())
+				{
+					zip.addDirectory(name, lastModified);
+				}
+				
+				else
+				{
+					zip.addEntry(name, lastModified, entry.getSize() >= 0 ? entry.getSize() : -1, new DownloadSource(sessions, entry.getPath()));
+				}
+			}
+			
+			zip.finish();
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPFileStorage.zipDirectoryTo()- Could not zip up directory: "+directory+".", e);
+			throw e;
+		}
+		finally
+		{
+			if(zip != null)
+			{
+				zip.cancel();
+			}
+			
+			if(sessions != null)
+			{
+				sessions.close();
+			}
+		}
+	}
+	
+	private File zipDirectory(String directory, String archiveName) throws Exception
+	{
+		File archive = TemporaryFileFactory.createFile(archiveName);
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(archive), 65536);
+		boolean done = false;
+		
+		try
+		{
+			zipDirectoryTo(directory, output);
+			done = true;
+		}
+		finally
+		{
+			output.close();
+			
+			if(done == false)
+			{
+				archive.delete();
+			}
+		}
+		
+		return archive;
+	}
+	
+	public FTPConnectionPoolManagement getPool()
+	{
+		return this.pool;
+	}
+
+	public boolean isConnected() 
+	{
+		return pool.isConnected();
+	}
+
+	public void disconnect() 
+	{
+		if(spool != null)
+		{
+			//the uploads left in the spool carry on after the next start up.
+			spool.shutdown();
+		}
+		
+		zipCompressor.shutdown();
+		pool.disconnect();	
+	}
+
+	public void reconnect() throws Exception 
+	{
+		pool.reconnect();
+	}
+	
+	/**
+	 * 
+	 * @author Trae
+	 *
+	 * This class returns the session to the pool 
+	 * once the download stream is closed.
+	 */
+	private class SessionInputStream extends FilterInputStream
+	{
+		private FTPSession session;
+		
+		public SessionInputStream(InputStream stream, FTPSession session)
+		{
+			super(stream);
+			this.session = session;
+		}
+		
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				closeSession(session);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @author Trae
+	 *
+	 * This class gives the spooled file back to the spool
+	 * once the stream reading it is closed.
+	 */
+	private class SpooledInputStream extends FilterInputStream
+	{
+		private File spooled;
+		private boolean released = false;
+		
+		public SpooledInputStream(File spooled) throws IOException
+		{
+			super(new FileInputStream(spooled));
+			this.spooled = spooled;
+		}
+		
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				if(released == false)
+				{
+					released = true;
+					releaseSpooledFile(spooled);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @author Trae
+	 *
+	 * This class returns the session to the pool 
+	 * once the upload stream is closed.
+	 */
+	private class SessionOutputStream extends FilterOutputStream implements Abortable
+	{
+		private FTPSession session;
+		private String filePath;
+		
+		public SessionOutputStream(OutputStream stream, FTPSession session, String filePath)
+		{
+			super(stream);
+			this.session = session;
+			this.filePath = filePath;
+		}
+		
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			out.write(bytes, offset, length);
+		}
+		
+		public void close() throws IOException
+		{
+			try
+			{
+				out.close();
+			}
+			finally
+			{
+				//the size of the file is only known to the server once the upload is done.
+				listingCache.invalidate(filePath);
+				closeSession(session);
+			}
+		}
+		
+		public void abort()
+		{
+			try
+			{
+				abortUpload(out, filePath);
+			}
+			finally
+			{
+				listingCache.invalidate(filePath);
+				closeSession(session);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @author Trae
+	 *
+	 * This class downloads an entry of a zip when a compressor thread reaches it, 
+	 * a file still waiting in the upload spool is read from the disk.
+	 */
+	private class DownloadSource implements ParallelZipWriter.Source
+	{
+		private FTPSessionQueue sessions;
+		private String filePath;
+		private int ticket;
+		
+		public DownloadSource(FTPSessionQueue sessions, String filePath)
+		{
+			this.sessions = sessions;
+			this.filePath = filePath;
+			this.ticket = sessions.reserve();
+		}
+		
+		public InputStream open() throws Exception
+		{
+			File spooled = acquireSpooledFile(filePath);
+			
+			if(spooled != null)
+			{
+				sessions.skip(ticket);
+				return openSpooledFile(spooled);
+			}
+			
+			return sessions.openRead(ticket, filePath);
+		}
+	}
+	
+	private interface SessionBatch<T>
+	{
+		public List<BatchResult> execute(FTPSession session, List<T> chunk) throws Exception;
+		
+		public String getItem(T item);
+	}
+	
+	/**
+	 * 
+	 * @author Trae
+	 *
+	 * This class takes the next chunk of a batch until all the chunks are done,
+	 * then returns its session to the pool.
+	 */
+	private class BatchWorker<T> implements Runnable
+	{
+		private FTPSession session;
+		private SessionBatch<T> batch;
+		private List<List<T>> chunks;
+		private List<List<BatchResult>> results;
+		private AtomicInteger nextChunk;
+		
+		public BatchWorker(FTPSession session, SessionBatch<T> batch, List<List<T>> chunks, List<List<BatchResult>> results, AtomicInteger nextChunk)
+		{
+			this.session = session;
+			this.batch = batch;
+			this.chunks = chunks;
+			this.results = results;
+			this.nextChunk = nextChunk;
+		}
+		
+		public void run()
+		{
+			try
+			{
+				int index = nextChunk.getAndIncrement();
+				
+				while(index < chunks.size())
+				{
+					List<T> chunk = chunks.get(index);
+					List<BatchResult> chunkResults = null;
+					
+					try
+					{
+						chunkResults = batch.execute(session, chunk);
+					}
+					catch(Exception e)
+					{
+						logger.error("FTPFileStorage.BatchWorker.run()- Could not run a batch of "+chunk.size()+" items.", e);
+						chunkResults = new ArrayList<BatchResult>();
+						
+						for(T item: chunk)
+						{
+							chunkResults.add(new BatchResult(batch.getItem(item), e));
+						}
+					}
+					
+					synchronized(results)
+					{
+						results.set(index, chunkResults);
+					}
+					
+					index = nextChunk.getAndIncrement();
+				}
+			}
+			finally
+			{
+				closeSession(session);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @author Trae
+	 *
+	 * This class sends the spooled files to the server over the pool.
+	 */
+	private class SpoolUploader implements FTPUploadSpool.Uploader
+	{
+		public void upload(String path, File file) throws Exception
+		{
+			FTPSession session = pool.openSession();
+			
+			try
+			{
+				InputStream input = new FileInputStream(file);
+				
+				try
+				{
+					OutputStream output = session.openWrite(path);
+					
+					try
+					{
+						IOUtils.copyLarge(input, output);
+					}
+					catch(IOException e)
+					{
+						//only a complete copy is committed, the partial file is deleted before the spool retries.
+						abortUpload(output, path);
+						throw e;
+					}
+					
+					output.close();
+				}
+				finally
+				{
+					input.close();
+				}
+			}
+			finally
+			{
+				listingCache.invalidate(path);
+				session.close();
+			}
+		}
+	}
+	
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ftp-storage-worker-"+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package org.church.management.file.storage.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.church.management.file.storage.StorageEntry;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps the listings of the directories read from the ftp server, so a directory
+ * read again is answered without a round trip. A listing is kept for the time to live and
+ * the listings used least recently are dropped once there are too many.
+ *
+ * The storage drops the listings a write changes as the write runs, a listing read while
+ * a write was running is not kept since it may have missed the write.
+ */
+class FTPListingCache
+{
+	private long timeToLive;
+	private int maximumDirectories;
+	private long generation = 0;
+	private LinkedHashMap<String, CachedListing> listings;
+
+	/**
+	 * @param timeToLive the milliseconds a listing is kept, 0 keeps nothing.
+	 * @param maximumDirectories the number of listings kept at most.
+	 */
+	public FTPListingCache(long timeToLive, final int maximumDirectories)
+	{
+		this.timeToLive = timeToLive;
+		this.maximumDirectories = maximumDirectories;
+		this.listings = new LinkedHashMap<String, CachedListing>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest)
+			{
+				return size() > maximumDirectories;
+			}
+		};
+	}
+
+	public boolean isEnabled()
+	{
+		return timeToLive > 0 && maximumDirectories > 0;
+	}
+
+	/**
+	 * @return a copy of the listing of the directory, null when it is not kept or has expired.
+	 */
+	public synchronized List<StorageEntry> get(String directory)
+	{
+		directory = FTPTreeLister.normalize(directory);
+		CachedListing listing = listings.get(directory);
+
+		if(listing == null)
+		{
+			return null;
+		}
+
+		if(System.currentTimeMillis() - listing.listedAt > timeToLive)
+		{
+			listings.remove(directory);
+			return null;
+		}
+
+		return new ArrayList<StorageEntry>(listing.entries);
+	}
+
+	/**
+	 * @return the generation to hand to put once the directory has been read.
+	 */
+	public synchronized long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Keeps the listing unless a write has dropped listings since the generation was taken.
+	 */
+	public synchronized void put(String directory, List<StorageEntry> entries, long listedGeneration)
+	{
+		if(isEnabled() == false || listedGeneration != generation)
+		{
+			return;
+		}
+
+		listings.put(FTPTreeLister.normalize(directory), new CachedListing(entries));
+	}
+
+	/**
+	 * Drops the listing of the directory holding the file or directory at the path.
+	 */
+	public synchronized void invalidate(String path)
+	{
+		generation++;
+		listings.remove(parentOf(FTPTreeLister.normalize(path)));
+	}
+
+	/**
+	 * Drops the listing of the directory itself, for the files written into it.
+	 */
+	public synchronized void invalidateDirectory(String directory)
+	{
+		generation++;
+		listings.remove(FTPTreeLister.normalize(directory));
+	}
+
+	/**
+	 * Drops the listings of the directory, of every directory below it and of its parent,
+	 * for a directory deleted or renamed.
+	 */
+	public synchronized void invalidateTree(String directory)
+	{
+		generation++;
+		directory = FTPTreeLister.normalize(directory);
+		listings.remove(parentOf(directory));
+		Iterator<String> iterator = listings.keySet().iterator();
+
+		while(iterator.hasNext())
+		{
+			String path = iterator.next();
+
+			if(path.equals(directory) || path.startsWith(directory+"/") || directory.length() == 0)
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		generation++;
+		listings.clear();
+	}
+
+	/**
+	 * @return the directory holding the path, "" for a path in the storage folder.
+	 */
+	public static String parentOf(String path)
+	{
+		int index = path.lastIndexOf('/');
+
+		if(index > 0)
+		{
+			return path.substring(0, index);
+		}
+
+		return index == 0 ? "/" : "";
+	}
+
+	private static class CachedListing
+	{
+		private List<StorageEntry> entries;
+		private long listedAt;
+
+		public CachedListing(List<StorageEntry> entries)
+		{
+			this.entries = Collections.unmodifiableList(new ArrayList<StorageEntry>(entries));
+			this.listedAt = System.currentTimeMillis();
+		}
+	}
+}
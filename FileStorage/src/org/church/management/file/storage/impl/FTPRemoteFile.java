@@ -0,0 +1,67 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+
+import org.church.management.file.storage.StorageEntry;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class is a file listed on the ftp server, nothing is downloaded for it.
+ * The size, the modified date and the type come from the listing, the path is
+ * the path on the server relative to the storage folder.
+ *
+ * Only the methods describing the file answer for the server, the rest of the methods
+ * of File work on the local disk and the file has to be retrieved for them.
+ */
+public class FTPRemoteFile extends File
+{
+	private static final long serialVersionUID = 1L;
+
+	private StorageEntry entry;
+
+	public FTPRemoteFile(StorageEntry entry)
+	{
+		super(entry.getPath());
+		this.entry = entry;
+	}
+
+	/**
+	 * @return the path on the server with '/' between the directories.
+	 */
+	public String getRemotePath()
+	{
+		return entry.getPath();
+	}
+
+	public StorageEntry getEntry()
+	{
+		return entry;
+	}
+
+	public boolean exists()
+	{
+		return entry.exists();
+	}
+
+	public boolean isDirectory()
+	{
+		return entry.isDirectory();
+	}
+
+	public boolean isFile()
+	{
+		return entry.isFile();
+	}
+
+	public long length()
+	{
+		return entry.isDirectory() ? 0 : Math.max(0, entry.getSize());
+	}
+
+	public long lastModified()
+	{
+		return entry.getLastModified();
+	}
+}
@@ -0,0 +1,246 @@
+package org.church.management.file.storage.impl;
+
+import it.sauronsoftware.ftp4j.FTPCodes;
+import it.sauronsoftware.ftp4j.FTPException;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.church.management.ftp.connection.pool.FTPConnectionPoolManagement;
+import org.church.management.ftp.session.FTPSession;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class lends the sessions taken from the pool for a zip to the downloads of its entries.
+ * Every download gets a ticket when its entry is added and the sessions are lent in the order
+ * of the tickets, so the entry the zip is writing always gets a session before the entries
+ * waiting behind it, which could otherwise hold every session while they wait to be written.
+ *
+ * A session that fails is given back to the pool and replaced by a new one when the pool has one.
+ */
+class FTPSessionQueue
+{
+	private static final Logger logger = Logger.getLogger(FTPSessionQueue.class);
+
+	private FTPConnectionPoolManagement pool;
+	private LinkedList<FTPSession> free = new LinkedList<FTPSession>();
+	private int count;
+	private int nextTicket = 0;
+	private int servedTicket = 0;
+	private boolean closed = false;
+
+	public FTPSessionQueue(FTPConnectionPoolManagement pool, List<FTPSession> sessions)
+	{
+		this.pool = pool;
+		this.free.addAll(sessions);
+		this.count = sessions.size();
+	}
+
+	/**
+	 * @return the ticket of the next download, taken in the order the entries are added.
+	 */
+	public synchronized int reserve()
+	{
+		return nextTicket++;
+	}
+
+	/**
+	 * Opens the file with a session of the queue, the session comes back when the stream is closed.
+	 */
+	public InputStream openRead(int ticket, String filePath) throws Exception
+	{
+		FTPSession session = take(ticket);
+
+		try
+		{
+			return new QueuedInputStream(session.openRead(filePath), session);
+		}
+		catch(FTPException e)
+		{
+			//the server refused the file, the session is still fine.
+			giveBack(session);
+
+			if(e.getCode() == FTPCodes.FILE_NOT_FOUND || e.getCode() == FTPCodes.FILE_NAME_NOT_ALLOWED)
+			{
+				throw new FileNotFoundException("Could not be opened "+filePath+".");
+			}
+
+			throw e;
+		}
+		catch(Exception e)
+		{
+			discard(session);
+			throw e;
+		}
+	}
+
+	/**
+	 * Lets the downloads behind the ticket go on without taking a session, for a file read from the disk.
+	 */
+	public synchronized void skip(int ticket) throws InterruptedException, IOException
+	{
+		while(closed == false && ticket != servedTicket)
+		{
+			wait();
+		}
+
+		if(closed)
+		{
+			throw new IOException("The downloads of the zip have been stopped.");
+		}
+
+		servedTicket++;
+		notifyAll();
+	}
+
+	/**
+	 * Gives the sessions back to the pool, the sessions still downloading go back once they are done.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+
+		for(FTPSession session: free)
+		{
+			session.close();
+		}
+
+		free.clear();
+		notifyAll();
+	}
+
+	private synchronized FTPSession take(int ticket) throws InterruptedException, IOException
+	{
+		while(closed == false && count > 0 && (ticket != servedTicket || free.isEmpty()))
+		{
+			wait();
+		}
+
+		if(closed)
+		{
+			throw new IOException("The downloads of the zip have been stopped.");
+		}
+
+		if(count == 0)
+		{
+			throw new IOException("No connection to the server is left for the downloads of the zip.");
+		}
+
+		servedTicket++;
+		notifyAll();
+		return free.removeFirst();
+	}
+
+	private synchronized void giveBack(FTPSession session)
+	{
+		if(closed)
+		{
+			session.close();
+		}
+
+		else
+		{
+			free.add(session);
+		}
+
+		notifyAll();
+	}
+
+	private synchronized void discard(FTPSession session)
+	{
+		session.close();
+		count--;
+
+		if(closed == false)
+		{
+			try
+			{
+				free.add(pool.openSession());
+				count++;
+			}
+			catch(Exception e)
+			{
+				logger.error("FTPSessionQueue.discard()- Could not replace a failed session, "+count+" sessions are left.", e);
+			}
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class gives the session back to the queue
+	 * once the download stream is closed.
+	 */
+	private class QueuedInputStream extends FilterInputStream
+	{
+		private FTPSession session;
+		private boolean failed = false;
+
+		public QueuedInputStream(InputStream stream, FTPSession session)
+		{
+			super(stream);
+			this.session = session;
+		}
+
+		public int read() throws IOException
+		{
+			try
+			{
+				return super.read();
+			}
+			catch(IOException e)
+			{
+				failed = true;
+				throw e;
+			}
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			try
+			{
+				return super.read(bytes, offset, length);
+			}
+			catch(IOException e)
+			{
+				failed = true;
+				throw e;
+			}
+		}
+
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			catch(IOException e)
+			{
+				failed = true;
+				throw e;
+			}
+			finally
+			{
+				if(failed)
+				{
+					discard(session);
+				}
+
+				else
+				{
+					giveBack(session);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.church.management.file.storage.impl;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.ftp.connection.pool.FTPConnectionPoolManagement;
+import org.church.management.ftp.session.FTPSession;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class lists a directory on the ftp server one directory at a time.
+ * Each directory borrows a session only for its own listing, so no 
+ * connection is held while the caller works through the entries.
+ * A directory kept in the listing cache is not read from the server.
+ */
+class FTPStorageEntryIterator extends StorageEntryIterator
+{
+	private FTPConnectionPoolManagement pool;
+	private FTPListingCache listingCache;
+	
+	public FTPStorageEntryIterator(FTPConnectionPoolManagement pool, FTPListingCache listingCache, String directory, boolean recursive, String continuationToken)
+	{
+		super(directory, recursive, continuationToken);
+		this.pool = pool;
+		this.listingCache = listingCache;
+	}
+
+	protected List<StorageEntry> listDirectory(String directory) throws Exception 
+	{
+		List<StorageEntry> entries = listingCache.get(directory);
+		
+		if(entries != null)
+		{
+			return entries;
+		}
+		
+		FTPSession session = null;
+		long generation = listingCache.getGeneration();
+		entries = new ArrayList<StorageEntry>();
+		
+		try
+		{
+			session = pool.openSession();
+			
+			for(FTPFile file: session.getAllFilesForDirectory(directory))
+			{
+				if(file.getName().equals(".") || file.getName().equals(".."))
+				{
+					continue;
+				}
+				
+				entries.add(createEntry(directory, file));
+			}
+		}
+		finally
+		{
+			if(session != null)
+			{
+				session.close();
+			}
+		}
+		
+		listingCache.put(directory, entries, generation);
+		return entries;
+	}
+	
+	public static StorageEntry createEntry(String directory, FTPFile file)
+	{
+		String path = file.getName();
+		long lastModified = 0;
+		
+		if(directory != null && directory.length() > 0)
+		{
+			path = directory+"/"+file.getName();
+		}
+		
+		if(file.getModifiedDate() != null)
+		{
+			lastModified = file.getModifiedDate().getTime();
+		}
+		
+		return new StorageEntry(path, file.getName(), file.getType() == FTPFile.TYPE_DIRECTORY, file.getSize(), lastModified);
+	}
+}
@@ -0,0 +1,246 @@
+package org.church.management.file.storage.impl;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.exception.StorageListingException;
+import org.church.management.ftp.connection.pool.FTPConnectionPoolManagement;
+import org.church.management.ftp.session.FTPSession;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class lists a directory tree of the ftp server over several sessions of the pool at once.
+ * The directories are read breadth first, every session takes the next directory waiting to be read
+ * and puts back the sub directories it finds, so the round trips to the server overlap
+ * instead of waiting for the server one directory at a time.
+ *
+ * The directories kept in the listing cache are not read from the server.
+ * The listing stops at the first directory that cannot be read.
+ *
+ * The lister never takes the whole pool, one connection is left for the single operations
+ * running while a big tree is listed.
+ */
+class FTPTreeLister
+{
+	private static final Logger logger = Logger.getLogger(FTPTreeLister.class);
+
+	private FTPConnectionPoolManagement pool;
+	private FTPListingCache listingCache;
+	private ExecutorService workers;
+	private int parallelism;
+
+	public FTPTreeLister(FTPConnectionPoolManagement pool, FTPListingCache listingCache, ExecutorService workers, int parallelism)
+	{
+		this.pool = pool;
+		this.listingCache = listingCache;
+		this.workers = workers;
+		this.parallelism = Math.max(1, Math.min(parallelism, pool.getMaximumPoolSize() - 1));
+	}
+
+	/**
+	 * @return the files and directories below the directory, in no particular order.
+	 */
+	public List<StorageEntry> list(String directory) throws Exception
+	{
+		Listing listing = new Listing(normalize(directory));
+		List<FTPSession> sessions = pool.openSessions(parallelism);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for(int i = 1; i < sessions.size(); i++)
+		{
+			futures.add(workers.submit(new ListingWorker(sessions.get(i), listingCache, listing)));
+		}
+
+		new ListingWorker(sessions.get(0), listingCache, listing).run();
+
+		for(Future<?> future: futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch(ExecutionException e)
+			{
+				logger.error("FTPTreeLister.list()- A listing worker has failed.", e);
+			}
+		}
+
+		if(listing.failure != null)
+		{
+			throw listing.failure;
+		}
+
+		return listing.entries;
+	}
+
+	/**
+	 * @return the directory without a trailing '/', the paths of the listed entries start with it.
+	 */
+	public static String normalize(String directory)
+	{
+		if(directory == null)
+		{
+			return "";
+		}
+
+		while(directory.endsWith("/") && directory.length() > 1)
+		{
+			directory = directory.substring(0, directory.length() - 1);
+		}
+
+		return directory;
+	}
+
+	/**
+	 * One listing of a tree, it is finished once no directory is waiting or being read.
+	 */
+	private static class Listing
+	{
+		private LinkedList<String> directories = new LinkedList<String>();
+		private List<StorageEntry> entries = new ArrayList<StorageEntry>();
+		private int reading = 0;
+		private StorageListingException failure = null;
+
+		public Listing(String directory)
+		{
+			directories.add(directory);
+		}
+
+		/**
+		 * @return the next directory to read, null once the listing is finished or has failed.
+		 */
+		public synchronized String next() throws InterruptedException
+		{
+			while(failure == null && directories.isEmpty() && reading > 0)
+			{
+				wait();
+			}
+
+			if(failure != null || directories.isEmpty())
+			{
+				return null;
+			}
+
+			reading++;
+			return directories.removeFirst();
+		}
+
+		public synchronized void done(List<StorageEntry> children)
+		{
+			for(StorageEntry child: children)
+			{
+				if(child.isDirectory())
+				{
+					directories.add(child.getPath());
+				}
+			}
+
+			entries.addAll(children);
+			reading--;
+			notifyAll();
+		}
+
+		public synchronized void fail(String directory, Exception e)
+		{
+			if(failure == null)
+			{
+				failure = new StorageListingException("Could not list the directory: "+directory+".", e);
+			}
+
+			reading--;
+			notifyAll();
+		}
+
+		public synchronized void cancel(Exception e)
+		{
+			if(failure == null)
+			{
+				failure = new StorageListingException("The listing has been interrupted.", e);
+			}
+
+			notifyAll();
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class reads the directories of a listing with one session
+	 * and gives the session back to the pool once the listing is finished.
+	 */
+	private static class ListingWorker implements Runnable
+	{
+		private FTPSession session;
+		private FTPListingCache listingCache;
+		private Listing listing;
+
+		public ListingWorker(FTPSession session, FTPListingCache listingCache, Listing listing)
+		{
+			this.session = session;
+			this.listingCache = listingCache;
+			this.listing = listing;
+		}
+
+		public void run()
+		{
+			try
+			{
+				String directory = listing.next();
+
+				while(directory != null)
+				{
+					try
+					{
+						List<StorageEntry> children = listingCache.get(directory);
+
+						if(children == null)
+						{
+							long generation = listingCache.getGeneration();
+							children = new ArrayList<StorageEntry>();
+
+							for(FTPFile file: session.getAllFilesForDirectory(directory))
+							{
+								if(file.getName().equals(".") || file.getName().equals(".."))
+								{
+									continue;
+								}
+
+								children.add(FTPStorageEntryIterator.createEntry(directory, file));
+							}
+
+							listingCache.put(directory, children, generation);
+						}
+
+						listing.done(children);
+					}
+					catch(Exception e)
+					{
+						listing.fail(directory, e);
+					}
+
+					directory = listing.next();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				listing.cancel(e);
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				session.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,562 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps the files waiting to be uploaded to the ftp server in a local spool directory.
+ * A file is copied into the spool and synced to the disk before it is accepted, together with
+ * a small properties file holding its remote path, so the spool survives a restart.
+ *
+ * The spooled files are uploaded in the background, only one upload per remote path runs at a time.
+ * When a path is written again while its upload is waiting, only the newest content is uploaded.
+ * A failed upload is retried with a growing delay, once all the attempts are used up the file
+ * stays in the spool and is tried again on the next start up, unless its path is deleted or renamed first.
+ */
+class FTPUploadSpool
+{
+	private static final Logger logger = Logger.getLogger(FTPUploadSpool.class);
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	private static final long MAXIMUM_RETRY_DELAY = 60000;
+
+	private File spoolFolder;
+	private Uploader uploader;
+	private int maximumAttempts;
+	private long retryDelay;
+	private ScheduledExecutorService workers;
+
+	private long sequence = 0;
+	private Map<String, PathState> states = new HashMap<String, PathState>();
+	private Map<File, Integer> readers = new HashMap<File, Integer>();
+	private Set<File> discarded = new HashSet<File>();
+
+	public FTPUploadSpool(File spoolFolder, Uploader uploader, int parallelism, int maximumAttempts, long retryDelay) throws IOException
+	{
+		this.spoolFolder = spoolFolder;
+		this.uploader = uploader;
+		this.maximumAttempts = maximumAttempts;
+		this.retryDelay = retryDelay;
+		this.workers = Executors.newScheduledThreadPool(parallelism, new SpoolThreadFactory());
+
+		FileUtils.forceMkdir(spoolFolder);
+		recover();
+	}
+
+	/**
+	 * Copies the file into the spool, the upload to the path starts in the background.
+	 */
+	public void spool(String path, File file) throws IOException
+	{
+		long number = 0;
+
+		synchronized(this)
+		{
+			sequence++;
+			number = sequence;
+		}
+
+		SpoolEntry entry = new SpoolEntry(path, number, new File(spoolFolder, number+".data"), new File(spoolFolder, number+".properties"));
+		InputStream input = new FileInputStream(file);
+
+		try
+		{
+			FileOutputStream output = new FileOutputStream(entry.data);
+
+			try
+			{
+				IOUtils.copyLarge(input, output);
+				output.getFD().sync();
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+		catch(IOException e)
+		{
+			entry.data.delete();
+			throw e;
+		}
+		finally
+		{
+			input.close();
+		}
+
+		try
+		{
+			writeDescription(entry);
+		}
+		catch(IOException e)
+		{
+			entry.data.delete();
+			throw e;
+		}
+
+		enqueue(entry);
+	}
+
+	/**
+	 * @return the spooled content of the path that has not been uploaded yet, otherwise null.
+	 * The file is kept until it is given back to release, even when its upload finishes meanwhile.
+	 */
+	public synchronized File acquireSpooledFile(String path)
+	{
+		PathState state = states.get(path);
+
+		if(state == null)
+		{
+			return null;
+		}
+
+		File data = state.waiting != null ? state.waiting.data : state.running.data;
+		Integer count = readers.get(data);
+		readers.put(data, count == null ? 1 : count + 1);
+		return data;
+	}
+
+	/**
+	 * Gives back a file from acquireSpooledFile, the file is deleted here when it was discarded while it was read.
+	 */
+	public synchronized void releaseSpooledFile(File data)
+	{
+		Integer count = readers.get(data);
+
+		if(count == null)
+		{
+			return;
+		}
+
+		if(count > 1)
+		{
+			readers.put(data, count - 1);
+			return;
+		}
+
+		readers.remove(data);
+
+		if(discarded.remove(data))
+		{
+			delete(data);
+		}
+	}
+
+	public synchronized int getPendingCount()
+	{
+		int count = 0;
+
+		for(PathState state: states.values())
+		{
+			count++;
+
+			if(state.waiting != null)
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Waits until the paths in the directory are uploaded, an empty directory waits for every path.
+	 * Throws when a path in the directory has used up its attempts, only once for every failed upload,
+	 * the later calls pass over it.
+	 */
+	public synchronized void flush(String directory) throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			boolean pending = false;
+
+			for(Map.Entry<String, PathState> state: states.entrySet())
+			{
+				if(isInDirectory(state.getKey(), directory) == false)
+				{
+					continue;
+				}
+
+				SpoolEntry running = state.getValue().running;
+
+				if(state.getValue().waiting == null && running.failed)
+				{
+					if(running.reported)
+					{
+						continue;
+					}
+
+					running.reported = true;
+					throw new IOException("The upload of "+state.getKey()+" has failed, the file is kept in the spool: "+running.data.getPath()+".");
+				}
+
+				pending = true;
+			}
+
+			if(pending == false)
+			{
+				return;
+			}
+
+			wait();
+		}
+	}
+
+	/**
+	 * Drops the uploads in the directory that have used up their attempts,
+	 * used when the paths are deleted or renamed and their content is not wanted anymore.
+	 */
+	public synchronized void discardFailed(String directory)
+	{
+		Iterator<Map.Entry<String, PathState>> iterator = states.entrySet().iterator();
+
+		while(iterator.hasNext())
+		{
+			Map.Entry<String, PathState> state = iterator.next();
+
+			if(isInDirectory(state.getKey(), directory) && state.getValue().waiting == null && state.getValue().running.failed)
+			{
+				logger.warn("FTPUploadSpool.discardFailed()- Dropping the failed upload of: "+state.getKey()+".");
+				discard(state.getValue().running);
+				iterator.remove();
+			}
+		}
+
+		notifyAll();
+	}
+
+	public void shutdown()
+	{
+		workers.shutdownNow();
+	}
+
+	private void enqueue(SpoolEntry entry)
+	{
+		synchronized(this)
+		{
+			PathState state = states.get(entry.path);
+
+			if(state == null)
+			{
+				state = new PathState();
+				state.running = entry;
+				states.put(entry.path, state);
+				submit(entry, 0);
+				return;
+			}
+
+			if(state.running.failed)
+			{
+				discard(state.running);
+				state.running = entry;
+				submit(entry, 0);
+				return;
+			}
+
+			if(state.waiting != null)
+			{
+				//the older content would be overwritten right after it is uploaded.
+				discard(state.waiting);
+			}
+
+			state.waiting = entry;
+		}
+	}
+
+	private void submit(final SpoolEntry entry, long delay)
+	{
+		workers.schedule(new Runnable()
+		{
+			public void run()
+			{
+				upload(entry);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void upload(SpoolEntry entry)
+	{
+		try
+		{
+			uploader.upload(entry.path, entry.data);
+		}
+		catch(Exception e)
+		{
+			entry.attempts++;
+
+			if(entry.attempts < maximumAttempts)
+			{
+				long delay = Math.min(MAXIMUM_RETRY_DELAY, retryDelay << Math.min(entry.attempts - 1, 16));
+				logger.error("FTPUploadSpool.upload()- Could not upload file: "+entry.path+", retrying in "+delay+" milliseconds.", e);
+				submit(entry, delay);
+				return;
+			}
+
+			logger.error("FTPUploadSpool.upload()- Could not upload file: "+entry.path+" after "+entry.attempts+" attempts, it is kept in the spool.", e);
+			failed(entry);
+			return;
+		}
+
+		completed(entry);
+	}
+
+	private synchronized void completed(SpoolEntry entry)
+	{
+		PathState state = states.get(entry.path);
+		discard(entry);
+
+		if(state.waiting != null)
+		{
+			state.running = state.waiting;
+			state.waiting = null;
+			submit(state.running, 0);
+		}
+
+		else
+		{
+			states.remove(entry.path);
+		}
+
+		notifyAll();
+	}
+
+	private synchronized void failed(SpoolEntry entry)
+	{
+		PathState state = states.get(entry.path);
+
+		if(state.waiting != null)
+		{
+			//the newer content replaces the one that could not be uploaded.
+			discard(entry);
+			state.running = state.waiting;
+			state.waiting = null;
+			submit(state.running, 0);
+		}
+
+		else
+		{
+			entry.failed = true;
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * The description goes first, a data file without a description is left over from a crash.
+	 * A data file that is being read is deleted when its last reader releases it.
+	 */
+	private void discard(SpoolEntry entry)
+	{
+		delete(entry.description);
+
+		if(readers.containsKey(entry.data))
+		{
+			discarded.add(entry.data);
+			return;
+		}
+
+		delete(entry.data);
+	}
+
+	private static void delete(File file)
+	{
+		if(file.delete() == false && file.exists())
+		{
+			logger.error("FTPUploadSpool.delete()- Could not delete: "+file.getPath()+".");
+		}
+	}
+
+	private void writeDescription(SpoolEntry entry) throws IOException
+	{
+		Properties description = new Properties();
+		description.setProperty("path", entry.path);
+		description.setProperty("sequence", String.valueOf(entry.sequence));
+
+		File temporary = new File(spoolFolder, entry.sequence+".tmp");
+		FileOutputStream output = new FileOutputStream(temporary);
+
+		try
+		{
+			description.store(output, null);
+			output.getFD().sync();
+		}
+		finally
+		{
+			output.close();
+		}
+
+		if(temporary.renameTo(entry.description) == false)
+		{
+			temporary.delete();
+			throw new IOException("Could not spool the file: "+entry.path+".");
+		}
+	}
+
+	/**
+	 * Queues the files left in the spool by the last run, in the order they were spooled.
+	 */
+	private void recover() throws IOException
+	{
+		File[] files = spoolFolder.listFiles();
+
+		if(files == null)
+		{
+			throw new IOException("Could not read the spool: "+spoolFolder.getPath()+".");
+		}
+
+		List<SpoolEntry> entries = new ArrayList<SpoolEntry>();
+
+		for(File file: files)
+		{
+			if(file.getName().endsWith(".properties") == false)
+			{
+				continue;
+			}
+
+			Properties description = new Properties();
+			InputStream input = new FileInputStream(file);
+
+			try
+			{
+				description.load(input);
+				long number = Long.parseLong(description.getProperty("sequence"));
+				entries.add(new SpoolEntry(description.getProperty("path"), number, new File(spoolFolder, number+".data"), file));
+			}
+			catch(Exception e)
+			{
+				logger.error("FTPUploadSpool.recover()- Could not read the spooled file: "+file.getPath()+".", e);
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+
+		Collections.sort(entries, new Comparator<SpoolEntry>()
+		{
+			public int compare(SpoolEntry first, SpoolEntry second)
+			{
+				if(first.sequence < second.sequence)
+				{
+					return -1;
+				}
+
+				return first.sequence == second.sequence ? 0 : 1;
+			}
+		});
+
+		List<String> kept = new ArrayList<String>();
+
+		for(SpoolEntry entry: entries)
+		{
+			if(entry.data.exists() == false)
+			{
+				entry.description.delete();
+				continue;
+			}
+
+			sequence = Math.max(sequence, entry.sequence);
+			kept.add(entry.data.getName());
+			kept.add(entry.description.getName());
+		}
+
+		for(File file: files)
+		{
+			if(kept.contains(file.getName()) == false && file.getName().endsWith(".properties") == false)
+			{
+				file.delete();
+			}
+		}
+
+		for(SpoolEntry entry: entries)
+		{
+			if(entry.data.exists())
+			{
+				enqueue(entry);
+			}
+		}
+
+		if(entries.isEmpty() == false)
+		{
+			logger.info("FTPUploadSpool.recover()- Resuming "+entries.size()+" spooled uploads.");
+		}
+	}
+
+	private static boolean isInDirectory(String path, String directory)
+	{
+		return directory == null || directory.length() == 0 || path.equals(directory) || path.startsWith(directory+"/");
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This interface sends a spooled file to its remote path.
+	 */
+	interface Uploader
+	{
+		public void upload(String path, File file) throws Exception;
+	}
+
+	private static class SpoolEntry
+	{
+		private String path;
+		private long sequence;
+		private File data;
+		private File description;
+		private int attempts = 0;
+		private boolean failed = false;
+		private boolean reported = false;
+
+		public SpoolEntry(String path, long sequence, File data, File description)
+		{
+			this.path = path;
+			this.sequence = sequence;
+			this.data = data;
+			this.description = description;
+		}
+	}
+
+	/**
+	 * The upload that is running or retrying for a path,
+	 * and the newest content written after it was started.
+	 */
+	private static class PathState
+	{
+		private SpoolEntry running;
+		private SpoolEntry waiting;
+	}
+
+	private static class SpoolThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ftp-upload-spool-"+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
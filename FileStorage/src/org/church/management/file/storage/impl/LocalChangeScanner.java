@@ -0,0 +1,415 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.change.StorageChange;
+import org.church.management.file.storage.change.StorageChangeFeed;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class records the changes to the files of a local storage in a change feed.
+ * The writes made through the storage are recorded right away. The files changed outside
+ * the storage are found by a background scan that compares the size and modified time of
+ * every file with what it saw the last time, a file renamed outside the storage shows up
+ * as deleted and created.
+ *
+ * The first scan after a start up only reports the files modified after the latest change
+ * in the feed, the files deleted while the storage was not running are not reported.
+ *
+ * Without a feed every method returns right away.
+ */
+class LocalChangeScanner
+{
+	private static final Logger logger = Logger.getLogger(LocalChangeScanner.class);
+
+	private File storageFolder;
+	private StorageChangeFeed feed;
+	private LocalFileWalker walker;
+	private ScheduledExecutorService scheduler;
+
+	private TreeMap<String, FileState> snapshot = null;
+	private Set<String> changedDuringScan = null;
+
+	/**
+	 * @param feed the feed the changes go to, null to record nothing.
+	 * @param scanInterval the milliseconds between the scans, 0 for no scans.
+	 */
+	public LocalChangeScanner(File storageFolder, StorageChangeFeed feed, LocalFileWalker walker, long scanInterval)
+	{
+		this.storageFolder = storageFolder.getAbsoluteFile();
+		this.feed = feed;
+		this.walker = walker;
+
+		if(feed != null && scanInterval > 0)
+		{
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ScannerThreadFactory(storageFolder.getName()));
+			scheduler.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					scan();
+				}
+			}, 0, scanInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public StorageChangeFeed getFeed()
+	{
+		return feed;
+	}
+
+	/**
+	 * Records a file that was written, it is created if the scan has not seen it before.
+	 */
+	public void written(File file)
+	{
+		if(feed == null)
+		{
+			return;
+		}
+
+		String path = getRelativePath(file);
+
+		synchronized(this)
+		{
+			FileState previous = update(path, file);
+			feed.record(previous == null ? StorageChange.CREATED : StorageChange.MODIFIED, false, file.length(), path, null);
+		}
+	}
+
+	public void directoryCreated(File directory)
+	{
+		if(feed == null)
+		{
+			return;
+		}
+
+		feed.record(StorageChange.CREATED, true, 0, getRelativePath(directory), null);
+	}
+
+	public void deleted(File file, boolean directory)
+	{
+		if(feed == null)
+		{
+			return;
+		}
+
+		String path = getRelativePath(file);
+
+		synchronized(this)
+		{
+			remove(path, directory);
+			feed.record(StorageChange.DELETED, directory, 0, path, null);
+		}
+	}
+
+	public void renamed(File from, File to, boolean directory)
+	{
+		if(feed == null)
+		{
+			return;
+		}
+
+		String fromPath = getRelativePath(from), toPath = getRelativePath(to);
+
+		synchronized(this)
+		{
+			Map<String, FileState> moved = new HashMap<String, FileState>();
+
+			if(snapshot != null && directory)
+			{
+				//the files below the directory move along, so the next scan does not report them again.
+				for(Map.Entry<String, FileState> file: snapshot.subMap(fromPath+"/", fromPath+"0").entrySet())
+				{
+					moved.put(toPath+file.getKey().substring(fromPath.length()), file.getValue());
+				}
+			}
+
+			remove(fromPath, directory);
+			remove(toPath, directory);
+
+			if(directory == false)
+			{
+				update(toPath, to);
+			}
+
+			else if(snapshot != null)
+			{
+				snapshot.putAll(moved);
+			}
+
+			feed.record(StorageChange.RENAMED, directory, directory ? 0 : to.length(), toPath, fromPath);
+		}
+	}
+
+	/**
+	 * Records the file once the stream is closed.
+	 */
+	public OutputStream openWrite(final File file, OutputStream stream)
+	{
+		if(feed == null)
+		{
+			return stream;
+		}
+
+		return new FilterOutputStream(stream)
+		{
+			private boolean closed = false;
+
+			public void write(byte[] bytes, int offset, int length) throws IOException
+			{
+				out.write(bytes, offset, length);
+			}
+
+			public void close() throws IOException
+			{
+				if(closed)
+				{
+					return;
+				}
+
+				closed = true;
+				out.close();
+				written(file);
+			}
+		};
+	}
+
+	public void shutdown()
+	{
+		if(scheduler != null)
+		{
+			scheduler.shutdownNow();
+		}
+
+		if(feed != null)
+		{
+			feed.close();
+		}
+	}
+
+	/**
+	 * Walks the storage and records the files that were created, modified or deleted since the last scan.
+	 */
+	public void scan()
+	{
+		Map<String, FileState> found = new HashMap<String, FileState>();
+
+		synchronized(this)
+		{
+			changedDuringScan = new HashSet<String>();
+		}
+
+		try
+		{
+			if(storageFolder.isDirectory())
+			{
+				walk(found);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("LocalChangeScanner.scan()- Could not scan the storage: "+storageFolder.getPath()+".", e);
+
+			synchronized(this)
+			{
+				changedDuringScan = null;
+			}
+
+			return;
+		}
+
+		synchronized(this)
+		{
+			if(snapshot == null)
+			{
+				long since = feed.getLatestTime();
+				snapshot = new TreeMap<String, FileState>(found);
+
+				for(Map.Entry<String, FileState> file: found.entrySet())
+				{
+					if(since > 0 && file.getValue().lastModified > since && changedDuringScan.contains(file.getKey()) == false)
+					{
+						feed.record(StorageChange.MODIFIED, false, file.getValue().size, file.getKey(), null);
+					}
+				}
+			}
+
+			else
+			{
+				compare(found);
+			}
+
+			changedDuringScan = null;
+		}
+	}
+
+	private void compare(Map<String, FileState> found)
+	{
+		for(Map.Entry<String, FileState> file: found.entrySet())
+		{
+			if(isChangedDuringScan(file.getKey()))
+			{
+				continue;
+			}
+
+			FileState previous = snapshot.put(file.getKey(), file.getValue());
+
+			if(previous == null)
+			{
+				feed.record(StorageChange.CREATED, false, file.getValue().size, file.getKey(), null);
+			}
+
+			else if(previous.size != file.getValue().size || previous.lastModified != file.getValue().lastModified)
+			{
+				feed.record(StorageChange.MODIFIED, false, file.getValue().size, file.getKey(), null);
+			}
+		}
+
+		for(String path: new ArrayList<String>(snapshot.keySet()))
+		{
+			if(found.containsKey(path) == false && isChangedDuringScan(path) == false)
+			{
+				snapshot.remove(path);
+				feed.record(StorageChange.DELETED, false, 0, path, null);
+			}
+		}
+	}
+
+	private void walk(final Map<String, FileState> found) throws Exception
+	{
+		walker.walk(storageFolder, new LocalFileWalker.Visitor()
+		{
+			public void visit(File directory, List<File> files)
+			{
+				Map<String, FileState> states = new HashMap<String, FileState>();
+
+				for(File file: files)
+				{
+					states.put(getRelativePath(file), new FileState(file.length(), file.lastModified()));
+				}
+
+				synchronized(found)
+				{
+					found.putAll(states);
+				}
+			}
+		});
+	}
+
+	/**
+	 * A path written through the storage while the scan runs is left to the next scan.
+	 */
+	private boolean isChangedDuringScan(String path)
+	{
+		if(changedDuringScan.contains(path))
+		{
+			return true;
+		}
+
+		for(String changed: changedDuringScan)
+		{
+			if(StorageUsageTracker.isInDirectory(path, changed))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void markChanged(String path)
+	{
+		if(changedDuringScan != null)
+		{
+			changedDuringScan.add(path);
+		}
+	}
+
+	private FileState update(String path, File file)
+	{
+		markChanged(path);
+
+		if(snapshot == null)
+		{
+			return null;
+		}
+
+		return snapshot.put(path, new FileState(file.length(), file.lastModified()));
+	}
+
+	private void remove(String path, boolean directory)
+	{
+		markChanged(path);
+
+		if(snapshot == null)
+		{
+			return;
+		}
+
+		snapshot.remove(path);
+
+		if(directory)
+		{
+			snapshot.subMap(path+"/", path+"0").clear();
+		}
+	}
+
+	private String getRelativePath(File file)
+	{
+		String root = storageFolder.getPath(), path = file.getAbsolutePath();
+
+		if(path.startsWith(root+File.separator) == false)
+		{
+			return path.replace(File.separatorChar, '/');
+		}
+
+		return path.substring(root.length() + 1).replace(File.separatorChar, '/');
+	}
+
+	private static class FileState
+	{
+		private long size;
+		private long lastModified;
+
+		public FileState(long size, long lastModified)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static class ScannerThreadFactory implements ThreadFactory
+	{
+		private String name;
+
+		public ScannerThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "storage-changes-"+name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class has the file channel operations shared 
+ * by the storages on the local file system.
+ */
+public final class LocalFileChannels 
+{
+	private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+	private static final long MAXIMUM_BACK_OFF = 50;
+	
+	private LocalFileChannels()
+	{
+	}
+	
+	/**
+	 * Reads a range of the file with positional reads, only the 
+	 * requested bytes are read from the disk.
+	 * 
+	 * @return the bytes of the range, fewer than the length when the range passes the end of the file.
+	 */
+	public static byte[] readRange(File file, long offset, int length) throws IOException
+	{
+		if(offset < 0 || length < 0)
+		{
+			throw new IllegalArgumentException("The offset and length cannot be negative.");
+		}
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		
+		try
+		{
+			FileChannel channel = randomAccessFile.getChannel();
+			long available = Math.max(0, channel.size() - offset);
+			ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(length, available));
+			long position = offset;
+			
+			while(buffer.hasRemaining())
+			{
+				int read = channel.read(buffer, position);
+				
+				if(read < 0)
+				{
+					break;
+				}
+				
+				position += read;
+			}
+			
+			if(buffer.hasRemaining())
+			{
+				byte[] bytes = new byte[buffer.position()];
+				System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+				return bytes;
+			}
+			
+			return buffer.array();
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+	
+	public static FileChannel openReadOnly(File file) throws IOException
+	{
+		return new FileInputStream(file).getChannel();
+	}
+	
+	/**
+	 * Maps the whole file read only, the pages are read by the operating system
+	 * when they are used and the mapping stays valid after the channel is closed.
+	 */
+	public static MappedByteBuffer map(File file) throws IOException
+	{
+		FileChannel channel = openReadOnly(file);
+		
+		try
+		{
+			if(channel.size() > Integer.MAX_VALUE)
+			{
+				throw new IOException("File "+file.getPath()+" is too large to be mapped.");
+			}
+			
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Sends the file with FileChannel.transferTo, which the operating system can do
+	 * without copying the bytes through the heap when the target is a socket or a file.
+	 * 
+	 * @return the number of bytes written to the target.
+	 */
+	public static long transferTo(File file, WritableByteChannel target) throws IOException
+	{
+		FileChannel channel = openReadOnly(file);
+		
+		try
+		{
+			long size = channel.size();
+			long position = 0;
+			int idle = 0;
+			
+			//transferTo may send fewer bytes than asked for, for example to a non blocking socket.
+			while(position < size)
+			{
+				long transferred = channel.transferTo(position, size - position, target);
+				
+				if(transferred <= 0 && channel.size() <= position)
+				{
+					break;
+				}
+				
+				//a full non blocking target takes nothing, waiting a little keeps the loop from spinning.
+				idle = transferred <= 0 ? backOff(idle) : 0;
+				position += transferred;
+			}
+			
+			return position;
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Writes the stream to the channel, for the storages that do not have the file on the local disk.
+	 * 
+	 * @return the number of bytes written to the target.
+	 */
+	public static long copy(InputStream input, WritableByteChannel target) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		long count = 0;
+		int read = input.read(buffer.array());
+		
+		while(read >= 0)
+		{
+			buffer.position(0);
+			buffer.limit(read);
+			int idle = 0;
+			
+			while(buffer.hasRemaining())
+			{
+				idle = target.write(buffer) <= 0 ? backOff(idle) : 0;
+			}
+			
+			count += read;
+			buffer.clear();
+			read = input.read(buffer.array());
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Copies the file inside the file system with FileChannel.transferTo, so the bytes do not
+	 * pass through the heap. When the channels can not transfer, the file is copied through a 
+	 * direct buffer instead. The parent directories are created and the modified date is kept,
+	 * the same as FileUtils.copyFile.
+	 */
+	public static void copyFile(File source, File target) throws IOException
+	{
+		if(source.isFile() == false)
+		{
+			throw new FileNotFoundException("File "+source.getPath()+" does not existed.");
+		}
+		
+		if(source.getCanonicalPath().equals(target.getCanonicalPath()))
+		{
+			throw new IOException("File "+source.getPath()+" can not be copied onto itself.");
+		}
+		
+		File parent = target.getParentFile();
+		
+		if(parent != null && parent.exists() == false && parent.mkdirs() == false && parent.isDirectory() == false)
+		{
+			throw new IOException("Could not create the directory: "+parent.getPath()+".");
+		}
+		
+		FileChannel input = openReadOnly(source);
+		
+		try
+		{
+			FileChannel output = new FileOutputStream(target).getChannel();
+			
+			try
+			{
+				long size = input.size();
+				
+				try
+				{
+					transfer(input, output, size);
+				}
+				catch(IOException e)
+				{
+					//some file systems and platforms refuse to transfer between channels.
+					output.truncate(0);
+					output.position(0);
+					copyDirect(input, output);
+				}
+				
+				if(output.size() != size)
+				{
+					throw new IOException("Could not copy the whole file "+source.getPath()+" to "+target.getPath()+".");
+				}
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		
+		target.setLastModified(source.lastModified());
+	}
+	
+	private static void transfer(FileChannel input, FileChannel output, long size) throws IOException
+	{
+		long position = 0;
+		
+		while(position < size)
+		{
+			long transferred = input.transferTo(position, size - position, output);
+			
+			if(transferred <= 0)
+			{
+				throw new IOException("The file channel did not transfer any bytes.");
+			}
+			
+			position += transferred;
+		}
+	}
+	
+	/**
+	 * Sleeps a little longer after every write the target did not take, up to MAXIMUM_BACK_OFF milliseconds.
+	 * 
+	 * @return the number of writes in a row the target did not take.
+	 */
+	private static int backOff(int idle) throws IOException
+	{
+		try
+		{
+			Thread.sleep(Math.min(MAXIMUM_BACK_OFF, 1L << Math.min(idle, 6)));
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the target to take more bytes.");
+		}
+		
+		return idle + 1;
+	}
+	
+	private static void copyDirect(FileChannel input, FileChannel output) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+		long position = 0;
+		int read = input.read(buffer, position);
+		
+		while(read >= 0)
+		{
+			buffer.flip();
+			
+			while(buffer.hasRemaining())
+			{
+				output.write(buffer);
+			}
+			
+			position += read;
+			buffer.clear();
+			read = input.read(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class walks a directory tree of the local disk with several threads.
+ * Every directory is read by its own task and the sub directories it finds are handed
+ * to the other threads, so a large tree keeps many reads in flight at once instead of
+ * waiting for the disk one directory at a time.
+ *
+ * A directory that cannot be read is skipped, the same as FileUtils.listFiles does.
+ * The symbolic links are skipped as well, the same as FileUtils.sizeOfDirectory does, so a link
+ * is not counted twice and a link pointing back up the tree does not walk forever.
+ */
+class LocalFileWalker
+{
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+	private ExecutorService workers;
+
+	public LocalFileWalker(int parallelism)
+	{
+		this.workers = Executors.newFixedThreadPool(Math.max(1, parallelism), new WalkerThreadFactory());
+	}
+
+	/**
+	 * Hands the files of every directory below the directory to the visitor, the visitor is called by several threads at once.
+	 * The walk stops at the first exception of the visitor.
+	 */
+	public void walk(File directory, Visitor visitor) throws IOException, InterruptedException
+	{
+		if(directory.isDirectory() == false)
+		{
+			throw new IllegalArgumentException("Parameter 'directory' is not a directory: "+directory.getPath()+".");
+		}
+
+		Walk walk = new Walk(visitor);
+		walk.submit(directory);
+
+		try
+		{
+			walk.await();
+		}
+		catch(InterruptedException e)
+		{
+			walk.cancel(e);
+			throw e;
+		}
+
+		if(walk.failure != null)
+		{
+			throw new IOException("Could not walk the directory: "+directory.getPath()+".", walk.failure);
+		}
+	}
+
+	/**
+	 * @return the files below the directory, in no particular order.
+	 */
+	public List<File> listFiles(File directory) throws IOException, InterruptedException
+	{
+		final List<File> files = Collections.synchronizedList(new ArrayList<File>());
+
+		walk(directory, new Visitor()
+		{
+			public void visit(File directory, List<File> directoryFiles)
+			{
+				files.addAll(directoryFiles);
+			}
+		});
+
+		return new ArrayList<File>(files);
+	}
+
+	/**
+	 * @return the bytes of the file or of all the files in the directory, 0 if there is nothing at the path.
+	 */
+	public long sizeOf(File file) throws IOException, InterruptedException
+	{
+		if(file.isDirectory() == false)
+		{
+			return file.isFile() ? file.length() : 0;
+		}
+
+		final AtomicLong size = new AtomicLong(0);
+
+		walk(file, new Visitor()
+		{
+			public void visit(File directory, List<File> files)
+			{
+				long bytes = 0;
+
+				for(File file: files)
+				{
+					bytes += file.length();
+				}
+
+				size.addAndGet(bytes);
+			}
+		});
+
+		return size.get();
+	}
+
+	public void shutdown()
+	{
+		workers.shutdownNow();
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This interface receives the files of one directory at a time.
+	 */
+	interface Visitor
+	{
+		public void visit(File directory, List<File> files) throws Exception;
+	}
+
+	/**
+	 * One walk of a tree, it is finished once no directory is waiting to be read.
+	 */
+	private class Walk
+	{
+		private Visitor visitor;
+		private AtomicInteger pending = new AtomicInteger(0);
+		private CountDownLatch finished = new CountDownLatch(1);
+		private volatile boolean cancelled = false;
+		private volatile Exception failure = null;
+
+		public Walk(Visitor visitor)
+		{
+			this.visitor = visitor;
+		}
+
+		public void submit(final File directory)
+		{
+			pending.incrementAndGet();
+
+			try
+			{
+				workers.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							read(directory);
+						}
+						finally
+						{
+							done();
+						}
+					}
+				});
+			}
+			catch(RejectedExecutionException e)
+			{
+				cancel(new IOException("The walker has been shut down."));
+				done();
+			}
+		}
+
+		private synchronized void cancel(Exception e)
+		{
+			if(failure == null)
+			{
+				failure = e;
+			}
+
+			cancelled = true;
+		}
+
+		private void done()
+		{
+			if(pending.decrementAndGet() == 0)
+			{
+				finished.countDown();
+			}
+		}
+
+		public void await() throws InterruptedException
+		{
+			finished.await();
+		}
+
+		private void read(File directory)
+		{
+			File[] children = cancelled ? null : directory.listFiles();
+
+			if(children == null)
+			{
+				return;
+			}
+
+			List<File> files = new ArrayList<File>(children.length);
+
+			for(File child: children)
+			{
+				if(isSymlink(child))
+				{
+					continue;
+				}
+
+				if(child.isDirectory())
+				{
+					submit(child);
+				}
+
+				else
+				{
+					files.add(child);
+				}
+			}
+
+			try
+			{
+				if(cancelled == false)
+				{
+					visitor.visit(directory, files);
+				}
+			}
+			catch(Exception e)
+			{
+				cancel(e);
+			}
+		}
+	}
+
+	/**
+	 * A file whose link cannot be read is skipped, the same as a directory that cannot be read.
+	 */
+	private static boolean isSymlink(File file)
+	{
+		try
+		{
+			return FileUtils.isSymlink(file);
+		}
+		catch(Exception e)
+		{
+			return true;
+		}
+	}
+
+	private static class WalkerThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "local-file-walker-"+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
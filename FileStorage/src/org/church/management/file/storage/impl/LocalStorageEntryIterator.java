@@ -0,0 +1,51 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class lists a directory on the local file system 
+ * one directory at a time.
+ */
+class LocalStorageEntryIterator extends StorageEntryIterator
+{
+	public LocalStorageEntryIterator(File directory, boolean recursive, String continuationToken)
+	{
+		super(directory.getPath(), recursive, continuationToken);
+	}
+
+	protected List<StorageEntry> listDirectory(String directory) throws Exception 
+	{
+		File[] files = new File(directory).listFiles();
+		
+		if(files == null)
+		{
+			throw new FileNotFoundException("Directory "+directory+" could not be listed.");
+		}
+		
+		List<StorageEntry> entries = new ArrayList<StorageEntry>(files.length);
+		
+		for(File file: files)
+		{
+			boolean isDirectory = file.isDirectory();
+			long size = 0;
+			
+			if(isDirectory == false)
+			{
+				size = file.length();
+			}
+			
+			entries.add(new StorageEntry(file.getPath(), file.getName(), isDirectory, size, file.lastModified()));
+		}
+		
+		return entries;
+	}
+}
@@ -0,0 +1,358 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.archive.ArchiveCache;
+import org.church.management.file.storage.archive.ArchivedEntry;
+import org.church.management.file.storage.archive.ParallelZipWriter;
+import org.church.management.file.storage.archive.ZipCompressor;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class writes a directory of the local disk as a zip to a stream.
+ * The files are handed to the compressor threads while the directory is read and
+ * written in order as they are compressed, so the first bytes go out right away
+ * and nothing is staged on the disk.
+ *
+ * With an archive cache the zip of a directory that has not changed is sent from the cache,
+ * otherwise the unchanged files are copied from the last zip of the directory and only the
+ * changed files are compressed, the new zip is kept in the cache while it is written.
+ */
+final class LocalZipWriter
+{
+	private static final Logger logger = Logger.getLogger(LocalZipWriter.class);
+
+	private LocalZipWriter()
+	{
+	}
+
+	/**
+	 * Writes the files below the directory with paths relative to it, the stream is finished but not closed.
+	 */
+	public static void writeDirectory(File directory, ZipCompressor compressor, OutputStream output) throws IOException
+	{
+		ParallelZipWriter zip = compressor.open(output);
+
+		try
+		{
+			addChildren(zip, directory, "");
+			zip.finish();
+		}
+		finally
+		{
+			zip.cancel();
+		}
+	}
+
+	/**
+	 * Writes the directory the same as writeDirectory(File, ZipCompressor, OutputStream) through the cache.
+	 *
+	 * @param key the name of the directory in the cache, like its path in the storage.
+	 * @param cache the cache of the zips, null to always compress the files.
+	 */
+	public static void writeDirectory(File directory, String key, ZipCompressor compressor, ArchiveCache cache, OutputStream output) throws IOException
+	{
+		if(cache == null)
+		{
+			writeDirectory(directory, compressor, output);
+			return;
+		}
+
+		List<ListedEntry> entries = new ArrayList<ListedEntry>();
+		listChildren(entries, directory, "");
+
+		//a zip written with another level or other stored extensions is not the same zip.
+		key = compressor.getSettings()+":"+key;
+		String fingerprint = fingerprint(entries);
+		ArchiveCache.Archive archive = cache.open(key, fingerprint);
+
+		if(archive != null)
+		{
+			try
+			{
+				LocalFileChannels.transferTo(archive.getFile(), output instanceof FileOutputStream ? ((FileOutputStream) output).getChannel() : Channels.newChannel(output));
+				output.flush();
+				return;
+			}
+			finally
+			{
+				archive.release();
+			}
+		}
+
+		ArchiveCache.Archive previous = cache.openLatest(key);
+		ArchiveCache.Builder builder = null;
+
+		try
+		{
+			Map<String, ArchivedEntry> reusable = null;
+
+			if(previous != null)
+			{
+				try
+				{
+					reusable = previous.getEntries();
+				}
+				catch(IOException e)
+				{
+					logger.error("LocalZipWriter.writeDirectory()- Could not read the manifest of the last zip of: "+directory.getPath()+".", e);
+				}
+			}
+
+			CacheOutputStream cached = null;
+
+			try
+			{
+				builder = cache.create(key, fingerprint);
+				cached = new CacheOutputStream(builder.getOutput());
+			}
+			catch(IOException e)
+			{
+				logger.error("LocalZipWriter.writeDirectory()- Could not cache the zip of: "+directory.getPath()+".", e);
+			}
+
+			ParallelZipWriter zip = compressor.open(cached == null ? output : new TeeOutputStream(output, cached));
+
+			try
+			{
+				for(ListedEntry entry: entries)
+				{
+					if(entry.file == null)
+					{
+						zip.addDirectory(entry.name, entry.lastModified);
+						continue;
+					}
+
+					ArchivedEntry archived = reusable == null ? null : reusable.get(entry.name);
+
+					if(archived != null && archived.getSize() == entry.size && archived.getLastModified() == entry.lastModified)
+					{
+						zip.addRaw(archived, previous.getFile());
+					}
+
+					else
+					{
+						final File file = entry.file;
+
+						zip.addEntry(entry.name, entry.lastModified, entry.size, new ParallelZipWriter.Source()
+						{
+							public InputStream open() throws Exception
+							{
+								return new FileInputStream(file);
+							}
+						});
+					}
+				}
+
+				zip.finish();
+			}
+			finally
+			{
+				zip.cancel();
+			}
+
+			if(cached != null && cached.failed == false)
+			{
+				try
+				{
+					builder.commit(zip.getEntries());
+				}
+				catch(IOException e)
+				{
+					logger.error("LocalZipWriter.writeDirectory()- Could not keep the zip of: "+directory.getPath()+".", e);
+				}
+			}
+		}
+		finally
+		{
+			if(builder != null)
+			{
+				builder.abort();
+			}
+
+			if(previous != null)
+			{
+				previous.release();
+			}
+		}
+	}
+
+	private static void listChildren(List<ListedEntry> entries, File directory, String prefix)
+	{
+		File[] children = directory.listFiles();
+
+		if(children == null)
+		{
+			return;
+		}
+
+		Arrays.sort(children);
+
+		for(File child: children)
+		{
+			String name = prefix+child.getName();
+
+			if(child.isDirectory())
+			{
+				entries.add(new ListedEntry(name+"/", null, 0, child.lastModified()));
+				listChildren(entries, child, name+"/");
+			}
+
+			else
+			{
+				entries.add(new ListedEntry(name, child, child.length(), child.lastModified()));
+			}
+		}
+	}
+
+	/**
+	 * @return a hash of the names, sizes and modified dates of the files, the directories count by their name.
+	 */
+	private static String fingerprint(List<ListedEntry> entries) throws IOException
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+			for(ListedEntry entry: entries)
+			{
+				String line = entry.file == null ? entry.name+"\n" : entry.name+"\t"+entry.size+"\t"+entry.lastModified+"\n";
+				digest.update(line.getBytes("UTF-8"));
+			}
+
+			StringBuilder hex = new StringBuilder();
+
+			for(byte value: digest.digest())
+			{
+				hex.append(Character.forDigit((value >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(value & 0xF, 16));
+			}
+
+			return hex.toString();
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IOException("SHA-256 is not available.", e);
+		}
+	}
+
+	private static void addChildren(ParallelZipWriter zip, File directory, String prefix) throws IOException
+	{
+		File[] children = directory.listFiles();
+
+		if(children == null)
+		{
+			//the directory was deleted or cannot be read, the same as the walker skips it.
+			return;
+		}
+
+		Arrays.sort(children);
+
+		for(File child: children)
+		{
+			String name = prefix+child.getName();
+
+			if(child.isDirectory())
+			{
+				zip.addDirectory(name, child.lastModified());
+				addChildren(zip, child, name+"/");
+			}
+
+			else
+			{
+				zip.addFile(name, child);
+			}
+		}
+	}
+
+	private static class ListedEntry
+	{
+		private String name;
+		private File file;
+		private long size;
+		private long lastModified;
+
+		public ListedEntry(String name, File file, long size, long lastModified)
+		{
+			this.name = name;
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * The branch of the zip into the cache, when the cache fails the zip still goes to the caller.
+	 */
+	private static class CacheOutputStream extends OutputStream
+	{
+		private OutputStream output;
+		private boolean failed = false;
+
+		public CacheOutputStream(OutputStream output)
+		{
+			this.output = output;
+		}
+
+		public void write(int value)
+		{
+			write(new byte[] {(byte) value}, 0, 1);
+		}
+
+		public void write(byte[] bytes, int offset, int count)
+		{
+			if(failed)
+			{
+				return;
+			}
+
+			try
+			{
+				output.write(bytes, offset, count);
+			}
+			catch(IOException e)
+			{
+				logger.error("LocalZipWriter.write()- Could not write the zip to the cache.", e);
+				failed = true;
+			}
+		}
+
+		public void flush()
+		{
+			if(failed)
+			{
+				return;
+			}
+
+			try
+			{
+				output.flush();
+			}
+			catch(IOException e)
+			{
+				logger.error("LocalZipWriter.flush()- Could not write the zip to the cache.", e);
+				failed = true;
+			}
+		}
+
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.church.management.file.storage.exception.StorageQuotaExceededException;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class admits or rejects the writes to a local storage against the storage limitation
+ * and the quotas of its directories. The usage comes from the running counters of the
+ * StorageUsageTracker, so a write is checked without looking at the files.
+ *
+ * A write first reserves the bytes it is going to add, the reserved bytes count against
+ * the quotas until the write has finished and its real size has been added to the tracker.
+ * A write that does not grow the storage is always admitted. Renames are not checked.
+ */
+class StorageQuota
+{
+	private StorageUsageTracker tracker;
+	private long limitation;
+	private Map<String, Long> directoryLimitations;
+
+	private long reserved = 0;
+	private Map<String, Long> directoryReserved = new HashMap<String, Long>();
+
+	/**
+	 * @param limitation the bytes the whole storage may hold, 0 for no limitation.
+	 * @param directoryLimitations the bytes a directory may hold, the directories have to be counted by the tracker.
+	 */
+	public StorageQuota(StorageUsageTracker tracker, long limitation, Map<String, Long> directoryLimitations)
+	{
+		this.tracker = tracker;
+		this.limitation = limitation;
+		this.directoryLimitations = directoryLimitations;
+
+		for(String directory: directoryLimitations.keySet())
+		{
+			directoryReserved.put(directory, 0L);
+		}
+	}
+
+	/**
+	 * Reads quotas like "tenants/a=1048576,tenants/b=2097152".
+	 */
+	public static Map<String, Long> parseDirectoryQuotas(String quotas)
+	{
+		Map<String, Long> limitations = new LinkedHashMap<String, Long>();
+
+		if(quotas == null || quotas.trim().length() == 0)
+		{
+			return limitations;
+		}
+
+		for(String quota: quotas.split(","))
+		{
+			int separator = quota.lastIndexOf('=');
+
+			if(separator < 0)
+			{
+				throw new IllegalArgumentException("The directory quota has no limitation: "+quota+".");
+			}
+
+			limitations.put(StorageUsageTracker.normalize(quota.substring(0, separator)), Long.parseLong(quota.substring(separator + 1).trim()));
+		}
+
+		return limitations;
+	}
+
+	/**
+	 * Reserves room for a write that grows the storage by the bytes at the file.
+	 * The reservation has to be released once the write has finished or failed.
+	 */
+	public Reservation reserve(File file, long bytes) throws StorageQuotaExceededException, InterruptedException
+	{
+		if(bytes <= 0 || (limitation <= 0 && directoryLimitations.isEmpty()))
+		{
+			return new Reservation(null, 0);
+		}
+
+		tracker.awaitUsage();
+		String path = tracker.getRelativePath(file);
+
+		synchronized(this)
+		{
+			if(limitation > 0 && tracker.getUsage() + reserved + bytes > limitation)
+			{
+				throw new StorageQuotaExceededException("Writing "+bytes+" bytes to "+file.getPath()+" would exceed the storage limitation of "+limitation+" bytes.", "", limitation);
+			}
+
+			for(Map.Entry<String, Long> directory: directoryLimitations.entrySet())
+			{
+				if(path != null && StorageUsageTracker.isInDirectory(path, directory.getKey()) && tracker.getUsage(directory.getKey()) + directoryReserved.get(directory.getKey()) + bytes > directory.getValue())
+				{
+					throw new StorageQuotaExceededException("Writing "+bytes+" bytes to "+file.getPath()+" would exceed the quota of "+directory.getKey()+" of "+directory.getValue()+" bytes.", directory.getKey(), directory.getValue());
+				}
+			}
+
+			reserved += bytes;
+
+			for(String directory: directoryLimitations.keySet())
+			{
+				if(path != null && StorageUsageTracker.isInDirectory(path, directory))
+				{
+					directoryReserved.put(directory, directoryReserved.get(directory) + bytes);
+				}
+			}
+		}
+
+		return new Reservation(path, bytes);
+	}
+
+	/**
+	 * Checks a write whose size is not known yet, it is only rejected when the storage
+	 * or a directory holding the file is already full.
+	 */
+	public void check(File file) throws StorageQuotaExceededException, InterruptedException
+	{
+		reserve(file, 1).release();
+	}
+
+	private synchronized void release(String path, long bytes)
+	{
+		reserved -= bytes;
+
+		for(String directory: directoryLimitations.keySet())
+		{
+			if(path != null && StorageUsageTracker.isInDirectory(path, directory))
+			{
+				directoryReserved.put(directory, directoryReserved.get(directory) - bytes);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * The room held for one write.
+	 */
+	class Reservation
+	{
+		private String path;
+		private long bytes;
+
+		private Reservation(String path, long bytes)
+		{
+			this.path = path;
+			this.bytes = bytes;
+		}
+
+		public void release()
+		{
+			if(bytes > 0)
+			{
+				StorageQuota.this.release(path, bytes);
+				bytes = 0;
+			}
+		}
+	}
+}
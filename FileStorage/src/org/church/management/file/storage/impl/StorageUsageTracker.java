@@ -0,0 +1,616 @@
+package org.church.management.file.storage.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps the number of bytes used by a local storage as a running counter.
+ * The storage adds the change in size of every write, so the usage is known without walking
+ * the storage. The counter is saved to a file every few seconds and read back on start up.
+ *
+ * The files changed outside the storage are picked up by a background scan that walks the
+ * storage folder on a walker thread of its own, resting now and then, and replaces the counter
+ * with what it found. The rests do not hold up the listings and zips on the shared walker. The first scan runs right away when there is no saved counter,
+ * the usage is not answered before it has finished.
+ *
+ * Besides the whole storage, the usage of a few directories can be counted the same way,
+ * the directories are given relative to the storage folder and separated by '/'.
+ */
+class StorageUsageTracker
+{
+	private static final Logger logger = Logger.getLogger(StorageUsageTracker.class);
+	private static final long SAVE_INTERVAL = 5000;
+	private static final int SCAN_BATCH_SIZE = 1000;
+
+	private File storageFolder;
+	private File usageFile;
+	private long scanPause;
+	private LocalFileWalker walker;
+	private LocalFileWalker scanWalker = new LocalFileWalker(1);
+	private ScheduledExecutorService scheduler;
+
+	private UsageCounter total = new UsageCounter();
+	private Map<String, UsageCounter> directories = new LinkedHashMap<String, UsageCounter>();
+	private CountDownLatch counted = new CountDownLatch(1);
+	private boolean scanning = false;
+	private boolean changed = false;
+	private Object saveLock = new Object();
+	private long reconciledAt = 0;
+
+	/**
+	 * @param reconcileInterval the milliseconds between the scans, 0 only scans when there is no saved counter.
+	 * @param scanPause the milliseconds the scan rests after every thousand files.
+	 * @param directories the directories counted on their own.
+	 * @param walker the shared walker that sizes the moved directories.
+	 */
+	public StorageUsageTracker(File storageFolder, File usageFile, long reconcileInterval, long scanPause, Collection<String> directories, LocalFileWalker walker)
+	{
+		this.walker = walker;
+		this.storageFolder = storageFolder.getAbsoluteFile();
+		this.usageFile = usageFile;
+		this.scanPause = scanPause;
+
+		for(String directory: directories)
+		{
+			this.directories.put(normalize(directory), new UsageCounter());
+		}
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new UsageThreadFactory(storageFolder.getName()));
+
+		boolean loaded = load();
+
+		if(loaded)
+		{
+			counted.countDown();
+		}
+
+		scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				save();
+			}
+		}, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+
+		if(loaded == false)
+		{
+			scheduler.execute(new Runnable()
+			{
+				public void run()
+				{
+					reconcile();
+				}
+			});
+		}
+
+		if(reconcileInterval > 0)
+		{
+			scheduler.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					reconcile();
+				}
+			}, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the bytes used by the storage, the first scan is waited for when there is no saved counter.
+	 */
+	public long getUsage() throws InterruptedException
+	{
+		awaitUsage();
+
+		synchronized(this)
+		{
+			return Math.max(0, total.usage);
+		}
+	}
+
+	/**
+	 * @return the usage of a directory given to the constructor, otherwise 0.
+	 */
+	public long getUsage(String directory) throws InterruptedException
+	{
+		awaitUsage();
+
+		synchronized(this)
+		{
+			UsageCounter counter = directories.get(normalize(directory));
+			return counter == null ? 0 : Math.max(0, counter.usage);
+		}
+	}
+
+	/**
+	 * Waits until the usage is known, which is right away unless the storage is being scanned
+	 * for the first time.
+	 */
+	public void awaitUsage() throws InterruptedException
+	{
+		counted.await();
+	}
+
+	/**
+	 * Adds the change in size of the file to the storage and to the directories holding it.
+	 */
+	public synchronized void add(File file, long bytes)
+	{
+		if(bytes == 0)
+		{
+			return;
+		}
+
+		total.add(bytes, scanning);
+		String path = getRelativePath(file);
+
+		for(Map.Entry<String, UsageCounter> directory: directories.entrySet())
+		{
+			if(path != null && isInDirectory(path, directory.getKey()))
+			{
+				directory.getValue().add(bytes, scanning);
+			}
+		}
+
+		changed = true;
+	}
+
+	/**
+	 * Moves the usage of a renamed file or directory between the counted directories,
+	 * the renamed path is only measured when it went into or out of one of them.
+	 */
+	public void move(File from, File to) throws IOException, InterruptedException
+	{
+		String fromPath = getRelativePath(from), toPath = getRelativePath(to);
+		boolean crossed = false;
+
+		synchronized(this)
+		{
+			for(String directory: directories.keySet())
+			{
+				boolean wasIn = fromPath != null && isInDirectory(fromPath, directory);
+				boolean isIn = toPath != null && isInDirectory(toPath, directory);
+				crossed = crossed || wasIn != isIn;
+			}
+		}
+
+		if(crossed == false)
+		{
+			return;
+		}
+
+		long size = walker.sizeOf(to);
+		add(from, -size);
+		add(to, size);
+	}
+
+	/**
+	 * @return the path of the file relative to the storage folder separated by '/',
+	 * 		null if the file is not in the storage folder.
+	 */
+	public String getRelativePath(File file)
+	{
+		String root = storageFolder.getPath(), path = file.getAbsolutePath();
+
+		if(path.equals(root))
+		{
+			return "";
+		}
+
+		if(path.startsWith(root+File.separator) == false)
+		{
+			return null;
+		}
+
+		return path.substring(root.length() + 1).replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Opens the file for writing, the change in its size is added when the stream is closed.
+	 */
+	public OutputStream openWrite(File file) throws IOException
+	{
+		return new TrackedOutputStream(file, sizeOf(file));
+	}
+
+	public synchronized long getReconciledAt()
+	{
+		return reconciledAt;
+	}
+
+	/**
+	 * Walks the storage folder and replaces the counter with the bytes found.
+	 * The changes made through the storage while the scan runs are added to the result,
+	 * a file changed during the scan may be off until the next scan.
+	 */
+	public void reconcile()
+	{
+		synchronized(this)
+		{
+			if(scanning)
+			{
+				return;
+			}
+
+			scanning = true;
+			total.scanChanges = 0;
+
+			for(UsageCounter counter: directories.values())
+			{
+				counter.scanChanges = 0;
+			}
+		}
+
+		Map<String, Long> scanned = new HashMap<String, Long>();
+		boolean completed = false;
+
+		try
+		{
+			scan(scanned);
+			completed = true;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(Exception e)
+		{
+			logger.error("StorageUsageTracker.reconcile()- Could not scan the storage: "+storageFolder.getPath()+".", e);
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				scanning = false;
+
+				if(completed)
+				{
+					if(total.usage != scanned.get("") + total.scanChanges)
+					{
+						logger.info("StorageUsageTracker.reconcile()- The usage of "+storageFolder.getPath()+" was off by "+(scanned.get("") + total.scanChanges - total.usage)+" bytes.");
+					}
+
+					total.usage = scanned.get("") + total.scanChanges;
+
+					for(Map.Entry<String, UsageCounter> directory: directories.entrySet())
+					{
+						UsageCounter counter = directory.getValue();
+						counter.usage = scanned.get(directory.getKey()) + counter.scanChanges;
+					}
+
+					reconciledAt = System.currentTimeMillis();
+					changed = true;
+				}
+			}
+
+			counted.countDown();
+		}
+
+		save();
+	}
+
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+		scanWalker.shutdown();
+		save();
+	}
+
+	/**
+	 * @return the path with '/' separators and without the leading and trailing '/'.
+	 */
+	public static String normalize(String path)
+	{
+		String normalized = path.trim().replace('\\', '/');
+
+		while(normalized.startsWith("/"))
+		{
+			normalized = normalized.substring(1);
+		}
+
+		while(normalized.endsWith("/"))
+		{
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+
+		return normalized;
+	}
+
+	public static boolean isInDirectory(String path, String directory)
+	{
+		return directory.length() == 0 || path.equals(directory) || path.startsWith(directory+"/");
+	}
+
+	/**
+	 * @return the bytes of the file or of all the files in the directory, 0 if there is nothing at the path.
+	 */
+	public static long sizeOf(File file)
+	{
+		if(file.isDirectory())
+		{
+			return FileUtils.sizeOfDirectory(file);
+		}
+
+		return file.isFile() ? file.length() : 0;
+	}
+
+	/**
+	 * Puts the bytes of the whole storage under "" and the bytes of every counted directory under its path.
+	 */
+	private void scan(final Map<String, Long> scanned) throws IOException, InterruptedException
+	{
+		final AtomicInteger visited = new AtomicInteger(0);
+
+		scanned.put("", 0L);
+
+		for(String directory: directories.keySet())
+		{
+			scanned.put(directory, 0L);
+		}
+
+		if(storageFolder.isDirectory() == false)
+		{
+			return;
+		}
+
+		scanWalker.walk(storageFolder, new LocalFileWalker.Visitor()
+		{
+			public void visit(File folder, List<File> files) throws InterruptedException
+			{
+				String folderPath = getRelativePath(folder);
+				long bytes = 0;
+
+				for(File file: files)
+				{
+					bytes += file.length();
+				}
+
+				synchronized(scanned)
+				{
+					scanned.put("", scanned.get("") + bytes);
+
+					for(String directory: directories.keySet())
+					{
+						if(folderPath != null && isInDirectory(folderPath, directory))
+						{
+							scanned.put(directory, scanned.get(directory) + bytes);
+						}
+					}
+				}
+
+				int before = visited.getAndAdd(files.size() + 1);
+
+				if(scanPause > 0 && before / SCAN_BATCH_SIZE != (before + files.size() + 1) / SCAN_BATCH_SIZE)
+				{
+					Thread.sleep(scanPause);
+				}
+			}
+		});
+	}
+
+	private boolean load()
+	{
+		File temporary = getTemporaryFile();
+
+		//the saved file is complete once the usage file has been deleted, until then it may be cut short.
+		if(temporary.exists() && usageFile.exists() == false && temporary.renameTo(usageFile) == false)
+		{
+			logger.error("StorageUsageTracker.load()- Could not restore the saved usage file: "+temporary.getPath()+".");
+		}
+
+		if(usageFile.exists() == false)
+		{
+			return false;
+		}
+
+		Properties saved = new Properties();
+
+		try
+		{
+			InputStream input = new FileInputStream(usageFile);
+
+			try
+			{
+				saved.load(input);
+			}
+			finally
+			{
+				input.close();
+			}
+
+			for(String directory: directories.keySet())
+			{
+				if(saved.getProperty("directory."+directory) == null)
+				{
+					//a directory counted since the last run needs a scan.
+					return false;
+				}
+
+				directories.get(directory).usage = Long.parseLong(saved.getProperty("directory."+directory));
+			}
+
+			total.usage = Long.parseLong(saved.getProperty("usage"));
+			reconciledAt = Long.parseLong(saved.getProperty("reconciledAt", "0"));
+			return true;
+		}
+		catch(Exception e)
+		{
+			logger.error("StorageUsageTracker.load()- Could not read the usage file: "+usageFile.getPath()+".", e);
+			return false;
+		}
+	}
+
+	/**
+	 * The scheduled saves, the scans and the shutdown save one at a time, they write the same temporary file.
+	 */
+	private void save()
+	{
+		synchronized(saveLock)
+		{
+			saveUsage();
+		}
+	}
+
+	private void saveUsage()
+	{
+		Properties saved = new Properties();
+
+		synchronized(this)
+		{
+			if(changed == false)
+			{
+				return;
+			}
+
+			changed = false;
+			saved.setProperty("usage", String.valueOf(total.usage));
+			saved.setProperty("reconciledAt", String.valueOf(reconciledAt));
+
+			for(Map.Entry<String, UsageCounter> directory: directories.entrySet())
+			{
+				saved.setProperty("directory."+directory.getKey(), String.valueOf(directory.getValue().usage));
+			}
+		}
+
+		File temporary = getTemporaryFile();
+
+		try
+		{
+			FileOutputStream output = new FileOutputStream(temporary);
+
+			try
+			{
+				saved.store(output, "storage usage of "+storageFolder.getPath());
+				output.flush();
+				output.getFD().sync();
+			}
+			finally
+			{
+				output.close();
+			}
+
+			//the rename replaces the usage file in one step where the file system allows it,
+			//otherwise the usage file is deleted first and the start up finishes the rename after a crash.
+			if(temporary.renameTo(usageFile) == false)
+			{
+				if(usageFile.delete() == false && usageFile.exists())
+				{
+					throw new IOException("Could not replace the usage file.");
+				}
+
+				if(temporary.renameTo(usageFile) == false)
+				{
+					throw new IOException("Could not replace the usage file.");
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			logger.error("StorageUsageTracker.save()- Could not save the usage file: "+usageFile.getPath()+".", e);
+
+			synchronized(this)
+			{
+				changed = true;
+			}
+		}
+	}
+
+	private File getTemporaryFile()
+	{
+		return new File(usageFile.getPath()+".tmp");
+	}
+
+	private class TrackedOutputStream extends FilterOutputStream
+	{
+		private File file;
+		private long previousSize;
+		private boolean closed = false;
+
+		public TrackedOutputStream(File file, long previousSize) throws IOException
+		{
+			super(new FileOutputStream(file));
+			this.file = file;
+			this.previousSize = previousSize;
+		}
+
+		public void write(byte[] buffer, int offset, int length) throws IOException
+		{
+			out.write(buffer, offset, length);
+		}
+
+		public void close() throws IOException
+		{
+			if(closed)
+			{
+				return;
+			}
+
+			closed = true;
+
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				add(file, sizeOf(file) - previousSize);
+			}
+		}
+	}
+
+	private static class UsageCounter
+	{
+		private long usage = 0;
+		private long scanChanges = 0;
+
+		public void add(long bytes, boolean scanning)
+		{
+			usage += bytes;
+
+			if(scanning)
+			{
+				scanChanges += bytes;
+			}
+		}
+	}
+
+	private static class UsageThreadFactory implements ThreadFactory
+	{
+		private String name;
+
+		public UsageThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "storage-usage-"+name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package org.church.management.file.storage.mirror;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class remembers the paths that a replica may be missing a write for.
+ * Every path is appended to a log file as soon as the write fails, so the
+ * paths are still known after a restart. The log is rewritten with the
+ * remaining paths once a repair has finished.
+ *
+ * A file path is repaired by copying the file from a healthy replica,
+ * a directory path by bringing the whole directory in line with a healthy replica.
+ */
+class MirrorRepairLog
+{
+	private static final Logger logger = Logger.getLogger(MirrorRepairLog.class);
+	private static final String ENCODING = "UTF-8";
+
+	private File logFile;
+	private Writer writer;
+	private List<Set<String>> files = new ArrayList<Set<String>>();
+	private List<Set<String>> directories = new ArrayList<Set<String>>();
+
+	public MirrorRepairLog(File logFile, int replicas) throws IOException
+	{
+		this.logFile = logFile;
+
+		for(int i = 0; i < replicas; i++)
+		{
+			files.add(new LinkedHashSet<String>());
+			directories.add(new LinkedHashSet<String>());
+		}
+
+		if(logFile.exists())
+		{
+			load();
+		}
+
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), ENCODING));
+	}
+
+	public synchronized void addFile(int replica, String path)
+	{
+		if(files.get(replica).add(path))
+		{
+			append("F\t"+replica+"\t"+path);
+		}
+	}
+
+	public synchronized void addDirectory(int replica, String path)
+	{
+		if(directories.get(replica).add(path))
+		{
+			append("D\t"+replica+"\t"+path);
+		}
+	}
+
+	public synchronized List<String> getFiles(int replica)
+	{
+		return new ArrayList<String>(files.get(replica));
+	}
+
+	public synchronized List<String> getDirectories(int replica)
+	{
+		return new ArrayList<String>(directories.get(replica));
+	}
+
+	public synchronized void removeFile(int replica, String path)
+	{
+		files.get(replica).remove(path);
+	}
+
+	public synchronized void removeDirectory(int replica, String path)
+	{
+		directories.get(replica).remove(path);
+	}
+
+	/**
+	 * @return true if the replica may be missing a write to the path,
+	 * 		either to the path itself or to a directory above it.
+	 */
+	public synchronized boolean isDirty(int replica, String path)
+	{
+		if(files.get(replica).contains(path))
+		{
+			return true;
+		}
+
+		for(String directory: directories.get(replica))
+		{
+			if(directory.length() == 0 || path.equals(directory) || path.startsWith(directory+"/"))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public synchronized int size()
+	{
+		int size = 0;
+
+		for(int i = 0; i < files.size(); i++)
+		{
+			size += files.get(i).size() + directories.get(i).size();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Writes the paths that still need a repair to a new log.
+	 */
+	public synchronized void rewrite() throws IOException
+	{
+		File rewritten = new File(logFile.getPath()+".new");
+		Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rewritten), ENCODING));
+
+		try
+		{
+			for(int i = 0; i < files.size(); i++)
+			{
+				for(String path: directories.get(i))
+				{
+					output.write("D\t"+i+"\t"+path+"\n");
+				}
+
+				for(String path: files.get(i))
+				{
+					output.write("F\t"+i+"\t"+path+"\n");
+				}
+			}
+		}
+		finally
+		{
+			output.close();
+		}
+
+		writer.close();
+
+		if(logFile.delete() == false && logFile.exists())
+		{
+			throw new IOException("Could not replace the repair log: "+logFile.getPath()+".");
+		}
+
+		if(rewritten.renameTo(logFile) == false)
+		{
+			throw new IOException("Could not replace the repair log: "+logFile.getPath()+".");
+		}
+
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), ENCODING));
+	}
+
+	public synchronized void close()
+	{
+		try
+		{
+			writer.close();
+		}
+		catch(IOException e)
+		{
+			logger.error("MirrorRepairLog.close()- Could not close the repair log: "+logFile.getPath()+".", e);
+		}
+	}
+
+	private void append(String line)
+	{
+		try
+		{
+			writer.write(line);
+			writer.write('\n');
+			writer.flush();
+		}
+		catch(IOException e)
+		{
+			//the path is still repaired while this process runs.
+			logger.error("MirrorRepairLog.append()- Could not write to the repair log: "+line+".", e);
+		}
+	}
+
+	private void load() throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), ENCODING));
+
+		try
+		{
+			String line = reader.readLine();
+
+			while(line != null)
+			{
+				String[] fields = line.split("\t", 3);
+
+				try
+				{
+					int replica = Integer.parseInt(fields[1]);
+
+					if(replica < files.size() && fields[0].equals("F"))
+					{
+						files.get(replica).add(fields[2]);
+					}
+
+					else if(replica < files.size() && fields[0].equals("D"))
+					{
+						directories.get(replica).add(fields[2]);
+					}
+				}
+				catch(Exception e)
+				{
+					logger.error("MirrorRepairLog.load()- Skipping a damaged line: "+line+".", e);
+				}
+
+				line = reader.readLine();
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,1598 @@
+package org.church.management.file.storage.mirror;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.church.management.annotations.Supported;
+import org.church.management.file.storage.Abortable;
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.temporary.file.factory.TemporaryFileFactory;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class keeps the same files on several storages. Every change is sent to all the
+ * replicas at once and returns once the write quorum of replicas has finished it,
+ * the other replicas finish in the background. Each replica applies the changes
+ * one at a time in the order they were made.
+ *
+ * When the quorum is smaller than the replicas, the files given to a change are copied first
+ * and the replicas read the copies, so the caller may delete its files once the change returns.
+ *
+ * The reads go to the fastest healthy replica that is not waiting for a repair of the path.
+ * A replica that fails several times in a row is left out of the reads for a while.
+ *
+ * When a change fails on a replica its paths are written to the repair log, repair()
+ * copies those paths from a healthy replica. A repair compares the files by size.
+ *
+ * The paths given to this storage have to be relative to the storage folder of the
+ * replicas and separated by '/', the returned path is the one of the first replica that finished.
+ *
+ * need properties:
+ * 		repairLogPath: the file where the paths waiting for a repair are kept.
+ * 		writeQuorum: the number of replicas a change has to succeed on, default is all the replicas.
+ * 		unhealthyPeriod: the milliseconds a failing replica is left out of the reads, default is 30000.
+ * 		repairInterval: the milliseconds between the background repairs, default is 0 which turns them off.
+ * 		tempFolderPath: the directory where the written files are kept until every replica has them, default is the temporary folder.
+ */
+public class MirroredFileStorage implements FileStorage
+{
+	private static final Logger logger = Logger.getLogger(MirroredFileStorage.class);
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	private static final int UNHEALTHY_FAILURES = 3;
+	private static final AtomicInteger temporaryCounter = new AtomicInteger(0);
+
+	private List<Replica> replicas = new ArrayList<Replica>();
+	private int writeQuorum;
+	private long unhealthyPeriod = 30000;
+	private String tempFolderPath;
+	private MirrorRepairLog repairLog;
+	private ScheduledExecutorService repairer = null;
+
+	public MirroredFileStorage(List<FileStorage> storages, Properties properties) throws Exception
+	{
+		if(storages.isEmpty())
+		{
+			throw new IllegalArgumentException("A mirror needs at least one storage.");
+		}
+
+		for(int i = 0; i < storages.size(); i++)
+		{
+			replicas.add(new Replica(i, storages.get(i)));
+		}
+
+		writeQuorum = storages.size();
+		tempFolderPath = properties.getProperty("tempFolderPath");
+		long repairInterval = 0;
+
+		try
+		{
+			if(properties.getProperty("writeQuorum") != null)
+			{
+				writeQuorum = Math.max(1, Math.min(storages.size(), Integer.parseInt(properties.getProperty("writeQuorum"))));
+			}
+
+			if(properties.getProperty("unhealthyPeriod") != null)
+			{
+				unhealthyPeriod = Long.parseLong(properties.getProperty("unhealthyPeriod"));
+			}
+
+			if(properties.getProperty("repairInterval") != null)
+			{
+				repairInterval = Long.parseLong(properties.getProperty("repairInterval"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("MirroredFileStorage.<init> - An error has occurred while parsing the properties.", e);
+		}
+
+		try
+		{
+			repairLog = new MirrorRepairLog(new File(properties.getProperty("repairLogPath")), storages.size());
+		}
+		catch(Exception e)
+		{
+			logger.error("MirroredFileStorage.<init> - Could not open the repair log: "+properties.getProperty("repairLogPath")+".", e);
+			throw e;
+		}
+
+		if(repairInterval > 0)
+		{
+			repairer = Executors.newSingleThreadScheduledExecutor(new MirrorThreadFactory("mirror-repair-"));
+			repairer.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					repair();
+				}
+			}, repairInterval, repairInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Supported
+	public String createDirectory(final String directory) throws Exception
+	{
+		return write(new MirrorWrite<String>()
+		{
+			public String execute(FileStorage storage) throws Exception
+			{
+				return storage.createDirectory(directory);
+			}
+
+			public void markDirty(int replica)
+			{
+				repairLog.addDirectory(replica, normalize(directory));
+			}
+		});
+	}
+
+	@Supported
+	public void deleteDirectory(final String directory) throws Exception
+	{
+		write(new MirrorWrite<Void>()
+		{
+			public Void execute(FileStorage storage) throws Exception
+			{
+				storage.deleteDirectory(directory);
+				return null;
+			}
+
+			public void markDirty(int replica)
+			{
+				repairLog.addDirectory(replica, normalize(directory));
+			}
+		});
+	}
+
+	@Supported
+	public String renameDirectory(final String oldDirectory, final String newDirectory) throws Exception
+	{
+		return write(new MirrorWrite<String>()
+		{
+			public String execute(FileStorage storage) throws Exception
+			{
+				return storage.renameDirectory(oldDirectory, newDirectory);
+			}
+
+			public void markDirty(int replica)
+			{
+				//the storages do not agree if the new directory is relative to the storage or to the old parent.
+				repairLog.addDirectory(replica, normalize(oldDirectory));
+				repairLog.addDirectory(replica, normalize(newDirectory));
+				repairLog.addDirectory(replica, join(getParent(normalize(oldDirectory)), newDirectory));
+			}
+		});
+	}
+
+	@Supported
+	public String upload(final String folder, final File file) throws Exception
+	{
+		final InputSnapshot snapshot = createSnapshot(Collections.singletonList(file));
+
+		return write(new MirrorWrite<String>()
+		{
+			public String execute(FileStorage storage) throws Exception
+			{
+				return storage.upload(folder, snapshot.get(file));
+			}
+
+			public void markDirty(int replica)
+			{
+				repairLog.addFile(replica, join(normalize(folder), file.getName()));
+			}
+
+			public void finished()
+			{
+				snapshot.delete();
+			}
+		});
+	}
+
+	@Supported
+	public String copy(final String folder, final String renameFile, final File file) throws Exception
+	{
+		final InputSnapshot snapshot = createSnapshot(Collections.singletonList(file));
+
+		return write(new MirrorWrite<String>()
+		{
+			public String execute(FileStorage storage) throws Exception
+			{
+				return storage.copy(folder, renameFile, snapshot.get(file));
+			}
+
+			public void markDirty(int replica)
+			{
+				repairLog.addFile(replica, join(normalize(folder), renameFile));
+			}
+
+			public void finished()
+			{
+				snapshot.delete();
+			}
+		});
+	}
+
+	@Supported
+	public void deleteFile(final String filePath) throws Exception
+	{
+		write(new MirrorWrite<Void>()
+		{
+			public Void execute(FileStorage storage) throws Exception
+			{
+				storage.deleteFile(filePath);
+				return null;
+			}
+
+			public void markDirty(int replica)
+			{
+				repairLog.addFile(replica, normalize(filePath));
+			}
+		});
+	}
+
+	@Supported
+	public String update(final String filePath, final File file) throws Exception
+	{
+		final InputSnapshot snapshot = createSnapshot(Collections.singletonList(file));
+
+		return write(new MirrorWrite<String>()
+		{
+			public String execute(FileStorage storage) throws Exception
+			{
+				return storage.update(filePath, snapshot.get(file));
+			}
+
+			public void markDirty(int replica)
+			{
+				repairLog.addFile(replica, normalize(filePath));
+				repairLog.addFile(replica, join(getParent(normalize(filePath)), file.getName()));
+			}
+
+			public void finished()
+			{
+				snapshot.delete();
+			}
+		});
+	}
+
+	@Supported
+	public String renameFile(final String filepath, final String newFileName) throws Exception
+	{
+		return write(new MirrorWrite<String>()
+		{
+			public String execute(FileStorage storage) throws Exception
+			{
+				return storage.renameFile(filepath, newFileName);
+			}
+
+			public void markDirty(int replica)
+			{
+				repairLog.addFile(replica, normalize(filepath));
+				repairLog.addFile(replica, join(getParent(normalize(filepath)), newFileName));
+			}
+		});
+	}
+
+	/**
+	 * The content is kept in a temporary file until the stream is closed,
+	 * then it is written to the replicas like any other change.
+	 */
+	@Supported
+	public OutputStream openWrite(final String filePath) throws Exception
+	{
+		final File temporary = createTemporaryFile();
+
+		return new FilterOutputStream(new FileOutputStream(temporary))
+		{
+			private boolean closed = false;
+
+			public void write(byte[] bytes, int offset, int length) throws IOException
+			{
+				out.write(bytes, offset, length);
+			}
+
+			public void close() throws IOException
+			{
+				if(closed)
+				{
+					return;
+				}
+
+				closed = true;
+				super.close();
+
+				try
+				{
+					MirroredFileStorage.this.write(new MirrorWrite<Void>()
+					{
+						public Void execute(FileStorage storage) throws Exception
+						{
+							copy(temporary, storage, filePath);
+							return null;
+						}
+
+						public void markDirty(int replica)
+						{
+							repairLog.addFile(replica, normalize(filePath));
+						}
+
+						public void finished()
+						{
+							temporary.delete();
+						}
+					});
+				}
+				catch(IOException e)
+				{
+					throw e;
+				}
+				catch(Exception e)
+				{
+					throw new IOException("Could not write the file: "+filePath+".", e);
+				}
+			}
+		};
+	}
+
+	@Supported
+	public List<BatchResult> uploadAll(final String folder, final Collection<File> files) throws Exception
+	{
+		final InputSnapshot snapshot = createSnapshot(files);
+
+		return write(new BatchWrite()
+		{
+			public List<BatchResult> execute(FileStorage storage) throws Exception
+			{
+				return snapshot.restoreItems(storage.uploadAll(folder, snapshot.getAll(files)));
+			}
+
+			public void finished()
+			{
+				snapshot.delete();
+			}
+
+			public void markDirty(int replica)
+			{
+				for(File file: files)
+				{
+					repairLog.addFile(replica, join(normalize(folder), file.getName()));
+				}
+			}
+
+			public void markDirty(int replica, BatchResult result)
+			{
+				repairLog.addFile(replica, join(normalize(folder), new File(result.getItem()).getName()));
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> deleteAll(final Collection<String> filePaths) throws Exception
+	{
+		return write(new BatchWrite()
+		{
+			public List<BatchResult> execute(FileStorage storage) throws Exception
+			{
+				return storage.deleteAll(filePaths);
+			}
+
+			public void markDirty(int replica)
+			{
+				for(String filePath: filePaths)
+				{
+					repairLog.addFile(replica, normalize(filePath));
+				}
+			}
+
+			public void markDirty(int replica, BatchResult result)
+			{
+				repairLog.addFile(replica, normalize(result.getItem()));
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> renameAll(final Map<String, String> renameFiles) throws Exception
+	{
+		return write(new BatchWrite()
+		{
+			public List<BatchResult> execute(FileStorage storage) throws Exception
+			{
+				return storage.renameAll(renameFiles);
+			}
+
+			public void markDirty(int replica)
+			{
+				for(String filePath: renameFiles.keySet())
+				{
+					markDirty(replica, filePath);
+				}
+			}
+
+			public void markDirty(int replica, BatchResult result)
+			{
+				markDirty(replica, result.getItem());
+			}
+
+			private void markDirty(int replica, String filePath)
+			{
+				repairLog.addFile(replica, normalize(filePath));
+
+				if(renameFiles.get(filePath) != null)
+				{
+					repairLog.addFile(replica, join(getParent(normalize(filePath)), renameFiles.get(filePath)));
+				}
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> createDirectories(final Collection<String> directories) throws Exception
+	{
+		return write(new BatchWrite()
+		{
+			public List<BatchResult> execute(FileStorage storage) throws Exception
+			{
+				return storage.createDirectories(directories);
+			}
+
+			public void markDirty(int replica)
+			{
+				for(String directory: directories)
+				{
+					repairLog.addDirectory(replica, normalize(directory));
+				}
+			}
+
+			public void markDirty(int replica, BatchResult result)
+			{
+				repairLog.addDirectory(replica, normalize(result.getItem()));
+			}
+		});
+	}
+
+	@Supported
+	public File retrieve(final String filePath) throws Exception
+	{
+		return read(filePath, new MirrorRead<File>()
+		{
+			public File execute(FileStorage storage) throws Exception
+			{
+				return storage.retrieve(filePath);
+			}
+		});
+	}
+
+	@Supported
+	public byte[] retrieveRange(final String filePath, final long offset, final int length) throws Exception
+	{
+		return read(filePath, new MirrorRead<byte[]>()
+		{
+			public byte[] execute(FileStorage storage) throws Exception
+			{
+				return storage.retrieveRange(filePath, offset, length);
+			}
+		});
+	}
+
+	@Supported
+	public StorageEntry stat(final String filePath) throws Exception
+	{
+		return read(filePath, new MirrorRead<StorageEntry>()
+		{
+			public StorageEntry execute(FileStorage storage) throws Exception
+			{
+				return storage.stat(filePath);
+			}
+		});
+	}
+
+	@Supported
+	public InputStream openRead(final String filePath) throws Exception
+	{
+		return read(filePath, new MirrorRead<InputStream>()
+		{
+			public InputStream execute(FileStorage storage) throws Exception
+			{
+				return storage.openRead(filePath);
+			}
+		});
+	}
+
+	/**
+	 * A replica that fails part way through the transfer is not tried again,
+	 * because the target has already received some of the bytes.
+	 */
+	@Supported
+	public long transferTo(String filePath, WritableByteChannel target) throws Exception
+	{
+		Replica replica = getReadOrder(normalize(filePath)).get(0);
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			long transferred = replica.storage.transferTo(filePath, target);
+			replica.succeeded(System.currentTimeMillis() - start);
+			return transferred;
+		}
+		catch(FileNotFoundException e)
+		{
+			throw e;
+		}
+		catch(Exception e)
+		{
+			logger.error("MirroredFileStorage.transferTo()- Could not send: "+filePath+" from replica: "+replica.index+".", e);
+			replica.failed();
+			throw e;
+		}
+	}
+
+	@Supported
+	public List<String> getAvailableFileExtensions() throws Exception
+	{
+		return read("", new MirrorRead<List<String>>()
+		{
+			public List<String> execute(FileStorage storage) throws Exception
+			{
+				return storage.getAvailableFileExtensions();
+			}
+		});
+	}
+
+	@Supported
+	public long getMemoryUsage() throws Exception
+	{
+		return read("", new MirrorRead<Long>()
+		{
+			public Long execute(FileStorage storage) throws Exception
+			{
+				return storage.getMemoryUsage();
+			}
+		});
+	}
+
+	@Supported
+	public long getMemoryLimitation() throws Exception
+	{
+		return read("", new MirrorRead<Long>()
+		{
+			public Long execute(FileStorage storage) throws Exception
+			{
+				return storage.getMemoryLimitation();
+			}
+		});
+	}
+
+	@Supported
+	public List<File> getAllFiles() throws Exception
+	{
+		return read("", new MirrorRead<List<File>>()
+		{
+			public List<File> execute(FileStorage storage) throws Exception
+			{
+				return storage.getAllFiles();
+			}
+		});
+	}
+
+	@Supported
+	public List<File> getAllFilesForDirectory(final String directory) throws Exception
+	{
+		return read(directory, new MirrorRead<List<File>>()
+		{
+			public List<File> execute(FileStorage storage) throws Exception
+			{
+				return storage.getAllFilesForDirectory(directory);
+			}
+		});
+	}
+
+	@Supported
+	public StorageEntryIterator listEntries(final String directory, final boolean recursive, final String continuationToken) throws Exception
+	{
+		return read(directory, new MirrorRead<StorageEntryIterator>()
+		{
+			public StorageEntryIterator execute(FileStorage storage) throws Exception
+			{
+				return storage.listEntries(directory, recursive, continuationToken);
+			}
+		});
+	}
+
+	/**
+	 * @return true if all the replicas are cloud storages.
+	 */
+	public boolean isCloudStorage()
+	{
+		for(Replica replica: replicas)
+		{
+			if(replica.storage.isCloudStorage() == false)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Supported
+	public File zipUpAllFiles(final String archiveName) throws Exception
+	{
+		return read("", new MirrorRead<File>()
+		{
+			public File execute(FileStorage storage) throws Exception
+			{
+				return storage.zipUpAllFiles(archiveName);
+			}
+		});
+	}
+
+	@Supported
+	public File zipUpDirectory(final String fullPath, final String archiveName) throws Exception
+	{
+		return read(fullPath, new MirrorRead<File>()
+		{
+			public File execute(FileStorage storage) throws Exception
+			{
+				return storage.zipUpDirectory(fullPath, archiveName);
+			}
+		});
+	}
+
+	/**
+	 * Streams from the preferred replica only, once bytes have gone out a failed replica cannot be retried.
+	 */
+	@Supported
+	public void zipDirectoryTo(String directory, OutputStream output) throws Exception
+	{
+		Replica replica = getReadOrder(normalize(directory)).get(0);
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			replica.storage.zipDirectoryTo(directory, output);
+			replica.succeeded(System.currentTimeMillis() - start);
+		}
+		catch(FileNotFoundException e)
+		{
+			throw e;
+		}
+		catch(Exception e)
+		{
+			logger.error("MirroredFileStorage.zipDirectoryTo()- Could not zip up: "+directory+" from replica: "+replica.index+".", e);
+			replica.failed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies the paths in the repair log from a healthy replica to the replicas that missed them.
+	 * The repair of a replica runs in line with its changes, so no change is overwritten.
+	 *
+	 * @return the number of paths still waiting for a repair.
+	 */
+	public int repair()
+	{
+		List<Future<?>> repairs = new ArrayList<Future<?>>();
+
+		for(final Replica replica: replicas)
+		{
+			if(repairLog.getFiles(replica.index).isEmpty() && repairLog.getDirectories(replica.index).isEmpty())
+			{
+				continue;
+			}
+
+			repairs.add(replica.writer.submit(new Runnable()
+			{
+				public void run()
+				{
+					repair(replica);
+				}
+			}));
+		}
+
+		for(Future<?> future: repairs)
+		{
+			try
+			{
+				future.get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch(ExecutionException e)
+			{
+				logger.error("MirroredFileStorage.repair()- A repair has failed.", e);
+			}
+		}
+
+		try
+		{
+			repairLog.rewrite();
+		}
+		catch(IOException e)
+		{
+			logger.error("MirroredFileStorage.repair()- Could not rewrite the repair log.", e);
+		}
+
+		return repairLog.size();
+	}
+
+	/**
+	 * @return the number of paths waiting for a repair.
+	 */
+	public int getRepairCount()
+	{
+		return repairLog.size();
+	}
+
+	public List<FileStorage> getFileStorages()
+	{
+		List<FileStorage> storages = new ArrayList<FileStorage>();
+
+		for(Replica replica: replicas)
+		{
+			storages.add(replica.storage);
+		}
+
+		return storages;
+	}
+
+	/**
+	 * Stops the background threads, the changes already sent to the replicas are finished first.
+	 */
+	public void shutdown()
+	{
+		if(repairer != null)
+		{
+			repairer.shutdown();
+		}
+
+		for(Replica replica: replicas)
+		{
+			replica.writer.shutdown();
+		}
+
+		for(Replica replica: replicas)
+		{
+			try
+			{
+				replica.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		repairLog.close();
+	}
+
+	private void repair(Replica target)
+	{
+		for(String directory: repairLog.getDirectories(target.index))
+		{
+			Replica source = getRepairSource(target, directory);
+
+			if(source == null)
+			{
+				continue;
+			}
+
+			try
+			{
+				repairDirectory(source.storage, target.storage, directory);
+				repairLog.removeDirectory(target.index, directory);
+			}
+			catch(Exception e)
+			{
+				logger.error("MirroredFileStorage.repair()- Could not repair the directory: "+directory+" on replica: "+target.index+".", e);
+			}
+		}
+
+		for(String filePath: repairLog.getFiles(target.index))
+		{
+			Replica source = getRepairSource(target, filePath);
+
+			if(source == null)
+			{
+				continue;
+			}
+
+			try
+			{
+				repairFile(source.storage, target.storage, filePath);
+				repairLog.removeFile(target.index, filePath);
+			}
+			catch(Exception e)
+			{
+				logger.error("MirroredFileStorage.repair()- Could not repair the file: "+filePath+" on replica: "+target.index+".", e);
+			}
+		}
+	}
+
+	private Replica getRepairSource(Replica target, String path)
+	{
+		for(Replica replica: getReadOrder(path))
+		{
+			if(replica != target && repairLog.isDirty(replica.index, path) == false)
+			{
+				return replica;
+			}
+		}
+
+		logger.error("MirroredFileStorage.repair()- There is no replica to repair: "+path+" on replica: "+target.index+" from.");
+		return null;
+	}
+
+	private void repairFile(FileStorage source, FileStorage target, String filePath) throws Exception
+	{
+		StorageEntry entry = source.stat(filePath);
+
+		if(entry.exists() == false)
+		{
+			if(target.stat(filePath).exists())
+			{
+				target.deleteFile(filePath);
+			}
+		}
+
+		else if(entry.isDirectory())
+		{
+			repairDirectory(source, target, filePath);
+		}
+
+		else
+		{
+			copy(source, target, filePath);
+		}
+	}
+
+	/**
+	 * Brings the directory on the target in line with the source,
+	 * the files that have a different size are copied again.
+	 */
+	private void repairDirectory(FileStorage source, FileStorage target, String directory) throws Exception
+	{
+		if(directory.length() > 0 && source.stat(directory).exists() == false)
+		{
+			if(target.stat(directory).exists())
+			{
+				target.deleteDirectory(directory);
+			}
+
+			return;
+		}
+
+		if(directory.length() > 0 && target.stat(directory).exists() == false)
+		{
+			target.createDirectory(directory);
+		}
+
+		Set<String> present = new HashSet<String>();
+		StorageEntryIterator entries = source.listEntries(directory, true, null);
+
+		while(entries.hasNext())
+		{
+			StorageEntry entry = entries.next();
+			String path = join(directory, entries.getContinuationToken());
+			StorageEntry copied = target.stat(path);
+			present.add(path);
+
+			if(entry.isDirectory())
+			{
+				if(copied.exists() == false)
+				{
+					target.createDirectory(path);
+				}
+			}
+
+			else if(copied.exists() == false || copied.isDirectory() || copied.getSize() != entry.getSize())
+			{
+				if(copied.isDirectory())
+				{
+					target.deleteDirectory(path);
+				}
+
+				copy(source, target, path);
+			}
+		}
+
+		List<String> removed = new ArrayList<String>();
+		List<Boolean> removedDirectories = new ArrayList<Boolean>();
+		entries = target.listEntries(directory, true, null);
+
+		while(entries.hasNext())
+		{
+			StorageEntry entry = entries.next();
+			String path = join(directory, entries.getContinuationToken());
+
+			if(present.contains(path) == false)
+			{
+				removed.add(path);
+				removedDirectories.add(entry.isDirectory());
+			}
+		}
+
+		String removedDirectory = null;
+
+		for(int i = 0; i < removed.size(); i++)
+		{
+			String path = removed.get(i);
+
+			if(removedDirectory != null && path.startsWith(removedDirectory+"/"))
+			{
+				continue;
+			}
+
+			if(removedDirectories.get(i))
+			{
+				target.deleteDirectory(path);
+				removedDirectory = path;
+			}
+
+			else
+			{
+				target.deleteFile(path);
+			}
+		}
+	}
+
+	private static void copy(FileStorage source, FileStorage target, String filePath) throws Exception
+	{
+		InputStream input = source.openRead(filePath);
+
+		try
+		{
+			OutputStream output = target.openWrite(filePath);
+
+			try
+			{
+				IOUtils.copyLarge(input, output);
+			}
+			catch(IOException e)
+			{
+				abort(output);
+				throw e;
+			}
+
+			output.close();
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private static void copy(File file, FileStorage target, String filePath) throws Exception
+	{
+		InputStream input = new FileInputStream(file);
+
+		try
+		{
+			OutputStream output = target.openWrite(filePath);
+
+			try
+			{
+				IOUtils.copyLarge(input, output);
+			}
+			catch(IOException e)
+			{
+				abort(output);
+				throw e;
+			}
+
+			output.close();
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Throws away the partial file of a failed copy, the streams that can not be aborted are closed.
+	 */
+	private static void abort(OutputStream output)
+	{
+		if(output instanceof Abortable)
+		{
+			((Abortable)output).abort();
+			return;
+		}
+
+		try
+		{
+			output.close();
+		}
+		catch(IOException e)
+		{
+			logger.error("MirroredFileStorage.abort()- Could not close the stream of a failed copy.", e);
+		}
+	}
+
+	/**
+	 * Sends the change to every replica and waits for the write quorum.
+	 */
+	private <T> T write(MirrorWrite<T> write) throws Exception
+	{
+		WriteOutcome<T> outcome = new WriteOutcome<T>(replicas.size());
+
+		for(Replica replica: replicas)
+		{
+			replica.pendingWrites.incrementAndGet();
+			replica.writer.execute(new WriteTask<T>(replica, write, outcome));
+		}
+
+		return outcome.await(writeQuorum);
+	}
+
+	/**
+	 * Copies the files when the change returns before every replica has finished it,
+	 * a file that does not exist is left to fail on the replicas like before.
+	 */
+	private InputSnapshot createSnapshot(Collection<File> files) throws Exception
+	{
+		InputSnapshot snapshot = new InputSnapshot();
+
+		if(writeQuorum >= replicas.size())
+		{
+			return snapshot;
+		}
+
+		try
+		{
+			snapshot.directory = createTemporaryDirectory();
+			int index = 0;
+
+			for(File file: files)
+			{
+				if(file.isFile() == false)
+				{
+					continue;
+				}
+
+				//every file gets a folder of its own, so the copy keeps the name of the file.
+				File copy = new File(new File(snapshot.directory, String.valueOf(index++)), file.getName());
+				FileUtils.copyFile(file, copy);
+				snapshot.copies.put(file.getPath(), copy);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("MirroredFileStorage.createSnapshot()- Could not copy the files of the change.", e);
+			snapshot.delete();
+			throw e;
+		}
+
+		return snapshot;
+	}
+
+	private File createTemporaryFile() throws Exception
+	{
+		if(tempFolderPath == null)
+		{
+			return TemporaryFileFactory.createTempFile("mirror");
+		}
+
+		File file = new File(tempFolderPath, "file_"+temporaryCounter.incrementAndGet()+".mirror");
+		FileUtils.forceMkdir(file.getParentFile());
+		FileUtils.deleteQuietly(file);
+		file.createNewFile();
+
+		return file;
+	}
+
+	private File createTemporaryDirectory() throws Exception
+	{
+		if(tempFolderPath == null)
+		{
+			return TemporaryFileFactory.createTempDirectory();
+		}
+
+		File directory = new File(tempFolderPath, "mirror_"+temporaryCounter.incrementAndGet());
+		FileUtils.deleteQuietly(directory);
+		FileUtils.forceMkdir(directory);
+
+		return directory;
+	}
+
+	/**
+	 * Tries the replicas from the fastest healthy one, a missing file is an answer
+	 * and is not tried on the other replicas.
+	 */
+	private <T> T read(String path, MirrorRead<T> read) throws Exception
+	{
+		Exception failure = null;
+
+		for(Replica replica: getReadOrder(normalize(path)))
+		{
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				T result = read.execute(replica.storage);
+				replica.succeeded(System.currentTimeMillis() - start);
+				return result;
+			}
+			catch(FileNotFoundException e)
+			{
+				replica.succeeded(System.currentTimeMillis() - start);
+				throw e;
+			}
+			catch(Exception e)
+			{
+				logger.error("MirroredFileStorage.read()- Could not read: "+path+" from replica: "+replica.index+".", e);
+				replica.failed();
+				failure = e;
+			}
+		}
+
+		throw failure;
+	}
+
+	/**
+	 * @return the replicas with the healthy, up to date and fast ones first,
+	 * 		the replicas waiting for a repair of the path come last.
+	 */
+	private List<Replica> getReadOrder(String path)
+	{
+		final long now = System.currentTimeMillis();
+		List<Replica> clean = new ArrayList<Replica>();
+		List<Replica> dirty = new ArrayList<Replica>();
+
+		for(Replica replica: replicas)
+		{
+			if(repairLog.isDirty(replica.index, path))
+			{
+				dirty.add(replica);
+			}
+
+			else
+			{
+				clean.add(replica);
+			}
+		}
+
+		Comparator<Replica> order = new Comparator<Replica>()
+		{
+			public int compare(Replica first, Replica second)
+			{
+				int health = compareFlags(first.isHealthy(now), second.isHealthy(now));
+
+				if(health != 0)
+				{
+					return health;
+				}
+
+				int current = compareFlags(first.pendingWrites.get() == 0, second.pendingWrites.get() == 0);
+
+				if(current != 0)
+				{
+					return current;
+				}
+
+				return Double.compare(first.getLatency(), second.getLatency());
+			}
+		};
+
+		Collections.sort(clean, order);
+		Collections.sort(dirty, order);
+		clean.addAll(dirty);
+
+		return clean;
+	}
+
+	private static int compareFlags(boolean first, boolean second)
+	{
+		if(first == second)
+		{
+			return 0;
+		}
+
+		return first ? -1 : 1;
+	}
+
+	private static String normalize(String path)
+	{
+		if(path == null)
+		{
+			return "";
+		}
+
+		String normalized = path.replace('\\', '/');
+
+		while(normalized.contains("//"))
+		{
+			normalized = normalized.replace("//", "/");
+		}
+
+		while(normalized.startsWith("/"))
+		{
+			normalized = normalized.substring(1);
+		}
+
+		while(normalized.endsWith("/"))
+		{
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+
+		return normalized;
+	}
+
+	private static String join(String directory, String name)
+	{
+		if(directory.length() == 0)
+		{
+			return normalize(name);
+		}
+
+		return directory+"/"+normalize(name);
+	}
+
+	private static String getParent(String path)
+	{
+		int index = path.lastIndexOf('/');
+
+		if(index < 0)
+		{
+			return "";
+		}
+
+		return path.substring(0, index);
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class is a change that is sent to every replica.
+	 */
+	private abstract class MirrorWrite<T>
+	{
+		public abstract T execute(FileStorage storage) throws Exception;
+
+		/**
+		 * Writes the paths of the change to the repair log of the replica.
+		 */
+		public abstract void markDirty(int replica);
+
+		public void succeeded(int replica, T result)
+		{
+		}
+
+		/**
+		 * Called once every replica has finished the change.
+		 */
+		public void finished()
+		{
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class is a batch change, the items that failed on
+	 * a replica are written to its repair log.
+	 */
+	private abstract class BatchWrite extends MirrorWrite<List<BatchResult>>
+	{
+		public abstract void markDirty(int replica, BatchResult result);
+
+		public void succeeded(int replica, List<BatchResult> results)
+		{
+			for(BatchResult result: results)
+			{
+				if(result.isSuccessful() == false)
+				{
+					markDirty(replica, result);
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class holds the copies of the files given to a change, the replicas are given
+	 * the copies and the batch results name the files of the caller again.
+	 */
+	private static class InputSnapshot
+	{
+		private File directory = null;
+		private Map<String, File> copies = new LinkedHashMap<String, File>();
+
+		public File get(File file)
+		{
+			File copy = copies.get(file.getPath());
+			return copy == null ? file : copy;
+		}
+
+		public List<File> getAll(Collection<File> files)
+		{
+			List<File> result = new ArrayList<File>(files.size());
+
+			for(File file: files)
+			{
+				result.add(get(file));
+			}
+
+			return result;
+		}
+
+		public List<BatchResult> restoreItems(List<BatchResult> results)
+		{
+			if(copies.isEmpty())
+			{
+				return results;
+			}
+
+			Map<String, String> items = new LinkedHashMap<String, String>();
+
+			for(Map.Entry<String, File> copy: copies.entrySet())
+			{
+				items.put(copy.getValue().getPath(), copy.getKey());
+			}
+
+			List<BatchResult> restored = new ArrayList<BatchResult>(results.size());
+
+			for(BatchResult result: results)
+			{
+				String item = items.get(result.getItem());
+
+				if(item == null)
+				{
+					restored.add(result);
+				}
+
+				else if(result.isSuccessful())
+				{
+					restored.add(new BatchResult(item, result.getPath()));
+				}
+
+				else
+				{
+					restored.add(new BatchResult(item, result.getException()));
+				}
+			}
+
+			return restored;
+		}
+
+		public void delete()
+		{
+			if(directory != null)
+			{
+				FileUtils.deleteQuietly(directory);
+			}
+		}
+	}
+
+	private interface MirrorRead<T>
+	{
+		public T execute(FileStorage storage) throws Exception;
+	}
+
+	private class WriteTask<T> implements Runnable
+	{
+		private Replica replica;
+		private MirrorWrite<T> write;
+		private WriteOutcome<T> outcome;
+
+		public WriteTask(Replica replica, MirrorWrite<T> write, WriteOutcome<T> outcome)
+		{
+			this.replica = replica;
+			this.write = write;
+			this.outcome = outcome;
+		}
+
+		public void run()
+		{
+			try
+			{
+				T result = write.execute(replica.storage);
+				write.succeeded(replica.index, result);
+				outcome.succeeded(replica.index, result);
+			}
+			catch(Exception e)
+			{
+				logger.error("MirroredFileStorage.write()- A change has failed on replica: "+replica.index+", it is kept for a repair.", e);
+				replica.failed();
+				write.markDirty(replica.index);
+				outcome.failed(e);
+			}
+			finally
+			{
+				replica.pendingWrites.decrementAndGet();
+
+				if(outcome.isFinished())
+				{
+					write.finished();
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class collects the results of a change on the replicas.
+	 */
+	private static class WriteOutcome<T>
+	{
+		private Object[] results;
+		private boolean[] successful;
+		private int successes = 0;
+		private int done = 0;
+		private Exception failure = null;
+
+		public WriteOutcome(int replicas)
+		{
+			this.results = new Object[replicas];
+			this.successful = new boolean[replicas];
+		}
+
+		public synchronized void succeeded(int replica, T result)
+		{
+			results[replica] = result;
+			successful[replica] = true;
+			successes++;
+			done++;
+			notifyAll();
+		}
+
+		public synchronized void failed(Exception e)
+		{
+			if(failure == null)
+			{
+				failure = e;
+			}
+
+			done++;
+			notifyAll();
+		}
+
+		public synchronized boolean isFinished()
+		{
+			return done == results.length;
+		}
+
+		/**
+		 * Waits until the quorum has succeeded or can not be reached anymore.
+		 */
+		@SuppressWarnings("unchecked")
+		public synchronized T await(int quorum) throws Exception
+		{
+			while(successes < quorum && successes + (results.length - done) >= quorum)
+			{
+				wait();
+			}
+
+			if(successes < quorum)
+			{
+				throw failure;
+			}
+
+			for(int i = 0; i < results.length; i++)
+			{
+				if(successful[i])
+				{
+					return (T)results[i];
+				}
+			}
+
+			return null;
+		}
+	}
+
+	private class Replica
+	{
+		private int index;
+		private FileStorage storage;
+		private ExecutorService writer;
+		private AtomicInteger pendingWrites = new AtomicInteger(0);
+
+		private double latency = 0;
+		private int failures = 0;
+		private long unhealthyUntil = 0;
+
+		public Replica(int index, FileStorage storage)
+		{
+			this.index = index;
+			this.storage = storage;
+			this.writer = Executors.newSingleThreadExecutor(new MirrorThreadFactory("mirror-replica-"+index+"-"));
+		}
+
+		public synchronized void succeeded(long milliseconds)
+		{
+			if(latency == 0)
+			{
+				latency = milliseconds;
+			}
+
+			else
+			{
+				latency = latency * 0.8 + milliseconds * 0.2;
+			}
+
+			failures = 0;
+		}
+
+		public synchronized void failed()
+		{
+			failures++;
+
+			if(failures >= UNHEALTHY_FAILURES)
+			{
+				unhealthyUntil = System.currentTimeMillis() + unhealthyPeriod;
+				failures = 0;
+			}
+		}
+
+		public synchronized boolean isHealthy(long now)
+		{
+			return now >= unhealthyUntil;
+		}
+
+		public synchronized double getLatency()
+		{
+			return latency;
+		}
+	}
+
+	private static class MirrorThreadFactory implements ThreadFactory
+	{
+		private String prefix;
+
+		public MirrorThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, prefix+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
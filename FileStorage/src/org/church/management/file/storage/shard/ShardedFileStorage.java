@@ -0,0 +1,1342 @@
+package org.church.management.file.storage.shard;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.church.management.annotations.Supported;
+import org.church.management.file.storage.Abortable;
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.archive.ParallelZipWriter;
+import org.church.management.file.storage.archive.ZipCompressor;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.file.storage.exception.StorageListingException;
+import org.church.management.temporary.file.factory.TemporaryFileFactory;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class spreads the files over several storages. The storage of a path is picked
+ * by a consistent hash of its top level directory or of the whole path, every storage
+ * is placed on the hash ring many times so the paths are spread evenly.
+ * When a storage is added only the paths that now belong to it are moved by rebalance(),
+ * the paths not moved yet are still read from their old storage.
+ *
+ * When the placement is by directory, a top level directory and everything below it
+ * lives on one storage. When the placement is by path, the directories are created on
+ * every storage and the files of one directory are spread over all of them.
+ *
+ * The paths given to this storage have to be relative to the storage folder
+ * of the shards and separated by '/'.
+ *
+ * need properties:
+ * 		shardKey: directory or path, what the placement is hashed on, default is directory.
+ * 		virtualNodes: the number of places of every storage on the hash ring, default is 128.
+ * 		zipParallelism: the number of threads compressing the entries of the zips, default is the number of processors.
+ * 		zipCompressionLevel: the deflate level of the zips from 1 to 9, default is -1 for the deflate default, 0 stores every file.
+ * 		zipStoredExtensions: the extensions of the files stored in the zips without compression like jpg,png,mp4, default is the common media and archive formats.
+ */
+public class ShardedFileStorage implements FileStorage
+{
+	private static final Logger logger = Logger.getLogger(ShardedFileStorage.class);
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private boolean byPath = false;
+	private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+
+	private Map<String, FileStorage> shards = new LinkedHashMap<String, FileStorage>();
+	private volatile TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private volatile TreeMap<Long, String> previousRing = null;
+	private ExecutorService workers;
+	private ZipCompressor zipCompressor;
+
+	public ShardedFileStorage(Map<String, FileStorage> shards, Properties properties)
+	{
+		if(shards.isEmpty())
+		{
+			throw new IllegalArgumentException("A sharded storage needs at least one storage.");
+		}
+
+		byPath = "path".equalsIgnoreCase(properties.getProperty("shardKey"));
+
+		int zipParallelism = Runtime.getRuntime().availableProcessors(), zipLevel = -1;
+		Set<String> zipStoredExtensions = ZipCompressor.parseExtensions(ZipCompressor.DEFAULT_STORED_EXTENSIONS);
+
+		try
+		{
+			if(properties.getProperty("virtualNodes") != null)
+			{
+				virtualNodes = Math.max(1, Integer.parseInt(properties.getProperty("virtualNodes")));
+			}
+
+			if(properties.getProperty("zipParallelism") != null)
+			{
+				zipParallelism = Integer.parseInt(properties.getProperty("zipParallelism"));
+			}
+
+			if(properties.getProperty("zipCompressionLevel") != null)
+			{
+				int level = Integer.parseInt(properties.getProperty("zipCompressionLevel"));
+
+				if(level < -1 || level > 9)
+				{
+					throw new IllegalArgumentException("The zip compression level must be between -1 and 9.");
+				}
+
+				zipLevel = level;
+			}
+
+			if(properties.getProperty("zipStoredExtensions") != null)
+			{
+				zipStoredExtensions = ZipCompressor.parseExtensions(properties.getProperty("zipStoredExtensions"));
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("ShardedFileStorage.<init> - An error has occurred while parsing the properties.", e);
+		}
+
+		this.shards.putAll(shards);
+		this.ring = createRing(this.shards.keySet());
+		this.workers = Executors.newCachedThreadPool(new ShardThreadFactory());
+		this.zipCompressor = new ZipCompressor(zipParallelism, zipLevel, zipStoredExtensions);
+	}
+
+	/**
+	 * Adds the storage to the hash ring, the paths that belong to it are
+	 * read from their old storage until rebalance() has moved them.
+	 */
+	public synchronized void addShard(String name, FileStorage storage)
+	{
+		if(shards.containsKey(name))
+		{
+			throw new IllegalArgumentException("Shard "+name+" already exists.");
+		}
+
+		if(previousRing == null)
+		{
+			previousRing = ring;
+		}
+
+		shards.put(name, storage);
+		ring = createRing(shards.keySet());
+	}
+
+	/**
+	 * Moves the paths that are on a different storage than the hash ring places them,
+	 * every storage is worked through in parallel.
+	 *
+	 * @return the number of moved files and directories.
+	 */
+	public int rebalance() throws Exception
+	{
+		List<Future<Integer>> moves = new ArrayList<Future<Integer>>();
+
+		for(final String name: getShardNames())
+		{
+			moves.add(workers.submit(new Callable<Integer>()
+			{
+				public Integer call() throws Exception
+				{
+					return rebalance(name, "");
+				}
+			}));
+		}
+
+		int moved = 0;
+		Exception failure = null;
+
+		for(Future<Integer> move: moves)
+		{
+			try
+			{
+				moved += move.get();
+			}
+			catch(ExecutionException e)
+			{
+				logger.error("ShardedFileStorage.rebalance()- Could not rebalance a shard.", e.getCause());
+				failure = (Exception)e.getCause();
+			}
+		}
+
+		if(failure != null)
+		{
+			throw failure;
+		}
+
+		synchronized(this)
+		{
+			previousRing = null;
+		}
+
+		return moved;
+	}
+
+	public synchronized Map<String, FileStorage> getShards()
+	{
+		return new LinkedHashMap<String, FileStorage>(shards);
+	}
+
+	/**
+	 * @return the name of the storage the path is placed on.
+	 */
+	public String getShardName(String path)
+	{
+		return locate(ring, normalize(path));
+	}
+
+	@Supported
+	public String createDirectory(String directory) throws Exception
+	{
+		if(byPath)
+		{
+			String path = null;
+
+			for(String name: getShardNames())
+			{
+				path = getShard(name).createDirectory(directory);
+			}
+
+			return path;
+		}
+
+		return getOwner(directory).createDirectory(directory);
+	}
+
+	@Supported
+	public void deleteDirectory(String directory) throws Exception
+	{
+		if(byPath || isTopLevel(directory))
+		{
+			//a directory that is being moved to a new shard may be on both.
+			for(String name: getShardNames())
+			{
+				getShard(name).deleteDirectory(directory);
+			}
+
+			return;
+		}
+
+		getOwner(directory).deleteDirectory(directory);
+	}
+
+	/**
+	 * A top level directory that gets placed on another storage by its new name is moved there.
+	 */
+	@Supported
+	public String renameDirectory(String oldDirectory, String newDirectory) throws Exception
+	{
+		String path = null;
+
+		if(byPath)
+		{
+			for(String name: getShardNames())
+			{
+				path = getShard(name).renameDirectory(oldDirectory, newDirectory);
+			}
+
+			for(String name: getShardNames())
+			{
+				rebalance(name, normalize(newDirectory));
+			}
+
+			return path;
+		}
+
+		String owner = getOwnerName(oldDirectory);
+		path = getShard(owner).renameDirectory(oldDirectory, newDirectory);
+
+		if(isTopLevel(oldDirectory) && getOwnerName(newDirectory).equals(owner) == false)
+		{
+			moveDirectory(getShard(owner), getOwner(newDirectory), normalize(newDirectory));
+		}
+
+		return path;
+	}
+
+	@Supported
+	public String upload(String folder, File file) throws Exception
+	{
+		return getOwner(join(normalize(folder), file.getName())).upload(folder, file);
+	}
+
+	@Supported
+	public String copy(String folder, String renameFile, File file) throws Exception
+	{
+		return getOwner(join(normalize(folder), renameFile)).copy(folder, renameFile, file);
+	}
+
+	@Supported
+	public void deleteFile(String filePath) throws Exception
+	{
+		getOwner(filePath).deleteFile(filePath);
+
+		TreeMap<Long, String> previous = previousRing;
+
+		if(previous != null && locate(previous, getKey(normalize(filePath))).equals(getOwnerName(filePath)) == false)
+		{
+			getShard(locate(previous, getKey(normalize(filePath)))).deleteFile(filePath);
+		}
+	}
+
+	@Supported
+	public File retrieve(final String filePath) throws Exception
+	{
+		return read(filePath, new ShardRead<File>()
+		{
+			public File execute(FileStorage storage) throws Exception
+			{
+				return storage.retrieve(filePath);
+			}
+		});
+	}
+
+	@Supported
+	public byte[] retrieveRange(final String filePath, final long offset, final int length) throws Exception
+	{
+		return read(filePath, new ShardRead<byte[]>()
+		{
+			public byte[] execute(FileStorage storage) throws Exception
+			{
+				return storage.retrieveRange(filePath, offset, length);
+			}
+		});
+	}
+
+	@Supported
+	public StorageEntry stat(String filePath) throws Exception
+	{
+		StorageEntry entry = getOwner(filePath).stat(filePath);
+
+		if(entry.exists() || (byPath && entry.isDirectory()))
+		{
+			return entry;
+		}
+
+		FileStorage previous = getPreviousOwner(filePath);
+
+		if(previous != null)
+		{
+			entry = previous.stat(filePath);
+		}
+
+		if(entry.exists() == false && byPath)
+		{
+			//a directory may only be on the other shards.
+			for(String name: getShardNames())
+			{
+				entry = getShard(name).stat(filePath);
+
+				if(entry.exists())
+				{
+					return entry;
+				}
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * The updated file takes the name of the new file on some storages,
+	 * so it is moved when the new name is placed on another storage.
+	 */
+	@Supported
+	public String update(String filePath, File file) throws Exception
+	{
+		String owner = getOwnerName(filePath);
+		String path = getShard(owner).update(filePath, file);
+
+		relocate(owner, normalize(filePath));
+		relocate(owner, join(getParent(normalize(filePath)), file.getName()));
+
+		return path;
+	}
+
+	@Supported
+	public String renameFile(String filepath, String newFileName) throws Exception
+	{
+		String owner = getOwnerName(filepath);
+		String path = getShard(owner).renameFile(filepath, newFileName);
+
+		relocate(owner, join(getParent(normalize(filepath)), newFileName));
+
+		return path;
+	}
+
+	@Supported
+	public InputStream openRead(final String filePath) throws Exception
+	{
+		return read(filePath, new ShardRead<InputStream>()
+		{
+			public InputStream execute(FileStorage storage) throws Exception
+			{
+				return storage.openRead(filePath);
+			}
+		});
+	}
+
+	@Supported
+	public long transferTo(final String filePath, final WritableByteChannel target) throws Exception
+	{
+		return read(filePath, new ShardRead<Long>()
+		{
+			public Long execute(FileStorage storage) throws Exception
+			{
+				return storage.transferTo(filePath, target);
+			}
+		});
+	}
+
+	@Supported
+	public OutputStream openWrite(String filePath) throws Exception
+	{
+		return getOwner(filePath).openWrite(filePath);
+	}
+
+	@Supported
+	public List<BatchResult> uploadAll(final String folder, Collection<File> files) throws Exception
+	{
+		return executeByShard(new ArrayList<File>(files), new ShardBatch<File>()
+		{
+			public String getPath(File file)
+			{
+				return join(normalize(folder), file.getName());
+			}
+
+			public List<BatchResult> execute(FileStorage storage, List<File> items) throws Exception
+			{
+				return storage.uploadAll(folder, items);
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> deleteAll(Collection<String> filePaths) throws Exception
+	{
+		return executeByShard(new ArrayList<String>(filePaths), new ShardBatch<String>()
+		{
+			public String getPath(String filePath)
+			{
+				return normalize(filePath);
+			}
+
+			public List<BatchResult> execute(FileStorage storage, List<String> items) throws Exception
+			{
+				return storage.deleteAll(items);
+			}
+		});
+	}
+
+	@Supported
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception
+	{
+		List<BatchResult> results = executeByShard(new ArrayList<Map.Entry<String, String>>(renameFiles.entrySet()), new ShardBatch<Map.Entry<String, String>>()
+		{
+			public String getPath(Map.Entry<String, String> entry)
+			{
+				return normalize(entry.getKey());
+			}
+
+			public List<BatchResult> execute(FileStorage storage, List<Map.Entry<String, String>> items) throws Exception
+			{
+				Map<String, String> renames = new LinkedHashMap<String, String>();
+
+				for(Map.Entry<String, String> entry: items)
+				{
+					renames.put(entry.getKey(), entry.getValue());
+				}
+
+				return storage.renameAll(renames);
+			}
+		});
+
+		for(Map.Entry<String, String> entry: renameFiles.entrySet())
+		{
+			relocate(getOwnerName(entry.getKey()), join(getParent(normalize(entry.getKey())), entry.getValue()));
+		}
+
+		return results;
+	}
+
+	@Supported
+	public List<BatchResult> createDirectories(Collection<String> directories) throws Exception
+	{
+		if(byPath == false)
+		{
+			return executeByShard(new ArrayList<String>(directories), new ShardBatch<String>()
+			{
+				public String getPath(String directory)
+				{
+					return normalize(directory);
+				}
+
+				public List<BatchResult> execute(FileStorage storage, List<String> items) throws Exception
+				{
+					return storage.createDirectories(items);
+				}
+			});
+		}
+
+		List<BatchResult> results = null;
+
+		//a directory is only created when every shard has it.
+		for(String name: getShardNames())
+		{
+			List<BatchResult> shardResults = getShard(name).createDirectories(directories);
+
+			if(results == null)
+			{
+				results = shardResults;
+				continue;
+			}
+
+			for(int i = 0; i < results.size(); i++)
+			{
+				if(results.get(i).isSuccessful() && shardResults.get(i).isSuccessful() == false)
+				{
+					results.set(i, shardResults.get(i));
+				}
+			}
+		}
+
+		return results;
+	}
+
+	@Supported
+	public List<String> getAvailableFileExtensions() throws Exception
+	{
+		Set<String> extensions = new HashSet<String>();
+
+		for(String name: getShardNames())
+		{
+			extensions.addAll(getShard(name).getAvailableFileExtensions());
+		}
+
+		return new ArrayList<String>(extensions);
+	}
+
+	@Supported
+	public long getMemoryUsage() throws Exception
+	{
+		long usage = 0;
+
+		for(String name: getShardNames())
+		{
+			usage += getShard(name).getMemoryUsage();
+		}
+
+		return usage;
+	}
+
+	@Supported
+	public long getMemoryLimitation() throws Exception
+	{
+		long limitation = 0;
+
+		for(String name: getShardNames())
+		{
+			limitation += getShard(name).getMemoryLimitation();
+		}
+
+		return limitation;
+	}
+
+	@Supported
+	public List<File> getAllFiles() throws Exception
+	{
+		List<File> files = new ArrayList<File>();
+
+		for(String name: getShardNames())
+		{
+			files.addAll(getShard(name).getAllFiles());
+		}
+
+		return files;
+	}
+
+	@Supported
+	public List<File> getAllFilesForDirectory(String directory) throws Exception
+	{
+		if(byPath == false && normalize(directory).length() > 0 && previousRing == null)
+		{
+			return getOwner(directory).getAllFilesForDirectory(directory);
+		}
+
+		List<File> files = new ArrayList<File>();
+
+		for(String name: getShardNames())
+		{
+			FileStorage storage = getShard(name);
+
+			try
+			{
+				files.addAll(storage.getAllFilesForDirectory(directory));
+			}
+			catch(FileNotFoundException e)
+			{
+				logger.debug("ShardedFileStorage.getAllFilesForDirectory()- Shard "+name+" does not have the directory: "+directory+".");
+			}
+			catch(StorageListingException e)
+			{
+				if(isMissing(storage, directory, e) == false)
+				{
+					throw e;
+				}
+
+				logger.debug("ShardedFileStorage.getAllFilesForDirectory()- Shard "+name+" does not have the directory: "+directory+".");
+			}
+		}
+
+		return files;
+	}
+
+	/**
+	 * The listing of a directory that may be spread over the shards
+	 * merges the directories of every shard.
+	 */
+	@Supported
+	public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception
+	{
+		String path = normalize(directory);
+
+		if(byPath == false && path.length() > 0 && previousRing == null)
+		{
+			return getOwner(path).listEntries(directory, recursive, continuationToken);
+		}
+
+		return new ShardedEntryIterator(path, recursive, continuationToken);
+	}
+
+	public boolean isCloudStorage()
+	{
+		for(String name: getShardNames())
+		{
+			if(getShard(name).isCloudStorage() == false)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Supported
+	public File zipUpAllFiles(String archiveName) throws Exception
+	{
+		return zip("", archiveName);
+	}
+
+	@Supported
+	public File zipUpDirectory(String fullPath, String archiveName) throws Exception
+	{
+		if(stat(fullPath).isDirectory() == false)
+		{
+			throw new FileNotFoundException("Directory "+fullPath+" could not zip up, because it is deleted.");
+		}
+
+		return zip(normalize(fullPath), archiveName);
+	}
+
+	@Supported
+	public void zipDirectoryTo(String directory, OutputStream output) throws Exception
+	{
+		String path = normalize(directory);
+
+		if(path.length() > 0 && stat(path).isDirectory() == false)
+		{
+			throw new FileNotFoundException("Directory "+directory+" could not zip up, because it is deleted.");
+		}
+
+		zip(path, output);
+	}
+
+	public void shutdown()
+	{
+		workers.shutdown();
+		zipCompressor.shutdown();
+	}
+
+	private File zip(String directory, String archiveName) throws Exception
+	{
+		File archive = TemporaryFileFactory.createFile(archiveName);
+		OutputStream output = new FileOutputStream(archive);
+
+		try
+		{
+			zip(directory, output);
+		}
+		finally
+		{
+			output.close();
+		}
+
+		return archive;
+	}
+
+	/**
+	 * Writes the zip of the directory, the stream is finished but not closed.
+	 * The files are read from their shards by the threads of the compressor.
+	 */
+	private void zip(final String directory, OutputStream output) throws Exception
+	{
+		ParallelZipWriter zip = zipCompressor.open(output);
+
+		try
+		{
+			StorageEntryIterator entries = listEntries(directory, true, null);
+
+			while(entries.hasNext())
+			{
+				StorageEntry entry = entries.next();
+				final String path = entries.getContinuationToken();
+
+				if(entry.isDirectory())
+				{
+					zip.addDirectory(path, entry.getLastModified());
+					continue;
+				}
+
+				zip.addEntry(path, entry.getLastModified(), entry.getSize(), new ParallelZipWriter.Source()
+				{
+					public InputStream open() throws Exception
+					{
+						return openRead(join(directory, path));
+					}
+				});
+			}
+
+			zip.finish();
+		}
+		catch(Exception e)
+		{
+			logger.error("ShardedFileStorage.zip()- Could not zip up the directory: "+directory+".", e);
+			throw e;
+		}
+		finally
+		{
+			zip.cancel();
+		}
+	}
+
+	/**
+	 * Reads from the shard of the path, while a rebalance is pending
+	 * a missing path is read from the shard it was placed on before.
+	 */
+	private <T> T read(String filePath, ShardRead<T> read) throws Exception
+	{
+		try
+		{
+			return read.execute(getOwner(filePath));
+		}
+		catch(FileNotFoundException e)
+		{
+			FileStorage previous = getPreviousOwner(filePath);
+
+			if(previous == null)
+			{
+				throw e;
+			}
+
+			return read.execute(previous);
+		}
+	}
+
+	/**
+	 * Runs the batch on every shard at once, each shard gets the items placed on it.
+	 * The results are returned in the order of the items.
+	 */
+	private <T> List<BatchResult> executeByShard(List<T> items, final ShardBatch<T> batch) throws Exception
+	{
+		Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+
+		for(int i = 0; i < items.size(); i++)
+		{
+			String owner = getOwnerName(batch.getPath(items.get(i)));
+
+			if(groups.containsKey(owner) == false)
+			{
+				groups.put(owner, new ArrayList<Integer>());
+			}
+
+			groups.get(owner).add(i);
+		}
+
+		BatchResult[] results = new BatchResult[items.size()];
+		Map<List<Integer>, Future<List<BatchResult>>> futures = new LinkedHashMap<List<Integer>, Future<List<BatchResult>>>();
+
+		for(Map.Entry<String, List<Integer>> group: groups.entrySet())
+		{
+			final FileStorage storage = getShard(group.getKey());
+			final List<T> shardItems = new ArrayList<T>();
+
+			for(Integer index: group.getValue())
+			{
+				shardItems.add(items.get(index));
+			}
+
+			futures.put(group.getValue(), workers.submit(new Callable<List<BatchResult>>()
+			{
+				public List<BatchResult> call() throws Exception
+				{
+					return batch.execute(storage, shardItems);
+				}
+			}));
+		}
+
+		for(Map.Entry<List<Integer>, Future<List<BatchResult>>> future: futures.entrySet())
+		{
+			List<Integer> indexes = future.getKey();
+
+			try
+			{
+				List<BatchResult> shardResults = future.getValue().get();
+
+				for(int i = 0; i < indexes.size(); i++)
+				{
+					results[indexes.get(i)] = shardResults.get(i);
+				}
+			}
+			catch(ExecutionException e)
+			{
+				logger.error("ShardedFileStorage.executeByShard()- A shard batch has failed.", e.getCause());
+
+				for(Integer index: indexes)
+				{
+					results[index] = new BatchResult(batch.getPath(items.get(index)), (Exception)e.getCause());
+				}
+			}
+		}
+
+		List<BatchResult> ordered = new ArrayList<BatchResult>();
+
+		for(BatchResult result: results)
+		{
+			ordered.add(result);
+		}
+
+		return ordered;
+	}
+
+	/**
+	 * Moves the paths below the directory of the shard that are placed on another shard.
+	 */
+	private int rebalance(String name, String directory) throws Exception
+	{
+		FileStorage storage = getShard(name);
+		int moved = 0;
+
+		if(byPath == false && directory.length() == 0)
+		{
+			//a top level directory moves as a whole.
+			List<StorageEntry> topLevel = new ArrayList<StorageEntry>();
+			StorageEntryIterator entries = storage.listEntries("", false, null);
+
+			while(entries.hasNext())
+			{
+				topLevel.add(entries.next());
+			}
+
+			for(StorageEntry entry: topLevel)
+			{
+				String owner = getOwnerName(entry.getName());
+
+				if(owner.equals(name))
+				{
+					continue;
+				}
+
+				if(entry.isDirectory())
+				{
+					moveDirectory(storage, getShard(owner), entry.getName());
+				}
+
+				else
+				{
+					moveFile(storage, getShard(owner), entry.getName());
+				}
+
+				moved++;
+			}
+
+			return moved;
+		}
+
+		List<String> misplaced = new ArrayList<String>();
+		boolean listed = false;
+
+		try
+		{
+			StorageEntryIterator entries = storage.listEntries(directory, true, null);
+
+			while(entries.hasNext())
+			{
+				StorageEntry entry = entries.next();
+				String path = join(directory, entries.getContinuationToken());
+				listed = true;
+
+				if(entry.isDirectory() == false && getOwnerName(path).equals(name) == false)
+				{
+					misplaced.add(path);
+				}
+			}
+		}
+		catch(FileNotFoundException e)
+		{
+			return 0;
+		}
+		catch(StorageListingException e)
+		{
+			if(listed || isMissing(storage, directory, e) == false)
+			{
+				throw e;
+			}
+
+			return 0;
+		}
+
+		for(String path: misplaced)
+		{
+			moveFile(storage, getOwner(path), path);
+			moved++;
+		}
+
+		return moved;
+	}
+
+	/**
+	 * Moves the file to the shard it is placed on, if it is on the given shard.
+	 */
+	private void relocate(String name, String path) throws Exception
+	{
+		String owner = getOwnerName(path);
+
+		if(owner.equals(name) == false && getShard(name).stat(path).isFile())
+		{
+			moveFile(getShard(name), getShard(owner), path);
+		}
+	}
+
+	private void moveFile(FileStorage source, FileStorage target, String path) throws Exception
+	{
+		createParents(target, path);
+		InputStream input = source.openRead(path);
+
+		try
+		{
+			OutputStream output = target.openWrite(path);
+
+			try
+			{
+				IOUtils.copyLarge(input, output);
+			}
+			catch(IOException e)
+			{
+				abort(output);
+				throw e;
+			}
+
+			output.close();
+		}
+		finally
+		{
+			input.close();
+		}
+
+		source.deleteFile(path);
+	}
+
+	private void moveDirectory(FileStorage source, FileStorage target, String directory) throws Exception
+	{
+		createParents(target, directory);
+
+		if(target.stat(directory).exists() == false)
+		{
+			target.createDirectory(directory);
+		}
+
+		StorageEntryIterator entries = source.listEntries(directory, true, null);
+
+		while(entries.hasNext())
+		{
+			StorageEntry entry = entries.next();
+			String path = join(directory, entries.getContinuationToken());
+
+			if(entry.isDirectory())
+			{
+				if(target.stat(path).exists() == false)
+				{
+					target.createDirectory(path);
+				}
+			}
+
+			else
+			{
+				InputStream input = source.openRead(path);
+
+				try
+				{
+					OutputStream output = target.openWrite(path);
+
+					try
+					{
+						IOUtils.copyLarge(input, output);
+					}
+					catch(IOException e)
+					{
+						abort(output);
+						throw e;
+					}
+
+					output.close();
+				}
+				finally
+				{
+					input.close();
+				}
+			}
+		}
+
+		source.deleteDirectory(directory);
+	}
+
+	/**
+	 * Throws away the partial file of a failed copy, the streams that can not be aborted are closed.
+	 */
+	private static void abort(OutputStream output)
+	{
+		if(output instanceof Abortable)
+		{
+			((Abortable)output).abort();
+			return;
+		}
+
+		try
+		{
+			output.close();
+		}
+		catch(IOException e)
+		{
+			logger.error("ShardedFileStorage.abort()- Could not close the stream of a failed copy.", e);
+		}
+	}
+
+	/**
+	 * The lazy listings of a storage report a missing directory from the iterator, as a failure
+	 * caused by FileNotFoundException or by the own error of the storage, so a failure is only
+	 * taken for a missing directory when the shard does not have the directory.
+	 */
+	private static boolean isMissing(FileStorage storage, String directory, StorageListingException failure)
+	{
+		for(Throwable cause = failure.getCause(); cause != null; cause = cause.getCause())
+		{
+			if(cause instanceof FileNotFoundException)
+			{
+				return true;
+			}
+		}
+
+		try
+		{
+			return normalize(directory).length() > 0 && storage.stat(directory).exists() == false;
+		}
+		catch(Exception e)
+		{
+			logger.error("ShardedFileStorage.isMissing()- Could not check the directory: "+directory+".", e);
+			return false;
+		}
+	}
+
+	private void createParents(FileStorage storage, String path) throws Exception
+	{
+		String[] names = path.split("/");
+		String directory = "";
+
+		for(int i = 0; i < names.length - 1; i++)
+		{
+			directory = join(directory, names[i]);
+
+			if(storage.stat(directory).exists() == false)
+			{
+				storage.createDirectory(directory);
+			}
+		}
+	}
+
+	private synchronized List<String> getShardNames()
+	{
+		return new ArrayList<String>(shards.keySet());
+	}
+
+	private synchronized FileStorage getShard(String name)
+	{
+		return shards.get(name);
+	}
+
+	private FileStorage getOwner(String path)
+	{
+		return getShard(getOwnerName(path));
+	}
+
+	private String getOwnerName(String path)
+	{
+		return locate(ring, getKey(normalize(path)));
+	}
+
+	/**
+	 * @return the shard the path was placed on before the last added shard,
+	 * 		or null when it is the same shard or no rebalance is pending.
+	 */
+	private FileStorage getPreviousOwner(String path)
+	{
+		TreeMap<Long, String> previous = previousRing;
+
+		if(previous == null)
+		{
+			return null;
+		}
+
+		String name = locate(previous, getKey(normalize(path)));
+
+		if(name.equals(getOwnerName(path)))
+		{
+			return null;
+		}
+
+		return getShard(name);
+	}
+
+	private String getKey(String path)
+	{
+		if(byPath)
+		{
+			return path;
+		}
+
+		int index = path.indexOf('/');
+
+		if(index < 0)
+		{
+			return path;
+		}
+
+		return path.substring(0, index);
+	}
+
+	private boolean isTopLevel(String directory)
+	{
+		return normalize(directory).indexOf('/') < 0;
+	}
+
+	private TreeMap<Long, String> createRing(Collection<String> names)
+	{
+		TreeMap<Long, String> created = new TreeMap<Long, String>();
+
+		for(String name: names)
+		{
+			for(int i = 0; i < virtualNodes; i++)
+			{
+				created.put(hash(name+"#"+i), name);
+			}
+		}
+
+		return created;
+	}
+
+	private static String locate(TreeMap<Long, String> ring, String key)
+	{
+		SortedMap<Long, String> tail = ring.tailMap(hash(key));
+
+		if(tail.isEmpty())
+		{
+			return ring.firstEntry().getValue();
+		}
+
+		return tail.get(tail.firstKey());
+	}
+
+	private static long hash(String key)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			long hash = 0;
+
+			for(int i = 0; i < 8; i++)
+			{
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+
+			return hash;
+		}
+		catch(Exception e)
+		{
+			throw new IllegalStateException("MD5 is not available.", e);
+		}
+	}
+
+	private static String normalize(String path)
+	{
+		if(path == null)
+		{
+			return "";
+		}
+
+		String normalized = path.replace('\\', '/');
+
+		while(normalized.contains("//"))
+		{
+			normalized = normalized.replace("//", "/");
+		}
+
+		while(normalized.startsWith("/"))
+		{
+			normalized = normalized.substring(1);
+		}
+
+		while(normalized.endsWith("/"))
+		{
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+
+		return normalized;
+	}
+
+	private static String join(String directory, String name)
+	{
+		if(directory.length() == 0)
+		{
+			return normalize(name);
+		}
+
+		return directory+"/"+normalize(name);
+	}
+
+	private static String getParent(String path)
+	{
+		int index = path.lastIndexOf('/');
+
+		if(index < 0)
+		{
+			return "";
+		}
+
+		return path.substring(0, index);
+	}
+
+	private interface ShardRead<T>
+	{
+		public T execute(FileStorage storage) throws Exception;
+	}
+
+	private interface ShardBatch<T>
+	{
+		public String getPath(T item);
+
+		public List<BatchResult> execute(FileStorage storage, List<T> items) throws Exception;
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class lists a directory on every shard and merges the entries,
+	 * a directory that is on several shards is returned once.
+	 */
+	private class ShardedEntryIterator extends StorageEntryIterator
+	{
+		public ShardedEntryIterator(String directory, boolean recursive, String continuationToken)
+		{
+			super(directory, recursive, continuationToken);
+		}
+
+		protected List<StorageEntry> listDirectory(String directory) throws Exception
+		{
+			Map<String, StorageEntry> entries = new LinkedHashMap<String, StorageEntry>();
+			boolean found = false;
+
+			for(String name: getShardNames())
+			{
+				FileStorage storage = getShard(name);
+				boolean listed = false;
+
+				try
+				{
+					StorageEntryIterator shardEntries = storage.listEntries(directory, false, null);
+
+					while(shardEntries.hasNext())
+					{
+						StorageEntry entry = shardEntries.next();
+						String path = join(directory, entry.getName());
+						listed = true;
+
+						if(entries.containsKey(entry.getName()) == false || entry.isFile())
+						{
+							entries.put(entry.getName(), new StorageEntry(path, entry.getName(), entry.isDirectory(), entry.getSize(), entry.getLastModified()));
+						}
+					}
+				}
+				catch(FileNotFoundException e)
+				{
+					continue;
+				}
+				catch(StorageListingException e)
+				{
+					if(listed || isMissing(storage, directory, e) == false)
+					{
+						throw e;
+					}
+
+					continue;
+				}
+
+				found = true;
+			}
+
+			if(found == false)
+			{
+				throw new FileNotFoundException("Directory "+directory+" does not existed.");
+			}
+
+			return new ArrayList<StorageEntry>(entries.values());
+		}
+	}
+
+	private static class ShardThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "shard-worker-"+threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
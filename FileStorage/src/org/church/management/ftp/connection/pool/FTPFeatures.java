@@ -0,0 +1,87 @@
+package org.church.management.ftp.connection.pool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class holds the features a connection of the ftp server answered to FEAT with.
+ * The pool asks once when it opens the connection, so the sessions know whether
+ * the server answers MLST without asking again.
+ */
+public class FTPFeatures
+{
+	/**
+	 * The features of a server that does not know FEAT.
+	 */
+	public static final FTPFeatures NONE = new FTPFeatures(new HashMap<String, String>());
+
+	private Map<String, String> features;
+
+	private FTPFeatures(Map<String, String> features)
+	{
+		this.features = features;
+	}
+
+	/**
+	 * @param messages the lines of the reply to FEAT, a feature is on a line starting with a space.
+	 */
+	public static FTPFeatures parse(String[] messages)
+	{
+		Map<String, String> features = new HashMap<String, String>();
+
+		if(messages == null)
+		{
+			return NONE;
+		}
+
+		for(String message: messages)
+		{
+			if(message == null || message.startsWith(" ") == false)
+			{
+				continue;
+			}
+
+			String line = message.trim();
+
+			if(line.length() == 0)
+			{
+				continue;
+			}
+
+			int index = line.indexOf(' ');
+
+			if(index < 0)
+			{
+				features.put(line.toUpperCase(), "");
+			}
+
+			else
+			{
+				features.put(line.substring(0, index).toUpperCase(), line.substring(index + 1).trim());
+			}
+		}
+
+		return new FTPFeatures(features);
+	}
+
+	public boolean isSupported(String feature)
+	{
+		return features.containsKey(feature.toUpperCase());
+	}
+
+	/**
+	 * @return true if the server gives the facts of a single path with MLST.
+	 */
+	public boolean isMachineListingSupported()
+	{
+		return isSupported("MLST");
+	}
+
+	public String toString()
+	{
+		return features.keySet().toString();
+	}
+}
@@ -1,34 +1,56 @@
-package org.church.management.ftp.session;
-
-import it.sauronsoftware.ftp4j.FTPFile;
-
-import java.io.File;
-import java.util.List;
-
-public interface FTPSession 
-{
-	public void close();
-	
-	public boolean isClosed();
-	
-	public String createDirectory(String directory) throws Exception;
-	
-	public void deleteDirectory(String directory) throws Exception;
-	
-	public String renameDirectory(String oldDirectory, String name) throws Exception;
-	
-	public String upload(String directory, File file) throws Exception;
-	
-	public String copy(String directory, String renameFile, File file) throws Exception;
-	
-	public void delete(String filePath) throws Exception;
-	
-	public void retrieve(String filePath, File localeFile) throws Exception;
-	
-	public String update(String filePath, File file) throws Exception;
-	
-	public String renameFile(String filepath, String newFileName) throws Exception ;
-
-	public List<FTPFile> getAllFilesForDirectory(String directory) throws Exception;
-	
-}
+package org.church.management.ftp.session;
+
+import it.sauronsoftware.ftp4j.FTPFile;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.batch.BatchResult;
+
+public interface FTPSession 
+{
+	public void close();
+	
+	public boolean isClosed();
+	
+	public String createDirectory(String directory) throws Exception;
+	
+	public void deleteDirectory(String directory) throws Exception;
+	
+	public String renameDirectory(String oldDirectory, String name) throws Exception;
+	
+	public String upload(String directory, File file) throws Exception;
+	
+	public String copy(String directory, String renameFile, File file) throws Exception;
+	
+	public void delete(String filePath) throws Exception;
+	
+	public void retrieve(String filePath, File localeFile) throws Exception;
+	
+	public byte[] retrieveRange(String filePath, long offset, int length) throws Exception;
+	
+	public StorageEntry stat(String filePath) throws Exception;
+	
+	public String update(String filePath, File file) throws Exception;
+	
+	public String renameFile(String filepath, String newFileName) throws Exception ;
+	
+	public InputStream openRead(String filePath) throws Exception;
+	
+	public OutputStream openWrite(String filePath) throws Exception;
+	
+	public List<BatchResult> uploadAll(String directory, List<File> files) throws Exception;
+	
+	public List<BatchResult> deleteAll(List<String> filePaths) throws Exception;
+	
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception;
+	
+	public List<BatchResult> createDirectories(List<String> directories) throws Exception;
+
+	public List<FTPFile> getAllFilesForDirectory(String directory) throws Exception;
+	
+}
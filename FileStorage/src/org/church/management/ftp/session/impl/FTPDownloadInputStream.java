@@ -0,0 +1,264 @@
+package org.church.management.ftp.session.impl;
+
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class streams a file from the ftp server. The download runs on its own
+ * thread and hands the bytes over through a pipe, so the first bytes are available
+ * as soon as the data connection is opened.
+ * If the stream is closed before the end of the file, the transfer is aborted
+ * so the connection can be used again. Closing waits a bounded time for the transfer to stop.
+ */
+class FTPDownloadInputStream extends InputStream
+{
+	private static final Logger logger = Logger.getLogger(FTPDownloadInputStream.class);
+	private static final long CLOSE_TIMEOUT = 30000;
+
+	private FTPClient client;
+	private String remoteFilePath;
+	private long restartAt;
+
+	private FTPStreamPipe pipe;
+	private Thread transfer;
+
+	private boolean started = false;
+	private boolean finished = false;
+	private boolean closed = false;
+	private Exception failure = null;
+
+	public FTPDownloadInputStream(FTPClient client, String remoteFilePath, long restartAt, int bufferSize)
+	{
+		this.client = client;
+		this.remoteFilePath = remoteFilePath;
+		this.restartAt = restartAt;
+		this.pipe = new FTPStreamPipe(bufferSize);
+	}
+
+	/**
+	 * Starts the download and waits until the server has
+	 * accepted it, so a missing file fails here and not on the first read.
+	 */
+	public void open() throws Exception
+	{
+		transfer = new Thread(new DownloadTask(), "ftp-download-"+remoteFilePath);
+		transfer.setDaemon(true);
+		transfer.start();
+
+		synchronized(this)
+		{
+			while(started == false && finished == false)
+			{
+				wait();
+			}
+
+			if(started == false && failure != null)
+			{
+				throw failure;
+			}
+		}
+	}
+
+	public int read() throws IOException
+	{
+		byte[] single = new byte[1];
+		int count = read(single, 0, 1);
+
+		while(count == 0)
+		{
+			count = read(single, 0, 1);
+		}
+
+		if(count < 0)
+		{
+			return -1;
+		}
+
+		return single[0] & 0xff;
+	}
+
+	public int read(byte[] bytes, int offset, int length) throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Stream is closed.");
+		}
+
+		return pipe.read(bytes, offset, length);
+	}
+
+	public void close() throws IOException
+	{
+		if(closed)
+		{
+			return;
+		}
+
+		closed = true;
+		pipe.closeReader();
+
+		try
+		{
+			if(isFinished() == false)
+			{
+				//the transfer may be waiting on the server and never write into the closed pipe.
+				abortTransfer(true);
+			}
+
+			if(awaitTransfer() == false)
+			{
+				throw new IOException("The download of "+remoteFilePath+" did not stop within "+CLOSE_TIMEOUT+" milliseconds.");
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the download of "+remoteFilePath+".");
+		}
+	}
+
+	/**
+	 * Waits a bounded time for the transfer thread, a thread that is still blocked gets its
+	 * data connection closed without the ABOR command and the same time again.
+	 *
+	 * @return false when the transfer thread has not stopped.
+	 */
+	private boolean awaitTransfer() throws InterruptedException
+	{
+		transfer.join(CLOSE_TIMEOUT);
+
+		if(transfer.isAlive() == false)
+		{
+			return true;
+		}
+
+		logger.error("FTPDownloadInputStream.awaitTransfer()- The download of "+remoteFilePath+" did not stop after the abort, closing its data connection.");
+		abortTransfer(false);
+		transfer.join(CLOSE_TIMEOUT);
+		return transfer.isAlive() == false;
+	}
+
+	private void abortTransfer(boolean sendAbortCommand)
+	{
+		try
+		{
+			client.abortCurrentDataTransfer(sendAbortCommand);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPDownloadInputStream.abortTransfer()- Could not abort the download of "+remoteFilePath+".", e);
+		}
+	}
+
+	private synchronized boolean isFinished()
+	{
+		return finished;
+	}
+
+	/**
+	 * Writes the downloaded bytes into the pipe. When the reader has gone away
+	 * the transfer is aborted, ftp4j then finishes the download with an FTPAbortedException.
+	 */
+	private class PipeOutputStream extends OutputStream
+	{
+		private boolean aborted = false;
+
+		public void write(int b) throws IOException
+		{
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			if(aborted)
+			{
+				return;
+			}
+
+			if(pipe.write(bytes, offset, length) == false)
+			{
+				aborted = true;
+
+				try
+				{
+					client.abortCurrentDataTransfer(true);
+				}
+				catch(Exception e)
+				{
+					throw new IOException("Could not abort the download of "+remoteFilePath+".", e);
+				}
+			}
+		}
+	}
+
+	private class DownloadTask implements Runnable, FTPDataTransferListener
+	{
+		public void run()
+		{
+			Exception error = null;
+
+			try
+			{
+				client.download(remoteFilePath, new PipeOutputStream(), restartAt, this);
+			}
+			catch(FTPAbortedException e)
+			{
+				logger.debug("FTPDownloadInputStream.run()- The download of "+remoteFilePath+" was closed before the end of the file.");
+			}
+			catch(Exception e)
+			{
+				if(pipe.isReaderClosed() == false)
+				{
+					logger.error("FTPDownloadInputStream.run()- Could not download file: "+remoteFilePath+".", e);
+					error = e;
+				}
+			}
+			finally
+			{
+				pipe.closeWriter(error);
+
+				synchronized(FTPDownloadInputStream.this)
+				{
+					finished = true;
+					failure = error;
+					FTPDownloadInputStream.this.notifyAll();
+				}
+			}
+		}
+
+		public void started()
+		{
+			synchronized(FTPDownloadInputStream.this)
+			{
+				started = true;
+				FTPDownloadInputStream.this.notifyAll();
+			}
+		}
+
+		public void transferred(int length)
+		{
+		}
+
+		public void completed()
+		{
+		}
+
+		public void aborted()
+		{
+		}
+
+		public void failed()
+		{
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,172 @@
+package org.church.management.ftp.session.impl;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.church.management.file.storage.StorageEntry;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class reads the facts of a machine listing line of MLST or MLSD,
+ * like type=file;size=1024;modify=20240101120000;unique=801U1A; name.
+ * The facts are exact, the size is in bytes and the modified time is in UTC to the second or better.
+ */
+class FTPFacts
+{
+	private Map<String, String> facts = new HashMap<String, String>();
+
+	private FTPFacts()
+	{
+	}
+
+	/**
+	 * @return the facts of the line, null when the line is not a machine listing line.
+	 */
+	public static FTPFacts parse(String line)
+	{
+		if(line == null)
+		{
+			return null;
+		}
+
+		//MLST replies put the line after a space, the facts end at the first space.
+		if(line.startsWith(" "))
+		{
+			line = line.substring(1);
+		}
+
+		int index = line.indexOf(' ');
+
+		if(index <= 0 || line.substring(0, index).indexOf('=') < 0)
+		{
+			return null;
+		}
+
+		FTPFacts parsed = new FTPFacts();
+
+		for(String fact: line.substring(0, index).split(";"))
+		{
+			int equals = fact.indexOf('=');
+
+			if(equals > 0)
+			{
+				parsed.facts.put(fact.substring(0, equals).toLowerCase(), fact.substring(equals + 1));
+			}
+		}
+
+		return parsed;
+	}
+
+	/**
+	 * @return the facts of the first machine listing line of the reply, null when there is none.
+	 */
+	public static FTPFacts parseReply(String[] messages)
+	{
+		if(messages == null)
+		{
+			return null;
+		}
+
+		for(String message: messages)
+		{
+			FTPFacts parsed = parse(message);
+
+			if(parsed != null)
+			{
+				return parsed;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the type in lower case like file, dir, cdir and pdir, null when the server did not give it.
+	 */
+	public String getType()
+	{
+		String type = facts.get("type");
+		return type == null ? null : type.toLowerCase();
+	}
+
+	public boolean isDirectory()
+	{
+		String type = getType();
+		return "dir".equals(type) || "cdir".equals(type) || "pdir".equals(type);
+	}
+
+	/**
+	 * @return the bytes of the file, -1 when the server did not give them.
+	 */
+	public long getSize()
+	{
+		String size = facts.get("size");
+
+		try
+		{
+			return size == null ? -1 : Long.parseLong(size);
+		}
+		catch(NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the modified time in milliseconds, 0 when the server did not give it.
+	 */
+	public long getModified()
+	{
+		String modify = facts.get("modify");
+
+		if(modify == null || modify.length() < 14)
+		{
+			return 0;
+		}
+
+		try
+		{
+			SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			long modified = format.parse(modify.substring(0, 14)).getTime();
+
+			//the fraction of the second is optional and of any length.
+			if(modify.length() > 15 && modify.charAt(14) == '.')
+			{
+				String fraction = (modify.substring(15)+"000").substring(0, 3);
+				modified += Integer.parseInt(fraction);
+			}
+
+			return modified;
+		}
+		catch(ParseException e)
+		{
+			return 0;
+		}
+		catch(NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the id of the file on the server that stays the same through renames, null when the server did not give it.
+	 */
+	public String getUnique()
+	{
+		return facts.get("unique");
+	}
+
+	/**
+	 * @return the entry for the path the caller asked about.
+	 */
+	public StorageEntry toEntry(String filePath, String name)
+	{
+		return new StorageEntry(filePath, name, isDirectory(), isDirectory() ? 0 : Math.max(0, getSize()), getModified());
+	}
+}
@@ -1,288 +1,738 @@
-package org.church.management.ftp.session.impl;
-
-import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
-
-import org.apache.log4j.Logger;
-import org.church.management.ftp.connection.pool.FTPConnectionPoolManagement;
-import org.church.management.ftp.session.FTPSession;
-
-import it.sauronsoftware.ftp4j.FTPClient;
-import it.sauronsoftware.ftp4j.FTPFile;
-
-/**
- * 
- * @author Trae
- *
- * This class gives you a connection to the ftp server.
- * Once the session is close, you cannot use it again.
- *
- */
-public class FTPSessionImpl implements FTPSession
-{
-	private static final Logger logger = Logger.getLogger(FTPSessionImpl.class);
-	private FTPClient client;
-	private boolean closed = false;
-	private FTPConnectionPoolManagement pool;
-	private String currentDirectory = "";
-	
-	public FTPSessionImpl(String currentDirectory, FTPClient client, FTPConnectionPoolManagement pool)
-	{
-		this.client = client;
-		this.pool = pool;
-		this.currentDirectory = currentDirectory;
-	}
-
-	public void close() 
-	{
-		this.closed = true;
-		pool.returnConnection(client);
-	}
-	
-	public boolean isClosed()
-	{
-		return closed;
-	}
-
-	public String createDirectory(String directory) throws Exception 
-	{
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			directory = currentDirectory+"/"+directory;
-			client.createDirectory(directory);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.createDirectory()- Could not create directory: "+directory+".", e);
-			throw e;
-		}
-		
-		return directory;
-	}
-
-	public void deleteDirectory(String directory) throws Exception 
-	{
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			directory = currentDirectory+"/"+directory;
-			client.deleteDirectory(directory);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.deleteDirectory()- Could not delete directory: "+directory+".", e);
-			throw e;
-		}
-	}
-
-	public String renameDirectory(String oldDirectory, String name) throws Exception 
-	{
-		String path = "";
-		
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			int index = oldDirectory.lastIndexOf("/");
-			String directory = oldDirectory.substring(0, index);
-			path = directory+"/"+name;
-			client.rename(oldDirectory, path);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.renameDirectory()- Could not rename directory: "+oldDirectory+" to "+name+".", e);
-			throw e;
-		}
-		
-		return path;
-	}
-
-	public String upload(String directory, File file) throws Exception 
-	{
-		String fullPath = "";
-		
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			fullPath = directory+"/"+file.getName();
-			client.changeDirectory(directory);
-			client.upload(file);
-			client.changeDirectory(currentDirectory);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.upload()- Could not upload file to directory: "+directory+".", e);
-			throw e;
-		}
-		
-		return fullPath;
-	}
-
-	public String copy(String directory, String renameFile, File file) throws Exception 
-	{
-		String newFilePath = "", oldFilePath = "";
-		
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			oldFilePath = directory+"/"+file.getName();
-			newFilePath = directory+"/"+renameFile;
-			client.changeDirectory(directory);
-			client.upload(file);
-			client.rename(oldFilePath, renameFile);
-			client.changeDirectory(currentDirectory);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.copy()- Could not copy file to directory: "+directory+".", e);
-			throw e;
-		}
-		
-		return newFilePath;
-	}
-
-	public void delete(String filePath) throws Exception 
-	{
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			client.deleteFile(filePath);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.delete()- Could not delete file: "+filePath+".", e);
-			throw e;
-		}
-	}
-
-	public void retrieve(String remoteFilePath, File localFile) throws Exception 
-	{
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			client.download(remoteFilePath, localFile);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.retrieve()- Could not download file: "+remoteFilePath+".", e);
-			throw e;
-		}
-	}
-
-	public String update(String filePath, File file) throws Exception 
-	{
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			File originalFile = new File(filePath);
-			String filename = originalFile.getName();
-			String parent = originalFile.getParent();
-			String newFilePath = parent+"/"+file.getName();
-			client.changeDirectory(parent);
-			client.upload(file);
-			client.deleteFile(filePath);
-			client.rename(newFilePath, filePath);
-			client.changeDirectory(currentDirectory);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.update()- Could not update a file.",e);
-			throw e;
-		}
-		
-		return filePath;
-	}
-
-	public String renameFile(String filepath, String newFileName) throws Exception 
-	{
-		String path = "";
-		
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			int index = filepath.lastIndexOf("/");
-			String directory = filepath.substring(0, index);
-			path = directory+"/"+newFileName;
-			client.rename(filepath, path);
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.renameFile()- Could not rename file: "+filepath+" to "+newFileName+".", e);
-			throw e;
-		}
-		
-		return path;
-	}
-
-	public List<FTPFile> getAllFilesForDirectory(String directory) throws Exception 
-	{
-		List<FTPFile> files = null;
-		
-		if(closed)
-		{
-			throw new Exception("Session is currently closed.");
-		}
-		
-		try
-		{
-			FTPFile temp[] = client.list(directory);
-			if(temp.length > 0)
-			{
-				files = new ArrayList<FTPFile>();
-				for(FTPFile file : temp)
-				{
-					files.add(file);
-				}
-			}
-			
-			else
-			{
-				files = new ArrayList<FTPFile>();
-			}
-		}
-		catch(Exception e)
-		{
-			logger.error("FTPSessionImpl.getAllFilesForDirectory()- Could not get all the files from the directory: "+directory+".", e);
-			throw e;
-		}
-		
-		return files;
-	}
-}
+package org.church.management.ftp.session.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.batch.BatchResult;
+import org.church.management.ftp.connection.pool.FTPConnectionPoolManagement;
+import org.church.management.ftp.session.FTPSession;
+
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPCodes;
+import it.sauronsoftware.ftp4j.FTPException;
+import it.sauronsoftware.ftp4j.FTPFile;
+import it.sauronsoftware.ftp4j.FTPReply;
+
+/**
+ * 
+ * @author Trae
+ *
+ * This class gives you a connection to the ftp server.
+ * Once the session is close, you cannot use it again.
+ *
+ */
+public class FTPSessionImpl implements FTPSession
+{
+	private static final Logger logger = Logger.getLogger(FTPSessionImpl.class);
+	private static final int STREAM_BUFFER_SIZE = 65536;
+	
+	private FTPClient client;
+	private boolean closed = false;
+	private FTPConnectionPoolManagement pool;
+	private String currentDirectory = "";
+	
+	public FTPSessionImpl(String currentDirectory, FTPClient client, FTPConnectionPoolManagement pool)
+	{
+		this.client = client;
+		this.pool = pool;
+		this.currentDirectory = currentDirectory;
+	}
+
+	public void close() 
+	{
+		this.closed = true;
+		pool.returnConnection(client);
+	}
+	
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	public String createDirectory(String directory) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			directory = currentDirectory+"/"+directory;
+			client.createDirectory(directory);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.createDirectory()- Could not create directory: "+directory+".", e);
+			throw e;
+		}
+		
+		return directory;
+	}
+
+	public void deleteDirectory(String directory) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			directory = currentDirectory+"/"+directory;
+			client.deleteDirectory(directory);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.deleteDirectory()- Could not delete directory: "+directory+".", e);
+			throw e;
+		}
+	}
+
+	public String renameDirectory(String oldDirectory, String name) throws Exception 
+	{
+		String path = "";
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			int index = oldDirectory.lastIndexOf("/");
+			String directory = oldDirectory.substring(0, index);
+			path = directory+"/"+name;
+			client.rename(oldDirectory, path);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.renameDirectory()- Could not rename directory: "+oldDirectory+" to "+name+".", e);
+			throw e;
+		}
+		
+		return path;
+	}
+
+	public String upload(String directory, File file) throws Exception 
+	{
+		String fullPath = "";
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			fullPath = directory+"/"+file.getName();
+			client.changeDirectory(directory);
+			client.upload(file);
+			client.changeDirectory(currentDirectory);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.upload()- Could not upload file to directory: "+directory+".", e);
+			throw e;
+		}
+		
+		return fullPath;
+	}
+
+	public String copy(String directory, String renameFile, File file) throws Exception 
+	{
+		String newFilePath = "", oldFilePath = "";
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			oldFilePath = directory+"/"+file.getName();
+			newFilePath = directory+"/"+renameFile;
+			client.changeDirectory(directory);
+			client.upload(file);
+			client.rename(oldFilePath, renameFile);
+			client.changeDirectory(currentDirectory);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.copy()- Could not copy file to directory: "+directory+".", e);
+			throw e;
+		}
+		
+		return newFilePath;
+	}
+
+	public void delete(String filePath) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			client.deleteFile(filePath);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.delete()- Could not delete file: "+filePath+".", e);
+			throw e;
+		}
+	}
+
+	public void retrieve(String remoteFilePath, File localFile) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			client.download(remoteFilePath, localFile);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.retrieve()- Could not download file: "+remoteFilePath+".", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Downloads a range of the file by restarting the transfer at the offset,
+	 * the transfer is aborted once the length has arrived.
+	 * When the server does not support restarting, the bytes before the offset are skipped.
+	 */
+	public byte[] retrieveRange(String remoteFilePath, long offset, int length) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		if(offset < 0 || length < 0)
+		{
+			throw new IllegalArgumentException("The offset and length cannot be negative.");
+		}
+		
+		ByteArrayOutputStream range = new ByteArrayOutputStream(Math.min(length, STREAM_BUFFER_SIZE));
+		FTPDownloadInputStream stream = null;
+		
+		try
+		{
+			long skip = 0;
+			
+			if(client.isResumeSupported())
+			{
+				stream = new FTPDownloadInputStream(client, remoteFilePath, offset, STREAM_BUFFER_SIZE);
+			}
+			
+			else
+			{
+				stream = new FTPDownloadInputStream(client, remoteFilePath, 0, STREAM_BUFFER_SIZE);
+				skip = offset;
+			}
+			
+			stream.open();
+			
+			while(skip > 0)
+			{
+				long skipped = stream.skip(skip);
+				
+				if(skipped <= 0 && stream.read() < 0)
+				{
+					break;
+				}
+				
+				else if(skipped <= 0)
+				{
+					skipped = 1;
+				}
+				
+				skip -= skipped;
+			}
+			
+			byte[] buffer = new byte[Math.min(Math.max(length, 1), STREAM_BUFFER_SIZE)];
+			int remaining = length;
+			
+			while(remaining > 0)
+			{
+				int read = stream.read(buffer, 0, Math.min(remaining, buffer.length));
+				
+				if(read < 0)
+				{
+					break;
+				}
+				
+				range.write(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.retrieveRange()- Could not download the range of file: "+remoteFilePath+".", e);
+			throw e;
+		}
+		finally
+		{
+			if(stream != null)
+			{
+				stream.close();
+			}
+		}
+		
+		return range.toByteArray();
+	}
+
+	/**
+	 * Reads the size and modification time of a file with MLST in one round trip when the server
+	 * supports it, otherwise with SIZE and MDTM, nothing is downloaded. When SIZE is refused, the path is checked as a directory.
+	 */
+	public StorageEntry stat(String filePath) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		String name = filePath;
+		int index = filePath.lastIndexOf("/");
+		
+		if(index >= 0)
+		{
+			name = filePath.substring(index+1);
+		}
+		
+		try
+		{
+			if(pool.getFeatures(client).isMachineListingSupported())
+			{
+				StorageEntry entry = statFromFacts(filePath, name);
+				
+				if(entry != null)
+				{
+					return entry;
+				}
+			}
+			
+			long size = -1;
+			
+			try
+			{
+				size = client.fileSize(filePath);
+			}
+			catch(FTPException e)
+			{
+				if(e.getCode() != FTPCodes.FILE_NOT_FOUND)
+				{
+					//the server does not know SIZE, the parent listing has the details.
+					return statFromListing(filePath, name);
+				}
+			}
+			
+			if(size >= 0)
+			{
+				return new StorageEntry(filePath, name, false, size, getModifiedTime(filePath));
+			}
+			
+			try
+			{
+				client.changeDirectory(filePath);
+				client.changeDirectory(currentDirectory);
+				return new StorageEntry(filePath, name, true, 0, getModifiedTime(filePath));
+			}
+			catch(FTPException e)
+			{
+				if(e.getCode() == FTPCodes.FILE_NOT_FOUND)
+				{
+					return StorageEntry.missing(filePath, name);
+				}
+				
+				throw e;
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.stat()- Could not read the details of file: "+filePath+".", e);
+			throw e;
+		}
+	}
+	
+	private long getModifiedTime(String filePath) throws Exception
+	{
+		try
+		{
+			Date modified = client.modifiedDate(filePath);
+			
+			if(modified != null)
+			{
+				return modified.getTime();
+			}
+		}
+		catch(FTPException e)
+		{
+			logger.debug("FTPSessionImpl.getModifiedTime()- The server did not return the modification time of: "+filePath+".");
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * @return the entry from the facts of MLST, null when the server did not give enough facts.
+	 */
+	private StorageEntry statFromFacts(String filePath, String name) throws Exception
+	{
+		FTPReply reply = client.sendCustomCommand("MLST "+filePath);
+		
+		if(reply.getCode() == FTPCodes.FILE_NOT_FOUND)
+		{
+			return StorageEntry.missing(filePath, name);
+		}
+		
+		if(reply.isSuccessCode() == false)
+		{
+			logger.debug("FTPSessionImpl.statFromFacts()- The server refused MLST for: "+filePath+", using SIZE and MDTM.");
+			return null;
+		}
+		
+		FTPFacts facts = FTPFacts.parseReply(reply.getMessages());
+		
+		if(facts == null || (facts.isDirectory() == false && facts.getSize() < 0))
+		{
+			return null;
+		}
+		
+		return facts.toEntry(filePath, name);
+	}
+	
+	private StorageEntry statFromListing(String filePath, String name) throws Exception
+	{
+		String parent = "";
+		int index = filePath.lastIndexOf("/");
+		
+		if(index == 0)
+		{
+			//a file in the root of the server, "" would list the current directory instead.
+			parent = "/";
+		}
+		
+		else if(index > 0)
+		{
+			parent = filePath.substring(0, index);
+		}
+		
+		for(FTPFile file: getAllFilesForDirectory(parent))
+		{
+			if(file.getName().equals(name))
+			{
+				long lastModified = 0;
+				
+				if(file.getModifiedDate() != null)
+				{
+					lastModified = file.getModifiedDate().getTime();
+				}
+				
+				return new StorageEntry(filePath, name, file.getType() == FTPFile.TYPE_DIRECTORY, file.getSize(), lastModified);
+			}
+		}
+		
+		return StorageEntry.missing(filePath, name);
+	}
+
+	public String update(String filePath, File file) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			File originalFile = new File(filePath);
+			String filename = originalFile.getName();
+			String parent = originalFile.getParent();
+			String newFilePath = parent+"/"+file.getName();
+			client.changeDirectory(parent);
+			client.upload(file);
+			client.deleteFile(filePath);
+			client.rename(newFilePath, filePath);
+			client.changeDirectory(currentDirectory);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.update()- Could not update a file.",e);
+			throw e;
+		}
+		
+		return filePath;
+	}
+
+	public String renameFile(String filepath, String newFileName) throws Exception 
+	{
+		String path = "";
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			int index = filepath.lastIndexOf("/");
+			String directory = filepath.substring(0, index);
+			path = directory+"/"+newFileName;
+			client.rename(filepath, path);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.renameFile()- Could not rename file: "+filepath+" to "+newFileName+".", e);
+			throw e;
+		}
+		
+		return path;
+	}
+
+	public InputStream openRead(String filePath) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			FTPDownloadInputStream stream = new FTPDownloadInputStream(client, filePath, 0, STREAM_BUFFER_SIZE);
+			stream.open();
+			return stream;
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.openRead()- Could not open file: "+filePath+" for reading.", e);
+			throw e;
+		}
+	}
+
+	public OutputStream openWrite(String filePath) throws Exception 
+	{
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			int index = filePath.lastIndexOf("/");
+			String directory = currentDirectory;
+			String filename = filePath;
+			
+			if(index == 0)
+			{
+				directory = "/";
+				filename = filePath.substring(1);
+			}
+			
+			else if(index > 0)
+			{
+				directory = filePath.substring(0, index);
+				filename = filePath.substring(index+1);
+			}
+			
+			FTPUploadOutputStream stream = new FTPUploadOutputStream(client, directory, filename, currentDirectory, STREAM_BUFFER_SIZE);
+			stream.open();
+			return stream;
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.openWrite()- Could not open file: "+filePath+" for writing.", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Uploads the files with a single change of directory, 
+	 * a failed file does not stop the rest of the files.
+	 */
+	public List<BatchResult> uploadAll(String directory, List<File> files) throws Exception 
+	{
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			client.changeDirectory(directory);
+			
+			for(File file: files)
+			{
+				try
+				{
+					client.upload(file);
+					results.add(new BatchResult(file.getPath(), directory+"/"+file.getName()));
+				}
+				catch(Exception e)
+				{
+					logger.error("FTPSessionImpl.uploadAll()- Could not upload file: "+file.getPath()+" to directory: "+directory+".", e);
+					results.add(new BatchResult(file.getPath(), e));
+				}
+			}
+			
+			client.changeDirectory(currentDirectory);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.uploadAll()- Could not upload files to directory: "+directory+".", e);
+			throw e;
+		}
+		
+		return results;
+	}
+
+	public List<BatchResult> deleteAll(List<String> filePaths) throws Exception 
+	{
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		for(String filePath: filePaths)
+		{
+			try
+			{
+				client.deleteFile(filePath);
+				results.add(new BatchResult(filePath, filePath));
+			}
+			catch(Exception e)
+			{
+				logger.error("FTPSessionImpl.deleteAll()- Could not delete file: "+filePath+".", e);
+				results.add(new BatchResult(filePath, e));
+			}
+		}
+		
+		return results;
+	}
+
+	public List<BatchResult> renameAll(Map<String, String> renameFiles) throws Exception 
+	{
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		for(Map.Entry<String, String> entry: renameFiles.entrySet())
+		{
+			String filepath = entry.getKey();
+			
+			try
+			{
+				int index = filepath.lastIndexOf("/");
+				String directory = filepath.substring(0, index);
+				String path = directory+"/"+entry.getValue();
+				client.rename(filepath, path);
+				results.add(new BatchResult(filepath, path));
+			}
+			catch(Exception e)
+			{
+				logger.error("FTPSessionImpl.renameAll()- Could not rename file: "+filepath+" to "+entry.getValue()+".", e);
+				results.add(new BatchResult(filepath, e));
+			}
+		}
+		
+		return results;
+	}
+
+	public List<BatchResult> createDirectories(List<String> directories) throws Exception 
+	{
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		for(String directory: directories)
+		{
+			try
+			{
+				String path = currentDirectory+"/"+directory;
+				client.createDirectory(path);
+				results.add(new BatchResult(directory, path));
+			}
+			catch(Exception e)
+			{
+				logger.error("FTPSessionImpl.createDirectories()- Could not create directory: "+directory+".", e);
+				results.add(new BatchResult(directory, e));
+			}
+		}
+		
+		return results;
+	}
+
+	/**
+	 * ftp4j lists with MLSD when the server announces it, so the sizes and the 
+	 * modified times to the second come in the one round trip, otherwise with LIST.
+	 */
+	public List<FTPFile> getAllFilesForDirectory(String directory) throws Exception 
+	{
+		List<FTPFile> files = null;
+		
+		if(closed)
+		{
+			throw new Exception("Session is currently closed.");
+		}
+		
+		try
+		{
+			FTPFile temp[] = null;
+			
+			if(directory == null || directory.length() == 0)
+			{
+				temp = client.list();
+			}
+			
+			else
+			{
+				temp = client.list(directory);
+			}
+			
+			if(temp.length > 0)
+			{
+				files = new ArrayList<FTPFile>();
+				for(FTPFile file : temp)
+				{
+					files.add(file);
+				}
+			}
+			
+			else
+			{
+				files = new ArrayList<FTPFile>();
+			}
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPSessionImpl.getAllFilesForDirectory()- Could not get all the files from the directory: "+directory+".", e);
+			throw e;
+		}
+		
+		return files;
+	}
+}
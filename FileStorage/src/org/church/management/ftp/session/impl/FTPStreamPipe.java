@@ -0,0 +1,157 @@
+package org.church.management.ftp.session.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class is a bounded buffer between the thread running
+ * the ftp transfer and the thread using the stream.
+ * The writer blocks while the buffer is full and the reader
+ * blocks while the buffer is empty.
+ */
+class FTPStreamPipe
+{
+	private byte[] buffer;
+	private int start = 0;
+	private int count = 0;
+
+	private boolean writerClosed = false;
+	private boolean readerClosed = false;
+	private Exception failure = null;
+
+	public FTPStreamPipe(int size)
+	{
+		this.buffer = new byte[size];
+	}
+
+	/**
+	 * Writes the bytes into the pipe.
+	 *
+	 * @return false if the reader has closed the pipe and the bytes were discarded.
+	 */
+	public synchronized boolean write(byte[] bytes, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			while(count == buffer.length && readerClosed == false && writerClosed == false)
+			{
+				waitForChange();
+			}
+
+			if(readerClosed)
+			{
+				return false;
+			}
+
+			if(writerClosed)
+			{
+				throw new IOException("The pipe is closed.");
+			}
+
+			int end = (start + count) % buffer.length;
+			int chunk = Math.min(length, Math.min(buffer.length - count, buffer.length - end));
+			System.arraycopy(bytes, offset, buffer, end, chunk);
+
+			count += chunk;
+			offset += chunk;
+			length -= chunk;
+			notifyAll();
+		}
+
+		return true;
+	}
+
+	public synchronized int read(byte[] bytes, int offset, int length) throws IOException
+	{
+		if(length == 0)
+		{
+			return 0;
+		}
+
+		while(count == 0 && writerClosed == false && readerClosed == false)
+		{
+			waitForChange();
+		}
+
+		if(readerClosed)
+		{
+			throw new IOException("The pipe is closed.");
+		}
+
+		if(count == 0)
+		{
+			if(failure instanceof IOException)
+			{
+				throw (IOException)failure;
+			}
+
+			else if(failure != null)
+			{
+				throw new IOException("The transfer has failed.", failure);
+			}
+
+			return -1;
+		}
+
+		int chunk = Math.min(length, Math.min(count, buffer.length - start));
+		System.arraycopy(buffer, start, bytes, offset, chunk);
+
+		start = (start + chunk) % buffer.length;
+		count -= chunk;
+		notifyAll();
+
+		return chunk;
+	}
+
+	/**
+	 * Ends the pipe from the writing side. Once the reader has
+	 * consumed the remaining bytes it will receive the failure,
+	 * or the end of the stream when the failure is null.
+	 */
+	public synchronized void closeWriter(Exception failure)
+	{
+		this.writerClosed = true;
+		this.failure = failure;
+		notifyAll();
+	}
+
+	/**
+	 * Ends the pipe from the writing side and discards the bytes the reader
+	 * has not consumed yet, the reader receives the failure right away.
+	 */
+	public synchronized void abortWriter(Exception failure)
+	{
+		this.writerClosed = true;
+		this.failure = failure;
+		this.start = 0;
+		this.count = 0;
+		notifyAll();
+	}
+
+	public synchronized void closeReader()
+	{
+		this.readerClosed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isReaderClosed()
+	{
+		return readerClosed;
+	}
+
+	private void waitForChange() throws InterruptedIOException
+	{
+		try
+		{
+			wait();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting on the transfer.");
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,331 @@
+package org.church.management.ftp.session.impl;
+
+import it.sauronsoftware.ftp4j.FTPAbortedException;
+import it.sauronsoftware.ftp4j.FTPClient;
+import it.sauronsoftware.ftp4j.FTPDataTransferListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+import org.church.management.file.storage.Abortable;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class streams a file to the ftp server. The upload runs on its own
+ * thread and reads the bytes written to this stream through a pipe.
+ * The file is complete on the server once the stream is closed.
+ *
+ * A caller that fails while writing aborts the stream instead of closing it,
+ * the transfer is then aborted and the part of the file on the server is deleted.
+ * An upload that does not finish within a bounded time after closing is aborted the same way.
+ */
+class FTPUploadOutputStream extends OutputStream implements Abortable
+{
+	private static final Logger logger = Logger.getLogger(FTPUploadOutputStream.class);
+	private static final long FINISH_TIMEOUT = 120000;
+	private static final long ABORT_TIMEOUT = 30000;
+
+	private FTPClient client;
+	private String directory;
+	private String fileName;
+	private String currentDirectory;
+
+	private FTPStreamPipe pipe;
+	private Thread transfer;
+
+	private boolean started = false;
+	private boolean finished = false;
+	private boolean closed = false;
+	private boolean aborted = false;
+	private Exception failure = null;
+
+	public FTPUploadOutputStream(FTPClient client, String directory, String fileName, String currentDirectory, int bufferSize)
+	{
+		this.client = client;
+		this.directory = directory;
+		this.fileName = fileName;
+		this.currentDirectory = currentDirectory;
+		this.pipe = new FTPStreamPipe(bufferSize);
+	}
+
+	/**
+	 * Starts the upload and waits until the server has accepted it.
+	 */
+	public void open() throws Exception
+	{
+		transfer = new Thread(new UploadTask(), "ftp-upload-"+directory+"/"+fileName);
+		transfer.setDaemon(true);
+		transfer.start();
+
+		synchronized(this)
+		{
+			while(started == false && finished == false)
+			{
+				wait();
+			}
+
+			if(started == false && failure != null)
+			{
+				throw failure;
+			}
+		}
+	}
+
+	public void write(int b) throws IOException
+	{
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Stream is closed.");
+		}
+
+		if(pipe.write(bytes, offset, length) == false)
+		{
+			throw new IOException("The upload of "+fileName+" to "+directory+" has failed.", getFailure());
+		}
+	}
+
+	public void close() throws IOException
+	{
+		if(closed)
+		{
+			return;
+		}
+
+		closed = true;
+		pipe.closeWriter(null);
+
+		try
+		{
+			transfer.join(FINISH_TIMEOUT);
+
+			if(transfer.isAlive())
+			{
+				logger.error("FTPUploadOutputStream.close()- The upload of "+fileName+" to "+directory+" did not finish within "+FINISH_TIMEOUT+" milliseconds, aborting it.");
+				stopTransfer();
+				throw new IOException("The upload of "+fileName+" to "+directory+" did not finish within "+FINISH_TIMEOUT+" milliseconds.");
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while finishing the upload of "+fileName+".");
+		}
+
+		if(getFailure() != null)
+		{
+			throw new IOException("The upload of "+fileName+" to "+directory+" has failed.", getFailure());
+		}
+	}
+
+	public void abort()
+	{
+		if(closed)
+		{
+			return;
+		}
+
+		closed = true;
+
+		try
+		{
+			stopTransfer();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			logger.error("FTPUploadOutputStream.abort()- Interrupted while aborting the upload of "+fileName+".", e);
+		}
+	}
+
+	/**
+	 * Aborts the transfer and waits a bounded time for its thread, a thread that is still blocked
+	 * gets its data connection closed without the ABOR command and the same time again.
+	 */
+	private void stopTransfer() throws InterruptedException
+	{
+		boolean running;
+
+		synchronized(this)
+		{
+			aborted = true;
+			running = finished == false;
+		}
+
+		if(running)
+		{
+			abortTransfer(true);
+		}
+
+		//the reader gets the failure right away so the transfer never reaches the end of the file.
+		pipe.abortWriter(new IOException("The upload of "+fileName+" to "+directory+" was aborted."));
+		transfer.join(ABORT_TIMEOUT);
+
+		if(transfer.isAlive())
+		{
+			logger.error("FTPUploadOutputStream.stopTransfer()- The upload of "+fileName+" to "+directory+" did not stop after the abort, closing its data connection.");
+			abortTransfer(false);
+			transfer.join(ABORT_TIMEOUT);
+		}
+	}
+
+	private void abortTransfer(boolean sendAbortCommand)
+	{
+		try
+		{
+			client.abortCurrentDataTransfer(sendAbortCommand);
+		}
+		catch(Exception e)
+		{
+			logger.error("FTPUploadOutputStream.abortTransfer()- Could not abort the upload of "+fileName+" to "+directory+".", e);
+		}
+	}
+
+	private synchronized Exception getFailure()
+	{
+		return failure;
+	}
+
+	private synchronized boolean isAborted()
+	{
+		return aborted;
+	}
+
+	private synchronized boolean isStarted()
+	{
+		return started;
+	}
+
+	private class PipeInputStream extends InputStream
+	{
+		public int read() throws IOException
+		{
+			byte[] single = new byte[1];
+			int count = read(single, 0, 1);
+
+			while(count == 0)
+			{
+				count = read(single, 0, 1);
+			}
+
+			if(count < 0)
+			{
+				return -1;
+			}
+
+			return single[0] & 0xff;
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			return pipe.read(bytes, offset, length);
+		}
+	}
+
+	private class UploadTask implements Runnable, FTPDataTransferListener
+	{
+		public void run()
+		{
+			Exception error = null;
+
+			try
+			{
+				client.changeDirectory(directory);
+				client.upload(fileName, new PipeInputStream(), 0, 0, this);
+			}
+			catch(FTPAbortedException e)
+			{
+				logger.debug("FTPUploadOutputStream.run()- The upload of "+fileName+" to "+directory+" was aborted.");
+				error = e;
+			}
+			catch(Exception e)
+			{
+				if(isAborted())
+				{
+					logger.debug("FTPUploadOutputStream.run()- The upload of "+fileName+" to "+directory+" was aborted.");
+				}
+
+				else
+				{
+					logger.error("FTPUploadOutputStream.run()- Could not upload file: "+fileName+" to directory: "+directory+".", e);
+				}
+
+				error = e;
+			}
+			finally
+			{
+				if(error != null && isStarted())
+				{
+					deletePartialFile();
+				}
+
+				try
+				{
+					client.changeDirectory(currentDirectory);
+				}
+				catch(Exception e)
+				{
+					logger.error("FTPUploadOutputStream.run()- Could not change back to the directory: "+currentDirectory+".", e);
+				}
+
+				//the failure is set before the reader is closed, a write failing on the closed pipe reports it.
+				synchronized(FTPUploadOutputStream.this)
+				{
+					finished = true;
+					failure = error;
+					FTPUploadOutputStream.this.notifyAll();
+				}
+
+				pipe.closeReader();
+			}
+		}
+
+		/**
+		 * Deletes what the server has kept of the failed upload, so no truncated file is left behind.
+		 */
+		private void deletePartialFile()
+		{
+			try
+			{
+				client.deleteFile(fileName);
+			}
+			catch(Exception e)
+			{
+				logger.error("FTPUploadOutputStream.run()- Could not delete the partial file: "+fileName+" in directory: "+directory+".", e);
+			}
+		}
+
+		public void started()
+		{
+			synchronized(FTPUploadOutputStream.this)
+			{
+				started = true;
+				FTPUploadOutputStream.this.notifyAll();
+			}
+		}
+
+		public void transferred(int length)
+		{
+		}
+
+		public void completed()
+		{
+		}
+
+		public void aborted()
+		{
+		}
+
+		public void failed()
+		{
+		}
+	}
+}
\ No newline at end of file
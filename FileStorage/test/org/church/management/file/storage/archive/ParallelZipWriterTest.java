@@ -0,0 +1,219 @@
+package org.church.management.file.storage.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class reads the zips of the writer back with the zip classes of Java.
+ */
+public class ParallelZipWriterTest
+{
+	private static final int LARGE_SIZE = 5 * 1024 * 1024;
+
+	private ZipCompressor compressor;
+	private List<File> files = new ArrayList<File>();
+
+	@Before
+	public void setUp()
+	{
+		compressor = new ZipCompressor(2, -1, ZipCompressor.parseExtensions(ZipCompressor.DEFAULT_STORED_EXTENSIONS));
+	}
+
+	@After
+	public void tearDown()
+	{
+		compressor.shutdown();
+
+		for(File file: files)
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void readsTheChunkedEntriesBackWithZipInputStream() throws IOException
+	{
+		byte[] text = createContent(LARGE_SIZE, true);
+		byte[] photo = createContent(LARGE_SIZE, false);
+		byte[] small = "a small entry".getBytes("UTF-8");
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ParallelZipWriter zip = compressor.open(output);
+		zip.addDirectory("photos", 0);
+		zip.addEntry("photos/notes.txt", 0, text.length, new BytesSource(text));
+		zip.addEntry("photos/photo.jpg", 0, photo.length, new BytesSource(photo));
+		zip.addEntry("small.txt", 0, small.length, new BytesSource(small));
+		zip.finish();
+
+		ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+
+		assertEquals("photos/", input.getNextEntry().getName());
+		assertEquals("photos/notes.txt", input.getNextEntry().getName());
+		assertArrayEquals(text, IOUtils.toByteArray(input));
+		assertEquals("photos/photo.jpg", input.getNextEntry().getName());
+		assertArrayEquals(photo, IOUtils.toByteArray(input));
+		assertEquals("small.txt", input.getNextEntry().getName());
+		assertArrayEquals(small, IOUtils.toByteArray(input));
+		assertNull(input.getNextEntry());
+
+		input.close();
+	}
+
+	@Test
+	public void writesAZip64LocalHeaderForAnEntryOfUnknownSize() throws IOException
+	{
+		byte[] text = createContent(LARGE_SIZE, true);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ParallelZipWriter zip = compressor.open(output);
+		zip.addEntry("notes.txt", 0, -1, new BytesSource(text));
+		zip.finish();
+
+		byte[] bytes = output.toByteArray();
+		int nameLength = "notes.txt".length();
+
+		assertEquals(45, readShort(bytes, 4));
+		assertEquals(0xFFFFFFFFL, readInt(bytes, 18));
+		assertEquals(0xFFFFFFFFL, readInt(bytes, 22));
+		assertEquals(20, readShort(bytes, 28));
+		assertEquals(0x0001, readShort(bytes, 30 + nameLength));
+		assertEquals(30 + nameLength + 20, zip.getEntries().get(0).getDataOffset());
+
+		ZipFile archive = new ZipFile(writeFile(bytes));
+
+		try
+		{
+			ZipEntry entry = archive.getEntry("notes.txt");
+			assertNotNull(entry);
+			assertEquals(text.length, entry.getSize());
+			assertArrayEquals(text, IOUtils.toByteArray(archive.getInputStream(entry)));
+		}
+		finally
+		{
+			archive.close();
+		}
+	}
+
+	@Test
+	public void copiesTheEntriesOfAnEarlierZip() throws IOException
+	{
+		byte[] text = createContent(LARGE_SIZE, true);
+		byte[] small = "a small entry".getBytes("UTF-8");
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ParallelZipWriter zip = compressor.open(output);
+		zip.addEntry("notes.txt", 0, text.length, new BytesSource(text));
+		zip.addEntry("small.txt", 0, small.length, new BytesSource(small));
+		zip.finish();
+
+		File earlier = writeFile(output.toByteArray());
+		output = new ByteArrayOutputStream();
+		ParallelZipWriter copy = compressor.open(output);
+
+		for(ArchivedEntry entry: zip.getEntries())
+		{
+			copy.addRaw(entry, earlier);
+		}
+
+		copy.finish();
+
+		ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+
+		assertEquals("notes.txt", input.getNextEntry().getName());
+		assertArrayEquals(text, IOUtils.toByteArray(input));
+		assertEquals("small.txt", input.getNextEntry().getName());
+		assertArrayEquals(small, IOUtils.toByteArray(input));
+		assertNull(input.getNextEntry());
+
+		input.close();
+	}
+
+	/**
+	 * @param compressible true for text that deflates, false for random bytes like a photo.
+	 */
+	private static byte[] createContent(int size, boolean compressible)
+	{
+		byte[] content = new byte[size];
+		Random random = new Random(size);
+
+		if(compressible == false)
+		{
+			random.nextBytes(content);
+			return content;
+		}
+
+		for(int i = 0; i < size; i++)
+		{
+			content[i] = (byte)('a' + random.nextInt(4));
+		}
+
+		return content;
+	}
+
+	private File writeFile(byte[] bytes) throws IOException
+	{
+		File file = File.createTempFile("parallel-zip", ".zip");
+		files.add(file);
+
+		FileOutputStream output = new FileOutputStream(file);
+
+		try
+		{
+			output.write(bytes);
+		}
+		finally
+		{
+			output.close();
+		}
+
+		return file;
+	}
+
+	private static int readShort(byte[] bytes, int offset)
+	{
+		return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+	}
+
+	private static long readInt(byte[] bytes, int offset)
+	{
+		return readShort(bytes, offset) | ((long)readShort(bytes, offset + 2) << 16);
+	}
+
+	private static class BytesSource implements ParallelZipWriter.Source
+	{
+		private byte[] bytes;
+
+		public BytesSource(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		public InputStream open()
+		{
+			return new ByteArrayInputStream(bytes);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package org.church.management.file.storage.catalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks that the journal of the catalog survives a crash in the middle of a compaction,
+ * and that the paths with tabs, line breaks and backslashes are read back as they were written.
+ */
+public class CatalogIndexTest
+{
+	private File folder;
+	private File journalFile;
+	private File compactedFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("catalog-index", "");
+		folder.delete();
+		folder.mkdirs();
+
+		journalFile = new File(folder, "catalog.journal");
+		compactedFile = new File(folder, "catalog.journal.compact");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void readsBackThePathsWithTabsAndLineBreaks() throws IOException
+	{
+		CatalogIndex index = new CatalogIndex(journalFile);
+		index.put(new CatalogRecord("photos/a\tb.jpg", "C:\\storage\\photos\\a\tb.jpg", 10, 1000, "hash-a"));
+		index.put(new CatalogRecord("photos/line\nbreak.jpg", "", 20, 2000, "hash-b"));
+		index.addDirectory("tab\tdirectory", "C:\\storage\\tab\tdirectory");
+		index.close();
+
+		index = new CatalogIndex(journalFile);
+
+		assertEquals("C:\\storage\\photos\\a\tb.jpg", index.get("photos/a\tb.jpg").getLocation());
+		assertEquals(20, index.get("photos/line\nbreak.jpg").getSize());
+		assertEquals("C:\\storage\\tab\tdirectory", index.getDirectoryLocation("tab\tdirectory"));
+		assertEquals(2, index.size());
+		assertEquals(30, index.getTotalSize());
+
+		index.close();
+	}
+
+	@Test
+	public void readsAndConvertsAJournalWrittenBeforeTheEscaping() throws IOException
+	{
+		FileOutputStream output = new FileOutputStream(journalFile);
+		output.write("M\tphotos\tC:\\storage\\photos\nP\t10\t1000\thash-a\tphotos/a.jpg\tC:\\storage\\photos\\a.jpg\n".getBytes("UTF-8"));
+		output.close();
+
+		CatalogIndex index = new CatalogIndex(journalFile);
+		assertEquals("C:\\storage\\photos\\a.jpg", index.get("photos/a.jpg").getLocation());
+		index.close();
+		assertEquals("V\tescaped", FileUtils.readLines(journalFile, "UTF-8").get(0));
+
+		//the journal was compacted into the escaped format, the backslashes are still read the same.
+		index = new CatalogIndex(journalFile);
+		assertEquals("C:\\storage\\photos\\a.jpg", index.get("photos/a.jpg").getLocation());
+		assertEquals("C:\\storage\\photos", index.getDirectoryLocation("photos"));
+		index.close();
+	}
+
+	@Test
+	public void restoresTheCompactedJournalWhenTheJournalWasDeleted() throws IOException
+	{
+		CatalogIndex index = new CatalogIndex(journalFile);
+		index.put(new CatalogRecord("photos/a.jpg", "", 10, 1000, "hash-a"));
+		index.put(new CatalogRecord("photos/b.jpg", "", 20, 2000, "hash-b"));
+		index.close();
+
+		//the crash came after the old journal was deleted and before the compacted one was renamed.
+		assertTrue(journalFile.renameTo(compactedFile));
+
+		index = new CatalogIndex(journalFile);
+
+		assertNotNull(index.get("photos/a.jpg"));
+		assertEquals("hash-b", index.get("photos/b.jpg").getHash());
+		assertTrue(index.isDirectory("photos"));
+		assertTrue(journalFile.exists());
+		assertFalse(compactedFile.exists());
+
+		index.close();
+	}
+
+	@Test
+	public void dropsAnUnfinishedCompactionWhileTheJournalIsThere() throws IOException
+	{
+		CatalogIndex index = new CatalogIndex(journalFile);
+		index.put(new CatalogRecord("photos/a.jpg", "", 10, 1000, "hash-a"));
+		index.close();
+
+		//the crash came while the compacted journal was written.
+		FileOutputStream output = new FileOutputStream(compactedFile);
+		output.write("V\tescaped\nP\t1\t1\thash-x\tphotos/x.jpg\t\nP\t1".getBytes("UTF-8"));
+		output.close();
+
+		index = new CatalogIndex(journalFile);
+
+		assertNotNull(index.get("photos/a.jpg"));
+		assertNull(index.get("photos/x.jpg"));
+		assertFalse(compactedFile.exists());
+
+		index.close();
+	}
+
+	@Test
+	public void keepsTheLiveFilesThroughACompaction() throws IOException
+	{
+		CatalogIndex index = new CatalogIndex(journalFile);
+
+		for(int i = 0; i < 3000; i++)
+		{
+			index.put(new CatalogRecord("photos/a.jpg", "", i, i, "hash-"+i));
+		}
+
+		index.put(new CatalogRecord("photos/b.jpg", "", 20, 2000, "hash-b"));
+		index.remove("photos/b.jpg");
+		index.close();
+
+		assertFalse(compactedFile.exists());
+
+		index = new CatalogIndex(journalFile);
+
+		assertEquals("hash-2999", index.get("photos/a.jpg").getHash());
+		assertNull(index.get("photos/b.jpg"));
+		assertEquals(2999, index.getTotalSize());
+		assertEquals(1, index.getExtensions().size());
+
+		index.close();
+	}
+}
@@ -0,0 +1,121 @@
+package org.church.management.file.storage.change;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks that the change feed keeps its sequence numbers and recent changes
+ * through a trim, a restart and a crash in the middle of a trim.
+ */
+public class StorageChangeFeedTest
+{
+	private File folder;
+	private File feedFile;
+	private File trimmedFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("change-feed", "");
+		folder.delete();
+		folder.mkdirs();
+
+		feedFile = new File(folder, "changes.feed");
+		trimmedFile = new File(folder, "changes.feed.trim");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void keepsTheLatestChangesThroughATrimAndARestart() throws IOException
+	{
+		StorageChangeFeed feed = new StorageChangeFeed(feedFile, 10);
+
+		for(int i = 1; i <= 25; i++)
+		{
+			feed.record(StorageChange.CREATED, false, i, "photos/"+i+".jpg", null);
+		}
+
+		feed.close();
+		assertFalse(trimmedFile.exists());
+
+		feed = new StorageChangeFeed(feedFile, 10);
+
+		assertEquals(25, feed.getLatestSequence());
+		assertFalse(feed.isAvailable(5));
+		assertTrue(feed.isAvailable(20));
+
+		List<StorageChange> changes = feed.getChanges(20, 100);
+		assertEquals(5, changes.size());
+		assertEquals("photos/21.jpg", changes.get(0).getPath());
+
+		//the writer is open again after the trim.
+		feed.record(StorageChange.DELETED, false, 0, "photos/21.jpg", null);
+		feed.close();
+
+		feed = new StorageChangeFeed(feedFile, 10);
+		assertEquals(26, feed.getLatestSequence());
+		assertEquals(StorageChange.DELETED, feed.getChanges(25, 1).get(0).getType());
+		feed.close();
+	}
+
+	@Test
+	public void restoresTheTrimmedFeedWhenTheFeedWasDeleted() throws IOException
+	{
+		StorageChangeFeed feed = new StorageChangeFeed(feedFile, 10);
+		feed.record(StorageChange.CREATED, false, 10, "photos/a.jpg", null);
+		feed.record(StorageChange.RENAMED, false, 10, "photos/b.jpg", "photos/a.jpg");
+		feed.close();
+
+		//the crash came after the old feed was deleted and before the trimmed one was renamed.
+		assertTrue(feedFile.renameTo(trimmedFile));
+
+		feed = new StorageChangeFeed(feedFile, 10);
+
+		assertEquals(2, feed.getLatestSequence());
+		assertEquals("photos/a.jpg", feed.getChanges(1, 1).get(0).getOldPath());
+		assertTrue(feedFile.exists());
+		assertFalse(trimmedFile.exists());
+
+		feed.close();
+	}
+
+	@Test
+	public void dropsAnUnfinishedTrimWhileTheFeedIsThere() throws IOException
+	{
+		StorageChangeFeed feed = new StorageChangeFeed(feedFile, 10);
+		feed.record(StorageChange.CREATED, false, 10, "photos/a.jpg", null);
+		feed.close();
+
+		//the crash came while the trimmed feed was written.
+		FileOutputStream output = new FileOutputStream(trimmedFile);
+		output.write("7\t1000\t0\t0\t1\tphotos/x.jpg\t\n8\t10".getBytes("UTF-8"));
+		output.close();
+
+		feed = new StorageChangeFeed(feedFile, 10);
+
+		assertEquals(1, feed.getLatestSequence());
+		assertEquals("photos/a.jpg", feed.getChanges(0, 10).get(0).getPath());
+		assertFalse(trimmedFile.exists());
+
+		feed.close();
+	}
+}
@@ -0,0 +1,119 @@
+package org.church.management.file.storage.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks that the journal of the content index survives a crash in the middle of a compaction.
+ */
+public class ContentIndexTest
+{
+	private File folder;
+	private File journalFile;
+	private File compactedFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("content-index", "");
+		folder.delete();
+		folder.mkdirs();
+
+		journalFile = new File(folder, "index.journal");
+		compactedFile = new File(folder, "index.journal.compact");
+	}
+
+	@After
+	public void tearDown()
+	{
+		for(File file: folder.listFiles())
+		{
+			file.delete();
+		}
+
+		folder.delete();
+	}
+
+	@Test
+	public void restoresTheCompactedJournalWhenTheJournalWasDeleted() throws IOException
+	{
+		ContentIndex index = new ContentIndex(journalFile);
+		index.put("photos/a.jpg", "hash-a", 10, 1000);
+		index.put("photos/b.jpg", "hash-b", 20, 2000);
+		index.close();
+
+		//the crash came after the old journal was deleted and before the compacted one was renamed.
+		assertTrue(journalFile.renameTo(compactedFile));
+
+		index = new ContentIndex(journalFile);
+
+		assertNotNull(index.get("photos/a.jpg"));
+		assertEquals("hash-b", index.get("photos/b.jpg").getHash());
+		assertTrue(index.isDirectory("photos"));
+		assertTrue(journalFile.exists());
+		assertFalse(compactedFile.exists());
+
+		index.close();
+	}
+
+	@Test
+	public void dropsAnUnfinishedCompactionWhileTheJournalIsThere() throws IOException
+	{
+		ContentIndex index = new ContentIndex(journalFile);
+		index.put("photos/a.jpg", "hash-a", 10, 1000);
+		index.close();
+
+		//the crash came while the compacted journal was written.
+		FileOutputStream output = new FileOutputStream(compactedFile);
+		output.write("P\thash-x\t1\t1\tphotos/x.jpg\nP\thash".getBytes("UTF-8"));
+		output.close();
+
+		index = new ContentIndex(journalFile);
+
+		assertNotNull(index.get("photos/a.jpg"));
+		assertNull(index.get("photos/x.jpg"));
+		assertFalse(compactedFile.exists());
+
+		index.close();
+	}
+
+	@Test
+	public void keepsTheLivePathsThroughACompaction() throws IOException
+	{
+		ContentIndex index = new ContentIndex(journalFile);
+
+		for(int i = 0; i < 3000; i++)
+		{
+			index.put("photos/a.jpg", "hash-"+i, i, i);
+		}
+
+		index.put("photos/b.jpg", "hash-b", 20, 2000);
+		index.remove("photos/b.jpg");
+		index.close();
+
+		assertFalse(compactedFile.exists());
+
+		index = new ContentIndex(journalFile);
+
+		assertEquals("hash-2999", index.get("photos/a.jpg").getHash());
+		assertNull(index.get("photos/b.jpg"));
+		assertEquals(1, index.getReferences("hash-2999"));
+		assertEquals(0, index.getReferences("hash-0"));
+
+		index.close();
+	}
+}
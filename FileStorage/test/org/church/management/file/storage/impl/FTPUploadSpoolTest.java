@@ -0,0 +1,211 @@
+package org.church.management.file.storage.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks the retries of the upload spool, how a failed upload is reported and dropped,
+ * that a spooled file being read outlives its upload, and that the spool is resumed after a restart.
+ */
+public class FTPUploadSpoolTest
+{
+	private File folder;
+	private File spoolFolder;
+	private File source;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("upload-spool", "");
+		folder.delete();
+		folder.mkdirs();
+
+		spoolFolder = new File(folder, "spool");
+		source = new File(folder, "source.txt");
+		FileUtils.writeStringToFile(source, "spooled content", "UTF-8");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void retriesAFailedUploadUntilItReachesTheServer() throws Exception
+	{
+		RecordingUploader uploader = new RecordingUploader(2);
+		FTPUploadSpool spool = new FTPUploadSpool(spoolFolder, uploader, 1, 3, 1);
+
+		try
+		{
+			spool.spool("/photos/a.txt", source);
+			spool.flush("/photos");
+
+			assertEquals(3, uploader.attempts.get());
+			assertEquals("spooled content", uploader.uploaded.get("/photos/a.txt"));
+			assertEquals(0, spool.getPendingCount());
+			assertEquals(0, spoolFolder.listFiles().length);
+		}
+		finally
+		{
+			spool.shutdown();
+		}
+	}
+
+	@Test
+	public void reportsAFailedUploadOnceAndDropsItWhenThePathIsDeleted() throws Exception
+	{
+		RecordingUploader uploader = new RecordingUploader(Integer.MAX_VALUE);
+		FTPUploadSpool spool = new FTPUploadSpool(spoolFolder, uploader, 1, 2, 1);
+
+		try
+		{
+			spool.spool("/photos/a.txt", source);
+
+			try
+			{
+				spool.flush("/photos");
+				fail("The failed upload was not reported.");
+			}
+			catch(IOException e)
+			{
+				assertTrue(e.getMessage().indexOf("/photos/a.txt") >= 0);
+			}
+
+			//the failure was reported, the later operations on the path go ahead.
+			spool.flush("/photos");
+			assertEquals(1, spool.getPendingCount());
+
+			spool.discardFailed("/photos");
+
+			assertEquals(0, spool.getPendingCount());
+			assertNull(spool.acquireSpooledFile("/photos/a.txt"));
+			assertEquals(0, spoolFolder.listFiles().length);
+		}
+		finally
+		{
+			spool.shutdown();
+		}
+	}
+
+	@Test
+	public void keepsASpooledFileWhileItIsReadDuringItsUpload() throws Exception
+	{
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+
+		FTPUploadSpool spool = new FTPUploadSpool(spoolFolder, new FTPUploadSpool.Uploader()
+		{
+			public void upload(String path, File file) throws Exception
+			{
+				started.countDown();
+				proceed.await();
+			}
+		}, 1, 1, 1);
+
+		try
+		{
+			spool.spool("/photos/a.txt", source);
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+
+			File spooled = spool.acquireSpooledFile("/photos/a.txt");
+			assertNotNull(spooled);
+
+			proceed.countDown();
+			spool.flush("/photos");
+
+			//the upload is done, the reader still holds the file.
+			assertTrue(spooled.exists());
+			assertEquals("spooled content", FileUtils.readFileToString(spooled, "UTF-8"));
+			assertNull(spool.acquireSpooledFile("/photos/a.txt"));
+
+			spool.releaseSpooledFile(spooled);
+			assertFalse(spooled.exists());
+		}
+		finally
+		{
+			spool.shutdown();
+		}
+	}
+
+	@Test
+	public void resumesTheSpooledUploadsAfterARestart() throws Exception
+	{
+		RecordingUploader failing = new RecordingUploader(Integer.MAX_VALUE);
+		FTPUploadSpool spool = new FTPUploadSpool(spoolFolder, failing, 1, 1, 1);
+		spool.spool("/photos/a.txt", source);
+
+		try
+		{
+			spool.flush("/photos");
+			fail("The failed upload was not reported.");
+		}
+		catch(IOException e)
+		{
+			//the upload is kept in the spool.
+		}
+
+		spool.shutdown();
+
+		RecordingUploader uploader = new RecordingUploader(0);
+		spool = new FTPUploadSpool(spoolFolder, uploader, 1, 1, 1);
+
+		try
+		{
+			spool.flush("");
+
+			assertEquals("spooled content", uploader.uploaded.get("/photos/a.txt"));
+			assertEquals(0, spoolFolder.listFiles().length);
+		}
+		finally
+		{
+			spool.shutdown();
+		}
+	}
+
+	/**
+	 * Fails the first uploads, then keeps the content of the uploaded paths.
+	 */
+	private static class RecordingUploader implements FTPUploadSpool.Uploader
+	{
+		private int failures;
+		private AtomicInteger attempts = new AtomicInteger(0);
+		private Map<String, String> uploaded = new ConcurrentHashMap<String, String>();
+
+		public RecordingUploader(int failures)
+		{
+			this.failures = failures;
+		}
+
+		public void upload(String path, File file) throws Exception
+		{
+			if(attempts.incrementAndGet() <= failures)
+			{
+				throw new IOException("The server is not reachable.");
+			}
+
+			uploaded.put(path, FileUtils.readFileToString(file, "UTF-8"));
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.church.management.file.storage.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.church.management.file.storage.exception.StorageQuotaExceededException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks that the writes are admitted against the storage limitation and the
+ * directory quotas, counting the bytes reserved by the writes that have not finished yet.
+ */
+public class StorageQuotaTest
+{
+	private File folder;
+	private File storageFolder;
+	private LocalFileWalker walker;
+	private StorageUsageTracker tracker;
+	private StorageQuota quota;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("storage-quota", "");
+		folder.delete();
+
+		storageFolder = new File(folder, "storage");
+		new File(storageFolder, "tenants/a").mkdirs();
+
+		FileOutputStream output = new FileOutputStream(new File(storageFolder, "tenants/a/a.txt"));
+		output.write(new byte[10]);
+		output.close();
+
+		Map<String, Long> directoryLimitations = StorageQuota.parseDirectoryQuotas("tenants/a=15, /tenants/b/=100");
+		walker = new LocalFileWalker(1);
+		tracker = new StorageUsageTracker(storageFolder, new File(folder, "usage.properties"), 0, 0, directoryLimitations.keySet(), walker);
+		quota = new StorageQuota(tracker, 40, directoryLimitations);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		tracker.shutdown();
+		walker.shutdown();
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void readsTheDirectoryQuotas()
+	{
+		Map<String, Long> limitations = StorageQuota.parseDirectoryQuotas("tenants/a=15, /tenants/b/=100");
+
+		assertEquals(Long.valueOf(15), limitations.get("tenants/a"));
+		assertEquals(Long.valueOf(100), limitations.get("tenants/b"));
+		assertEquals(0, StorageQuota.parseDirectoryQuotas(" ").size());
+	}
+
+	@Test
+	public void countsTheReservedBytesAgainstTheLimitation() throws Exception
+	{
+		File file = new File(storageFolder, "b.txt");
+		StorageQuota.Reservation first = quota.reserve(file, 20);
+
+		try
+		{
+			quota.reserve(file, 20);
+			fail("The reserved bytes were not counted.");
+		}
+		catch(StorageQuotaExceededException e)
+		{
+			assertEquals("", e.getDirectory());
+			assertEquals(40, e.getLimitation());
+		}
+
+		first.release();
+		quota.reserve(file, 20).release();
+	}
+
+	@Test
+	public void rejectsAWriteOverTheQuotaOfItsDirectory() throws Exception
+	{
+		File file = new File(storageFolder, "tenants/a/b.txt");
+
+		try
+		{
+			quota.reserve(file, 6);
+			fail("The quota of the directory was not checked.");
+		}
+		catch(StorageQuotaExceededException e)
+		{
+			assertEquals("tenants/a", e.getDirectory());
+		}
+
+		quota.reserve(file, 5).release();
+
+		//a write that does not grow the storage is always admitted, and the other directories have their own quota.
+		quota.reserve(file, -10).release();
+		quota.reserve(new File(storageFolder, "tenants/b/c.txt"), 25).release();
+	}
+}
@@ -0,0 +1,115 @@
+package org.church.management.file.storage.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks that the saved usage survives a crash while the usage file is replaced.
+ */
+public class StorageUsageTrackerTest
+{
+	private File folder;
+	private File storageFolder;
+	private File usageFile;
+	private File temporaryFile;
+	private LocalFileWalker walker;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("storage-usage", "");
+		folder.delete();
+
+		storageFolder = new File(folder, "storage");
+		storageFolder.mkdirs();
+		usageFile = new File(folder, "usage.properties");
+		temporaryFile = new File(folder, "usage.properties.tmp");
+
+		FileOutputStream output = new FileOutputStream(new File(storageFolder, "a.txt"));
+		output.write(new byte[10]);
+		output.close();
+
+		walker = new LocalFileWalker(1);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		walker.shutdown();
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void restoresTheSavedUsageWhenTheUsageFileWasDeleted() throws Exception
+	{
+		//the crash came after the old usage file was deleted and before the saved one was renamed.
+		FileOutputStream output = new FileOutputStream(temporaryFile);
+		output.write("usage=12345\nreconciledAt=1\n".getBytes("ISO-8859-1"));
+		output.close();
+
+		StorageUsageTracker tracker = new StorageUsageTracker(storageFolder, usageFile, 0, 0, new ArrayList<String>(), walker);
+
+		assertEquals(12345, tracker.getUsage());
+		assertTrue(usageFile.exists());
+		assertFalse(temporaryFile.exists());
+
+		tracker.shutdown();
+	}
+
+	@Test
+	public void waitsForTheFirstScanWithoutASavedUsage() throws Exception
+	{
+		StorageUsageTracker tracker = new StorageUsageTracker(storageFolder, usageFile, 0, 0, new ArrayList<String>(), walker);
+
+		assertEquals(10, tracker.getUsage());
+
+		tracker.shutdown();
+	}
+
+	@Test
+	public void skipsTheSymbolicLinksWhenScanning() throws Exception
+	{
+		File fileLink = new File(storageFolder, "b.txt");
+		File directoryLink = new File(storageFolder, "loop");
+
+		//the links are made by the system, the test has nothing to check where it cannot make them.
+		if(link(new File(storageFolder, "a.txt"), fileLink) == false || link(storageFolder, directoryLink) == false)
+		{
+			return;
+		}
+
+		StorageUsageTracker tracker = new StorageUsageTracker(storageFolder, usageFile, 0, 0, new ArrayList<String>(), walker);
+
+		assertEquals(10, tracker.getUsage());
+		assertEquals(10, walker.sizeOf(storageFolder));
+
+		tracker.shutdown();
+	}
+
+	private static boolean link(File target, File link)
+	{
+		try
+		{
+			Process process = Runtime.getRuntime().exec(new String[]{"ln", "-s", target.getAbsolutePath(), link.getAbsolutePath()});
+			return process.waitFor() == 0 && FileUtils.isSymlink(link);
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+	}
+}
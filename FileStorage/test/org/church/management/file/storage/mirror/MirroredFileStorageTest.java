@@ -0,0 +1,241 @@
+package org.church.management.file.storage.mirror;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.church.management.file.storage.DelegatingFileStorage;
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.batch.BatchResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks that a change returns once the write quorum has it, and that the
+ * replicas finishing later still get the files after the caller has deleted them.
+ */
+public class MirroredFileStorageTest
+{
+	private File folder;
+	private File tempFolder;
+	private MemoryStorage first;
+	private MemoryStorage second;
+	private MirroredFileStorage storage;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = File.createTempFile("mirror", "");
+		folder.delete();
+		folder.mkdirs();
+
+		tempFolder = new File(folder, "temp");
+		first = new MemoryStorage(false);
+		second = new MemoryStorage(true);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		second.release();
+
+		if(storage != null)
+		{
+			storage.shutdown();
+		}
+
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void givesTheLaggingReplicaACopyOfTheFile() throws Exception
+	{
+		storage = createStorage(1);
+		File file = createFile("a.jpg", "photo a");
+
+		assertEquals("photos/a.jpg", storage.upload("photos", file));
+		assertArrayEquals("photo a".getBytes("UTF-8"), first.files.get("photos/a.jpg"));
+		assertFalse(second.files.containsKey("photos/a.jpg"));
+
+		//the caller is done with its file once the quorum has it.
+		assertTrue(file.delete());
+		second.release();
+		storage.shutdown();
+
+		assertArrayEquals("photo a".getBytes("UTF-8"), second.files.get("photos/a.jpg"));
+		assertEquals("a.jpg", second.received.get(0).getName());
+		assertFalse(second.received.get(0).equals(file));
+		assertEquals(0, storage.getRepairCount());
+
+		//the copies are deleted once every replica has the file.
+		assertEquals(0, tempFolder.list().length);
+	}
+
+	@Test
+	public void namesTheFilesOfTheCallerInTheBatchResults() throws Exception
+	{
+		storage = createStorage(1);
+		File a = createFile("a.jpg", "photo a");
+		File b = createFile("b.jpg", "photo b");
+		File missing = new File(folder, "missing.jpg");
+
+		List<BatchResult> results = storage.uploadAll("photos", Arrays.asList(a, b, missing));
+
+		assertEquals(3, results.size());
+		assertEquals(a.getPath(), results.get(0).getItem());
+		assertEquals("photos/b.jpg", results.get(1).getPath());
+		assertEquals(missing.getPath(), results.get(2).getItem());
+		assertFalse(results.get(2).isSuccessful());
+
+		a.delete();
+		b.delete();
+		second.release();
+		storage.shutdown();
+
+		assertArrayEquals("photo b".getBytes("UTF-8"), second.files.get("photos/b.jpg"));
+		assertEquals(0, tempFolder.list().length);
+	}
+
+	@Test
+	public void waitsForEveryReplicaWithoutCopyingWhenTheQuorumIsAll() throws Exception
+	{
+		storage = createStorage(2);
+		second.release();
+		File file = createFile("a.jpg", "photo a");
+
+		storage.upload("photos", file);
+
+		assertTrue(second.files.containsKey("photos/a.jpg"));
+		assertEquals(file, first.received.get(0));
+		assertEquals(file, second.received.get(0));
+		assertFalse(tempFolder.exists());
+	}
+
+	@Test
+	public void failsWhenTheQuorumCanNotBeReached() throws Exception
+	{
+		storage = createStorage(2);
+		second.release();
+		first.failing = true;
+
+		try
+		{
+			storage.upload("photos", createFile("a.jpg", "photo a"));
+			fail("The change returned without its quorum.");
+		}
+		catch(IOException e)
+		{
+			assertEquals("The replica is down.", e.getMessage());
+		}
+
+		storage.shutdown();
+
+		//the replica that failed waits for a repair, the other one has the file.
+		assertTrue(second.files.containsKey("photos/a.jpg"));
+		assertEquals(1, storage.getRepairCount());
+	}
+
+	private MirroredFileStorage createStorage(int writeQuorum) throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty("repairLogPath", new File(folder, "repair.log").getPath());
+		properties.setProperty("tempFolderPath", tempFolder.getPath());
+		properties.setProperty("writeQuorum", String.valueOf(writeQuorum));
+
+		List<FileStorage> storages = new ArrayList<FileStorage>();
+		storages.add(first);
+		storages.add(second);
+
+		return new MirroredFileStorage(storages, properties);
+	}
+
+	private File createFile(String name, String content) throws IOException
+	{
+		File file = new File(folder, name);
+		FileUtils.writeStringToFile(file, content, "UTF-8");
+		return file;
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class keeps the uploaded files in memory, the second replica
+	 * waits with its uploads until the test releases it.
+	 */
+	private static class MemoryStorage extends DelegatingFileStorage
+	{
+		private Map<String, byte[]> files = new HashMap<String, byte[]>();
+		private List<File> received = new ArrayList<File>();
+		private CountDownLatch latch;
+		private volatile boolean failing = false;
+
+		public MemoryStorage(boolean lagging)
+		{
+			super(null);
+			this.latch = new CountDownLatch(lagging ? 1 : 0);
+		}
+
+		public void release()
+		{
+			latch.countDown();
+		}
+
+		public String upload(String folder, File file) throws Exception
+		{
+			latch.await();
+
+			if(failing)
+			{
+				throw new IOException("The replica is down.");
+			}
+
+			String path = folder+"/"+file.getName();
+
+			synchronized(this)
+			{
+				received.add(file);
+				files.put(path, FileUtils.readFileToByteArray(file));
+			}
+
+			return path;
+		}
+
+		public List<BatchResult> uploadAll(String folder, Collection<File> uploads) throws Exception
+		{
+			List<BatchResult> results = new ArrayList<BatchResult>();
+
+			for(File file: uploads)
+			{
+				try
+				{
+					results.add(new BatchResult(file.getPath(), upload(folder, file)));
+				}
+				catch(Exception e)
+				{
+					results.add(new BatchResult(file.getPath(), e));
+				}
+			}
+
+			return results;
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package org.church.management.file.storage.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.church.management.file.storage.DelegatingFileStorage;
+import org.church.management.file.storage.FileStorage;
+import org.church.management.file.storage.StorageEntry;
+import org.church.management.file.storage.StorageEntryIterator;
+import org.church.management.file.storage.exception.StorageListingException;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks the placement, the listings, the rebalance and the zips of the sharded storage
+ * on shards that list lazily and report a missing directory from the iterator, like the FTP storage.
+ */
+public class ShardedFileStorageTest
+{
+	private ShardedFileStorage storage;
+
+	@After
+	public void tearDown()
+	{
+		if(storage != null)
+		{
+			storage.shutdown();
+		}
+	}
+
+	@Test
+	public void listsTheDirectoriesWhileARebalanceIsPending() throws Exception
+	{
+		MemoryStorage first = new MemoryStorage();
+		storage = createStorage("directory", first);
+
+		for(int i = 0; i < 20; i++)
+		{
+			first.put("d"+i+"/a.txt", "a"+i);
+		}
+
+		MemoryStorage second = new MemoryStorage();
+		storage.addShard("b", second);
+		String moving = getDirectoryOf("b");
+
+		//the directory is placed on the new shard, which does not have it until the rebalance.
+		List<StorageEntry> entries = list(moving);
+		assertEquals(1, entries.size());
+		assertEquals(moving+"/a.txt", entries.get(0).getPath());
+		assertEquals(1, storage.getAllFilesForDirectory(moving).size());
+		assertEquals("a", read(moving+"/a.txt").substring(0, 1));
+	}
+
+	@Test
+	public void movesTheDirectoriesToTheNewShard() throws Exception
+	{
+		MemoryStorage first = new MemoryStorage();
+		storage = createStorage("directory", first);
+
+		for(int i = 0; i < 20; i++)
+		{
+			first.put("d"+i+"/a.txt", "a"+i);
+			first.put("d"+i+"/photos/b.jpg", "b"+i);
+		}
+
+		MemoryStorage second = new MemoryStorage();
+		storage.addShard("b", second);
+
+		int moved = storage.rebalance();
+		assertTrue(moved > 0);
+		assertEquals(20, first.getFileCount() / 2 + second.getFileCount() / 2);
+
+		for(int i = 0; i < 20; i++)
+		{
+			String directory = "d"+i;
+			MemoryStorage owner = storage.getShardName(directory).equals("a") ? first : second;
+			MemoryStorage other = owner == first ? second : first;
+
+			assertTrue(owner.stat(directory+"/photos/b.jpg").isFile());
+			assertFalse(other.stat(directory).exists());
+			assertEquals("b"+i, read(directory+"/photos/b.jpg"));
+			assertEquals(3, list(directory).size());
+		}
+
+		assertEquals(0, storage.rebalance());
+	}
+
+	@Test
+	public void leavesOutTheShardsWithoutTheDirectory() throws Exception
+	{
+		MemoryStorage first = new MemoryStorage();
+		MemoryStorage second = new MemoryStorage();
+		storage = createStorage("path", first, second);
+
+		first.put("photos/a.jpg", "a");
+		first.put("photos/b.jpg", "b");
+
+		List<StorageEntry> entries = list("photos");
+		assertEquals(2, entries.size());
+		assertEquals("photos/a.jpg", entries.get(0).getPath());
+		assertEquals(2, storage.getAllFilesForDirectory("photos").size());
+
+		//the rebalance of a path placement lists every directory of every shard.
+		storage.rebalance();
+		assertEquals("a", read("photos/a.jpg"));
+		assertEquals("b", read("photos/b.jpg"));
+
+		try
+		{
+			list("videos");
+			fail("A directory that no shard has was listed.");
+		}
+		catch(StorageListingException e)
+		{
+			assertTrue(e.getCause() instanceof FileNotFoundException);
+		}
+	}
+
+	@Test
+	public void reportsAFailedListingOfAShardThatHasTheDirectory() throws Exception
+	{
+		MemoryStorage first = new MemoryStorage();
+		MemoryStorage second = new MemoryStorage();
+		storage = createStorage("path", first, second);
+
+		first.put("photos/a.jpg", "a");
+		second.createDirectory("photos");
+		second.unreadable.add("photos");
+
+		try
+		{
+			list("photos");
+			fail("The failed listing of a shard was taken for a missing directory.");
+		}
+		catch(StorageListingException e)
+		{
+			assertNotNull(e.getCause());
+		}
+	}
+
+	@Test
+	public void zipsTheFilesOfEveryShard() throws Exception
+	{
+		MemoryStorage first = new MemoryStorage();
+		MemoryStorage second = new MemoryStorage();
+		storage = createStorage("path", first, second);
+
+		for(int i = 0; i < 10; i++)
+		{
+			storage.createDirectory("photos");
+			write("photos/"+i+".jpg", "photo "+i);
+		}
+
+		assertTrue(first.getFileCount() > 0);
+		assertTrue(second.getFileCount() > 0);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		storage.zipDirectoryTo("", output);
+
+		ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+		Map<String, String> contents = new TreeMap<String, String>();
+
+		for(ZipEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry())
+		{
+			contents.put(entry.getName(), new String(IOUtils.toByteArray(input), "UTF-8"));
+		}
+
+		assertEquals(11, contents.size());
+		assertEquals("", contents.get("photos/"));
+		assertEquals("photo 7", contents.get("photos/7.jpg"));
+		assertNull(input.getNextEntry());
+	}
+
+	private ShardedFileStorage createStorage(String shardKey, MemoryStorage... shards)
+	{
+		Map<String, FileStorage> storages = new LinkedHashMap<String, FileStorage>();
+		char name = 'a';
+
+		for(MemoryStorage shard: shards)
+		{
+			storages.put(String.valueOf(name++), shard);
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("shardKey", shardKey);
+		properties.setProperty("zipParallelism", "2");
+
+		return new ShardedFileStorage(storages, properties);
+	}
+
+	private String getDirectoryOf(String shard)
+	{
+		for(int i = 0; i < 20; i++)
+		{
+			if(storage.getShardName("d"+i).equals(shard))
+			{
+				return "d"+i;
+			}
+		}
+
+		fail("No directory is placed on shard "+shard+".");
+		return null;
+	}
+
+	private List<StorageEntry> list(String directory) throws Exception
+	{
+		List<StorageEntry> entries = new ArrayList<StorageEntry>();
+		StorageEntryIterator iterator = storage.listEntries(directory, true, null);
+
+		while(iterator.hasNext())
+		{
+			entries.add(iterator.next());
+		}
+
+		return entries;
+	}
+
+	private String read(String path) throws Exception
+	{
+		InputStream input = storage.openRead(path);
+
+		try
+		{
+			return new String(IOUtils.toByteArray(input), "UTF-8");
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private void write(String path, String content) throws Exception
+	{
+		OutputStream output = storage.openWrite(path);
+		output.write(content.getBytes("UTF-8"));
+		output.close();
+	}
+
+	/**
+	 *
+	 * @author Trae
+	 *
+	 * This class keeps the files of a shard in memory. The directories are listed as the
+	 * iteration reaches them, so a missing directory fails the iterator and not listEntries().
+	 */
+	private static class MemoryStorage extends DelegatingFileStorage
+	{
+		private Map<String, byte[]> files = new TreeMap<String, byte[]>();
+		private Set<String> directories = new TreeSet<String>();
+		private Set<String> unreadable = new HashSet<String>();
+
+		public MemoryStorage()
+		{
+			super(null);
+		}
+
+		public synchronized void put(String path, String content) throws IOException
+		{
+			for(String parent = getParent(path); parent.length() > 0; parent = getParent(parent))
+			{
+				directories.add(parent);
+			}
+
+			files.put(path, content.getBytes("UTF-8"));
+		}
+
+		public synchronized int getFileCount()
+		{
+			return files.size();
+		}
+
+		public synchronized String createDirectory(String directory) throws Exception
+		{
+			directories.add(directory);
+			return directory;
+		}
+
+		public synchronized void deleteDirectory(String directory) throws Exception
+		{
+			if(directories.remove(directory) == false)
+			{
+				throw new FileNotFoundException("Directory "+directory+" does not exist.");
+			}
+
+			files.keySet().removeAll(getBelow(files.keySet(), directory));
+			directories.removeAll(getBelow(directories, directory));
+		}
+
+		public synchronized void deleteFile(String filePath) throws Exception
+		{
+			if(files.remove(filePath) == null)
+			{
+				throw new FileNotFoundException("File "+filePath+" does not exist.");
+			}
+		}
+
+		public synchronized StorageEntry stat(String filePath) throws Exception
+		{
+			String name = filePath.substring(filePath.lastIndexOf("/") + 1);
+
+			if(filePath.length() == 0 || directories.contains(filePath))
+			{
+				return new StorageEntry(filePath, name, true, 0, 0);
+			}
+
+			if(files.containsKey(filePath))
+			{
+				return new StorageEntry(filePath, name, false, files.get(filePath).length, 0);
+			}
+
+			return StorageEntry.missing(filePath, name);
+		}
+
+		public synchronized InputStream openRead(String filePath) throws Exception
+		{
+			if(files.containsKey(filePath) == false)
+			{
+				throw new FileNotFoundException("File "+filePath+" does not exist.");
+			}
+
+			return new ByteArrayInputStream(files.get(filePath));
+		}
+
+		public OutputStream openWrite(final String filePath) throws Exception
+		{
+			return new ByteArrayOutputStream()
+			{
+				public void close() throws IOException
+				{
+					synchronized(MemoryStorage.this)
+					{
+						files.put(filePath, toByteArray());
+					}
+				}
+			};
+		}
+
+		public List<File> getAllFilesForDirectory(String directory) throws Exception
+		{
+			List<File> result = new ArrayList<File>();
+			StorageEntryIterator entries = listEntries(directory, true, null);
+
+			while(entries.hasNext())
+			{
+				StorageEntry entry = entries.next();
+
+				if(entry.isFile())
+				{
+					result.add(new File(entry.getPath()));
+				}
+			}
+
+			return result;
+		}
+
+		public StorageEntryIterator listEntries(String directory, boolean recursive, String continuationToken) throws Exception
+		{
+			return new StorageEntryIterator(directory, recursive, continuationToken)
+			{
+				protected List<StorageEntry> listDirectory(String directory) throws Exception
+				{
+					synchronized(MemoryStorage.this)
+					{
+						if(unreadable.contains(directory) || (directory.length() > 0 && directories.contains(directory) == false))
+						{
+							//the error of the server, like the 550 reply of an FTP server.
+							throw new IOException("Could not read the directory: "+directory+".");
+						}
+
+						List<StorageEntry> entries = new ArrayList<StorageEntry>();
+
+						for(String path: directories)
+						{
+							if(getParent(path).equals(directory))
+							{
+								entries.add(stat(path));
+							}
+						}
+
+						for(String path: files.keySet())
+						{
+							if(getParent(path).equals(directory))
+							{
+								entries.add(stat(path));
+							}
+						}
+
+						return entries;
+					}
+				}
+			};
+		}
+
+		public boolean isCloudStorage()
+		{
+			return false;
+		}
+
+		public void shutdown()
+		{
+		}
+
+		private static Set<String> getBelow(Set<String> paths, String directory)
+		{
+			Set<String> below = new HashSet<String>();
+
+			for(String path: paths)
+			{
+				if(path.startsWith(directory+"/"))
+				{
+					below.add(path);
+				}
+			}
+
+			return below;
+		}
+
+		private static String getParent(String path)
+		{
+			int index = path.lastIndexOf("/");
+			return index < 0 ? "" : path.substring(0, index);
+		}
+	}
+}
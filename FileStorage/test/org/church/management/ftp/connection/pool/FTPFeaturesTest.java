@@ -0,0 +1,36 @@
+package org.church.management.ftp.connection.pool;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks how the reply to FEAT is read.
+ */
+public class FTPFeaturesTest
+{
+	@Test
+	public void readsTheFeaturesOnTheIndentedLines()
+	{
+		String[] reply = {"Extensions supported:", " MLST type*;size*;modify*;unique*;", " mdtm", " REST STREAM", "End"};
+		FTPFeatures features = FTPFeatures.parse(reply);
+
+		assertTrue(features.isMachineListingSupported());
+		assertTrue(features.isSupported("MDTM"));
+		assertTrue(features.isSupported("rest"));
+		assertFalse(features.isSupported("Extensions"));
+		assertFalse(features.isSupported("MLSD"));
+	}
+
+	@Test
+	public void knowsNothingWithoutAReply()
+	{
+		assertFalse(FTPFeatures.parse(null).isMachineListingSupported());
+		assertFalse(FTPFeatures.NONE.isSupported("MLST"));
+		assertFalse(FTPFeatures.parse(new String[]{"No features"}).isMachineListingSupported());
+	}
+}
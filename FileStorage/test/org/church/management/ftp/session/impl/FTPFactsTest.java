@@ -0,0 +1,72 @@
+package org.church.management.ftp.session.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.church.management.file.storage.StorageEntry;
+import org.junit.Test;
+
+/**
+ *
+ * @author Trae
+ *
+ * This class checks how the facts of MLST and MLSD lines are read.
+ */
+public class FTPFactsTest
+{
+	@Test
+	public void readsTheFactsOfAFile()
+	{
+		FTPFacts facts = FTPFacts.parse("type=file;Size=1024;modify=20240101120000;UNIQUE=801U1A; photo one.jpg");
+
+		assertNotNull(facts);
+		assertEquals("file", facts.getType());
+		assertFalse(facts.isDirectory());
+		assertEquals(1024, facts.getSize());
+		assertEquals(1704110400000L, facts.getModified());
+		assertEquals("801U1A", facts.getUnique());
+	}
+
+	@Test
+	public void readsTheFractionOfTheModifiedTime()
+	{
+		FTPFacts facts = FTPFacts.parse("type=file;size=1;modify=20240101120000.5; a.txt");
+
+		assertEquals(1704110400500L, facts.getModified());
+	}
+
+	@Test
+	public void leavesOutTheFactsTheServerDidNotGive()
+	{
+		FTPFacts facts = FTPFacts.parse("type=dir; photos");
+
+		assertTrue(facts.isDirectory());
+		assertEquals(-1, facts.getSize());
+		assertEquals(0, facts.getModified());
+		assertNull(facts.getUnique());
+	}
+
+	@Test
+	public void findsTheFactsInAnMlstReply()
+	{
+		String[] reply = {"Listing /photos/a.jpg", " type=file;size=20;modify=20240101120000; /photos/a.jpg", "End"};
+		FTPFacts facts = FTPFacts.parseReply(reply);
+
+		assertNotNull(facts);
+		StorageEntry entry = facts.toEntry("/photos/a.jpg", "a.jpg");
+		assertEquals("/photos/a.jpg", entry.getPath());
+		assertEquals(20, entry.getSize());
+		assertEquals(1704110400000L, entry.getLastModified());
+	}
+
+	@Test
+	public void rejectsALineWithoutFacts()
+	{
+		assertNull(FTPFacts.parse(null));
+		assertNull(FTPFacts.parse("-rw-r--r-- 1 owner group 1024 Jan 01 12:00 a.txt"));
+		assertNull(FTPFacts.parseReply(new String[]{"Listing", "End"}));
+	}
+}